@@ -0,0 +1,254 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Pool-based fair sharing for the {@link FrameworkScheduler}, using the pools
+ * of the fair scheduler contrib ({@link PoolManager}, configured through
+ * mapred.fairscheduler.allocation.file and
+ * mapred.fairscheduler.poolnameproperty) for pool membership, min shares and
+ * weights.
+ *
+ * The FrameworkScheduler considers jobs in pool order instead of FIFO order
+ * (jobs within a pool stay in FIFO order): first the pools that are below
+ * their min share, the neediest first, and then the others by their number
+ * of running tasks divided by their weight. Shares are counted in slots,
+ * since the number of slots the framework holds grows and shrinks with the
+ * offers it gets from Mesos.
+ *
+ * If mapred.mesos.preemption is set, a pool that has been below its min share
+ * for mapred.mesos.preemption.timeout milliseconds may preempt tasks from
+ * pools that are above their fair share (see getTasksToPreempt).
+ *
+ * All methods assume that the JobTracker is locked. The JobTracker calls its
+ * listeners with its lock held, so this only matters for the FrameworkScheduler.
+ */
+class FairSharePolicy extends JobInProgressListener {
+  public static final Log LOG = LogFactory.getLog(FairSharePolicy.class);
+
+  /**
+   * Share of a pool for one type of task, as of the last update.
+   */
+  static class PoolShare {
+    int running;  // Running tasks, plus slots launched since the last update
+    int demand;   // Running plus pending tasks
+    int minShare;
+    double weight;
+    long lastTimeAtMinShare;
+
+    // Min share, capped at what the pool can actually use
+    int neededMinShare() {
+      return Math.min(minShare, demand);
+    }
+  }
+
+  private final PoolManager poolMgr;
+  private final MesosScheduler.Clock clock;
+  private final boolean preemptionEnabled;
+  private final long preemptionTimeout;
+
+  // Shares of each pool for maps and for reduces, by pool name
+  private Map<String, PoolShare> mapShares = new HashMap<String, PoolShare>();
+  private Map<String, PoolShare> reduceShares =
+    new HashMap<String, PoolShare>();
+
+  private final Comparator<JobInProgress> mapComparator =
+    new PoolComparator(mapShares);
+  private final Comparator<JobInProgress> reduceComparator =
+    new PoolComparator(reduceShares);
+
+  public FairSharePolicy(Configuration conf, MesosScheduler.Clock clock)
+      throws Exception {
+    this.poolMgr = new PoolManager(conf);
+    this.clock = clock;
+    this.preemptionEnabled = conf.getBoolean("mapred.mesos.preemption", false);
+    this.preemptionTimeout =
+      conf.getLong("mapred.mesos.preemption.timeout", 60000);
+  }
+
+  @Override
+  public void jobAdded(JobInProgress job) {
+    poolMgr.addJob(job);
+  }
+
+  @Override
+  public void jobRemoved(JobInProgress job) {
+    poolMgr.removeJob(job);
+  }
+
+  @Override
+  public void jobUpdated(JobChangeEvent event) {}
+
+  /**
+   * Get the jobs of a pool.
+   */
+  public Collection<JobInProgress> getPoolJobs(String poolName) {
+    return new ArrayList<JobInProgress>(poolMgr.getPool(poolName).getJobs());
+  }
+
+  public String getPoolName(JobInProgress job) {
+    return poolMgr.getPoolName(job);
+  }
+
+  /**
+   * Recompute the share of each pool from its jobs' running and pending tasks.
+   * Should be called once per round of resource offers or heartbeat rather
+   * than once per task.
+   */
+  public void update() {
+    poolMgr.reloadAllocsIfNecessary();
+    long now = clock.getTime();
+    for (Pool pool: poolMgr.getPools()) {
+      String name = pool.getName();
+      PoolShare mapShare = getShare(mapShares, name, now);
+      PoolShare reduceShare = getShare(reduceShares, name, now);
+      mapShare.running = mapShare.demand = 0;
+      reduceShare.running = reduceShare.demand = 0;
+      for (JobInProgress job: pool.getJobs()) {
+        if (job.getStatus().getRunState() == JobStatus.RUNNING) {
+          int runningMaps = job.runningMaps();
+          int runningReduces = job.runningReduces();
+          mapShare.running += runningMaps;
+          mapShare.demand += runningMaps + job.pendingMaps();
+          reduceShare.running += runningReduces;
+          reduceShare.demand += runningReduces + job.pendingReduces();
+        }
+      }
+      mapShare.minShare = poolMgr.getAllocation(name, TaskType.MAP);
+      reduceShare.minShare = poolMgr.getAllocation(name, TaskType.REDUCE);
+      mapShare.weight = reduceShare.weight = poolMgr.getPoolWeight(name);
+      if (mapShare.running >= mapShare.neededMinShare())
+        mapShare.lastTimeAtMinShare = now;
+      if (reduceShare.running >= reduceShare.neededMinShare())
+        reduceShare.lastTimeAtMinShare = now;
+    }
+  }
+
+  /**
+   * Record that a slot was launched for a job, so that its pool goes behind
+   * others with the same share for the rest of the round.
+   */
+  public void slotLaunched(JobInProgress job, boolean isMap) {
+    PoolShare share = (isMap ? mapShares : reduceShares).get(getPoolName(job));
+    if (share != null) {
+      share.running++;
+    }
+  }
+
+  /**
+   * Get a comparator that orders jobs by how much their pools deserve their
+   * next map or reduce slot. It treats jobs in the same pool as equal, so a
+   * stable sort of a FIFO list keeps each pool's jobs in FIFO order.
+   */
+  public Comparator<JobInProgress> getJobComparator(boolean isMap) {
+    return isMap ? mapComparator : reduceComparator;
+  }
+
+  /**
+   * Get the number of map or reduce tasks that pools over their fair share
+   * should give up, by pool name, so that pools that have been below their
+   * min share for longer than the preemption timeout get it. Returns an
+   * empty map if preemption is disabled.
+   */
+  public Map<String, Integer> getTasksToPreempt(boolean isMap) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    if (!preemptionEnabled) {
+      return result;
+    }
+    Map<String, PoolShare> shares = isMap ? mapShares : reduceShares;
+    long now = clock.getTime();
+    int starved = 0;
+    int total = 0;
+    double totalWeight = 0;
+    List<PoolShare> starvedShares = new ArrayList<PoolShare>();
+    for (PoolShare share: shares.values()) {
+      if (now - share.lastTimeAtMinShare >= preemptionTimeout) {
+        starved += share.neededMinShare() - share.running;
+        starvedShares.add(share);
+      }
+      total += share.running;
+      if (share.demand > 0) {
+        totalWeight += share.weight;
+      }
+    }
+    if (starved <= 0 || totalWeight == 0) {
+      return result;
+    }
+    // Give the preempted tasks time to go away before preempting again
+    for (PoolShare share: starvedShares) {
+      share.lastTimeAtMinShare = now;
+    }
+    // Take tasks from the pools that are above their fair share
+    for (Map.Entry<String, PoolShare> e: shares.entrySet()) {
+      PoolShare share = e.getValue();
+      if (share.demand == 0 || starved <= 0) {
+        continue;
+      }
+      int fairShare = Math.max(share.neededMinShare(), Math.min(share.demand,
+          (int) Math.ceil(total * share.weight / totalWeight)));
+      int excess = Math.min(share.running - fairShare, starved);
+      if (excess > 0) {
+        LOG.info("Preempting " + excess + (isMap ? " maps" : " reduces") +
+            " from pool " + e.getKey());
+        result.put(e.getKey(), excess);
+        starved -= excess;
+      }
+    }
+    return result;
+  }
+
+  private static PoolShare getShare(Map<String, PoolShare> shares,
+                                    String name, long now) {
+    PoolShare share = shares.get(name);
+    if (share == null) {
+      share = new PoolShare();
+      share.lastTimeAtMinShare = now;
+      shares.put(name, share);
+    }
+    return share;
+  }
+
+  private class PoolComparator implements Comparator<JobInProgress> {
+    private final Map<String, PoolShare> shares;
+
+    PoolComparator(Map<String, PoolShare> shares) {
+      this.shares = shares;
+    }
+
+    public int compare(JobInProgress j1, JobInProgress j2) {
+      PoolShare s1 = shares.get(getPoolName(j1));
+      PoolShare s2 = shares.get(getPoolName(j2));
+      if (s1 == s2) {
+        return 0;
+      }
+      // Pools created since the last update have no share yet; put them
+      // after the others so that the order stays consistent
+      if (s1 == null) {
+        return 1;
+      } else if (s2 == null) {
+        return -1;
+      }
+      boolean needy1 = s1.running < s1.neededMinShare();
+      boolean needy2 = s2.running < s2.neededMinShare();
+      if (needy1 && !needy2) {
+        return -1;
+      } else if (needy2 && !needy1) {
+        return 1;
+      } else if (needy1 && needy2) {
+        return Double.compare((double) s1.running / s1.neededMinShare(),
+                              (double) s2.running / s2.neededMinShare());
+      } else {
+        return Double.compare(s1.running / s1.weight, s2.running / s2.weight);
+      }
+    }
+  }
+}
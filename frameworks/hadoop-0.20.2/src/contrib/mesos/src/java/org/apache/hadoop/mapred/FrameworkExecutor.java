@@ -1,6 +1,7 @@
 package org.apache.hadoop.mapred;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -39,7 +40,10 @@ public class FrameworkExecutor implements Executor {
   private JobConf conf;
   private TaskTracker taskTracker;
 
-  private Set<String> activeMesosTasks = new HashSet<String>();
+  // Mesos tasks that have not been reported as done yet. Accessed both by
+  // the driver's thread and by the TaskTracker's threads.
+  private Set<String> activeMesosTasks =
+    Collections.synchronizedSet(new HashSet<String>());
 
   @Override
   public void init(ExecutorDriver d, ExecutorArgs args) {
@@ -64,6 +68,13 @@ public class FrameworkExecutor implements Executor {
       
       // Get hostname from Mesos to make sure we match what it reports to the JT
       conf.set("slave.host.name", args.getHostname());
+
+      // The number of slots on this node is bounded by the resources that
+      // Mesos offers, so only put a loose cap on the TaskTracker's own limits
+      // (it also sizes its RPC handler pool by them)
+      int maxSlots = conf.getInt("mapred.mesos.tasktracker.slots.maximum", 32);
+      conf.setInt("mapred.tasktracker.map.tasks.maximum", maxSlots);
+      conf.setInt("mapred.tasktracker.reduce.tasks.maximum", maxSlots);
       
       taskTracker = new TaskTracker(conf);
       new Thread("TaskTracker run thread") {
@@ -91,7 +102,19 @@ public class FrameworkExecutor implements Executor {
   @Override
   public void killTask(ExecutorDriver d, TaskID taskId) {
     LOG.info("Asked to kill Mesos task " + taskId);
-    // TODO: Tell the JobTracker about this using an E2S_KILL_REQUEST message!
+    // Free the slot in Mesos right away, and ask the JobTracker to kill the
+    // Hadoop task running in it, if any
+    if (activeMesosTasks.remove(taskId.getValue())) {
+      sendStatusUpdate(d, taskId.getValue(), TaskState.TASK_KILLED);
+    }
+    try {
+      HadoopFrameworkMessage message = new HadoopFrameworkMessage(
+          HadoopFrameworkMessage.Type.E2S_KILL_REQUEST, taskId.getValue());
+      d.sendFrameworkMessage(message.serialize());
+    } catch (IOException e) {
+      LOG.fatal("Failed to serialize HadoopFrameworkMessage", e);
+      System.exit(1);
+    }
   }
  
   @Override 
@@ -99,20 +122,23 @@ public class FrameworkExecutor implements Executor {
     try {
       HadoopFrameworkMessage hfm = new HadoopFrameworkMessage(msg);
       switch (hfm.type) {
-        case S2E_SEND_STATUS_UPDATE: {
-          TaskState s = TaskState.valueOf(hfm.arg1);
-          LOG.info("Sending status update: " + hfm.arg2 + " is " + s);
-          d.sendStatusUpdate(
-                  TaskStatus.newBuilder().setTaskId(
-                      TaskID.newBuilder().setValue(hfm.arg2).build()
-                  ).setState(s).build()
-          );
+        case S2E_KILL_REQUEST: {
+          for (String taskId: hfm.taskIds) {
+            LOG.info("Killing Mesos task " + taskId + " on request from JT");
+            // The task may already have been reported as finished or failed
+            if (activeMesosTasks.remove(taskId)) {
+              sendStatusUpdate(d, taskId, TaskState.TASK_KILLED);
+            }
+          }
           break;
         }
         case S2E_SHUTDOWN_EXECUTOR: {
           taskTracker.close();
           System.exit(0);
+          break;
         }
+        default:
+          LOG.error("Unexpected HadoopFrameworkMessage: " + hfm.type);
       }
     } catch (IOException e) {
       LOG.fatal("Failed to deserialize HadoopFrameworkMessage", e);
@@ -126,29 +152,31 @@ public class FrameworkExecutor implements Executor {
     if (!task.extraData.equals("")) {
       // Parse Mesos ID from extraData
       String mesosId = task.extraData;
-      if (activeMesosTasks.contains(mesosId)) {
-        // Check whether the task has finished (either successfully or not),
-        // and report to Mesos if it has
-        State state = status.getRunState();
-        org.apache.mesos.Protos.TaskState mesosState = null;
-        if (state == State.SUCCEEDED || state == State.COMMIT_PENDING)
-          mesosState = TaskState.TASK_FINISHED;
-        else if (state == State.FAILED || state == State.FAILED_UNCLEAN)
-          mesosState = TaskState.TASK_FAILED;
-        else if (state == State.KILLED || state == State.KILLED_UNCLEAN)
-          mesosState = TaskState.TASK_KILLED;
-        if (mesosState != null) {
-          driver.sendStatusUpdate(
-                  TaskStatus.newBuilder().setTaskId(
-                    TaskID.newBuilder().setValue(task.extraData).build()
-                  ).setState(mesosState).build()
-          );
-          activeMesosTasks.remove(mesosId);
-        }
+      // Check whether the task has finished (either successfully or not),
+      // and report to Mesos if it has, which frees its slot
+      State state = status.getRunState();
+      org.apache.mesos.Protos.TaskState mesosState = null;
+      if (state == State.SUCCEEDED || state == State.COMMIT_PENDING)
+        mesosState = TaskState.TASK_FINISHED;
+      else if (state == State.FAILED || state == State.FAILED_UNCLEAN)
+        mesosState = TaskState.TASK_FAILED;
+      else if (state == State.KILLED || state == State.KILLED_UNCLEAN)
+        mesosState = TaskState.TASK_KILLED;
+      if (mesosState != null && activeMesosTasks.remove(mesosId)) {
+        sendStatusUpdate(driver, mesosId, mesosState);
       }
     }
   }
 
+  private static void sendStatusUpdate(ExecutorDriver d, String mesosId,
+                                       TaskState state) {
+    d.sendStatusUpdate(
+            TaskStatus.newBuilder().setTaskId(
+              TaskID.newBuilder().setValue(mesosId).build()
+            ).setState(state).build()
+    );
+  }
+
   @Override
   public void error(ExecutorDriver d, int code, String msg) {
     LOG.error("FrameworkExecutor.error: " + msg);
@@ -4,8 +4,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -17,10 +22,10 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.TaskStatus.State;
 import org.apache.hadoop.mapred.TaskTrackerStatus;
-import org.apache.hadoop.net.Node;
 
 import org.apache.mesos.Protos.ExecutorInfo;
 import org.apache.mesos.Protos.ExecutorID;
+import org.apache.mesos.Protos.Filters;
 import org.apache.mesos.Protos.FrameworkID;
 import org.apache.mesos.Protos.OfferID;
 import org.apache.mesos.Protos.Resource;
@@ -31,6 +36,7 @@ import org.apache.mesos.Protos.TaskDescription;
 import org.apache.mesos.Protos.TaskState;
 import org.apache.mesos.Protos.TaskStatus;
 import org.apache.mesos.Protos.Status;
+import org.apache.mesos.Protos.Value;
 import org.apache.mesos.Scheduler;
 import org.apache.mesos.SchedulerDriver;
 
@@ -38,20 +44,36 @@ public class FrameworkScheduler implements Scheduler {
   public static final Log LOG =
     LogFactory.getLog(FrameworkScheduler.class);
   public static final long KILL_UNLAUNCHED_TASKS_SLEEP_TIME = 2000;
+  // How long to wait after asking an executor to shut down before launching
+  // tasks on its node again (which will start a new executor)
+  public static final long TRACKER_SHUTDOWN_WAIT_TIME = 10000;
 
   private static class MesosTask {
     final boolean isMap;
+    final SlotSize size;
     final TaskID mesosId;
     final String host;
     final long creationTime;
     
     TaskAttemptID hadoopId;
     
-    MesosTask(boolean isMap, TaskID mesosId, String host) {
+    // For map slots, the job that the slot was offered for and the cache
+    // level up to which that job was allowed to launch maps at the time (see
+    // chooseMap). The TaskTracker offers the slot to that job first.
+    JobInProgress job;
+    int maxCacheLevel = Integer.MAX_VALUE;
+    
+    // Set when the task is removed from our bookkeeping; read without the
+    // JobTracker lock while launching, to skip decisions that went stale
+    volatile boolean removed = false;
+    
+    MesosTask(boolean isMap, SlotSize size, TaskID mesosId, String host,
+              long creationTime) {
       this.isMap = isMap;
+      this.size = size;
       this.mesosId = mesosId;
       this.host = host;
-      this.creationTime = System.currentTimeMillis();
+      this.creationTime = creationTime;
     }
 
     boolean isAssigned() {
@@ -63,27 +85,235 @@ public class FrameworkScheduler implements Scheduler {
     }
   }
   
+  /**
+   * The resources of a map or reduce slot.
+   */
+  private static class SlotSize {
+    final double cpus;
+    final double mem;
+    
+    SlotSize(double cpus, double mem) {
+      this.cpus = cpus;
+      this.mem = mem;
+    }
+    
+    boolean fits(double availableCpus, double availableMem) {
+      return cpus <= availableCpus && mem <= availableMem;
+    }
+    
+    boolean fits(SlotSize slot) {
+      return fits(slot.cpus, slot.mem);
+    }
+  }
+  
   private static class TaskTrackerInfo {
     SlaveID mesosSlaveId;
-    List<MesosTask> maps = new LinkedList<MesosTask>();
-    List<MesosTask> reduces = new LinkedList<MesosTask>();
+    // Mesos tasks on this tracker, split by type and by whether a Hadoop task
+    // has been assigned to them yet. LinkedHashSets keep the tasks in
+    // creation order while allowing O(1) removal.
+    Set<MesosTask> unassignedMaps = new LinkedHashSet<MesosTask>();
+    Set<MesosTask> assignedMaps = new LinkedHashSet<MesosTask>();
+    Set<MesosTask> unassignedReduces = new LinkedHashSet<MesosTask>();
+    Set<MesosTask> assignedReduces = new LinkedHashSet<MesosTask>();
+    
+    // Lifecycle of the TaskTracker, used to shut it down when idle
+    final long creationTime;      // When its first Mesos task was launched
+    boolean heartbeated = false;  // Whether it has asked for tasks yet
+    long idleSince;               // When it last ran out of Mesos tasks
+    long shutdownTime = -1;       // When we asked it to shut down, or -1
+    int tasksLaunched = 0;        // Mesos tasks launched on it so far
+    // Jobs that ran maps on it, and may still need it to serve their outputs
+    Set<JobID> mapOutputJobs = new HashSet<JobID>();
     
-    public TaskTrackerInfo(SlaveID mesosSlaveId) {
+    public TaskTrackerInfo(SlaveID mesosSlaveId, long creationTime) {
       this.mesosSlaveId = mesosSlaveId;
+      this.creationTime = creationTime;
+      this.idleSince = creationTime;
+    }
+    
+    boolean isIdle() {
+      return numMaps() + numReduces() == 0;
+    }
+    
+    int numMaps() {
+      return unassignedMaps.size() + assignedMaps.size();
+    }
+    
+    int numReduces() {
+      return unassignedReduces.size() + assignedReduces.size();
     }
     
     void add(MesosTask nt) {
       if (nt.isMap)
-        maps.add(nt);
+        unassignedMaps.add(nt);
       else
-        reduces.add(nt);
+        unassignedReduces.add(nt);
     }
 
-    public void remove(MesosTask nt) {
+    // Move a task to the assigned set. Callers iterating over the unassigned
+    // set must remove it from there themselves.
+    void assigned(MesosTask nt) {
       if (nt.isMap)
-        maps.remove(nt);
+        assignedMaps.add(nt);
       else
-        reduces.remove(nt);
+        assignedReduces.add(nt);
+    }
+
+    public void remove(MesosTask nt, long now) {
+      if (nt.isMap) {
+        if (!unassignedMaps.remove(nt))
+          assignedMaps.remove(nt);
+      } else {
+        if (!unassignedReduces.remove(nt))
+          assignedReduces.remove(nt);
+      }
+      if (isIdle()) {
+        idleSince = now;
+      }
+    }
+  }
+  
+  // Locality levels used for delay scheduling
+  private static final int NODE_LOCAL = 0;
+  private static final int RACK_LOCAL = 1;
+  private static final int OFF_SWITCH = 2;
+  
+  /**
+   * Delay scheduling state of a job. A job that has no map to launch at its
+   * current locality level on an offered node is skipped, and starts waiting;
+   * after waiting for the node locality wait it may launch rack-local maps,
+   * and after waiting for the rack locality wait as well it may launch maps
+   * anywhere. Launching a map resets the wait and sets the job's level to
+   * the locality of that map.
+   */
+  private static class JobLocality {
+    int level = NODE_LOCAL; // Locality of the last map launched
+    long waitStart = -1;    // When the job was first skipped since, or -1
+    int unassignedMaps = 0; // Map slots offered for the job but not yet used
+    
+    int allowedLevel(long now, long nodeWait, long rackWait) {
+      if (waitStart == -1) {
+        return level;
+      }
+      long waited = now - waitStart;
+      if (level == NODE_LOCAL) {
+        if (waited >= nodeWait + rackWait)
+          return OFF_SWITCH;
+        else if (waited >= nodeWait)
+          return RACK_LOCAL;
+        else
+          return NODE_LOCAL;
+      } else if (level == RACK_LOCAL) {
+        return waited >= rackWait ? OFF_SWITCH : RACK_LOCAL;
+      } else {
+        return OFF_SWITCH;
+      }
+    }
+    
+    void skipped(long now) {
+      if (waitStart == -1) {
+        waitStart = now;
+      }
+    }
+    
+    void launched(int launchedLevel) {
+      level = launchedLevel;
+      waitStart = -1;
+    }
+  }
+  
+  /**
+   * The result of chooseMap: the job to launch a map slot for (null to let
+   * any job use it), the locality level it may use, the slot's size and
+   * whether the slot is for a speculative attempt.
+   */
+  private static class MapChoice {
+    final JobInProgress job;
+    final int level;
+    final SlotSize size;
+    final boolean speculative;
+    
+    MapChoice(JobInProgress job, int level, SlotSize size,
+              boolean speculative) {
+      this.job = job;
+      this.level = level;
+      this.size = size;
+      this.speculative = speculative;
+    }
+  }
+  
+  /**
+   * The order in which the jobs that have maps or reduces to launch get
+   * slots during a round of offers, computed once per round. Without fair
+   * sharing this is FIFO order. With it, jobs are grouped by pool (in FIFO
+   * order within a pool) and the pools are sorted by the FairSharePolicy;
+   * a pool that gets a slot is then moved back past the pools that deserve
+   * the next slot more, which only walks the pools rather than re-sorting.
+   */
+  private class SlotOrder {
+    private final boolean isMap;
+    // Jobs grouped by pool, in the order in which the pools get slots; a
+    // single group of all jobs without fair sharing
+    private final List<List<JobDemandIndex.JobDemand>> groups =
+      new ArrayList<List<JobDemandIndex.JobDemand>>();
+
+    SlotOrder(Collection<JobDemandIndex.JobDemand> demands, boolean isMap) {
+      this.isMap = isMap;
+      if (fairShare == null) {
+        groups.add(new ArrayList<JobDemandIndex.JobDemand>(demands));
+        return;
+      }
+      Map<String, List<JobDemandIndex.JobDemand>> pools =
+        new LinkedHashMap<String, List<JobDemandIndex.JobDemand>>();
+      for (JobDemandIndex.JobDemand demand: demands) {
+        String pool = fairShare.getPoolName(demand.job);
+        List<JobDemandIndex.JobDemand> group = pools.get(pool);
+        if (group == null) {
+          group = new ArrayList<JobDemandIndex.JobDemand>();
+          pools.put(pool, group);
+        }
+        group.add(demand);
+      }
+      groups.addAll(pools.values());
+      // A stable sort, so that pools with the same share stay in FIFO order
+      final Comparator<JobInProgress> comparator =
+        fairShare.getJobComparator(isMap);
+      Collections.sort(groups,
+          new Comparator<List<JobDemandIndex.JobDemand>>() {
+            public int compare(List<JobDemandIndex.JobDemand> g1,
+                               List<JobDemandIndex.JobDemand> g2) {
+              return comparator.compare(g1.get(0).job, g2.get(0).job);
+            }
+          });
+    }
+
+    List<List<JobDemandIndex.JobDemand>> getGroups() {
+      return groups;
+    }
+
+    /**
+     * Move the pool of a job that just got a slot behind the pools that
+     * now deserve the next slot as much or more. Its share only went up, so
+     * it can only move back.
+     */
+    void slotLaunched(JobInProgress job) {
+      if (fairShare == null) {
+        return;
+      }
+      Comparator<JobInProgress> comparator = fairShare.getJobComparator(isMap);
+      String pool = fairShare.getPoolName(job);
+      for (int i = 0; i < groups.size(); i++) {
+        List<JobDemandIndex.JobDemand> group = groups.get(i);
+        if (fairShare.getPoolName(group.get(0).job).equals(pool)) {
+          groups.remove(i);
+          while (i < groups.size() &&
+                 comparator.compare(job, groups.get(i).get(0).job) >= 0) {
+            i++;
+          }
+          groups.add(i, group);
+          return;
+        }
+      }
     }
   }
   
@@ -91,7 +321,7 @@ public class FrameworkScheduler implements Scheduler {
     @Override
     public void run() {
       while (running) {
-        killTimedOutTasks();
+        runPeriodicChecks();
         try { Thread.sleep(KILL_UNLAUNCHED_TASKS_SLEEP_TIME); }
         catch (Exception e) {}
       }
@@ -99,17 +329,36 @@ public class FrameworkScheduler implements Scheduler {
   }
   
   private MesosScheduler mesosSched;
+  private MesosScheduler.Clock clock;
   private SchedulerDriver driver;
   private MesosJobTrackerInstrumentation instrumentation;
   private FrameworkID frameworkId;
   private Configuration conf;
   private JobTracker jobTracker;
+  private JobDemandIndex demandIndex;
+  private FairSharePolicy fairShare; // null for FIFO scheduling
   private boolean running;
   private AtomicInteger nextMesosTaskId = new AtomicInteger(0);
   
-  private int cpusPerTask;
-  private int memPerTask;
-  private long localityWait;
+  // Default sizes of map and reduce slots
+  private SlotSize mapSlotSize;
+  private SlotSize reduceSlotSize;
+  private long nodeLocalityWait;
+  private long rackLocalityWait;
+  private long trackerIdleTimeout;
+  private int warmTrackers;
+  private int maxSpeculativeSlots;
+  private double idleRefuseSeconds;
+  private double busyRefuseSeconds;
+  
+  // Order of the jobs that get map and reduce slots in the current round of
+  // offers (see SlotOrder)
+  private SlotOrder mapOrder;
+  private SlotOrder reduceOrder;
+  
+  // Whether we declined offers for longer than busyRefuseSeconds because we
+  // had nothing to run, and should revive them when demand appears
+  private boolean offersRefused = false;
   
   private Map<String, TaskTrackerInfo> ttInfos =
     new HashMap<String, TaskTrackerInfo>();
@@ -119,6 +368,20 @@ public class FrameworkScheduler implements Scheduler {
   private Map<String, MesosTask> mesosIdToMesosTask =
     new HashMap<String, MesosTask>();
   
+  // All Mesos tasks that don't have a Hadoop task assigned yet, in creation
+  // order, so that killTimedOutTasks only has to look at the expired ones
+  private Set<MesosTask> unassignedTasks = new LinkedHashSet<MesosTask>();
+  
+  // Delay scheduling state of each job
+  private Map<JobID, JobLocality> jobLocalities =
+    new HashMap<JobID, JobLocality>();
+  
+  // Slot sizes of each job (see getSlotSize)
+  private Map<JobID, SlotSize> jobMapSlotSizes =
+    new HashMap<JobID, SlotSize>();
+  private Map<JobID, SlotSize> jobReduceSlotSizes =
+    new HashMap<JobID, SlotSize>();
+  
   // Counts of various kinds of Mesos tasks
   // TODO: Figure out a better way to keep track of these
   int unassignedMaps = 0;
@@ -126,27 +389,34 @@ public class FrameworkScheduler implements Scheduler {
   int assignedMaps = 0;
   int assignedReduces = 0;
   
-  // Variables used for delay scheduling
-  boolean lastMapWasLocal = true;
-  long timeWaitedForLocalMap = 0;
-  long lastCanLaunchMapTime = -1;
-  
-  // Node slot couts
-  // TODO: These should be configurable per node rather than fixed like this
-  int maxMapsPerNode;
-  int maxReducesPerNode;
-  
   public FrameworkScheduler(MesosScheduler mesosSched) {
     this.mesosSched = mesosSched;
     this.conf = mesosSched.getConf();
+    this.clock = mesosSched.clock;
     this.jobTracker = mesosSched.jobTracker;
+    this.demandIndex = mesosSched.demandIndex;
+    this.fairShare = mesosSched.fairShare;
     this.instrumentation =
       new MesosJobTrackerInstrumentation(jobTracker, new JobConf(conf), this);
-    cpusPerTask = conf.getInt("mapred.mesos.task.cpus", 1);
-    memPerTask = conf.getInt("mapred.mesos.task.mem", 1024);
-    localityWait = conf.getLong("mapred.mesos.localitywait", 5000);
-    maxMapsPerNode = conf.getInt("mapred.tasktracker.map.tasks.maximum", 2);
-    maxReducesPerNode = conf.getInt("mapred.tasktracker.reduce.tasks.maximum", 2);
+    float cpusPerTask = conf.getFloat("mapred.mesos.task.cpus", 1);
+    int memPerTask = conf.getInt("mapred.mesos.task.mem", 1024);
+    mapSlotSize = new SlotSize(
+        conf.getFloat("mapred.mesos.map.cpus", cpusPerTask),
+        conf.getInt("mapred.mesos.map.mem", memPerTask));
+    reduceSlotSize = new SlotSize(
+        conf.getFloat("mapred.mesos.reduce.cpus", cpusPerTask),
+        conf.getInt("mapred.mesos.reduce.mem", memPerTask));
+    long localityWait = conf.getLong("mapred.mesos.localitywait", 5000);
+    nodeLocalityWait =
+      conf.getLong("mapred.mesos.localitywait.node", localityWait);
+    rackLocalityWait =
+      conf.getLong("mapred.mesos.localitywait.rack", localityWait);
+    trackerIdleTimeout =
+      conf.getLong("mapred.mesos.tasktracker.idle.timeout", 300000);
+    warmTrackers = conf.getInt("mapred.mesos.tasktracker.warm", 2);
+    maxSpeculativeSlots = conf.getInt("mapred.mesos.speculative.maxslots", 4);
+    idleRefuseSeconds = conf.getFloat("mapred.mesos.offer.refuse.idle", 60);
+    busyRefuseSeconds = conf.getFloat("mapred.mesos.offer.refuse.busy", 1);
   }
 
   @Override
@@ -155,7 +425,21 @@ public class FrameworkScheduler implements Scheduler {
     this.frameworkId = fid;
     LOG.info("Registered with Mesos, with framework ID " + fid);
     running = true;
-    new KillTimedOutTasksThread().start();
+    if (mesosSched.runBackgroundUpdates) {
+      new KillTimedOutTasksThread().start();
+    }
+  }
+
+  /**
+   * Kill timed out tasks, shut down idle TaskTrackers, preempt tasks and
+   * revive offers if needed. Called every KILL_UNLAUNCHED_TASKS_SLEEP_TIME
+   * milliseconds by a background thread, or by the MesosSimulator.
+   */
+  public void runPeriodicChecks() {
+    killTimedOutTasks();
+    shutDownIdleTrackers();
+    preemptTasks();
+    reviveOffersIfNeeded();
   }
   
   public void cleanUp() {
@@ -164,8 +448,8 @@ public class FrameworkScheduler implements Scheduler {
 
   private static Resource makeResource(String name, double value) {
     return Resource.newBuilder().setName(name).setScalar(
-        Resource.Scalar.newBuilder().setValue(value).build()
-    ).setType(Resource.Type.SCALAR).build();
+        Value.Scalar.newBuilder().setValue(value).build()
+    ).setType(Value.Type.SCALAR).build();
   }
 
   private static double getResource(Collection<Resource> resources, String name) {
@@ -185,22 +469,79 @@ public class FrameworkScheduler implements Scheduler {
     return getResource(task.getResourcesList(), name);
   }
   
+  /**
+   * Handle a batch of resource offers in two phases. First, with the
+   * JobTracker locked, decide how many map and reduce slots to launch on
+   * each offered node and record them in our bookkeeping; this only consults
+   * the demand index, so it is cheap. Then, without the lock, build the
+   * TaskDescriptions and hand them to the driver, so that heartbeats and job
+   * submissions are not held up by protobuf construction or the native
+   * launchTasks calls.
+   *
+   * Each slot is sized for the job it is launched for (see getSlotSize), and
+   * a node gets as many slots as fit in the resources it offers.
+   *
+   * Because the lock is released in between, a decision may go stale before
+   * it is launched (e.g. the task timed out and was removed). Such tasks are
+   * skipped, and tasks whose launch the driver rejects are removed again.
+   *
+   * Offers that we don't use are declined with a refuse timeout, so that
+   * Mesos doesn't keep offering them back to us: a short one
+   * (mapred.mesos.offer.refuse.busy seconds) if we have demand that we just
+   * couldn't place on the node right now, e.g. because of delay scheduling,
+   * and a long one (mapred.mesos.offer.refuse.idle seconds) if we have
+   * nothing to run at all. In the latter case we revive offers as soon as
+   * a job starts running or new demand shows up (see reviveOffersIfNeeded).
+   */
   @Override
   public void resourceOffers(SchedulerDriver d, List<Offer> offers) {
     try {
+      long roundStart = System.nanoTime();
+      int numOffers = (int) offers.size();
+      double[] cpus = new double[numOffers];
+      double[] mem = new double[numOffers];
+
+      // Count up the amount of free CPUs and memory on each node 
+      for (int i = 0; i < numOffers; i++) {
+        Offer offer = offers.get(i);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Got resource offer " + offer.getId());
+        }
+        cpus[i] = getResource(offer, "cpus");
+        mem[i] = getResource(offer, "mem");
+      }
+
+      // Phase 1: decide which tasks to launch on each node
+      List<List<MesosTask>> decisions =
+          new ArrayList<List<MesosTask>>(numOffers);
+      for (int i = 0; i < numOffers; i++) {
+        decisions.add(new ArrayList<MesosTask>());
+      }
+      double refuseSeconds;
+      long lockTime;
       synchronized(jobTracker) {
+        long lockStart = System.nanoTime();
+        // Bring the demand index up to date once for the whole round
+        demandIndex.refresh();
+        if (fairShare != null) {
+          fairShare.update();
+        }
+        mapOrder = new SlotOrder(demandIndex.getJobsWithMaps(), true);
+        reduceOrder = new SlotOrder(demandIndex.getJobsWithReduces(), false);
         
-        int numOffers = (int) offers.size();
-        double[] cpus = new double[numOffers];
-        double[] mem = new double[numOffers];
-
-        // Count up the amount of free CPUs and memory on each node 
+        // Consider the nodes with the most unlaunched maps that have data on
+        // them first, so that they get slots before nodes without data
+        final int[] localMaps = new int[numOffers];
+        List<Integer> sorted = new ArrayList<Integer>(numOffers);
         for (int i = 0; i < numOffers; i++) {
-          Offer offer = offers.get(i);
-          LOG.info("Got resource offer " + offer.getId());
-          cpus[i] = getResource(offer, "cpus");
-          mem[i] = getResource(offer, "mem");
+          localMaps[i] = demandIndex.getNodeLocalMaps(offers.get(i).getHostname());
+          sorted.add(i);
         }
+        Collections.sort(sorted, new Comparator<Integer>() {
+          public int compare(Integer i1, Integer i2) {
+            return localMaps[i2] - localMaps[i1];
+          }
+        });
         
         // Assign tasks to the nodes in a round-robin manner, and stop when we
         // are unable to assign a task to any node.
@@ -210,37 +551,87 @@ public class FrameworkScheduler implements Scheduler {
         // empty, no further assignments can be made. This algorithm was chosen
         // because it minimizing the amount of scanning we need to do if we
         // get a large set of offered nodes.
-        List<Integer> indices = new LinkedList<Integer>();
-        List<List<TaskDescription>> replies =
-            new ArrayList<List<TaskDescription>>(numOffers);
-        for (int i = 0; i < numOffers; i++) {
-          indices.add(i);
-          replies.add(new ArrayList<TaskDescription>());
-        }
+        List<Integer> indices = new LinkedList<Integer>(sorted);
         while (indices.size() > 0) {
           for (Iterator<Integer> it = indices.iterator(); it.hasNext();) {
             int i = it.next();
             Offer offer = offers.get(i);
-            TaskDescription task = findTask(
+            MesosTask nt = findTask(
                 offer.getSlaveId(), offer.getHostname(), cpus[i], mem[i]);
-            if (task != null) {
-              cpus[i] -= getResource(task, "cpus");
-              mem[i] -= getResource(task, "mem");
-              replies.get(i).add(task);
+            if (nt != null) {
+              cpus[i] -= nt.size.cpus;
+              mem[i] -= nt.size.mem;
+              decisions.get(i).add(nt);
             } else {
               it.remove();
             }
           }
         }
+        
+        // Pick the refuse timeout for the offers that we didn't use
+        if (hasUnmetDemand()) {
+          refuseSeconds = busyRefuseSeconds;
+        } else {
+          refuseSeconds = idleRefuseSeconds;
+          offersRefused = true;
+        }
+        lockTime = System.nanoTime() - lockStart;
+      }
+      Filters declineFilters =
+        Filters.newBuilder().setRefuseSeconds(refuseSeconds).build();
 
-        for (int i = 0; i < numOffers; i++) {
-          OfferID offerId = offers.get(i).getId();
-          Status status = d.launchTasks(offerId, replies.get(i));
-          if (status != Status.OK) {
-            LOG.warn("SchedulerDriver returned irregular status: " + status);
+      // Phase 2: launch the tasks, without holding the JobTracker lock
+      List<MesosTask> rejected = new ArrayList<MesosTask>();
+      int numSlots = 0;
+      for (int i = 0; i < numOffers; i++) {
+        Offer offer = offers.get(i);
+        List<MesosTask> decided = decisions.get(i);
+        List<TaskDescription> tasks =
+            new ArrayList<TaskDescription>(decided.size());
+        for (MesosTask nt: decided) {
+          if (!nt.removed) {
+            tasks.add(makeTaskDescription(nt, offer.getSlaveId()));
           }
         }
+        Status status;
+        if (tasks.isEmpty()) {
+          status = d.launchTasks(offer.getId(), tasks, declineFilters);
+        } else {
+          status = d.launchTasks(offer.getId(), tasks);
+        }
+        if (status != Status.OK) {
+          LOG.warn("SchedulerDriver returned irregular status: " + status);
+          rejected.addAll(decided);
+        } else {
+          numSlots += tasks.size();
+          instrumentation.offerHandled(offer.getHostname(), tasks.size());
+        }
       }
+
+      // Reconcile: forget tasks that the driver did not accept. A heartbeat
+      // may have given one of them a Hadoop task since we released the lock;
+      // Mesos never launched its slot, so kill that attempt too
+      if (!rejected.isEmpty()) {
+        synchronized(jobTracker) {
+          for (MesosTask nt: rejected) {
+            if (nt.removed) {
+              continue;
+            }
+            if (nt.isAssigned()) {
+              LOG.info("Killing " + nt.hadoopId + " as Mesos did not " +
+                       "launch its slot");
+              try {
+                jobTracker.killTask(nt.hadoopId, false);
+              } catch (IOException e) {
+                LOG.error("Failed to kill " + nt.hadoopId, e);
+              }
+            }
+            removeTask(nt);
+          }
+        }
+      }
+      instrumentation.offerRound(numOffers, numSlots,
+          (System.nanoTime() - roundStart) / 1000, lockTime / 1000);
     } catch(Exception e) {
       LOG.error("Error in resourceOffer", e);
     }
@@ -250,27 +641,36 @@ public class FrameworkScheduler implements Scheduler {
     if (ttInfos.containsKey(host)) {
       return ttInfos.get(host);
     } else {
-      TaskTrackerInfo info = new TaskTrackerInfo(slaveId.toBuilder().build());
+      TaskTrackerInfo info = new TaskTrackerInfo(slaveId.toBuilder().build(),
+                                                clock.getTime());
       ttInfos.put(host, info);
       return info;
     }
   }
   
-  // Find a single task for a given node. Assumes JobTracker is locked.
-  private TaskDescription findTask(
+  // Find a single task that fits in the given resources on a node and add it
+  // to our bookkeeping. Assumes JobTracker is locked.
+  private MesosTask findTask(
       SlaveID slaveId, String host, double cpus, double mem) {
-    if (cpus < cpusPerTask || mem < memPerTask) {
+    if (!mapSlotSize.fits(cpus, mem) && !reduceSlotSize.fits(cpus, mem)) {
       return null; // Too few resources are left on the node
     }
     
     TaskTrackerInfo ttInfo = getTaskTrackerInfo(host, slaveId);
+    if (ttInfo.shutdownTime != -1) {
+      return null; // Wait for the old executor to go away first
+    }
 
     // Pick whether to launch a map or a reduce based on available tasks
     String taskType = null;
-    boolean haveMaps = canLaunchMap(host);
-    boolean haveReduces = canLaunchReduce(host);
-    LOG.info("Looking at " + host + ": haveMaps=" + haveMaps + 
-        ", haveReduces=" + haveReduces);
+    MapChoice mapChoice = chooseMap(host, cpus, mem);
+    JobInProgress reduceJob = chooseReduce(cpus, mem);
+    boolean haveMaps = mapChoice != null;
+    boolean haveReduces = reduceJob != null;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Looking at " + host + ": haveMaps=" + haveMaps + 
+          ", haveReduces=" + haveReduces);
+    }
     if (!haveMaps && !haveReduces) {
       return null;
     } else if (haveMaps && !haveReduces) {
@@ -279,35 +679,70 @@ public class FrameworkScheduler implements Scheduler {
       taskType = "reduce";
     } else {
       float mapToReduceRatio = 1;
-      if (ttInfo.reduces.size() < ttInfo.maps.size() / mapToReduceRatio)
+      if (ttInfo.numReduces() < ttInfo.numMaps() / mapToReduceRatio)
         taskType = "reduce";
       else
         taskType = "map";
     }
-    LOG.info("Task type chosen: " + taskType);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Task type chosen: " + taskType);
+    }
     
     // Get a Mesos task ID for the new task
     TaskID mesosId = newMesosTaskId();
     
     // Remember that it is launched
     boolean isMap = taskType.equals("map");
+    MesosTask nt;
     if (isMap) {
+      if (mapChoice.speculative) {
+        instrumentation.speculativeSlot();
+      }
       unassignedMaps++;
+      nt = new MesosTask(true, mapChoice.size, mesosId, host,
+                         clock.getTime());
+      if (mapChoice.job != null) {
+        nt.job = mapChoice.job;
+        nt.maxCacheLevel = toMaxCacheLevel(mapChoice.level);
+        getJobLocality(nt.job.getJobID()).unassignedMaps++;
+        if (fairShare != null) {
+          fairShare.slotLaunched(nt.job, true);
+          mapOrder.slotLaunched(nt.job);
+        }
+      }
     } else {
+      if (unassignedReduces >= demandIndex.getPendingReduces()) {
+        instrumentation.speculativeSlot();
+      }
       unassignedReduces++;
+      nt = new MesosTask(false, getSlotSize(reduceJob, false), mesosId,
+                         host, clock.getTime());
+      if (fairShare != null) {
+        fairShare.slotLaunched(reduceJob, false);
+        reduceOrder.slotLaunched(reduceJob);
+      }
     }
-    MesosTask nt = new MesosTask(isMap, mesosId, host);
     mesosIdToMesosTask.put(mesosId.getValue(), nt);
+    unassignedTasks.add(nt);
     ttInfo.add(nt);
-    
-    // Create a task description to pass back to Mesos
-    String name = "task " + mesosId + " (" + taskType + ")";
+    ttInfo.tasksLaunched++;
+    if (ttInfo.heartbeated) {
+      instrumentation.slotOnRunningTracker();
+    }
+    return nt;
+  }
+
+  // Create a task description to pass back to Mesos. Does not need the
+  // JobTracker lock, since it only reads immutable fields of the task.
+  private TaskDescription makeTaskDescription(MesosTask nt, SlaveID slaveId) {
+    String taskType = nt.isMap ? "map" : "reduce";
+    String name = "task " + nt.mesosId + " (" + taskType + ")";
     return TaskDescription.newBuilder()
-      .setTaskId(mesosId)
+      .setTaskId(nt.mesosId)
       .setSlaveId(slaveId)
       .setName(name)
-      .addResources(makeResource("cpus", cpusPerTask))
-      .addResources(makeResource("mem", memPerTask))
+      .addResources(makeResource("cpus", nt.size.cpus))
+      .addResources(makeResource("mem", nt.size.mem))
       .build();
   }
 
@@ -340,52 +775,49 @@ public class FrameworkScheduler implements Scheduler {
     }
   }
   
-  // TODO: Make this return a count instead of a boolean?
-  // TODO: Cache result for some time so we don't iterate through all jobs
-  // and tasks every time we get a resource offer?
-  private boolean canLaunchMap(String host) {
-    // Check whether the TT is saturated on maps
-    TaskTrackerInfo ttInfo = ttInfos.get(host);
-    if (ttInfo == null) {
-      LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
-      return false;
-    }
-    if (ttInfo.maps.size() >= maxMapsPerNode) {
-      return false;
-    }
-    
-    // Compute the total demand for maps to make sure we don't exceed it
-    Collection<JobInProgress> jobs = jobTracker.jobs.values();
-    int neededMaps = 0;
-    for (JobInProgress job : jobs) {
-      if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-        neededMaps += job.pendingMaps();
-      }
-    }
-    // TODO (!!!): Count speculatable tasks and add them to neededMaps
+  /**
+   * Choose a job to launch a map slot for on a given host, or return null if
+   * no map should be launched there. This uses per-job delay scheduling: the
+   * running jobs are considered in FIFO order, and the first one that has a
+   * map at the locality level it is currently allowed (see JobLocality) gets
+   * the slot. Jobs that are passed over start waiting, so that they are
+   * allowed less local maps later. Jobs whose map slots don't fit in the
+   * given resources are left out.
+   *
+   * Besides the pending maps, up to mapred.mesos.speculative.maxslots slots
+   * are launched for speculative attempts of running maps. Jobs that only
+   * have speculative maps left don't wait for locality.
+   * Assumes JobTracker is locked.
+   */
+  private MapChoice chooseMap(String host, double cpus, double mem) {
+    // Get the total demand for maps to make sure we don't exceed it
+    int neededMaps = demandIndex.getPendingMaps() +
+      Math.min(demandIndex.getSpeculativeMaps(), maxSpeculativeSlots);
     
     if (unassignedMaps < neededMaps) {
-      // Figure out what locality level to allow using delay scheduling
-      long now = System.currentTimeMillis();
-      if (lastCanLaunchMapTime == -1)
-        lastCanLaunchMapTime = now;
-      int maxLevel; // Cache level to search for maps in
-      if (lastMapWasLocal) {
-        timeWaitedForLocalMap += now - lastCanLaunchMapTime;
-        if (timeWaitedForLocalMap >= localityWait) {
-          maxLevel = Integer.MAX_VALUE;
-        } else {
-          maxLevel = 1;
-        }
-      } else {
-        maxLevel = Integer.MAX_VALUE;
-      }
-      lastCanLaunchMapTime = now;
-      // Look for a map with the required level
-      for (JobInProgress job: jobs) {
-        int state = job.getStatus().getRunState();
-        if (state == JobStatus.RUNNING && hasMapToLaunch(job, host, maxLevel)) {
-          return true;
+      long now = clock.getTime();
+      for (List<JobDemandIndex.JobDemand> group: mapOrder.getGroups()) {
+        for (JobDemandIndex.JobDemand demand: group) {
+          JobLocality locality = getJobLocality(demand.job.getJobID());
+          if (locality.unassignedMaps >=
+              demand.pendingMaps + demand.speculativeMaps) {
+            continue; // Enough slots are on their way to this job already
+          }
+          SlotSize size = getSlotSize(demand.job, true);
+          if (!size.fits(cpus, mem)) {
+            continue;
+          }
+          if (!demand.hasRunnableMap && !demand.hasMapCleanup) {
+            return new MapChoice(demand.job, OFF_SWITCH, size, true);
+          }
+          int level =
+            toLocalityLevel(demandIndex.getMapLocality(demand, host));
+          int allowed =
+            locality.allowedLevel(now, nodeLocalityWait, rackLocalityWait);
+          if (level <= allowed) {
+            return new MapChoice(demand.job, allowed, size, false);
+          }
+          locality.skipped(now);
         }
       }
     }
@@ -393,59 +825,124 @@ public class FrameworkScheduler implements Scheduler {
     // If we didn't launch any tasks, but there are pending jobs in the queue,
     // ensure that at least one TaskTracker is running to execute setup tasks
     int numTrackers = jobTracker.getClusterStatus().getTaskTrackers();
-    if (jobs.size() > 0 && numTrackers == 0 && totalMesosTasks() == 0) {
+    if (jobTracker.jobs.size() > 0 && numTrackers == 0 &&
+        totalMesosTasks() == 0 && mapSlotSize.fits(cpus, mem)) {
       LOG.info("Going to launch map task for setup / cleanup");
-      return true;
+      return new MapChoice(null, OFF_SWITCH, mapSlotSize, false);
     }
     
-    return false;
+    return null;
+  }
+  
+  private JobLocality getJobLocality(JobID jobId) {
+    JobLocality locality = jobLocalities.get(jobId);
+    if (locality == null) {
+      locality = new JobLocality();
+      jobLocalities.put(jobId, locality);
+    }
+    return locality;
+  }
+  
+  // Convert a cache level (as used by JobInProgress) to a locality level
+  private int toLocalityLevel(int cacheLevel) {
+    if (cacheLevel == 0)
+      return NODE_LOCAL;
+    else if (cacheLevel < jobTracker.getNumTaskCacheLevels())
+      return RACK_LOCAL;
+    else
+      return OFF_SWITCH;
+  }
+  
+  // Convert a locality level to the maximum cache level to pass to
+  // JobInProgress.obtainNewMapTask
+  private int toMaxCacheLevel(int localityLevel) {
+    if (localityLevel == NODE_LOCAL)
+      return 1;
+    else if (localityLevel == RACK_LOCAL)
+      return jobTracker.getNumTaskCacheLevels();
+    else
+      return Integer.MAX_VALUE;
   }
   
   private int totalMesosTasks() {
     return unassignedMaps + unassignedReduces + assignedMaps + assignedReduces;
   }
 
-  // TODO: Make this return a count instead of a boolean?
-  // TODO: Cache result for some time so we don't iterate through all jobs
-  // and tasks every time we get a resource offer?
-  private boolean canLaunchReduce(String host) {
-    // Check whether the TT is saturated on reduces
-    TaskTrackerInfo ttInfo = ttInfos.get(host);
-    if (ttInfo == null) {
-      LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
-      return false;
-    }
-    if (ttInfo.reduces.size() >= maxReducesPerNode) {
-      return false;
-    }
-    
-    // Compute total demand for reduces, to make sure we don't exceed it
-    Collection<JobInProgress> jobs = jobTracker.jobs.values();
-    int neededReduces = 0;
-    for (JobInProgress job : jobs) {
-      if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-        neededReduces += job.pendingReduces();
-      }
-    }
-    // TODO (!!!): Count speculatable tasks and add them to neededReduces
+  /**
+   * Choose a job to size a reduce slot for in the given resources, or
+   * return null if no reduce should be launched. This is the first job (in
+   * FIFO or fair share order) that can launch a reduce and whose reduce slots
+   * fit. Besides the pending reduces, up to mapred.mesos.speculative.maxslots
+   * slots are launched for speculative attempts of running reduces.
+   * Assumes JobTracker is locked.
+   */
+  private JobInProgress chooseReduce(double cpus, double mem) {
+    // Get total demand for reduces, to make sure we don't exceed it
+    int neededReduces = demandIndex.getPendingReduces() +
+      Math.min(demandIndex.getSpeculativeReduces(), maxSpeculativeSlots);
     
     if (neededReduces > unassignedReduces) {
-      // Find a reduce to launch
-      for (JobInProgress job: jobs) {
-        int state = job.getStatus().getRunState();
-        if (state == JobStatus.RUNNING && hasReduceToLaunch(job)) {
-          return true;
+      for (List<JobDemandIndex.JobDemand> group: reduceOrder.getGroups()) {
+        for (JobDemandIndex.JobDemand demand: group) {
+          if (getSlotSize(demand.job, false).fits(cpus, mem)) {
+            return demand.job;
+          }
         }
       }
     }
-    
-    return false;
+    return null;
+  }
+  
+  /**
+   * Get the running jobs in the order in which they should get map or reduce
+   * slots, which is FIFO unless fair sharing is on.
+   * Assumes JobTracker is locked.
+   */
+  private List<JobInProgress> getJobOrder(boolean isMap) {
+    List<JobInProgress> jobs = new ArrayList<JobInProgress>();
+    for (JobInProgress job: jobTracker.jobs.values()) {
+      if (job.getStatus().getRunState() == JobStatus.RUNNING) {
+        jobs.add(job);
+      }
+    }
+    if (fairShare != null) {
+      Collections.sort(jobs, fairShare.getJobComparator(isMap));
+    }
+    return jobs;
+  }
+  
+  /**
+   * Get the size of a job's map or reduce slots. This is the cluster's
+   * default (mapred.mesos.{map,reduce}.{cpus,mem}, falling back to
+   * mapred.mesos.task.{cpus,mem}) unless the job asks for bigger slots by
+   * setting the same properties in its JobConf.
+   * Assumes JobTracker is locked.
+   */
+  private SlotSize getSlotSize(JobInProgress job, boolean isMap) {
+    Map<JobID, SlotSize> sizes = isMap ? jobMapSlotSizes : jobReduceSlotSizes;
+    SlotSize size = sizes.get(job.getJobID());
+    if (size == null) {
+      SlotSize defaultSize = isMap ? mapSlotSize : reduceSlotSize;
+      String prefix = isMap ? "mapred.mesos.map." : "mapred.mesos.reduce.";
+      JobConf jobConf = job.getJobConf();
+      size = new SlotSize(
+          Math.max(defaultSize.cpus, jobConf.getFloat(prefix + "cpus", 0)),
+          Math.max(defaultSize.mem, jobConf.getInt(prefix + "mem", 0)));
+      sizes.put(job.getJobID(), size);
+    }
+    return size;
   }
 
   public void killedTask(TaskAttemptID hadoopId) {
+    // The task may have to be launched again, even if its Mesos task is
+    // already gone
+    demandIndex.markDirty(hadoopId);
     MesosTask nt = hadoopIdToMesosTask.remove(hadoopId);
     if (nt != null) {
-      askExecutorToUpdateStatus(nt, TaskState.TASK_KILLED);
+      TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
+      if (ttInfo != null) {
+        askExecutorToKill(ttInfo, Collections.singletonList(nt));
+      }
       removeTask(nt);
     }
   }
@@ -477,17 +974,23 @@ public class FrameworkScheduler implements Scheduler {
    */
   public List<Task> assignTasks(TaskTrackerStatus tts) {
     synchronized (jobTracker) {      
+      long start = System.nanoTime();
       try {
-        Collection<JobInProgress> jobs = jobTracker.jobs.values();
-
         String host = tts.getHost();
-        LOG.info("In FrameworkScheduler.assignTasks for " + host);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("In FrameworkScheduler.assignTasks for " + host);
+        }
         
         TaskTrackerInfo ttInfo = ttInfos.get(host);
         if (ttInfo == null) {
           LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
           return null;
         }
+        if (!ttInfo.heartbeated) {
+          ttInfo.heartbeated = true;
+          instrumentation.trackerStarted(
+              clock.getTime() - ttInfo.creationTime);
+        }
         
         int clusterSize = jobTracker.getClusterStatus().getTaskTrackers();
         int numHosts = jobTracker.getNumberOfUniqueHosts();
@@ -495,52 +998,74 @@ public class FrameworkScheduler implements Scheduler {
         // Assigned tasks
         List<Task> assignedTasks = new ArrayList<Task>();
         
-        // Identify unassigned maps and reduces on this TT
-        List<MesosTask> assignableMaps = new ArrayList<MesosTask>();
-        List<MesosTask> assignableReduces = new ArrayList<MesosTask>();
-        for (MesosTask nt: ttInfo.maps)
-          if (!nt.isAssigned())
-            assignableMaps.add(nt);
-        for (MesosTask nt: ttInfo.reduces)
-          if (!nt.isAssigned())
-            assignableReduces.add(nt);
-        
-        // Get some iterators for the unassigned tasks
-        Iterator<MesosTask> mapIter = assignableMaps.iterator();
-        Iterator<MesosTask> reduceIter = assignableReduces.iterator();
+        // First give each map slot to the job that it was offered for, at up
+        // to the locality level that job was allowed when it was offered
+        Iterator<MesosTask> mapIter = ttInfo.unassignedMaps.iterator();
+        while (mapIter.hasNext()) {
+          MesosTask nt = mapIter.next();
+          if (nt.job == null) {
+            continue;
+          }
+          Task task = nt.job.obtainNewMapTask(tts, clusterSize, numHosts,
+                                              nt.maxCacheLevel);
+          if (task != null) {
+            mapIter.remove();
+            assignMap(ttInfo, nt, task, nt.job, tts);
+            assignedTasks.add(task);
+          }
+        }
         
-        // Go through jobs in FIFO order and look for tasks to launch
-        for (JobInProgress job: jobs) {
-          if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-            // If the node has unassigned maps, try to launch map tasks
+        // Go through jobs in FIFO (or fair share) order and look for tasks to
+        // launch in the remaining slots that are big enough for them
+        long now = clock.getTime();
+        if (fairShare != null &&
+            (!ttInfo.unassignedMaps.isEmpty() ||
+             !ttInfo.unassignedReduces.isEmpty())) {
+          fairShare.update();
+        }
+        // If the node has unassigned maps, try to launch map tasks at the
+        // locality level that each job is currently allowed
+        if (!ttInfo.unassignedMaps.isEmpty()) {
+          for (JobInProgress job: getJobOrder(true)) {
+            SlotSize size = getSlotSize(job, true);
+            int maxCacheLevel = toMaxCacheLevel(
+                getJobLocality(job.getJobID()).allowedLevel(
+                    now, nodeLocalityWait, rackLocalityWait));
+            mapIter = ttInfo.unassignedMaps.iterator();
             while (mapIter.hasNext()) {
-              Task task = job.obtainNewMapTask(tts, clusterSize, numHosts);
-              if (task != null) {
-                MesosTask nt = mapIter.next();
-                nt.assign(task);
-                unassignedMaps--;
-                assignedMaps++;
-                hadoopIdToMesosTask.put(task.getTaskID(), nt);
-                assignedTasks.add(task);
-                task.extraData = nt.mesosId.getValue();
-              } else {
+              MesosTask nt = mapIter.next();
+              if (!size.fits(nt.size)) {
+                continue;
+              }
+              Task task = job.obtainNewMapTask(tts, clusterSize, numHosts,
+                                               maxCacheLevel);
+              if (task == null) {
                 break;
               }
+              mapIter.remove();
+              assignMap(ttInfo, nt, task, job, tts);
+              assignedTasks.add(task);
             }
-            // If the node has unassigned reduces, try to launch reduce tasks
+          }
+        }
+        // If the node has unassigned reduces, try to launch reduce tasks
+        if (!ttInfo.unassignedReduces.isEmpty()) {
+          for (JobInProgress job: getJobOrder(false)) {
+            SlotSize size = getSlotSize(job, false);
+            Iterator<MesosTask> reduceIter =
+              ttInfo.unassignedReduces.iterator();
             while (reduceIter.hasNext()) {
+              MesosTask nt = reduceIter.next();
+              if (!size.fits(nt.size)) {
+                continue;
+              }
               Task task = job.obtainNewReduceTask(tts, clusterSize, numHosts);
-              if (task != null) {
-                MesosTask nt = reduceIter.next();
-                nt.assign(task);
-                unassignedReduces--;
-                assignedReduces++;
-                hadoopIdToMesosTask.put(task.getTaskID(), nt);
-                assignedTasks.add(task);
-                task.extraData = nt.mesosId.getValue();
-              } else {
+              if (task == null) {
                 break;
               }
+              reduceIter.remove();
+              assign(ttInfo, nt, task);
+              assignedTasks.add(task);
             }
           }
         }
@@ -549,19 +1074,70 @@ public class FrameworkScheduler implements Scheduler {
       } catch (IOException e) {
         LOG.error("IOException in assignTasks", e);
         return null;
+      } finally {
+        instrumentation.assignTasksTime((System.nanoTime() - start) / 1000);
       }
     }
   }
 
+  // Record that a Hadoop task was assigned to a Mesos task. The caller has
+  // already removed the Mesos task from the tracker's unassigned set.
+  private void assign(TaskTrackerInfo ttInfo, MesosTask nt, Task task) {
+    releaseJobSlot(nt);
+    nt.assign(task);
+    instrumentation.slotAssigned(clock.getTime() - nt.creationTime);
+    ttInfo.assigned(nt);
+    unassignedTasks.remove(nt);
+    if (nt.isMap) {
+      unassignedMaps--;
+      assignedMaps++;
+    } else {
+      unassignedReduces--;
+      assignedReduces++;
+    }
+    hadoopIdToMesosTask.put(task.getTaskID(), nt);
+    task.extraData = nt.mesosId.getValue();
+    // The job's pending task counts have changed
+    demandIndex.markDirty(task.getTaskID());
+  }
+  
+  // Record that a map of a given job was assigned to a Mesos task, and
+  // update the job's delay scheduling state with the map's locality.
+  private void assignMap(TaskTrackerInfo ttInfo, MesosTask nt, Task task,
+                         JobInProgress job, TaskTrackerStatus tts) {
+    assign(ttInfo, nt, task);
+    ttInfo.mapOutputJobs.add(job.getJobID());
+    TaskInProgress tip = job.getTaskInProgress(task.getTaskID().getTaskID());
+    if (tip != null) {
+      int level = toLocalityLevel(job.getLocalityLevel(tip, tts));
+      getJobLocality(job.getJobID()).launched(level);
+    }
+  }
+  
+  // Stop counting an unassigned map slot against the job it was offered for
+  private void releaseJobSlot(MesosTask nt) {
+    if (nt.job != null) {
+      JobLocality locality = jobLocalities.get(nt.job.getJobID());
+      if (locality != null) {
+        locality.unassignedMaps--;
+      }
+      nt.job = null;
+    }
+  }
+
   private void removeTask(MesosTask nt) {
     synchronized (jobTracker) {
+      nt.removed = true;
       mesosIdToMesosTask.remove(nt.mesosId.getValue());
+      unassignedTasks.remove(nt);
+      releaseJobSlot(nt);
       if (nt.hadoopId != null) {
         hadoopIdToMesosTask.remove(nt.hadoopId);
+        demandIndex.markDirty(nt.hadoopId);
       }
       TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
       if (ttInfo != null) {
-        ttInfo.remove(nt);
+        ttInfo.remove(nt, clock.getTime());
       }
       if (nt.isMap) {
         if (nt.isAssigned())
@@ -577,264 +1153,311 @@ public class FrameworkScheduler implements Scheduler {
     }
   }
 
-  private void askExecutorToUpdateStatus(MesosTask nt, TaskState state) {
-    TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
-    if (ttInfo != null) {
-      HadoopFrameworkMessage message = new HadoopFrameworkMessage(
-          HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE, state.toString(),
-          nt.mesosId.getValue());
-      try {
-        LOG.info("Asking slave " + ttInfo.mesosSlaveId + " to update status");
-        driver.sendFrameworkMessage(ttInfo.mesosSlaveId, EXECUTOR_ID, message.serialize());
-      } catch (IOException e) {
-        // This exception would only get thrown if we couldn't serialize the
-        // HadoopFrameworkMessage, which is a serious problem; crash the JT
-        LOG.fatal("Failed to serialize HadoopFrameworkMessage", e);
-        throw new RuntimeException(
-            "Failed to serialize HadoopFrameworkMessage", e);
-      }
+  // Ask an executor to report some of its tasks as killed, freeing their
+  // resources in Mesos
+  private void askExecutorToKill(TaskTrackerInfo ttInfo,
+                                 Collection<MesosTask> tasks) {
+    List<String> taskIds = new ArrayList<String>(tasks.size());
+    for (MesosTask nt: tasks) {
+      taskIds.add(nt.mesosId.getValue());
     }
+    LOG.info("Asking slave " + ttInfo.mesosSlaveId + " to kill " +
+        taskIds.size() + " tasks");
+    sendToExecutor(ttInfo, new HadoopFrameworkMessage(
+        HadoopFrameworkMessage.Type.S2E_KILL_REQUEST, taskIds));
   }
 
-  // Kill any unlaunched tasks that have timed out
-  public void killTimedOutTasks() {
-    synchronized (jobTracker) {
-      long curTime = System.currentTimeMillis();
-      long timeout = 2 * jobTracker.getNextHeartbeatInterval();
-      for (TaskTrackerInfo tt: ttInfos.values()) {
-        killTimedOutTasks(tt.maps, curTime - timeout);
-        killTimedOutTasks(tt.reduces, curTime - timeout);
-      }
+  private void sendToExecutor(TaskTrackerInfo ttInfo,
+                              HadoopFrameworkMessage message) {
+    try {
+      driver.sendFrameworkMessage(ttInfo.mesosSlaveId, EXECUTOR_ID, message.serialize());
+    } catch (IOException e) {
+      // This exception would only get thrown if we couldn't serialize the
+      // HadoopFrameworkMessage, which is a serious problem; crash the JT
+      LOG.fatal("Failed to serialize HadoopFrameworkMessage", e);
+      throw new RuntimeException(
+          "Failed to serialize HadoopFrameworkMessage", e);
     }
   }
-    
-  private void killTimedOutTasks(List<MesosTask> tasks, long minCreationTime) {
-    List<MesosTask> toRemove = new ArrayList<MesosTask>();
-    for (MesosTask nt: tasks) {
-      if (!nt.isAssigned() && nt.creationTime < minCreationTime) {
-        toRemove.add(nt);
-      }
+
+  /**
+   * Shut down TaskTrackers that have had no Mesos tasks for longer than
+   * mapred.mesos.tasktracker.idle.timeout milliseconds (negative to never
+   * shut them down), so that they stop holding memory on their nodes and
+   * heartbeating the JobTracker. Up to mapred.mesos.tasktracker.warm idle
+   * TaskTrackers are kept anyway, preferring the ones that have launched the
+   * most tasks, so that busy nodes don't pay for starting a new TaskTracker
+   * each time they get work. TaskTrackers that ran maps for jobs that are
+   * still running are kept too, since they serve the maps' outputs.
+   */
+  public void shutDownIdleTrackers() {
+    if (trackerIdleTimeout < 0) {
+      return;
     }
-    for (MesosTask nt: toRemove) {
-      askExecutorToUpdateStatus(nt, TaskState.TASK_KILLED);
-      removeTask(nt);
+    synchronized (jobTracker) {
+      long now = clock.getTime();
+      int numIdle = 0;
+      List<TaskTrackerInfo> expired = new ArrayList<TaskTrackerInfo>();
+      Iterator<TaskTrackerInfo> it = ttInfos.values().iterator();
+      while (it.hasNext()) {
+        TaskTrackerInfo ttInfo = it.next();
+        if (ttInfo.shutdownTime != -1) {
+          // Forget the old TaskTracker once its executor has had time to exit,
+          // so that the next offer for the node starts a new one
+          if (now - ttInfo.shutdownTime >= TRACKER_SHUTDOWN_WAIT_TIME) {
+            it.remove();
+          }
+        } else if (ttInfo.isIdle()) {
+          numIdle++;
+          if (now - ttInfo.idleSince >= trackerIdleTimeout &&
+              !hasMapOutputs(ttInfo)) {
+            expired.add(ttInfo);
+          }
+        }
+      }
+      instrumentation.setIdleTrackers(numIdle);
+      if (expired.size() <= warmTrackers) {
+        return;
+      }
+      // Keep the TaskTrackers that have launched the most tasks warm
+      Collections.sort(expired, new Comparator<TaskTrackerInfo>() {
+        public int compare(TaskTrackerInfo t1, TaskTrackerInfo t2) {
+          return t2.tasksLaunched - t1.tasksLaunched;
+        }
+      });
+      for (TaskTrackerInfo ttInfo: expired.subList(warmTrackers, expired.size())) {
+        LOG.info("Asking idle TaskTracker on slave " + ttInfo.mesosSlaveId +
+            " to shut down");
+        sendToExecutor(ttInfo, new HadoopFrameworkMessage(
+            HadoopFrameworkMessage.Type.S2E_SHUTDOWN_EXECUTOR));
+        ttInfo.shutdownTime = now;
+        instrumentation.trackerShutDown();
+      }
     }
   }
-  
-  @Override
-  public void frameworkMessage(SchedulerDriver d, SlaveID sId, ExecutorID eId, byte[] message) {
-    // TODO: Respond to E2S_KILL_REQUEST message by killing a task
-  }
 
-  @Override
-  public void error(SchedulerDriver d, int code, String msg) {
-    LOG.error("FrameworkScheduler.error: " + msg);
+  /**
+   * Whether there are more map or reduce slots to launch than the ones
+   * already on their way.
+   * Assumes JobTracker is locked.
+   */
+  private boolean hasUnmetDemand() {
+    int neededMaps = demandIndex.getPendingMaps() +
+      Math.min(demandIndex.getSpeculativeMaps(), maxSpeculativeSlots);
+    int neededReduces = demandIndex.getPendingReduces() +
+      Math.min(demandIndex.getSpeculativeReduces(), maxSpeculativeSlots);
+    return neededMaps > unassignedMaps || neededReduces > unassignedReduces;
   }
-
-  @Override
-  public void offerRescinded(SchedulerDriver d, OfferID oId) {}
-  
-  // Methods to check whether a job has runnable tasks
   
   /**
-   * Check whether the job can launch a map task on a given node, with a given
-   * level of locality (maximum cache level). Also includes job setup and
-   * cleanup tasks, as well as map cleanup tasks.
-   * 
-   * This is currently fairly long because it replicates a lot of the logic
-   * in findNewMapTask. Unfortunately, it's not easy to just use findNewMapTask
-   * directly, because that requires a TaskTracker. One way to avoid requiring
-   * this method would be to just launch TaskTrackers on every node, without
-   * first checking for locality.
+   * If we declined offers for a long time because we had nothing to run,
+   * ask Mesos to offer them again as soon as we have new demand (e.g. a
+   * running job's tasks failed, or slots we launched timed out). New jobs
+   * revive offers as soon as they start running, through getJobListener.
    */
-  boolean hasMapToLaunch(JobInProgress job, String host, int maxCacheLevel) {
-    synchronized (job) {
-      // For scheduling a map task, we have two caches and a list (optional)
-      //  I)   one for non-running task
-      //  II)  one for running task (this is for handling speculation)
-      //  III) a list of TIPs that have empty locations (e.g., dummy splits),
-      //       the list is empty if all TIPs have associated locations
-  
-      // First a look up is done on the non-running cache and on a miss, a look 
-      // up is done on the running cache. The order for lookup within the cache:
-      //   1. from local node to root [bottom up]
-      //   2. breadth wise for all the parent nodes at max level
-  
-      //if (canLaunchJobCleanupTask()) return true;
-      //if (canLaunchSetupTask()) return true;
-      if (!job.mapCleanupTasks.isEmpty()) return true;
-      
-      // Return false right away if the task cache isn't ready, either because
-      // we are still initializing or because we are cleaning up
-      if (job.nonRunningMapCache == null) return false;
-      
-      // We fall to linear scan of the list (III above) if we have misses in the 
-      // above caches
-  
-      Node node = jobTracker.getNode(host);
-
-      int maxLevel = job.getMaxCacheLevel();
-      
-      //
-      // I) Non-running TIP :
-      // 
-  
-      // 1. check from local node to the root [bottom up cache lookup]
-      //    i.e if the cache is available and the host has been resolved
-      //    (node!=null)
-      if (node != null) {
-        Node key = node;
-        int level = 0;
-        // maxCacheLevel might be greater than this.maxLevel if findNewMapTask is
-        // called to schedule any task (local, rack-local, off-switch or speculative)
-        // tasks or it might be NON_LOCAL_CACHE_LEVEL (i.e. -1) if findNewMapTask is
-        //  (i.e. -1) if findNewMapTask is to only schedule off-switch/speculative
-        // tasks
-        int maxLevelToSchedule = Math.min(maxCacheLevel, maxLevel);
-        for (level = 0;level < maxLevelToSchedule; ++level) {
-          List <TaskInProgress> cacheForLevel = job.nonRunningMapCache.get(key);
-          if (hasUnlaunchedTask(cacheForLevel)) {
-            return true;
-          }
-          key = key.getParent();
-        }
-        
-        // Check if we need to only schedule a local task (node-local/rack-local)
-        if (level == maxCacheLevel) {
-          return false;
+  public void reviveOffersIfNeeded() {
+    synchronized (jobTracker) {
+      if (offersRefused) {
+        demandIndex.refresh();
+        if (hasUnmetDemand()) {
+          reviveOffers();
         }
       }
+    }
+  }
   
-      //2. Search breadth-wise across parents at max level for non-running 
-      //   TIP if
-      //     - cache exists and there is a cache miss 
-      //     - node information for the tracker is missing (tracker's topology
-      //       info not obtained yet)
-  
-      // collection of node at max level in the cache structure
-      Collection<Node> nodesAtMaxLevel = jobTracker.getNodesAtMaxLevel();
-  
-      // get the node parent at max level
-      Node nodeParentAtMaxLevel = 
-        (node == null) ? null : JobTracker.getParentNode(node, maxLevel - 1);
-      
-      for (Node parent : nodesAtMaxLevel) {
-  
-        // skip the parent that has already been scanned
-        if (parent == nodeParentAtMaxLevel) {
-          continue;
-        }
+  // Assumes JobTracker is locked.
+  private void reviveOffers() {
+    if (offersRefused && driver != null) {
+      LOG.info("Reviving offers for new demand");
+      offersRefused = false;
+      driver.reviveOffers();
+    }
+  }
   
-        List<TaskInProgress> cache = job.nonRunningMapCache.get(parent);
-        if (hasUnlaunchedTask(cache)) {
-          return true;
+  /**
+   * Get a listener to register with the JobTracker, which revives offers
+   * that we declined while idle when a job starts running.
+   */
+  public JobInProgressListener getJobListener() {
+    return new JobInProgressListener() {
+      @Override
+      public void jobAdded(JobInProgress job) {}
+
+      @Override
+      public void jobRemoved(JobInProgress job) {}
+
+      @Override
+      public void jobUpdated(JobChangeEvent event) {
+        if (event instanceof JobStatusChangeEvent) {
+          JobStatusChangeEvent statusEvent = (JobStatusChangeEvent) event;
+          if (statusEvent.getEventType() ==
+                JobStatusChangeEvent.EventType.RUN_STATE_CHANGED &&
+              statusEvent.getNewStatus().getRunState() == JobStatus.RUNNING) {
+            reviveOffers();
+          }
         }
       }
-  
-      // 3. Search non-local tips for a new task
-      if (hasUnlaunchedTask(job.nonLocalMaps))
+    };
+  }
+
+  /**
+   * With fair sharing and preemption on, kill tasks from pools that are over
+   * their fair share so that pools that have been starved of their min share
+   * for too long get slots (see FairSharePolicy).
+   */
+  public void preemptTasks() {
+    if (fairShare == null) {
+      return;
+    }
+    synchronized (jobTracker) {
+      fairShare.update();
+      preemptTasks(true);
+      preemptTasks(false);
+    }
+  }
+
+  // Assumes JobTracker is locked.
+  private void preemptTasks(boolean isMap) {
+    Map<String, Integer> toPreempt = fairShare.getTasksToPreempt(isMap);
+    if (toPreempt.isEmpty()) {
+      return;
+    }
+    // Kill the most recently launched tasks first, since they lose the
+    // least work
+    List<MesosTask> candidates = new ArrayList<MesosTask>();
+    for (MesosTask nt: hadoopIdToMesosTask.values()) {
+      if (nt.isMap == isMap) {
+        candidates.add(nt);
+      }
+    }
+    Collections.sort(candidates, new Comparator<MesosTask>() {
+      public int compare(MesosTask t1, MesosTask t2) {
+        return t1.creationTime > t2.creationTime ? -1 :
+          (t1.creationTime == t2.creationTime ? 0 : 1);
+      }
+    });
+    for (MesosTask nt: candidates) {
+      JobInProgress job = jobTracker.getJob(nt.hadoopId.getJobID());
+      if (job == null) {
+        continue;
+      }
+      String pool = fairShare.getPoolName(job);
+      Integer count = toPreempt.get(pool);
+      if (count == null || count == 0) {
+        continue;
+      }
+      LOG.info("Preempting " + nt.hadoopId + " from pool " + pool);
+      try {
+        jobTracker.killTask(nt.hadoopId, false);
+      } catch (IOException e) {
+        LOG.error("Failed to preempt " + nt.hadoopId, e);
+      }
+      toPreempt.put(pool, count - 1);
+    }
+  }
+
+  // Check whether a TaskTracker ran maps for a job that is still running.
+  // Assumes JobTracker is locked.
+  private boolean hasMapOutputs(TaskTrackerInfo ttInfo) {
+    Iterator<JobID> it = ttInfo.mapOutputJobs.iterator();
+    while (it.hasNext()) {
+      JobInProgress job = jobTracker.jobs.get(it.next());
+      int runState = job == null ? JobStatus.FAILED : job.getStatus().getRunState();
+      if (runState == JobStatus.RUNNING || runState == JobStatus.PREP) {
         return true;
-      
-      //
-      // II) Running TIP :
-      // 
-   
-      if (job.getMapSpeculativeExecution()) {
-        long time = System.currentTimeMillis();
-        float avgProg = job.status.mapProgress();
-  
-        // 1. Check bottom up for speculative tasks from the running cache
-        if (node != null) {
-          Node key = node;
-          for (int level = 0; level < maxLevel; ++level) {
-            Set<TaskInProgress> cacheForLevel = job.runningMapCache.get(key);
-            if (cacheForLevel != null) {
-              for (TaskInProgress tip: cacheForLevel) {
-                if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-                  return true;
-                }
-              }
-            }
-            key = key.getParent();
-          }
+      }
+      it.remove();
+    }
+    return false;
+  }
+
+  // Kill any unlaunched tasks that have timed out
+  public void killTimedOutTasks() {
+    synchronized (jobTracker) {
+      long curTime = clock.getTime();
+      long timeout = 2 * jobTracker.getNextHeartbeatInterval();
+      long minCreationTime = curTime - timeout;
+      // Unassigned tasks are kept in creation order, so we can stop at the
+      // first one that hasn't timed out yet
+      List<MesosTask> toRemove = new ArrayList<MesosTask>();
+      for (MesosTask nt: unassignedTasks) {
+        if (nt.creationTime >= minCreationTime) {
+          break;
         }
-  
-        // 2. Check breadth-wise for speculative tasks
-        
-        for (Node parent : nodesAtMaxLevel) {
-          // ignore the parent which is already scanned
-          if (parent == nodeParentAtMaxLevel) {
-            continue;
-          }
-  
-          Set<TaskInProgress> cache = job.runningMapCache.get(parent);
-          if (cache != null) {
-            for (TaskInProgress tip: cache) {
-              if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-                return true;
-              }
-            }
-          }
+        toRemove.add(nt);
+      }
+      // Ask each executor to kill all of its timed out tasks at once
+      Map<String, List<MesosTask>> toKill =
+        new HashMap<String, List<MesosTask>>();
+      for (MesosTask nt: toRemove) {
+        List<MesosTask> tasks = toKill.get(nt.host);
+        if (tasks == null) {
+          tasks = new ArrayList<MesosTask>();
+          toKill.put(nt.host, tasks);
         }
-  
-        // 3. Check non-local tips for speculation
-        for (TaskInProgress tip: job.nonLocalRunningMaps) {
-          if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-            return true;
-          }
+        tasks.add(nt);
+      }
+      for (Map.Entry<String, List<MesosTask>> e: toKill.entrySet()) {
+        TaskTrackerInfo ttInfo = ttInfos.get(e.getKey());
+        if (ttInfo != null) {
+          askExecutorToKill(ttInfo, e.getValue());
         }
       }
-      
-      return false;
+      for (MesosTask nt: toRemove) {
+        instrumentation.slotTimedOut(nt.host);
+        removeTask(nt);
+      }
+      // Forget the state of jobs that are gone
+      jobLocalities.keySet().retainAll(jobTracker.jobs.keySet());
+      jobMapSlotSizes.keySet().retainAll(jobTracker.jobs.keySet());
+      jobReduceSlotSizes.keySet().retainAll(jobTracker.jobs.keySet());
     }
   }
   
-  /**
-   * Check whether a task list (from the non-running map cache) contains any
-   * unlaunched tasks.
-   */
-  boolean hasUnlaunchedTask(Collection<TaskInProgress> cache) {
-    if (cache != null)
-      for (TaskInProgress tip: cache)
-        if (tip.isRunnable() && !tip.isRunning())
-          return true;
-    return false;
-  }
-  
-  /**
-   * Check whether a job can launch a reduce task. Also includes reduce
-   * cleanup tasks.
-   * 
-   * As with hasMapToLaunch, this duplicates the logic inside
-   * findNewReduceTask. Please see the comment there for an explanation.
-   */
-  boolean hasReduceToLaunch(JobInProgress job) {
-    synchronized (job) {
-      // Return false if not enough maps have finished to launch reduces
-      if (!job.scheduleReduces()) return false;
-      
-      // Check for a reduce cleanup task
-      if (!job.reduceCleanupTasks.isEmpty()) return true;
-      
-      // Return false right away if the task cache isn't ready, either because
-      // we are still initializing or because we are cleaning up
-      if (job.nonRunningReduces == null) return false;
-      
-      // Check for an unlaunched reduce
-      if (job.nonRunningReduces.size() > 0) return true;
-      
-      // Check for a reduce to be speculated
-      if (job.getReduceSpeculativeExecution()) {
-        long time = System.currentTimeMillis();
-        float avgProg = job.status.reduceProgress();
-        for (TaskInProgress tip: job.runningReduces) {
-          if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-            return true;
+  @Override
+  public void frameworkMessage(SchedulerDriver d, SlaveID sId, ExecutorID eId, byte[] message) {
+    HadoopFrameworkMessage hfm;
+    try {
+      hfm = new HadoopFrameworkMessage(message);
+    } catch (IOException e) {
+      LOG.error("Failed to deserialize HadoopFrameworkMessage from " + sId, e);
+      return;
+    }
+    switch (hfm.type) {
+      case E2S_KILL_REQUEST: {
+        // Mesos killed these tasks and the executor has already reported them
+        // as killed, so kill their Hadoop tasks and free the slots right away
+        synchronized (jobTracker) {
+          for (String taskId: hfm.taskIds) {
+            MesosTask nt = mesosIdToMesosTask.get(taskId);
+            if (nt == null) {
+              continue;
+            }
+            if (nt.hadoopId != null) {
+              LOG.info("Killing " + nt.hadoopId + " on request from Mesos");
+              try {
+                jobTracker.killTask(nt.hadoopId, false);
+              } catch (IOException e) {
+                LOG.error("Failed to kill " + nt.hadoopId, e);
+              }
+            }
+            removeTask(nt);
           }
         }
+        break;
       }
-      
-      return false;
+      default:
+        LOG.error("Unexpected HadoopFrameworkMessage from " + sId + ": " +
+            hfm.type);
     }
   }
+
+  @Override
+  public void error(SchedulerDriver d, int code, String msg) {
+    LOG.error("FrameworkScheduler.error: " + msg);
+  }
+
+  @Override
+  public void offerRescinded(SchedulerDriver d, OfferID oId) {}
 }
@@ -5,49 +5,76 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A message between the FrameworkScheduler and a FrameworkExecutor. Messages
+ * that are about tasks carry a batch of Mesos task IDs, so that a single
+ * message can cover all the tasks on a node.
+ *
+ * The wire format is a type byte, followed by the number of task IDs as a
+ * vint and then the task IDs themselves as Text strings.
+ */
 public class HadoopFrameworkMessage {
   enum Type {
-    S2E_SEND_STATUS_UPDATE, // Used by scheduler to ask executor to send a Mesos
-                            // status update for a given task
+    S2E_KILL_REQUEST,       // Used by scheduler to tell executor that tasks
+                            // are done with (e.g. they timed out before being
+                            // assigned a Hadoop task, or their Hadoop task
+                            // failed), so it should report them as killed
     S2E_SHUTDOWN_EXECUTOR,  // Used by the scheduler to ask executor to shutdown
                             // (so that we can clean up TaskTrackers when idle)
     E2S_KILL_REQUEST,       // Used by executor to report a killTask from Mesos
   }
-  
+
+  private static final Type[] TYPES = Type.values();
+
   Type type;
-  String arg1;
-  String arg2;
-  
+  List<String> taskIds;
 
-  public HadoopFrameworkMessage(Type type, String arg1, String arg2) {
+  public HadoopFrameworkMessage(Type type, Collection<String> taskIds) {
     this.type = type;
-    this.arg1 = arg1;
-    this.arg2 = arg2;
+    this.taskIds = new ArrayList<String>(taskIds);
+  }
+
+  public HadoopFrameworkMessage(Type type, String taskId) {
+    this(type, Collections.singletonList(taskId));
   }
-  
-  public HadoopFrameworkMessage(Type type, String arg1) {
-    this(type, arg1, "");
+
+  public HadoopFrameworkMessage(Type type) {
+    this(type, Collections.<String>emptyList());
   }
 
   public HadoopFrameworkMessage(byte[] bytes) throws IOException {
     DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
-    String typeStr = in.readUTF();
-    try {
-      type = Type.valueOf(typeStr);
-    } catch(IllegalArgumentException e) {
-      throw new IOException("Unknown message type: " + typeStr);
+    int typeCode = in.readUnsignedByte();
+    if (typeCode >= TYPES.length) {
+      throw new IOException("Unknown message type: " + typeCode);
+    }
+    type = TYPES[typeCode];
+    int numTaskIds = WritableUtils.readVInt(in);
+    if (numTaskIds < 0) {
+      throw new IOException("Invalid number of task IDs: " + numTaskIds);
+    }
+    taskIds = new ArrayList<String>(numTaskIds);
+    for (int i = 0; i < numTaskIds; i++) {
+      taskIds.add(Text.readString(in));
     }
-    arg1 = in.readUTF();
-    arg2 = in.readUTF();
   }
-  
+
   public byte[] serialize() throws IOException {
     ByteArrayOutputStream bos = new ByteArrayOutputStream();
     DataOutputStream dos = new DataOutputStream(bos);
-    dos.writeUTF(type.toString());
-    dos.writeUTF(arg1);
-    dos.writeUTF(arg2);
+    dos.writeByte(type.ordinal());
+    WritableUtils.writeVInt(dos, taskIds.size());
+    for (String taskId: taskIds) {
+      Text.writeString(dos, taskId);
+    }
     return bos.toByteArray();
   }
 }
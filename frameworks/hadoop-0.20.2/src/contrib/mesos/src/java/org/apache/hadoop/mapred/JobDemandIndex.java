@@ -0,0 +1,523 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.net.Node;
+
+/**
+ * A {@link JobInProgressListener} that keeps an index of the outstanding
+ * task demand of all running jobs, so that the {@link FrameworkScheduler}
+ * can answer "is there a map for this host?" or "how many reduces are
+ * pending?" without walking every job and task cache for every offer.
+ *
+ * The index holds the pending map/reduce counts of each job, the number of
+ * its running tasks that could use a speculative attempt, as well as the
+ * number of unlaunched maps local to each node in the task cache (i.e. per
+ * host and per rack), both per job and summed over all jobs. It also keeps
+ * the sets of running jobs that have a map or a reduce to launch, so that
+ * jobs that are queued or have nothing to launch cost nothing per offer.
+ *
+ * A job's counts are recomputed only when the job has been marked dirty (by
+ * a listener event or by the FrameworkScheduler assigning or losing one of
+ * its tasks), which is cheap. The per-node counts are kept up to date
+ * incrementally instead: the FrameworkScheduler reports the map attempts
+ * that it assigns or that fail, and only those maps are re-checked.
+ * Speculatable tasks are recounted every
+ * mapred.mesos.demand.speculative.interval milliseconds, but only for jobs
+ * that have running tasks and nothing else of that type to launch.
+ *
+ * As a safety net for changes the JobTracker doesn't tell us about (e.g.
+ * completed maps lost with their TaskTracker), a job's per-node counts are
+ * rebuilt from its maps every mapred.mesos.demand.maxstaleness milliseconds.
+ *
+ * All methods assume that the JobTracker is locked. The JobTracker calls its
+ * listeners with its lock held, so this only matters for the FrameworkScheduler.
+ */
+class JobDemandIndex extends JobInProgressListener {
+  /**
+   * The demand contributed by a single job.
+   */
+  static class JobDemand {
+    final JobInProgress job;
+    boolean dirty = true;
+    long lastRescanTime = -1;
+    long lastSpeculativeTime = -1;
+    // Maps whose attempts were assigned or lost since the last refresh
+    Set<TaskInProgress> dirtyMaps = new HashSet<TaskInProgress>();
+
+    // Values from the last refresh; these are what's added to the totals
+    boolean running = false;
+    int pendingMaps = 0;
+    int pendingReduces = 0;
+    boolean hasMapCleanup = false;
+    boolean hasRunnableMap = false;
+    boolean hasReduceToLaunch = false;
+    // Whether the job has running maps or reduces that Hadoop may speculate,
+    // i.e. it has no unlaunched tasks of that type left
+    boolean mapsSpeculatable = false;
+    boolean reducesSpeculatable = false;
+    // Running tasks that could get a speculative attempt, counted only while
+    // the above is true and only up to mapred.mesos.speculative.maxslots
+    int speculativeMaps = 0;
+    int speculativeReduces = 0;
+    // Unlaunched maps, and how many of them are local to each node. Unlike
+    // the values above, localMaps is added to the totals as it changes.
+    Set<TaskInProgress> unlaunchedMaps = new HashSet<TaskInProgress>();
+    Map<Node, Integer> localMaps = new HashMap<Node, Integer>();
+
+    JobDemand(JobInProgress job) {
+      this.job = job;
+    }
+
+    /**
+     * Whether the job has any map to launch, ignoring locality.
+     */
+    boolean hasAnyMap() {
+      return hasMapCleanup || hasRunnableMap || speculativeMaps > 0;
+    }
+  }
+
+  // Orders entries by job ID, i.e. in FIFO order
+  private static final Comparator<JobDemand> FIFO_ORDER =
+    new Comparator<JobDemand>() {
+      public int compare(JobDemand d1, JobDemand d2) {
+        return d1.job.getJobID().compareTo(d2.job.getJobID());
+      }
+    };
+
+  private final JobTracker jobTracker;
+  private final MesosScheduler.Clock clock;
+  private final long maxStaleness;
+  private final long speculativeInterval;
+  private final int maxSpeculative;
+
+  // Entries for all jobs known to the JobTracker, in FIFO (job ID) order
+  private Map<JobID, JobDemand> demands = new TreeMap<JobID, JobDemand>();
+  // Entries of the jobs that were running as of their last refresh, in
+  // lastRescanTime order; only these need to be rescanned when they get stale
+  private Set<JobDemand> runningDemands = new LinkedHashSet<JobDemand>();
+  // Entries of running jobs with speculatable tasks, in lastSpeculativeTime
+  // order
+  private Set<JobDemand> speculatableDemands = new LinkedHashSet<JobDemand>();
+  // Entries that need to be recomputed on the next refresh
+  private Set<JobDemand> dirtyDemands = new HashSet<JobDemand>();
+
+  // Totals over all running jobs
+  private int pendingMaps = 0;
+  private int pendingReduces = 0;
+  private int speculativeMaps = 0;
+  private int speculativeReduces = 0;
+  private Set<JobDemand> jobsWithMaps = new TreeSet<JobDemand>(FIFO_ORDER);
+  private Set<JobDemand> jobsWithReduces = new TreeSet<JobDemand>(FIFO_ORDER);
+  private Map<Node, Integer> localMaps = new HashMap<Node, Integer>();
+
+  public JobDemandIndex(JobTracker jobTracker, Configuration conf,
+                        MesosScheduler.Clock clock) {
+    this.jobTracker = jobTracker;
+    this.clock = clock;
+    this.maxStaleness =
+      conf.getLong("mapred.mesos.demand.maxstaleness", 60000);
+    this.speculativeInterval =
+      conf.getLong("mapred.mesos.demand.speculative.interval", 1000);
+    this.maxSpeculative = conf.getInt("mapred.mesos.speculative.maxslots", 4);
+  }
+
+  @Override
+  public void jobAdded(JobInProgress job) {
+    JobDemand demand = new JobDemand(job);
+    demands.put(job.getJobID(), demand);
+    dirtyDemands.add(demand);
+  }
+
+  @Override
+  public void jobRemoved(JobInProgress job) {
+    JobDemand demand = demands.remove(job.getJobID());
+    if (demand != null) {
+      subtract(demand);
+      clearMaps(demand);
+      runningDemands.remove(demand);
+      speculatableDemands.remove(demand);
+      dirtyDemands.remove(demand);
+    }
+  }
+
+  @Override
+  public void jobUpdated(JobChangeEvent event) {
+    markDirty(event.getJobInProgress().getJobID());
+  }
+
+  /**
+   * Mark a job's entry as out of date, e.g. because one of its tasks was
+   * assigned or finished.
+   */
+  public void markDirty(JobID jobId) {
+    JobDemand demand = demands.get(jobId);
+    if (demand != null) {
+      markDirty(demand);
+    }
+  }
+
+  /**
+   * Mark a job's entry as out of date because one of its task attempts was
+   * assigned, failed or was killed. For a map, the map's per-node counts are
+   * re-checked on the next refresh.
+   */
+  public void markDirty(TaskAttemptID attemptId) {
+    JobDemand demand = demands.get(attemptId.getJobID());
+    if (demand == null) return;
+    // Map TIPs are numbered by their index in job.maps; the job setup and
+    // cleanup TIPs come after them
+    TaskInProgress[] maps = demand.job.maps;
+    int index = attemptId.getTaskID().getId();
+    if (attemptId.isMap() && maps != null && index < maps.length) {
+      demand.dirtyMaps.add(maps[index]);
+    }
+    markDirty(demand);
+  }
+
+  private void markDirty(JobDemand demand) {
+    if (!demand.dirty) {
+      demand.dirty = true;
+      dirtyDemands.add(demand);
+    }
+  }
+
+  /**
+   * Bring the index up to date by recomputing the entries of jobs that were
+   * marked dirty or have gone stale, and recounting the speculatable tasks
+   * of jobs that are due for it. Should be called once per round of
+   * resource offers rather than once per offer.
+   */
+  public void refresh() {
+    long now = clock.getTime();
+    // Both queues are in time order, so only their heads need checking
+    for (JobDemand demand: runningDemands) {
+      if (now - demand.lastRescanTime < maxStaleness) break;
+      markDirty(demand);
+    }
+    if (!dirtyDemands.isEmpty()) {
+      List<JobDemand> toRefresh = new ArrayList<JobDemand>(dirtyDemands);
+      dirtyDemands.clear();
+      for (JobDemand demand: toRefresh) {
+        subtract(demand);
+        recompute(demand, now);
+        add(demand);
+      }
+    }
+    List<JobDemand> toRecount = new ArrayList<JobDemand>();
+    Iterator<JobDemand> it = speculatableDemands.iterator();
+    while (it.hasNext()) {
+      JobDemand demand = it.next();
+      if (now - demand.lastSpeculativeTime < speculativeInterval) break;
+      it.remove();
+      toRecount.add(demand);
+    }
+    for (JobDemand demand: toRecount) {
+      subtract(demand);
+      synchronized (demand.job) {
+        countSpeculativeTasks(demand, now);
+      }
+      add(demand);
+      speculatableDemands.add(demand);
+    }
+  }
+
+  /**
+   * Total number of pending maps over all running jobs.
+   */
+  public int getPendingMaps() {
+    return pendingMaps;
+  }
+
+  /**
+   * Total number of pending reduces over all running jobs.
+   */
+  public int getPendingReduces() {
+    return pendingReduces;
+  }
+
+  /**
+   * Total number of running maps over all running jobs that could get a
+   * speculative attempt (see JobDemand.speculativeMaps).
+   */
+  public int getSpeculativeMaps() {
+    return speculativeMaps;
+  }
+
+  /**
+   * Total number of running reduces over all running jobs that could get a
+   * speculative attempt (see JobDemand.speculativeReduces).
+   */
+  public int getSpeculativeReduces() {
+    return speculativeReduces;
+  }
+
+  /**
+   * Running jobs that have a map to launch (ignoring locality), in FIFO
+   * order. The collection is a view that changes on the next refresh.
+   */
+  public Collection<JobDemand> getJobsWithMaps() {
+    return Collections.unmodifiableCollection(jobsWithMaps);
+  }
+
+  /**
+   * Running jobs that can launch a reduce, in FIFO order. The collection is
+   * a view that changes on the next refresh.
+   */
+  public Collection<JobDemand> getJobsWithReduces() {
+    return Collections.unmodifiableCollection(jobsWithReduces);
+  }
+
+  /**
+   * Get the best locality that a job's maps would have on a given host, as a
+   * cache level: 0 if the job has a map with data on the host, 1 if it has
+   * one in the host's rack and so on, up to the number of cache levels if it
+   * only has maps that are not local to the host (or speculative maps). Map
+   * cleanup tasks count as local anywhere. Returns -1 if the job has no map
+   * to launch. This mirrors the lookup order of JobInProgress.findNewMapTask.
+   */
+  public int getMapLocality(JobDemand demand, String host) {
+    if (!demand.running || !demand.hasAnyMap()) return -1;
+    if (demand.hasMapCleanup) return 0;
+
+    int maxLevel = jobTracker.getNumTaskCacheLevels();
+    Node key = jobTracker.getNode(host);
+    for (int level = 0; level < maxLevel && key != null; ++level) {
+      if (demand.localMaps.containsKey(key)) {
+        return level;
+      }
+      key = key.getParent();
+    }
+    return maxLevel;
+  }
+
+  /**
+   * Number of unlaunched maps of all running jobs that have data on a given
+   * host.
+   */
+  public int getNodeLocalMaps(String host) {
+    Node node = jobTracker.getNode(host);
+    if (node == null) return 0;
+    Integer count = localMaps.get(node);
+    return count == null ? 0 : count.intValue();
+  }
+
+  /**
+   * Check whether any running job can launch a reduce task.
+   */
+  public boolean hasReduceToLaunch() {
+    return !jobsWithReduces.isEmpty();
+  }
+
+  private void add(JobDemand demand) {
+    if (!demand.running) return;
+    pendingMaps += demand.pendingMaps;
+    pendingReduces += demand.pendingReduces;
+    speculativeMaps += demand.speculativeMaps;
+    speculativeReduces += demand.speculativeReduces;
+    if (demand.hasAnyMap()) jobsWithMaps.add(demand);
+    if (demand.hasReduceToLaunch) jobsWithReduces.add(demand);
+  }
+
+  private void subtract(JobDemand demand) {
+    if (!demand.running) return;
+    pendingMaps -= demand.pendingMaps;
+    pendingReduces -= demand.pendingReduces;
+    speculativeMaps -= demand.speculativeMaps;
+    speculativeReduces -= demand.speculativeReduces;
+    jobsWithMaps.remove(demand);
+    jobsWithReduces.remove(demand);
+  }
+
+  // Recompute a job's entry. The per-node map counts are only updated for
+  // the dirty maps, unless the job just started running or has gone stale.
+  private void recompute(JobDemand demand, long now) {
+    JobInProgress job = demand.job;
+    demand.dirty = false;
+    synchronized (job) {
+      boolean wasRunning = demand.running;
+      demand.running = job.getStatus().getRunState() == JobStatus.RUNNING;
+      if (!demand.running) {
+        clearMaps(demand);
+        runningDemands.remove(demand);
+        speculatableDemands.remove(demand);
+        demand.pendingMaps = 0;
+        demand.pendingReduces = 0;
+        demand.hasMapCleanup = false;
+        demand.hasRunnableMap = false;
+        demand.hasReduceToLaunch = false;
+        demand.mapsSpeculatable = false;
+        demand.reducesSpeculatable = false;
+        demand.speculativeMaps = 0;
+        demand.speculativeReduces = 0;
+        return;
+      }
+      demand.pendingMaps = job.pendingMaps();
+      demand.pendingReduces = job.pendingReduces();
+      demand.hasMapCleanup = !job.mapCleanupTasks.isEmpty();
+
+      if (!wasRunning || now - demand.lastRescanTime >= maxStaleness) {
+        rescanMaps(demand, now);
+      } else {
+        for (TaskInProgress tip: demand.dirtyMaps) {
+          updateMap(demand, tip);
+        }
+        demand.dirtyMaps.clear();
+      }
+      demand.hasRunnableMap = !demand.unlaunchedMaps.isEmpty();
+      demand.mapsSpeculatable = !demand.hasRunnableMap &&
+        job.getMapSpeculativeExecution() && job.runningMaps() > 0;
+
+      computeReduceDemand(demand);
+
+      // Count the speculatable tasks of a job that just became able to
+      // speculate; after that, refresh recounts them every
+      // speculativeInterval
+      if (!demand.mapsSpeculatable && !demand.reducesSpeculatable) {
+        speculatableDemands.remove(demand);
+        demand.speculativeMaps = 0;
+        demand.speculativeReduces = 0;
+      } else if (!speculatableDemands.contains(demand)) {
+        countSpeculativeTasks(demand, now);
+        speculatableDemands.add(demand);
+      } else {
+        if (!demand.mapsSpeculatable) demand.speculativeMaps = 0;
+        if (!demand.reducesSpeculatable) demand.speculativeReduces = 0;
+        demand.hasReduceToLaunch |= demand.speculativeReduces > 0;
+      }
+    }
+  }
+
+  // Rebuild the set of unlaunched maps of a job and their per-node counts,
+  // and move the job to the end of the staleness queue.
+  private void rescanMaps(JobDemand demand, long now) {
+    clearMaps(demand);
+    demand.lastRescanTime = now;
+    runningDemands.remove(demand);
+    runningDemands.add(demand);
+    for (TaskInProgress tip: demand.job.maps) {
+      updateMap(demand, tip);
+    }
+  }
+
+  // Forget a job's unlaunched maps, taking them out of the totals.
+  private void clearMaps(JobDemand demand) {
+    for (Map.Entry<Node, Integer> e: demand.localMaps.entrySet()) {
+      addLocalMaps(localMaps, e.getKey(), -e.getValue());
+    }
+    demand.localMaps.clear();
+    demand.unlaunchedMaps.clear();
+    demand.dirtyMaps.clear();
+  }
+
+  // Add a map to, or remove it from, a job's unlaunched maps depending on
+  // whether it is waiting to be launched, updating the per-node counts of
+  // the nodes it is local to (as JobInProgress.createCache would).
+  private void updateMap(JobDemand demand, TaskInProgress tip) {
+    boolean unlaunched = tip.isRunnable() && !tip.isRunning();
+    int delta;
+    if (unlaunched && demand.unlaunchedMaps.add(tip)) {
+      delta = 1;
+    } else if (!unlaunched && demand.unlaunchedMaps.remove(tip)) {
+      delta = -1;
+    } else {
+      return;
+    }
+    int maxLevel = jobTracker.getNumTaskCacheLevels();
+    Set<Node> nodes = new HashSet<Node>();
+    for (String host: tip.getSplitLocations()) {
+      Node node = jobTracker.getNode(host);
+      for (int level = 0; level < maxLevel && node != null; ++level) {
+        if (nodes.add(node)) {
+          addLocalMaps(demand.localMaps, node, delta);
+          addLocalMaps(localMaps, node, delta);
+        }
+        node = node.getParent();
+      }
+    }
+  }
+
+  private static void addLocalMaps(Map<Node, Integer> counts, Node node,
+                                   int delta) {
+    Integer count = counts.get(node);
+    int newCount = (count == null ? 0 : count.intValue()) + delta;
+    if (newCount > 0) {
+      counts.put(node, newCount);
+    } else {
+      counts.remove(node);
+    }
+  }
+
+  /**
+   * Check whether a job can launch a reduce task, not counting speculative
+   * reduces, and whether its reduces are speculatable. Also includes reduce
+   * cleanup tasks. This duplicates the logic inside findNewReduceTask.
+   */
+  private void computeReduceDemand(JobDemand demand) {
+    JobInProgress job = demand.job;
+    demand.hasReduceToLaunch = false;
+    demand.reducesSpeculatable = false;
+
+    // Return false if not enough maps have finished to launch reduces
+    if (!job.scheduleReduces()) return;
+
+    // Check for a reduce cleanup task
+    if (!job.reduceCleanupTasks.isEmpty()) {
+      demand.hasReduceToLaunch = true;
+      return;
+    }
+
+    // Return false right away if the task cache isn't ready, either because
+    // we are still initializing or because we are cleaning up
+    if (job.nonRunningReduces == null) return;
+
+    // Check for an unlaunched reduce
+    if (job.nonRunningReduces.size() > 0) {
+      demand.hasReduceToLaunch = true;
+      return;
+    }
+
+    // Otherwise running reduces may be speculated
+    demand.reducesSpeculatable =
+      job.getReduceSpeculativeExecution() && job.runningReduces() > 0;
+  }
+
+  /**
+   * Recount the running tasks of a job that could get a speculative attempt
+   * (up to maxSpeculative of each type), and update whether the job can
+   * launch a reduce accordingly.
+   */
+  private void countSpeculativeTasks(JobDemand demand, long now) {
+    JobInProgress job = demand.job;
+    demand.lastSpeculativeTime = now;
+    demand.speculativeMaps = demand.mapsSpeculatable ?
+      countSpeculativeTasks(job.maps, now, job.status.mapProgress()) : 0;
+    demand.speculativeReduces = demand.reducesSpeculatable ?
+      countSpeculativeTasks(job.reduces, now, job.status.reduceProgress()) : 0;
+    if (demand.reducesSpeculatable) {
+      demand.hasReduceToLaunch = demand.speculativeReduces > 0;
+    }
+  }
+
+  private int countSpeculativeTasks(TaskInProgress[] tips, long now,
+                                    float avgProg) {
+    int count = 0;
+    for (int i = 0; i < tips.length && count < maxSpeculative; i++)
+      if (tips[i].isRunning() && tips[i].hasSpeculativeTask(now, avgProg))
+        count++;
+    return count;
+  }
+}
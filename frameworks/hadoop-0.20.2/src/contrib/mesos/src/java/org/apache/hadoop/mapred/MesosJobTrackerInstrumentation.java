@@ -1,16 +1,182 @@
 package org.apache.hadoop.mapred;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import java.util.HashMap;
+import java.util.Map;
 
-public class MesosJobTrackerInstrumentation extends JobTrackerInstrumentation {
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+
+/**
+ * Metrics of the FrameworkScheduler, pushed to the "mesos" record of the
+ * "mapred" context, plus one "mesos_host" record per host (tagged with
+ * hostName) with counters of the offers and slots on that host.
+ *
+ * Latencies are pushed as histograms over each update interval (see
+ * Histogram), so that slow offer rounds or long JobTracker lock holds can
+ * be found without logging every offer.
+ */
+public class MesosJobTrackerInstrumentation extends JobTrackerInstrumentation
+    implements Updater {
+  /**
+   * Distribution of a latency over an update interval. It is pushed as
+   * &lt;name&gt;_num (a counter), &lt;name&gt;_avg and &lt;name&gt;_max, and
+   * counters &lt;name&gt;_le_&lt;bound&gt; of the values up to each bucket
+   * bound (values above the last bound are only in &lt;name&gt;_num).
+   */
+  static class Histogram {
+    private static final long[] BOUNDS = {
+      1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000,
+      50000, 100000, 200000, 500000, 1000000
+    };
+    
+    private final String name;
+    private final int[] buckets = new int[BOUNDS.length];
+    private int count = 0;
+    private long sum = 0;
+    private long max = 0;
+    
+    Histogram(String name) {
+      this.name = name;
+    }
+    
+    void add(long value) {
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+      for (int i = 0; i < BOUNDS.length; i++) {
+        if (value <= BOUNDS[i]) {
+          buckets[i]++;
+          break;
+        }
+      }
+    }
+    
+    void push(MetricsRecord record) {
+      record.incrMetric(name + "_num", count);
+      record.setMetric(name + "_avg", count == 0 ? 0 : sum / count);
+      record.setMetric(name + "_max", max);
+      // Each bucket counts all the values up to its bound
+      int cumulative = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+        cumulative += buckets[i];
+        record.incrMetric(name + "_le_" + BOUNDS[i], cumulative);
+        buckets[i] = 0;
+      }
+      count = 0;
+      sum = 0;
+      max = 0;
+    }
+  }
+  
+  /**
+   * Counters of a single host since the last update.
+   */
+  private static class HostCounters {
+    final MetricsRecord record;
+    int offers = 0;
+    int offersDeclined = 0;
+    int slotsLaunched = 0;
+    int slotsTimedOut = 0;
+    
+    HostCounters(MetricsRecord record) {
+      this.record = record;
+    }
+    
+    void push() {
+      record.incrMetric("offers", offers);
+      record.incrMetric("offers_declined", offersDeclined);
+      record.incrMetric("slots_launched", slotsLaunched);
+      record.incrMetric("slots_timed_out", slotsTimedOut);
+      record.update();
+      offers = offersDeclined = slotsLaunched = slotsTimedOut = 0;
+    }
+  }
+  
   private final FrameworkScheduler scheduler;
+  private final MetricsContext context;
+  private final MetricsRecord metricsRecord;
+  private final String sessionId;
+
+  // Counts of TaskTracker lifecycle events and slots since the last update
+  private int numTrackersStarted = 0;
+  private long totalTrackerStartupTime = 0;
+  private int numSlotsOnRunningTrackers = 0;
+  private int numTrackersShutDown = 0;
+  private int numIdleTrackers = 0;
+  private int numSpeculativeSlots = 0;
+  
+  // Offer handling since the last update
+  private int numOffers = 0;
+  private int numOffersAccepted = 0;
+  private int numOffersDeclined = 0;
+  private int numSlotsTimedOut = 0;
+  private final Histogram offerRoundMicros =
+    new Histogram("offer_round_micros");
+  private final Histogram offerLockMicros =
+    new Histogram("offer_lock_micros");
+  private final Histogram offersPerRound = new Histogram("offers_per_round");
+  private final Histogram slotsPerRound = new Histogram("slots_per_round");
+  private final Histogram assignTasksMicros =
+    new Histogram("assign_tasks_micros");
+  private final Histogram slotAssignMillis =
+    new Histogram("slot_assign_millis");
+  
+  private Map<String, HostCounters> hostCounters =
+    new HashMap<String, HostCounters>();
 
   public MesosJobTrackerInstrumentation(
     JobTracker jt, JobConf conf, FrameworkScheduler scheduler
-  ) { 
+  ) {
     super(jt, conf);
     this.scheduler = scheduler;
+    this.sessionId = conf.getSessionId();
+    context = MetricsUtil.getContext("mapred");
+    metricsRecord = MetricsUtil.createRecord(context, "mesos");
+    metricsRecord.setTag("sessionId", sessionId);
+    context.registerUpdater(this);
+  }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      metricsRecord.incrMetric("trackers_started", numTrackersStarted);
+      metricsRecord.incrMetric("tracker_startup_millis",
+          totalTrackerStartupTime);
+      metricsRecord.incrMetric("slots_on_running_trackers",
+          numSlotsOnRunningTrackers);
+      metricsRecord.incrMetric("trackers_shut_down", numTrackersShutDown);
+      metricsRecord.setMetric("idle_trackers", numIdleTrackers);
+      metricsRecord.incrMetric("speculative_slots", numSpeculativeSlots);
+      metricsRecord.incrMetric("offers", numOffers);
+      metricsRecord.incrMetric("offers_accepted", numOffersAccepted);
+      metricsRecord.incrMetric("offers_declined", numOffersDeclined);
+      metricsRecord.incrMetric("slots_timed_out", numSlotsTimedOut);
+      offerRoundMicros.push(metricsRecord);
+      offerLockMicros.push(metricsRecord);
+      offersPerRound.push(metricsRecord);
+      slotsPerRound.push(metricsRecord);
+      assignTasksMicros.push(metricsRecord);
+      slotAssignMillis.push(metricsRecord);
+      for (HostCounters counters: hostCounters.values()) {
+        counters.push();
+      }
+
+      numTrackersStarted = 0;
+      totalTrackerStartupTime = 0;
+      numSlotsOnRunningTrackers = 0;
+      numTrackersShutDown = 0;
+      numSpeculativeSlots = 0;
+      numOffers = 0;
+      numOffersAccepted = 0;
+      numOffersDeclined = 0;
+      numSlotsTimedOut = 0;
+    }
+    metricsRecord.update();
   }
 
   @Override
@@ -22,4 +188,109 @@ public class MesosJobTrackerInstrumentation extends JobTrackerInstrumentation {
   public void failedReduce(TaskAttemptID taskAttemptID) {
     scheduler.killedTask(taskAttemptID);
   }
+
+  /**
+   * A new TaskTracker heartbeated for the first time, the given number of
+   * milliseconds after its first Mesos task was launched.
+   */
+  public synchronized void trackerStarted(long startupTime) {
+    ++numTrackersStarted;
+    totalTrackerStartupTime += startupTime;
+  }
+
+  /**
+   * A Mesos task was launched on a TaskTracker that was already running, so
+   * it didn't have to wait for a new one to start.
+   */
+  public synchronized void slotOnRunningTracker() {
+    ++numSlotsOnRunningTrackers;
+  }
+
+  /**
+   * An idle TaskTracker was asked to shut down.
+   */
+  public synchronized void trackerShutDown() {
+    ++numTrackersShutDown;
+  }
+
+  /**
+   * A slot was launched beyond the pending tasks, for a speculative attempt.
+   */
+  public synchronized void speculativeSlot() {
+    ++numSpeculativeSlots;
+  }
+
+  /**
+   * Set the number of TaskTrackers that have no Mesos tasks.
+   */
+  public synchronized void setIdleTrackers(int idleTrackers) {
+    numIdleTrackers = idleTrackers;
+  }
+
+  /**
+   * A round of resource offers was handled. Takes the number of offers,
+   * the number of slots launched on them, the time the whole round took and
+   * the time the JobTracker lock was held for, in microseconds.
+   */
+  public synchronized void offerRound(int offers, int slots, long roundMicros,
+                                      long lockMicros) {
+    offersPerRound.add(offers);
+    slotsPerRound.add(slots);
+    offerRoundMicros.add(roundMicros);
+    offerLockMicros.add(lockMicros);
+  }
+
+  /**
+   * An offer on the given host was used to launch the given number of
+   * slots, or declined if that number is 0.
+   */
+  public synchronized void offerHandled(String host, int slots) {
+    HostCounters counters = getHostCounters(host);
+    ++numOffers;
+    ++counters.offers;
+    if (slots > 0) {
+      ++numOffersAccepted;
+      counters.slotsLaunched += slots;
+    } else {
+      ++numOffersDeclined;
+      ++counters.offersDeclined;
+    }
+  }
+
+  /**
+   * The JobTracker's heartbeat handler spent the given number of
+   * microseconds in the FrameworkScheduler's assignTasks.
+   */
+  public synchronized void assignTasksTime(long micros) {
+    assignTasksMicros.add(micros);
+  }
+
+  /**
+   * A Hadoop task was assigned to a slot the given number of milliseconds
+   * after the slot was launched.
+   */
+  public synchronized void slotAssigned(long millis) {
+    slotAssignMillis.add(millis);
+  }
+
+  /**
+   * A slot on the given host was killed because no Hadoop task was assigned
+   * to it in time.
+   */
+  public synchronized void slotTimedOut(String host) {
+    ++numSlotsTimedOut;
+    ++getHostCounters(host).slotsTimedOut;
+  }
+
+  private HostCounters getHostCounters(String host) {
+    HostCounters counters = hostCounters.get(host);
+    if (counters == null) {
+      MetricsRecord record = MetricsUtil.createRecord(context, "mesos_host");
+      record.setTag("sessionId", sessionId);
+      record.setTag("hostName", host);
+      counters = new HostCounters(record);
+      hostCounters.put(host, counters);
+    }
+    return counters;
+  }
 }
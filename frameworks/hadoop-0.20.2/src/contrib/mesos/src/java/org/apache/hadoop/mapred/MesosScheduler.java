@@ -14,10 +14,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.TaskTrackerStatus;
 
 public class MesosScheduler extends TaskScheduler {
-  static {
-    System.loadLibrary("mesos");
-  }
-  
   public static final Log LOG =
     LogFactory.getLog(MesosScheduler.class);
   
@@ -25,10 +21,36 @@ public class MesosScheduler extends TaskScheduler {
   private FrameworkScheduler frameworkScheduler;
   private SchedulerDriver driver;
   JobTracker jobTracker;
+  JobDemandIndex demandIndex;
+  FairSharePolicy fairShare;
 
   private EagerTaskInitializationListener eagerInitListener;
+  private JobInProgressListener frameworkListener;
+
+  /**
+   * A clock class - can be replaced for simulation.
+   */
+  static class Clock {
+    long getTime() {
+      return System.currentTimeMillis();
+    }
+  }
 
-  public MesosScheduler() { 
+  final Clock clock;
+  final boolean runBackgroundUpdates;
+
+  public MesosScheduler() {
+    this(new Clock(), true);
+  }
+
+  /**
+   * Constructor used by the MesosSimulator, which can change the clock and
+   * disable background threads; it then initializes jobs and runs the
+   * FrameworkScheduler's periodic checks itself.
+   */
+  protected MesosScheduler(Clock clock, boolean runBackgroundUpdates) {
+    this.clock = clock;
+    this.runBackgroundUpdates = runBackgroundUpdates;
   }
   
   @Override
@@ -40,18 +62,28 @@ public class MesosScheduler extends TaskScheduler {
       Configuration conf = getConf();
       String master = conf.get("mapred.mesos.master", "local");
       
-      this.eagerInitListener = new EagerTaskInitializationListener(conf);
-      eagerInitListener.setTaskTrackerManager(taskTrackerManager);
-      eagerInitListener.start();
-      taskTrackerManager.addJobInProgressListener(eagerInitListener);
+      if (runBackgroundUpdates) {
+        this.eagerInitListener = new EagerTaskInitializationListener(conf);
+        eagerInitListener.setTaskTrackerManager(taskTrackerManager);
+        eagerInitListener.start();
+        taskTrackerManager.addJobInProgressListener(eagerInitListener);
+      }
+      
+      this.demandIndex = new JobDemandIndex(jobTracker, conf, clock);
+      taskTrackerManager.addJobInProgressListener(demandIndex);
+      
+      if (conf.getBoolean("mapred.mesos.fairshare", false)) {
+        this.fairShare = new FairSharePolicy(conf, clock);
+        taskTrackerManager.addJobInProgressListener(fairShare);
+      }
       
       frameworkScheduler = new FrameworkScheduler(this); 
-      driver = new MesosSchedulerDriver(frameworkScheduler,
-          frameworkScheduler.getFrameworkName(),
-          frameworkScheduler.getExecutorInfo(),
-          master);
+      this.frameworkListener = frameworkScheduler.getJobListener();
+      taskTrackerManager.addJobInProgressListener(frameworkListener);
+      driver = createDriver(frameworkScheduler, master);
       
       driver.start();
+      running = true;
     } catch (Exception e) {
       // If the MesosScheduler can't be loaded, the JT won't be useful at all,
       // so crash it now so that the user notices.
@@ -61,6 +93,18 @@ public class MesosScheduler extends TaskScheduler {
     }
   }
 
+  /**
+   * Create the driver that connects the FrameworkScheduler to Mesos. The
+   * MesosSimulator overrides this to run against a simulated cluster.
+   */
+  protected SchedulerDriver createDriver(FrameworkScheduler scheduler,
+                                         String master) {
+    return new MesosSchedulerDriver(scheduler,
+        scheduler.getFrameworkName(),
+        scheduler.getExecutorInfo(),
+        master);
+  }
+
   @Override
   public void terminate() throws IOException {
     try {
@@ -72,6 +116,15 @@ public class MesosScheduler extends TaskScheduler {
       if (eagerInitListener != null) {
         taskTrackerManager.removeJobInProgressListener(eagerInitListener);
       }
+      if (demandIndex != null) {
+        taskTrackerManager.removeJobInProgressListener(demandIndex);
+      }
+      if (fairShare != null) {
+        taskTrackerManager.removeJobInProgressListener(fairShare);
+      }
+      if (frameworkListener != null) {
+        taskTrackerManager.removeJobInProgressListener(frameworkListener);
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -84,9 +137,19 @@ public class MesosScheduler extends TaskScheduler {
 
   @Override
   public Collection<JobInProgress> getJobs(String queueName) {
-    // TODO Actually return some jobs
-    ArrayList<JobInProgress> list = new ArrayList<JobInProgress>();
-    return list;
+    // With fair sharing, queues are the fair scheduler's pools
+    synchronized (jobTracker) {
+      if (fairShare != null) {
+        return fairShare.getPoolJobs(queueName);
+      }
+      ArrayList<JobInProgress> list = new ArrayList<JobInProgress>();
+      for (JobInProgress job: jobTracker.jobs.values()) {
+        if (job.getProfile().getQueueName().equals(queueName)) {
+          list.add(job);
+        }
+      }
+      return list;
+    }
   }
 
 }
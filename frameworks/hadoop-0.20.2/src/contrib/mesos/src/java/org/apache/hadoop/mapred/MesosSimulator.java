@@ -0,0 +1,1093 @@
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.apache.hadoop.net.NetworkTopology;
+
+import org.apache.mesos.Scheduler;
+import org.apache.mesos.SchedulerDriver;
+import org.apache.mesos.Protos.ExecutorID;
+import org.apache.mesos.Protos.Filters;
+import org.apache.mesos.Protos.FrameworkID;
+import org.apache.mesos.Protos.Offer;
+import org.apache.mesos.Protos.OfferID;
+import org.apache.mesos.Protos.Resource;
+import org.apache.mesos.Protos.ResourceRequest;
+import org.apache.mesos.Protos.SlaveID;
+import org.apache.mesos.Protos.Status;
+import org.apache.mesos.Protos.TaskDescription;
+import org.apache.mesos.Protos.TaskID;
+import org.apache.mesos.Protos.TaskState;
+import org.apache.mesos.Protos.Value;
+
+/**
+ * An offline simulator and benchmark for the FrameworkScheduler. It runs a
+ * JobTracker with the MesosScheduler in this process, and replaces Mesos
+ * with a simulated cluster behind a SchedulerDriver, and the
+ * FrameworkExecutors and TaskTrackers with simulated ones that heartbeat to
+ * the JobTracker directly and "run" each task for the duration given by a
+ * job trace (see SimulatorTrace). No native Mesos library is needed.
+ *
+ * At the end, it prints each job's completion time, the locality of the
+ * maps, slot utilization and the CPU time spent in each callback into the
+ * scheduler.
+ *
+ * Events (offers, status updates, framework messages, heartbeats, job
+ * submissions and the FrameworkScheduler's periodic checks) are delivered
+ * one at a time from a single thread in time order, and traces are generated
+ * from a fixed seed. The FrameworkScheduler, its JobDemandIndex and its
+ * FairSharePolicy read a simulated clock, which jumps to the time of each
+ * event instead of waiting for it, so a trace runs as fast as the scheduler
+ * can handle it. Jobs are initialized synchronously when they are submitted
+ * rather than by a background thread, so every event is queued by the
+ * simulator's thread and runs are deterministic. Speculative execution is
+ * turned off for the simulated jobs, since the JobTracker times tasks for
+ * speculation with the wall clock.
+ *
+ * Usage: MesosSimulator [options]
+ *   -nodes N             number of nodes (default 100)
+ *   -racks N             number of racks (default 5)
+ *   -cpus N              CPUs of each node (default 8)
+ *   -mem MB              memory of each node (default 16384)
+ *   -jobs N              number of generated jobs (default 20)
+ *   -maxmaps N           maximum number of maps of a generated job (200)
+ *   -interarrival MS     mean time between generated jobs (default 10000)
+ *   -pools N             number of pools of generated jobs (default 1)
+ *   -seed N              random seed (default 0)
+ *   -trace FILE          read the jobs from a text trace instead
+ *   -history DIR         read the jobs from JobHistory logs instead
+ *   -D key=value         set a JobTracker configuration property
+ */
+public class MesosSimulator {
+  public static final Log LOG = LogFactory.getLog(MesosSimulator.class);
+
+  // Offers tasks from the simulated cluster this often
+  private static final long OFFER_INTERVAL = 1000;
+  // Checks whether the jobs of the trace have finished this often
+  private static final long JOB_CHECK_INTERVAL = 500;
+  // Refuse timeout of the Mesos master when an offer is declined without
+  // filters (UNUSED_RESOURCES_TIMEOUT)
+  private static final double DEFAULT_REFUSE_SECONDS = 5.0;
+  // Slot limits and HTTP port reported by the simulated TaskTrackers
+  private static final int MAX_TRACKER_SLOTS = 32;
+  private static final int TRACKER_HTTP_PORT = 50060;
+
+  // The simulator that the SimulatedMesosScheduler connects to
+  private static MesosSimulator instance;
+
+  /**
+   * A MesosScheduler that runs against the simulated cluster. The
+   * JobTracker creates its scheduler by reflection, so it finds the
+   * simulator through a static field.
+   */
+  public static class SimulatedMesosScheduler extends MesosScheduler {
+    public SimulatedMesosScheduler() {
+      super(instance.clock, false);
+    }
+
+    @Override
+    protected SchedulerDriver createDriver(FrameworkScheduler scheduler,
+                                           String master) {
+      return instance.new SimulatedDriver(scheduler);
+    }
+  }
+
+  /**
+   * Puts the simulated nodes on their racks (see getHostName).
+   */
+  public static class SimulatedRackMapping implements DNSToSwitchMapping {
+    public List<String> resolve(List<String> names) {
+      List<String> racks = new ArrayList<String>(names.size());
+      for (String name: names) {
+        racks.add(getRack(name));
+      }
+      return racks;
+    }
+  }
+
+  static String getHostName(int node, int numRacks) {
+    return "rack" + (node % numRacks) + "-node" + node;
+  }
+
+  static String getRack(String host) {
+    int dash = host.indexOf('-');
+    if (host.startsWith("rack") && dash > 0) {
+      return "/" + host.substring(0, dash);
+    }
+    return NetworkTopology.DEFAULT_RACK;
+  }
+
+  /**
+   * The clock of the FrameworkScheduler. It starts at the current time, so
+   * that it can be compared with the JobTracker's timestamps, and is then
+   * only moved forward by the simulator.
+   */
+  private static class SimulatedClock extends MesosScheduler.Clock {
+    private volatile long time = System.currentTimeMillis();
+
+    @Override
+    long getTime() {
+      return time;
+    }
+
+    void advanceTo(long newTime) {
+      time = Math.max(time, newTime);
+    }
+  }
+
+  private abstract static class Event implements Comparable<Event> {
+    final long time;
+    long seq;
+
+    Event(long time) {
+      this.time = time;
+    }
+
+    abstract void run() throws IOException;
+
+    public int compareTo(Event other) {
+      if (time != other.time) {
+        return time < other.time ? -1 : 1;
+      }
+      return seq < other.seq ? -1 : (seq > other.seq ? 1 : 0);
+    }
+  }
+
+  private class Node {
+    final String host;
+    final SlaveID slaveId;
+    double freeCpus;
+    double freeMem;
+    boolean offered = false;  // Whether it has an outstanding offer
+    long refusedUntil = 0;    // Not offered before this time (filters)
+    Tracker tracker;          // Null if no executor is running on it
+    int trackersStarted = 0;
+    Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    Node(String host) {
+      this.host = host;
+      this.slaveId = SlaveID.newBuilder().setValue("slave-" + host).build();
+      this.freeCpus = cpusPerNode;
+      this.freeMem = memPerNode;
+    }
+  }
+
+  // A Mesos task launched by the FrameworkScheduler
+  private static class Slot {
+    final TaskID mesosId;
+    final double cpus;
+    final double mem;
+    final long launchTime;
+    long assignTime = -1;  // When a Hadoop task was assigned to it, or -1
+
+    Slot(TaskID mesosId, double cpus, double mem, long launchTime) {
+      this.mesosId = mesosId;
+      this.cpus = cpus;
+      this.mem = mem;
+      this.launchTime = launchTime;
+    }
+  }
+
+  private static class Tracker {
+    final Node node;
+    final String name;
+    boolean initialContact = true;
+    short responseId = -1;
+    Map<TaskAttemptID, SimulatedTask> tasks =
+      new LinkedHashMap<TaskAttemptID, SimulatedTask>();
+
+    Tracker(Node node, String name) {
+      this.node = node;
+      this.name = name;
+    }
+  }
+
+  // A Hadoop task running on a simulated TaskTracker
+  private static class SimulatedTask {
+    final Task task;
+    final long startTime;  // On the simulated clock
+    final long duration;
+    long finishTime;  // -1 for a reduce that waits for its job's maps
+    Slot slot;        // Null for setup and cleanup tasks
+    TaskStatus.State state = TaskStatus.State.RUNNING;
+
+    SimulatedTask(Task task, long startTime, long duration, long finishTime) {
+      this.task = task;
+      this.startTime = startTime;
+      this.duration = duration;
+      this.finishTime = finishTime;
+    }
+  }
+
+  private static class SimulatedJob {
+    final SimulatorTrace.Job trace;
+    JobID id;
+    long submitTime = -1;
+    long finishTime = -1;
+
+    SimulatedJob(SimulatorTrace.Job trace) {
+      this.trace = trace;
+    }
+  }
+
+  private static class CallbackCost {
+    int calls = 0;
+    long totalNanos = 0;
+    long maxNanos = 0;
+  }
+
+  /**
+   * The SchedulerDriver given to the FrameworkScheduler. The scheduler calls
+   * it from within its callbacks (and start from the JobTracker's thread),
+   * so it only queues events for the simulator's thread to run later.
+   */
+  private class SimulatedDriver implements SchedulerDriver {
+    private final Scheduler scheduler;
+
+    SimulatedDriver(Scheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    public Status start() {
+      MesosSimulator.this.scheduler = scheduler;
+      MesosSimulator.this.driver = this;
+      schedule(new Event(now()) {
+        void run() {
+          MesosSimulator.this.scheduler.registered(SimulatedDriver.this,
+              FrameworkID.newBuilder().setValue("simulated").build());
+        }
+      });
+      driverStarted.countDown();
+      return Status.OK;
+    }
+
+    public Status stop(boolean failover) {
+      return Status.OK;
+    }
+
+    public Status stop() {
+      return stop(false);
+    }
+
+    public Status abort() {
+      return Status.OK;
+    }
+
+    public Status join() {
+      return Status.OK;
+    }
+
+    public Status run() {
+      return start();
+    }
+
+    public Status requestResources(Collection<ResourceRequest> requests) {
+      return Status.OK;
+    }
+
+    public Status launchTasks(final OfferID offerId,
+                              final Collection<TaskDescription> tasks,
+                              final Filters filters) {
+      final List<TaskDescription> copy = new ArrayList<TaskDescription>(tasks);
+      schedule(new Event(now()) {
+        void run() {
+          launched(offerId, copy, filters);
+        }
+      });
+      return Status.OK;
+    }
+
+    public Status launchTasks(OfferID offerId,
+                              Collection<TaskDescription> tasks) {
+      return launchTasks(offerId, tasks, Filters.getDefaultInstance());
+    }
+
+    public Status launchTasks(Map<OfferID, Collection<TaskDescription>> tasks,
+                              Filters filters) {
+      for (Map.Entry<OfferID, Collection<TaskDescription>> e:
+           tasks.entrySet()) {
+        launchTasks(e.getKey(), e.getValue(), filters);
+      }
+      return Status.OK;
+    }
+
+    public Status killTask(final TaskID taskId) {
+      schedule(new Event(now()) {
+        void run() throws IOException {
+          killed(taskId);
+        }
+      });
+      return Status.OK;
+    }
+
+    public Status reviveOffers() {
+      schedule(new Event(now()) {
+        void run() {
+          for (Node node: nodes) {
+            node.refusedUntil = 0;
+          }
+        }
+      });
+      return Status.OK;
+    }
+
+    public Status sendFrameworkMessage(final SlaveID slaveId,
+                                       ExecutorID executorId,
+                                       final byte[] data) {
+      schedule(new Event(now()) {
+        void run() throws IOException {
+          frameworkMessage(slaveId, data);
+        }
+      });
+      return Status.OK;
+    }
+  }
+
+  // Cluster and trace parameters
+  private int numNodes = 100;
+  private int numRacks = 5;
+  private double cpusPerNode = 8;
+  private double memPerNode = 16384;
+  private int numJobs = 20;
+  private int maxMaps = 200;
+  private long interarrival = 10000;
+  private int numPools = 1;
+  private long seed = 0;
+  private String traceFile;
+  private String historyDir;
+  private long trackerStartupTime;
+  private JobConf conf = new JobConf();
+
+  private final SimulatedClock clock = new SimulatedClock();
+  private final long startTime = clock.getTime();
+  private final PriorityQueue<Event> queue = new PriorityQueue<Event>();
+  private long nextSeq = 0;
+  private final CountDownLatch driverStarted = new CountDownLatch(1);
+  private volatile Scheduler scheduler;
+  private volatile SchedulerDriver driver;
+  private JobTracker jobTracker;
+  private JobClient jobClient;
+  private boolean done = false;
+  private long traceStart;
+
+  private List<Node> nodes = new ArrayList<Node>();
+  private Map<String, Node> nodesBySlaveId = new HashMap<String, Node>();
+  private Map<String, Node> offers = new HashMap<String, Node>();
+  private Map<String, Node> slotNodes = new HashMap<String, Node>();
+  private int nextOfferId = 0;
+  private List<SimulatedJob> jobs = new ArrayList<SimulatedJob>();
+  private Map<JobID, SimulatedJob> jobsById =
+    new HashMap<JobID, SimulatedJob>();
+
+  // Statistics
+  private final ThreadMXBean threadBean =
+    ManagementFactory.getThreadMXBean();
+  private Map<String, CallbackCost> callbackCosts =
+    new TreeMap<String, CallbackCost>();
+  private int offersMade = 0;
+  private int offersDeclined = 0;
+  private int slotsLaunched = 0;
+  private int slotsUnused = 0;  // Slots that never got a Hadoop task
+  private int[] mapLocality = new int[3];  // Node-local, rack-local, other
+  private double allocatedCpuTime = 0;
+  private double busyCpuTime = 0;
+
+  private long now() {
+    return clock.getTime() - startTime;
+  }
+
+  private void schedule(Event event) {
+    synchronized (queue) {
+      event.seq = nextSeq++;
+      queue.add(event);
+    }
+  }
+
+  private long cpuTime() {
+    return threadBean.isCurrentThreadCpuTimeSupported() ?
+        threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  private void recordCost(String callback, long startCpuTime) {
+    long nanos = cpuTime() - startCpuTime;
+    CallbackCost cost = callbackCosts.get(callback);
+    if (cost == null) {
+      cost = new CallbackCost();
+      callbackCosts.put(callback, cost);
+    }
+    cost.calls++;
+    cost.totalNanos += nanos;
+    cost.maxNanos = Math.max(cost.maxNanos, nanos);
+  }
+
+  public int run() throws Exception {
+    // Load the trace
+    SimulatorTrace trace = new SimulatorTrace(numNodes, numRacks, seed);
+    if (traceFile != null) {
+      trace.readTextTrace(traceFile);
+    } else if (historyDir != null) {
+      trace.readJobHistory(historyDir);
+    } else {
+      trace.generate(numJobs, interarrival, maxMaps, numPools);
+    }
+    for (SimulatorTrace.Job job: trace.getJobs()) {
+      jobs.add(new SimulatedJob(job));
+    }
+    if (jobs.isEmpty()) {
+      System.err.println("The trace has no jobs");
+      return 1;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      Node node = new Node(getHostName(i, numRacks));
+      nodes.add(node);
+      nodesBySlaveId.put(node.slaveId.getValue(), node);
+    }
+    trackerStartupTime =
+      conf.getLong("mapred.mesos.simulator.tracker.startup", 3000);
+
+    // Start a JobTracker with a local file system in a scratch directory
+    File dir = File.createTempFile("mesos-simulator", "");
+    dir.delete();
+    dir.mkdirs();
+    conf.set("fs.default.name", "file:///");
+    conf.set("hadoop.tmp.dir", dir.getAbsolutePath());
+    conf.set("hadoop.job.history.location",
+             new File(dir, "history").getAbsolutePath());
+    conf.set("mapred.job.tracker", "localhost:0");
+    conf.set("mapred.job.tracker.http.address", "0.0.0.0:0");
+    conf.set("mapred.jobtracker.taskScheduler",
+             SimulatedMesosScheduler.class.getName());
+    conf.set("topology.node.switch.mapping.impl",
+             SimulatedRackMapping.class.getName());
+    if (conf.get("mapred.fairscheduler.poolnameproperty") == null) {
+      conf.set("mapred.fairscheduler.poolnameproperty", "pool.name");
+    }
+    instance = this;
+    jobTracker = JobTracker.startTracker(conf);
+    Thread jobTrackerThread = new Thread("JobTracker") {
+      public void run() {
+        try {
+          jobTracker.offerService();
+        } catch (Exception e) {
+          LOG.error("JobTracker failed", e);
+        }
+      }
+    };
+    jobTrackerThread.setDaemon(true);
+    jobTrackerThread.start();
+    driverStarted.await();
+    JobConf clientConf = new JobConf(conf);
+    clientConf.set("mapred.job.tracker",
+                   "localhost:" + jobTracker.getTrackerPort());
+    jobClient = new JobClient(clientConf);
+
+    try {
+      traceStart = now();
+      for (final SimulatedJob job: jobs) {
+        schedule(new Event(traceStart + job.trace.submitTime) {
+          void run() throws IOException {
+            submitJob(job);
+          }
+        });
+      }
+      schedule(new Event(traceStart) {
+        void run() {
+          offerResources();
+        }
+      });
+      schedule(new Event(traceStart + JOB_CHECK_INTERVAL) {
+        void run() {
+          checkJobs();
+        }
+      });
+      schedule(new Event(traceStart) {
+        void run() {
+          runPeriodicChecks();
+        }
+      });
+      runEvents();
+      printReport();
+    } finally {
+      jobClient.close();
+      jobTracker.stopTracker();
+      FileUtil.fullyDelete(dir);
+    }
+    return 0;
+  }
+
+  // Run the events in time order, moving the clock forward to each one.
+  // Only this thread queues events, so nothing can come before the next
+  // event once the previous one has run.
+  private void runEvents() throws IOException {
+    while (!done) {
+      Event event;
+      synchronized (queue) {
+        event = queue.poll();
+      }
+      if (event == null) {
+        throw new IllegalStateException("No more events to simulate");
+      }
+      clock.advanceTo(startTime + event.time);
+      event.run();
+    }
+  }
+
+  private void submitJob(SimulatedJob job) throws IOException {
+    JobConf jobConf = new JobConf(conf);
+    jobConf.setJobName(job.trace.name);
+    jobConf.setNumMapTasks(job.trace.mapDurations.length);
+    jobConf.setNumReduceTasks(job.trace.reduceDurations.length);
+    jobConf.setInputFormat(SimulatorTrace.SimulatorInputFormat.class);
+    jobConf.setOutputFormat(NullOutputFormat.class);
+    // Task start times in the JobTracker come from the wall clock, so
+    // speculation would depend on how fast the simulation runs
+    jobConf.setMapSpeculativeExecution(false);
+    jobConf.setReduceSpeculativeExecution(false);
+    jobConf.set(conf.get("mapred.fairscheduler.poolnameproperty"),
+                job.trace.pool);
+    SimulatorTrace.SimulatorInputFormat.setSplits(jobConf,
+                                                  job.trace.mapHosts);
+    RunningJob running = jobClient.submitJob(jobConf);
+    job.id = running.getID();
+    job.submitTime = now();
+    jobsById.put(job.id, job);
+    // Initialize the job here rather than in a background thread, so that
+    // it starts running before the next event
+    jobTracker.initJob(jobTracker.getJob(job.id));
+    LOG.info("Submitted " + job.id + " (" + job.trace.name + ")");
+  }
+
+  private void checkJobs() {
+    boolean allDone = true;
+    for (SimulatedJob job: jobs) {
+      if (job.finishTime != -1) {
+        continue;
+      }
+      if (job.id == null) {
+        allDone = false;
+        continue;
+      }
+      JobInProgress jip = jobTracker.getJob(job.id);
+      int state = jip == null ? JobStatus.SUCCEEDED :
+                  jip.getStatus().getRunState();
+      if (state == JobStatus.SUCCEEDED || state == JobStatus.FAILED ||
+          state == JobStatus.KILLED) {
+        job.finishTime = now();
+        LOG.info("Finished " + job.id + " (" + job.trace.name + ")");
+      } else {
+        allDone = false;
+      }
+    }
+    if (allDone) {
+      done = true;
+    } else {
+      schedule(new Event(now() + JOB_CHECK_INTERVAL) {
+        void run() {
+          checkJobs();
+        }
+      });
+    }
+  }
+
+  // Run the checks that the FrameworkScheduler normally runs in a background
+  // thread (timed out slots, idle trackers, preemption and reviving offers)
+  private void runPeriodicChecks() {
+    long start = cpuTime();
+    ((FrameworkScheduler) scheduler).runPeriodicChecks();
+    recordCost("periodicChecks", start);
+    schedule(new Event(
+        now() + FrameworkScheduler.KILL_UNLAUNCHED_TASKS_SLEEP_TIME) {
+      void run() {
+        runPeriodicChecks();
+      }
+    });
+  }
+
+  // Offer the free resources of each node that isn't filtered
+  private void offerResources() {
+    // The scheduler answers every offer, but rescind any that it didn't
+    for (Map.Entry<String, Node> e: offers.entrySet()) {
+      e.getValue().offered = false;
+      scheduler.offerRescinded(driver,
+          OfferID.newBuilder().setValue(e.getKey()).build());
+    }
+    offers.clear();
+    long now = now();
+    List<Offer> round = new ArrayList<Offer>();
+    for (Node node: nodes) {
+      if (node.offered || node.refusedUntil > now ||
+          node.freeCpus <= 0 || node.freeMem <= 0) {
+        continue;
+      }
+      OfferID id = OfferID.newBuilder()
+          .setValue("offer-" + nextOfferId++).build();
+      round.add(Offer.newBuilder()
+          .setId(id)
+          .setFrameworkId(FrameworkID.newBuilder().setValue("simulated"))
+          .setSlaveId(node.slaveId)
+          .setHostname(node.host)
+          .addResources(makeResource("cpus", node.freeCpus))
+          .addResources(makeResource("mem", node.freeMem))
+          .build());
+      node.offered = true;
+      offers.put(id.getValue(), node);
+    }
+    if (!round.isEmpty()) {
+      offersMade += round.size();
+      long start = cpuTime();
+      scheduler.resourceOffers(driver, round);
+      recordCost("resourceOffers", start);
+    }
+    schedule(new Event(now() + OFFER_INTERVAL) {
+      void run() {
+        offerResources();
+      }
+    });
+  }
+
+  private static Resource makeResource(String name, double value) {
+    return Resource.newBuilder()
+        .setName(name)
+        .setType(Value.Type.SCALAR)
+        .setScalar(Value.Scalar.newBuilder().setValue(value).build())
+        .build();
+  }
+
+  private static double getResource(TaskDescription task, String name) {
+    for (Resource r: task.getResourcesList()) {
+      if (r.getName().equals(name)) {
+        return r.getScalar().getValue();
+      }
+    }
+    return 0;
+  }
+
+  // Handle the scheduler's reply to an offer
+  private void launched(OfferID offerId, List<TaskDescription> tasks,
+                        Filters filters) {
+    Node node = offers.remove(offerId.getValue());
+    if (node == null) {
+      return; // Rescinded
+    }
+    node.offered = false;
+    long now = now();
+    if (tasks.isEmpty()) {
+      // Like the Mesos master, only filter offers that were not used at all
+      offersDeclined++;
+      double refuseSeconds = filters.hasRefuseSeconds() ?
+          filters.getRefuseSeconds() : DEFAULT_REFUSE_SECONDS;
+      node.refusedUntil = refuseSeconds < 0 ? Long.MAX_VALUE :
+          now + (long) (refuseSeconds * 1000);
+      return;
+    }
+    for (TaskDescription task: tasks) {
+      double cpus = getResource(task, "cpus");
+      double mem = getResource(task, "mem");
+      if (cpus > node.freeCpus || mem > node.freeMem) {
+        LOG.warn("Task " + task.getTaskId().getValue() + " doesn't fit on " +
+                 node.host);
+        sendStatus(task.getTaskId(), TaskState.TASK_LOST);
+        continue;
+      }
+      node.freeCpus -= cpus;
+      node.freeMem -= mem;
+      Slot slot = new Slot(task.getTaskId(), cpus, mem, now);
+      node.slots.put(task.getTaskId().getValue(), slot);
+      slotNodes.put(task.getTaskId().getValue(), node);
+      slotsLaunched++;
+      if (node.tracker == null) {
+        startTracker(node);
+      }
+      sendStatus(task.getTaskId(), TaskState.TASK_RUNNING);
+    }
+  }
+
+  private void sendStatus(TaskID taskId, TaskState state) {
+    long start = cpuTime();
+    scheduler.statusUpdate(driver,
+        org.apache.mesos.Protos.TaskStatus.newBuilder()
+            .setTaskId(taskId).setState(state).build());
+    recordCost("statusUpdate", start);
+  }
+
+  // Free a slot, and report its Mesos task as done in the given state
+  private void removeSlot(Node node, String mesosId, TaskState state) {
+    Slot slot = node.slots.remove(mesosId);
+    if (slot == null) {
+      return;
+    }
+    slotNodes.remove(mesosId);
+    long now = now();
+    node.freeCpus += slot.cpus;
+    node.freeMem += slot.mem;
+    allocatedCpuTime += slot.cpus * (now - slot.launchTime);
+    if (slot.assignTime == -1) {
+      slotsUnused++;
+    } else {
+      busyCpuTime += slot.cpus * (now - slot.assignTime);
+    }
+    sendStatus(slot.mesosId, state);
+  }
+
+  // Mesos asked the executor to kill a task: the FrameworkExecutor reports
+  // it as killed and asks the scheduler to kill its Hadoop task
+  private void killed(TaskID taskId) throws IOException {
+    Node node = slotNodes.get(taskId.getValue());
+    if (node == null) {
+      return;
+    }
+    removeSlot(node, taskId.getValue(), TaskState.TASK_KILLED);
+    HadoopFrameworkMessage message = new HadoopFrameworkMessage(
+        HadoopFrameworkMessage.Type.E2S_KILL_REQUEST, taskId.getValue());
+    long start = cpuTime();
+    scheduler.frameworkMessage(driver, node.slaveId,
+        ExecutorID.newBuilder().setValue("default").build(),
+        message.serialize());
+    recordCost("frameworkMessage", start);
+  }
+
+  // Handle a message from the scheduler like the FrameworkExecutor does
+  private void frameworkMessage(SlaveID slaveId, byte[] data)
+      throws IOException {
+    Node node = nodesBySlaveId.get(slaveId.getValue());
+    if (node == null) {
+      return;
+    }
+    HadoopFrameworkMessage message = new HadoopFrameworkMessage(data);
+    switch (message.type) {
+      case S2E_KILL_REQUEST:
+        for (String taskId: message.taskIds) {
+          removeSlot(node, taskId, TaskState.TASK_KILLED);
+        }
+        break;
+      case S2E_SHUTDOWN_EXECUTOR:
+        // The executor exits, so Mesos reports its tasks as lost
+        node.tracker = null;
+        for (String taskId: new ArrayList<String>(node.slots.keySet())) {
+          removeSlot(node, taskId, TaskState.TASK_LOST);
+        }
+        break;
+      default:
+        LOG.error("Unexpected HadoopFrameworkMessage: " + message.type);
+    }
+  }
+
+  private void startTracker(Node node) {
+    node.trackersStarted++;
+    final Tracker tracker = new Tracker(node, "tracker_" + node.host +
+        ":localhost/127.0.0.1:" + (40000 + node.trackersStarted));
+    node.tracker = tracker;
+    schedule(new Event(now() + trackerStartupTime) {
+      void run() throws IOException {
+        heartbeat(tracker);
+      }
+    });
+  }
+
+  private void heartbeat(final Tracker tracker) throws IOException {
+    Node node = tracker.node;
+    if (node.tracker != tracker) {
+      return; // Shut down
+    }
+    long now = now();
+    List<TaskStatus> reports = new ArrayList<TaskStatus>();
+    Iterator<SimulatedTask> it = tracker.tasks.values().iterator();
+    while (it.hasNext()) {
+      SimulatedTask task = it.next();
+      if (task.state == TaskStatus.State.RUNNING) {
+        if (task.finishTime == -1 && mapsDone(task.task.getJobID())) {
+          task.finishTime = now + task.duration;
+        }
+        if (task.finishTime != -1 && task.finishTime <= now) {
+          task.state = TaskStatus.State.SUCCEEDED;
+          releaseSlot(task);
+        }
+      }
+      reports.add(makeStatus(tracker, task, now));
+      if (task.state != TaskStatus.State.RUNNING) {
+        it.remove();
+      }
+    }
+    TaskTrackerStatus status = new TaskTrackerStatus(tracker.name, node.host,
+        TRACKER_HTTP_PORT, reports, 0, MAX_TRACKER_SLOTS, MAX_TRACKER_SLOTS);
+    long start = cpuTime();
+    HeartbeatResponse response = jobTracker.heartbeat(
+        status, false, tracker.initialContact, true, tracker.responseId);
+    recordCost("heartbeat", start);
+    tracker.initialContact = false;
+    tracker.responseId = response.getResponseId();
+    TaskTrackerAction[] actions = response.getActions();
+    if (actions != null) {
+      for (TaskTrackerAction action: actions) {
+        if (action instanceof LaunchTaskAction) {
+          launchTask(tracker, ((LaunchTaskAction) action).getTask());
+        } else if (action instanceof KillTaskAction) {
+          killTask(tracker.tasks.get(((KillTaskAction) action).getTaskID()));
+        } else if (action instanceof KillJobAction) {
+          JobID jobId = ((KillJobAction) action).getJobID();
+          for (SimulatedTask task: tracker.tasks.values()) {
+            if (task.task.getJobID().equals(jobId)) {
+              killTask(task);
+            }
+          }
+        } else if (action instanceof ReinitTrackerAction) {
+          for (SimulatedTask task: tracker.tasks.values()) {
+            killTask(task);
+          }
+          tracker.tasks.clear();
+          tracker.initialContact = true;
+        }
+      }
+    }
+    schedule(new Event(now() + response.getHeartbeatInterval()) {
+      void run() throws IOException {
+        heartbeat(tracker);
+      }
+    });
+  }
+
+  private boolean mapsDone(JobID jobId) {
+    JobInProgress job = jobTracker.getJob(jobId);
+    return job == null || job.finishedMaps() >= job.desiredMaps();
+  }
+
+  private TaskStatus makeStatus(Tracker tracker, SimulatedTask task,
+                                long now) {
+    Task t = task.task;
+    float progress;
+    if (task.state == TaskStatus.State.SUCCEEDED) {
+      progress = 1;
+    } else if (task.finishTime == -1 || task.duration == 0) {
+      progress = 0;
+    } else {
+      long started = task.finishTime - task.duration;
+      progress = Math.min(1, (float) (now - started) / task.duration);
+    }
+    TaskStatus.Phase phase;
+    if (t.isJobCleanupTask() || t.isTaskCleanupTask()) {
+      phase = TaskStatus.Phase.CLEANUP;
+    } else if (t.isMapTask()) {
+      phase = TaskStatus.Phase.MAP;
+    } else {
+      phase = task.finishTime == -1 ?
+          TaskStatus.Phase.SHUFFLE : TaskStatus.Phase.REDUCE;
+    }
+    TaskStatus status = TaskStatus.createTaskStatus(t.isMapTask(),
+        t.getTaskID(), progress, task.state, "", "", tracker.name, phase,
+        new Counters());
+    status.setStartTime(task.startTime);
+    if (task.state != TaskStatus.State.RUNNING) {
+      status.setFinishTime(clock.getTime());
+    }
+    return status;
+  }
+
+  private void launchTask(Tracker tracker, Task task) {
+    long now = now();
+    SimulatedTask simTask;
+    SimulatedJob job = jobsById.get(task.getJobID());
+    int index = task.getTaskID().getTaskID().getId();
+    if (task.isJobSetupTask() || task.isJobCleanupTask() ||
+        task.isTaskCleanupTask() || job == null) {
+      simTask = new SimulatedTask(task, clock.getTime(), 0, now);
+    } else if (task.isMapTask()) {
+      long duration = job.trace.mapDurations[index];
+      simTask = new SimulatedTask(task, clock.getTime(), duration,
+                                  now + duration);
+      countLocality(tracker.node.host, job.trace.mapHosts[index]);
+    } else {
+      long duration = job.trace.reduceDurations[index];
+      simTask = new SimulatedTask(task, clock.getTime(), duration, -1);
+    }
+    Slot slot = tracker.node.slots.get(task.extraData);
+    if (slot != null) {
+      slot.assignTime = now;
+      simTask.slot = slot;
+    }
+    tracker.tasks.put(task.getTaskID(), simTask);
+  }
+
+  private void countLocality(String host, String[] inputHosts) {
+    if (Arrays.asList(inputHosts).contains(host)) {
+      mapLocality[0]++;
+      return;
+    }
+    for (String inputHost: inputHosts) {
+      if (getRack(inputHost).equals(getRack(host))) {
+        mapLocality[1]++;
+        return;
+      }
+    }
+    mapLocality[2]++;
+  }
+
+  // The TaskTracker kills the task, which frees its slot right away; the
+  // kill is reported to the JobTracker on the next heartbeat
+  private void killTask(SimulatedTask task) {
+    if (task != null && task.state == TaskStatus.State.RUNNING) {
+      task.state = TaskStatus.State.KILLED;
+      releaseSlot(task);
+    }
+  }
+
+  // Report a task's Mesos task as done, like FrameworkExecutor.statusUpdate
+  private void releaseSlot(SimulatedTask task) {
+    if (task.slot != null) {
+      Node node = slotNodes.get(task.slot.mesosId.getValue());
+      if (node != null) {
+        removeSlot(node, task.slot.mesosId.getValue(),
+            task.state == TaskStatus.State.SUCCEEDED ?
+                TaskState.TASK_FINISHED : TaskState.TASK_KILLED);
+      }
+      task.slot = null;
+    }
+  }
+
+  private void printReport() {
+    long end = now();
+    // Account for the slots that are still running
+    for (Node node: nodes) {
+      for (Slot slot: node.slots.values()) {
+        allocatedCpuTime += slot.cpus * (end - slot.launchTime);
+        if (slot.assignTime != -1) {
+          busyCpuTime += slot.cpus * (end - slot.assignTime);
+        }
+      }
+    }
+
+    System.out.println("Job completion times (trace time, in seconds):");
+    System.out.println(String.format("%-24s %-12s %6s %8s %10s %10s",
+        "job", "pool", "maps", "reduces", "submitted", "runtime"));
+    List<Double> runtimes = new ArrayList<Double>();
+    for (SimulatedJob job: jobs) {
+      double runtime = toTraceSeconds(job.finishTime - job.submitTime);
+      runtimes.add(runtime);
+      System.out.println(String.format("%-24s %-12s %6d %8d %10.1f %10.1f",
+          job.trace.name, job.trace.pool, job.trace.mapDurations.length,
+          job.trace.reduceDurations.length,
+          toTraceSeconds(job.submitTime - traceStart), runtime));
+    }
+    Collections.sort(runtimes);
+    double total = 0;
+    for (double runtime: runtimes) {
+      total += runtime;
+    }
+    System.out.println(String.format(
+        "Jobs: %d, mean %.1f s, median %.1f s, max %.1f s, makespan %.1f s",
+        runtimes.size(), total / runtimes.size(),
+        runtimes.get(runtimes.size() / 2), runtimes.get(runtimes.size() - 1),
+        toTraceSeconds(end - traceStart)));
+
+    int maps = mapLocality[0] + mapLocality[1] + mapLocality[2];
+    System.out.println(String.format(
+        "Map locality: %d node-local (%.1f%%), %d rack-local (%.1f%%), " +
+        "%d off-switch (%.1f%%)",
+        mapLocality[0], percent(mapLocality[0], maps),
+        mapLocality[1], percent(mapLocality[1], maps),
+        mapLocality[2], percent(mapLocality[2], maps)));
+
+    double capacity = cpusPerNode * numNodes * (end - traceStart);
+    System.out.println(String.format(
+        "Slots: %d launched, %d never used; CPUs allocated %.1f%% of the " +
+        "time, and running Hadoop tasks in %.1f%% of the allocated time",
+        slotsLaunched, slotsUnused, percent(allocatedCpuTime, capacity),
+        percent(busyCpuTime, allocatedCpuTime)));
+    System.out.println(String.format("Offers: %d made, %d declined",
+        offersMade, offersDeclined));
+
+    System.out.println("Callback CPU time:");
+    System.out.println(String.format("%-18s %8s %10s %10s %10s",
+        "callback", "calls", "total ms", "avg us", "max us"));
+    for (Map.Entry<String, CallbackCost> e: callbackCosts.entrySet()) {
+      CallbackCost cost = e.getValue();
+      System.out.println(String.format("%-18s %8d %10.1f %10.1f %10.1f",
+          e.getKey(), cost.calls, cost.totalNanos / 1e6,
+          cost.totalNanos / 1e3 / cost.calls, cost.maxNanos / 1e3));
+    }
+  }
+
+  private static double toTraceSeconds(long time) {
+    return time / 1000.0;
+  }
+
+  private static double percent(double part, double whole) {
+    return whole == 0 ? 0 : 100 * part / whole;
+  }
+
+  private static void usage() {
+    System.err.println("Usage: MesosSimulator [-nodes N] [-racks N] " +
+        "[-cpus N] [-mem MB] [-jobs N] [-maxmaps N] [-interarrival MS] " +
+        "[-pools N] [-seed N] [-trace FILE | -history DIR] [-D key=value]...");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    MesosSimulator sim = new MesosSimulator();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (i + 1 >= args.length) {
+          usage();
+        }
+        String value = args[++i];
+        if (arg.equals("-nodes")) {
+          sim.numNodes = Integer.parseInt(value);
+        } else if (arg.equals("-racks")) {
+          sim.numRacks = Integer.parseInt(value);
+        } else if (arg.equals("-cpus")) {
+          sim.cpusPerNode = Double.parseDouble(value);
+        } else if (arg.equals("-mem")) {
+          sim.memPerNode = Double.parseDouble(value);
+        } else if (arg.equals("-jobs")) {
+          sim.numJobs = Integer.parseInt(value);
+        } else if (arg.equals("-maxmaps")) {
+          sim.maxMaps = Integer.parseInt(value);
+        } else if (arg.equals("-interarrival")) {
+          sim.interarrival = Long.parseLong(value);
+        } else if (arg.equals("-pools")) {
+          sim.numPools = Integer.parseInt(value);
+        } else if (arg.equals("-seed")) {
+          sim.seed = Long.parseLong(value);
+        } else if (arg.equals("-trace")) {
+          sim.traceFile = value;
+        } else if (arg.equals("-history")) {
+          sim.historyDir = value;
+        } else if (arg.equals("-D")) {
+          int eq = value.indexOf('=');
+          if (eq <= 0) {
+            usage();
+          }
+          sim.conf.set(value.substring(0, eq), value.substring(eq + 1));
+        } else {
+          usage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      usage();
+    }
+    if (sim.numNodes <= 0 || sim.numRacks <= 0) {
+      usage();
+    }
+    System.exit(sim.run());
+  }
+}
@@ -0,0 +1,362 @@
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobHistory.Keys;
+import org.apache.hadoop.mapred.JobHistory.Values;
+
+/**
+ * A job trace for the MesosSimulator: the jobs to submit, when to submit
+ * them, and the duration and input locations of each of their tasks. Times
+ * are in milliseconds, relative to the start of the trace.
+ *
+ * A trace can be generated from a random seed, read from a text file, or
+ * converted from the JobHistory logs of a real cluster. Input locations are
+ * host names of the simulated cluster (see MesosSimulator.getHostName);
+ * hosts from JobHistory logs are mapped onto them by hashing.
+ */
+class SimulatorTrace {
+  public static final Log LOG = LogFactory.getLog(SimulatorTrace.class);
+
+  // Number of replicas of each block in generated traces
+  private static final int REPLICATION = 3;
+
+  /**
+   * A job of the trace.
+   */
+  static class Job {
+    final String name;
+    final String pool;
+    final long submitTime;
+    final long[] mapDurations;
+    final String[][] mapHosts;
+    final long[] reduceDurations;
+
+    Job(String name, String pool, long submitTime, long[] mapDurations,
+        String[][] mapHosts, long[] reduceDurations) {
+      this.name = name;
+      this.pool = pool;
+      this.submitTime = submitTime;
+      this.mapDurations = mapDurations;
+      this.mapHosts = mapHosts;
+      this.reduceDurations = reduceDurations;
+    }
+  }
+
+  private final List<Job> jobs = new ArrayList<Job>();
+  private final int numNodes;
+  private final int numRacks;
+  private final Random random;
+
+  SimulatorTrace(int numNodes, int numRacks, long seed) {
+    this.numNodes = numNodes;
+    this.numRacks = numRacks;
+    this.random = new Random(seed);
+  }
+
+  List<Job> getJobs() {
+    return jobs;
+  }
+
+  /**
+   * Generate jobs with exponentially distributed inter-arrival times, a
+   * log-uniform number of maps between 1 and maxMaps, one reduce per ten
+   * maps, map durations between 10 and 60 seconds and reduce durations
+   * between 30 and 120 seconds. Jobs are spread over numPools pools
+   * round-robin.
+   */
+  void generate(int numJobs, long meanInterarrival, int maxMaps,
+                int numPools) {
+    long time = 0;
+    for (int i = 0; i < numJobs; i++) {
+      int numMaps = (int) Math.exp(random.nextDouble() * Math.log(maxMaps));
+      numMaps = Math.max(1, Math.min(maxMaps, numMaps));
+      int numReduces = numMaps / 10;
+      long[] mapDurations = new long[numMaps];
+      for (int m = 0; m < numMaps; m++) {
+        mapDurations[m] = 10000 + random.nextInt(50000);
+      }
+      long[] reduceDurations = new long[numReduces];
+      for (int r = 0; r < numReduces; r++) {
+        reduceDurations[r] = 30000 + random.nextInt(90000);
+      }
+      String pool = numPools > 1 ? "pool" + (i % numPools) : "default";
+      jobs.add(new Job("synthetic-" + i, pool, time, mapDurations,
+                       randomHosts(numMaps), reduceDurations));
+      time += (long) (-Math.log(1 - random.nextDouble()) * meanInterarrival);
+    }
+  }
+
+  /**
+   * Read jobs from a text file with one job per line, as
+   * "submitTime pool numMaps mapDuration numReduces reduceDuration".
+   * Blank lines and lines starting with # are ignored. Input locations are
+   * chosen at random.
+   */
+  void readTextTrace(String file) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      int lineNum = 0;
+      while ((line = in.readLine()) != null) {
+        lineNum++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length != 6) {
+          throw new IOException(file + ":" + lineNum + ": expected 6 fields");
+        }
+        try {
+          long submitTime = Long.parseLong(fields[0]);
+          int numMaps = Integer.parseInt(fields[2]);
+          long[] mapDurations = new long[numMaps];
+          for (int m = 0; m < numMaps; m++) {
+            mapDurations[m] = Long.parseLong(fields[3]);
+          }
+          long[] reduceDurations = new long[Integer.parseInt(fields[4])];
+          for (int r = 0; r < reduceDurations.length; r++) {
+            reduceDurations[r] = Long.parseLong(fields[5]);
+          }
+          jobs.add(new Job("trace-" + jobs.size(), fields[1], submitTime,
+                           mapDurations, randomHosts(numMaps),
+                           reduceDurations));
+        } catch (NumberFormatException e) {
+          throw new IOException(file + ":" + lineNum + ": " + e.getMessage());
+        }
+      }
+    } finally {
+      in.close();
+    }
+    sortJobs();
+  }
+
+  /**
+   * Read jobs from the JobHistory logs in a directory, e.g. the
+   * hadoop.job.history.location of a real JobTracker. Task durations are
+   * those of the successful attempt of each task, and input locations are
+   * the split hosts of each map, mapped onto the simulated nodes.
+   */
+  void readJobHistory(String dir) throws IOException {
+    Path path = new Path(dir);
+    FileSystem fs = path.getFileSystem(new JobConf());
+    for (FileStatus file: fs.listStatus(path)) {
+      String name = file.getPath().getName();
+      if (file.isDir() || name.endsWith(".xml") || name.endsWith(".crc")) {
+        continue;
+      }
+      JobHistory.JobInfo info = new JobHistory.JobInfo(name);
+      DefaultJobHistoryParser.parseJobTasks(
+          file.getPath().toString(), info, fs);
+      List<Long> mapDurations = new ArrayList<Long>();
+      List<String[]> mapHosts = new ArrayList<String[]>();
+      List<Long> reduceDurations = new ArrayList<Long>();
+      for (JobHistory.Task task: info.getAllTasks().values()) {
+        String type = task.get(Keys.TASK_TYPE);
+        long duration = getDuration(task);
+        if (duration < 0) {
+          continue;
+        }
+        if (Values.MAP.name().equals(type)) {
+          mapDurations.add(duration);
+          mapHosts.add(mapHosts(task.get(Keys.SPLITS)));
+        } else if (Values.REDUCE.name().equals(type)) {
+          reduceDurations.add(duration);
+        }
+      }
+      if (mapDurations.isEmpty() && reduceDurations.isEmpty()) {
+        LOG.warn("Skipping " + name + ": no successful tasks");
+        continue;
+      }
+      long[] maps = new long[mapDurations.size()];
+      for (int i = 0; i < maps.length; i++) {
+        maps[i] = mapDurations.get(i);
+      }
+      long[] reduces = new long[reduceDurations.size()];
+      for (int i = 0; i < reduces.length; i++) {
+        reduces[i] = reduceDurations.get(i);
+      }
+      jobs.add(new Job(info.get(Keys.JOBNAME), "default",
+                       info.getLong(Keys.SUBMIT_TIME), maps,
+                       mapHosts.toArray(new String[maps.length][]), reduces));
+    }
+    // Make submit times relative to the first job
+    sortJobs();
+    if (!jobs.isEmpty()) {
+      long start = jobs.get(0).submitTime;
+      for (int i = 0; i < jobs.size(); i++) {
+        Job job = jobs.get(i);
+        jobs.set(i, new Job(job.name, job.pool, job.submitTime - start,
+            job.mapDurations, job.mapHosts, job.reduceDurations));
+      }
+    }
+  }
+
+  // Get the duration of the successful attempt of a task, or -1 if none
+  private static long getDuration(JobHistory.Task task) {
+    for (JobHistory.TaskAttempt attempt: task.getTaskAttempts().values()) {
+      if (Values.SUCCESS.name().equals(attempt.get(Keys.TASK_STATUS))) {
+        return attempt.getLong(Keys.FINISH_TIME) -
+               attempt.getLong(Keys.START_TIME);
+      }
+    }
+    return -1;
+  }
+
+  // Map the comma-separated split hosts of a logged map onto our nodes
+  private String[] mapHosts(String splits) {
+    List<String> hosts = new ArrayList<String>();
+    if (splits != null) {
+      for (String host: splits.split(",")) {
+        host = host.trim();
+        if (host.length() > 0) {
+          String mapped = MesosSimulator.getHostName(
+              (host.hashCode() & Integer.MAX_VALUE) % numNodes, numRacks);
+          if (!hosts.contains(mapped)) {
+            hosts.add(mapped);
+          }
+        }
+      }
+    }
+    return hosts.toArray(new String[hosts.size()]);
+  }
+
+  // Choose input locations like HDFS's default placement: one node, then
+  // two nodes on another rack
+  private String[][] randomHosts(int numMaps) {
+    String[][] hosts = new String[numMaps][];
+    for (int m = 0; m < numMaps; m++) {
+      List<String> replicas = new ArrayList<String>();
+      int first = random.nextInt(numNodes);
+      replicas.add(MesosSimulator.getHostName(first, numRacks));
+      int second = random.nextInt(numNodes);
+      if (numRacks > 1) {
+        while (second % numRacks == first % numRacks) {
+          second = random.nextInt(numNodes);
+        }
+      }
+      for (int r = 1; r < REPLICATION && r < numNodes; r++) {
+        // Other nodes on the second node's rack
+        int node = (second + (r - 1) * numRacks) % numNodes;
+        String host = MesosSimulator.getHostName(node, numRacks);
+        if (!replicas.contains(host)) {
+          replicas.add(host);
+        }
+      }
+      hosts[m] = replicas.toArray(new String[replicas.size()]);
+    }
+    return hosts;
+  }
+
+  private void sortJobs() {
+    Collections.sort(jobs, new Comparator<Job>() {
+      public int compare(Job j1, Job j2) {
+        return j1.submitTime < j2.submitTime ? -1 :
+               (j1.submitTime > j2.submitTime ? 1 : 0);
+      }
+    });
+  }
+
+  /**
+   * An InputFormat that creates one split per map of a trace job, with the
+   * input locations given in mapred.mesos.simulator.splits (the hosts of each
+   * split separated by commas, and splits separated by semicolons). The
+   * simulated TaskTrackers never read the splits.
+   */
+  public static class SimulatorInputFormat implements InputFormat<Text, Text> {
+    public static final String SPLITS_PROPERTY =
+      "mapred.mesos.simulator.splits";
+
+    static void setSplits(JobConf conf, String[][] hosts) {
+      StringBuilder splits = new StringBuilder();
+      for (int i = 0; i < hosts.length; i++) {
+        if (i > 0) {
+          splits.append(';');
+        }
+        for (int h = 0; h < hosts[i].length; h++) {
+          if (h > 0) {
+            splits.append(',');
+          }
+          splits.append(hosts[i][h]);
+        }
+      }
+      conf.set(SPLITS_PROPERTY, splits.toString());
+    }
+
+    public InputSplit[] getSplits(JobConf conf, int numSplits) {
+      String value = conf.get(SPLITS_PROPERTY, "");
+      if (value.length() == 0) {
+        return new InputSplit[0];
+      }
+      // All splits have the same length, so JobClient's (stable) sort by
+      // length keeps them in order and map i runs split i
+      String[] splits = value.split(";", -1);
+      InputSplit[] result = new InputSplit[splits.length];
+      for (int i = 0; i < splits.length; i++) {
+        String[] hosts =
+          splits[i].length() == 0 ? new String[0] : splits[i].split(",");
+        result[i] = new SimulatorSplit(hosts);
+      }
+      return result;
+    }
+
+    public RecordReader<Text, Text> getRecordReader(InputSplit split,
+        JobConf conf, Reporter reporter) throws IOException {
+      throw new IOException("Simulated splits can't be read");
+    }
+  }
+
+  /**
+   * A split of a trace job's map, which only has input locations.
+   */
+  public static class SimulatorSplit implements InputSplit {
+    private String[] hosts;
+
+    public SimulatorSplit() {
+      this(new String[0]);
+    }
+
+    SimulatorSplit(String[] hosts) {
+      this.hosts = hosts;
+    }
+
+    public long getLength() {
+      return 1;
+    }
+
+    public String[] getLocations() {
+      return hosts;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, hosts.length);
+      for (String host: hosts) {
+        Text.writeString(out, host);
+      }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      hosts = new String[WritableUtils.readVInt(in)];
+      for (int i = 0; i < hosts.length; i++) {
+        hosts[i] = Text.readString(in);
+      }
+    }
+  }
+}
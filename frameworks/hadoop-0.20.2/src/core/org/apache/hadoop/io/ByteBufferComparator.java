@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * A {@link RawComparator} that can also compare serialized keys held in
+ * {@link ByteBuffer}s, which may be direct, without first copying them
+ * into byte arrays.
+ * </p>
+ * <p>
+ * Subclasses that change {@link #compare(byte[],int,int,byte[],int,int)}
+ * must also override
+ * {@link #compare(ByteBuffer,int,int,ByteBuffer,int,int)}.
+ * </p>
+ * @param <T>
+ */
+public interface ByteBufferComparator<T> extends RawComparator<T> {
+
+  /**
+   * Compares two serialized keys at the given offsets of two buffers, the
+   * same way as the raw comparison of byte arrays. Reads the buffers with
+   * absolute gets, so their positions are neither used nor changed, and
+   * several threads may read a buffer at once.
+   */
+  public int compare(ByteBuffer b1, int s1, int l1,
+                     ByteBuffer b2, int s2, int l2);
+
+}
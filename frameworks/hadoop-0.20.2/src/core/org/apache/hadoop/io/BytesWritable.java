@@ -21,6 +21,7 @@ package org.apache.hadoop.io;
 import java.io.IOException;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -194,7 +195,8 @@ public class BytesWritable extends BinaryComparable
   }
 
   /** A Comparator optimized for BytesWritable. */ 
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+      implements PrefixComparator, ByteBufferComparator {
     public Comparator() {
       super(BytesWritable.class);
     }
@@ -207,6 +209,22 @@ public class BytesWritable extends BinaryComparable
       return compareBytes(b1, s1+LENGTH_BYTES, l1-LENGTH_BYTES, 
                           b2, s2+LENGTH_BYTES, l2-LENGTH_BYTES);
     }
+
+    /**
+     * The first bytes of the buffer in serialized form.
+     */
+    public int getPrefix(byte[] b, int s, int l) {
+      return prefixBytes(b, s+LENGTH_BYTES, l-LENGTH_BYTES);
+    }
+
+    /**
+     * Compare the buffers in serialized form, held in ByteBuffers.
+     */
+    public int compare(ByteBuffer b1, int s1, int l1,
+                       ByteBuffer b2, int s2, int l2) {
+      return compareBytes(b1, s1+LENGTH_BYTES, l1-LENGTH_BYTES,
+                          b2, s2+LENGTH_BYTES, l2-LENGTH_BYTES);
+    }
   }
   
   static {                                        // register this comparator
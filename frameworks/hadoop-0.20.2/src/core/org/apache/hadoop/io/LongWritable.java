@@ -19,6 +19,7 @@
 package org.apache.hadoop.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /** A WritableComparable for longs. */
 public class LongWritable implements WritableComparable {
@@ -66,7 +67,8 @@ public class LongWritable implements WritableComparable {
   }
 
   /** A Comparator optimized for LongWritable. */ 
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+      implements PrefixComparator, ByteBufferComparator {
     public Comparator() {
       super(LongWritable.class);
     }
@@ -77,6 +79,18 @@ public class LongWritable implements WritableComparable {
       long thatValue = readLong(b2, s2);
       return (thisValue<thatValue ? -1 : (thisValue==thatValue ? 0 : 1));
     }
+
+    /** The high 32 bits of the value. */
+    public int getPrefix(byte[] b, int s, int l) {
+      return readInt(b, s);
+    }
+
+    public int compare(ByteBuffer b1, int s1, int l1,
+                       ByteBuffer b2, int s2, int l2) {
+      long thisValue = readLong(b1, s1);
+      long thatValue = readLong(b2, s2);
+      return (thisValue<thatValue ? -1 : (thisValue==thatValue ? 0 : 1));
+    }
   }
 
   /** A decreasing Comparator optimized for LongWritable. */ 
@@ -87,6 +101,13 @@ public class LongWritable implements WritableComparable {
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
       return -super.compare(b1, s1, l1, b2, s2, l2);
     }
+    public int getPrefix(byte[] b, int s, int l) {
+      return ~super.getPrefix(b, s, l);
+    }
+    public int compare(ByteBuffer b1, int s1, int l1,
+                       ByteBuffer b2, int s2, int l2) {
+      return -super.compare(b1, s1, l1, b2, s2, l2);
+    }
   }
 
   static {                                       // register default comparator
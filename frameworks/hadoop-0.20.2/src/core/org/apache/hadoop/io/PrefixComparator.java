@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+/**
+ * <p>
+ * A {@link RawComparator} that can also summarize a serialized key as a
+ * normalized prefix: an int that orders keys the same way the comparator
+ * does, as far as its bits go. Sorts can compare the prefixes of two
+ * keys, which they may keep next to their record pointers, and call the
+ * comparator only when the prefixes are equal.
+ * </p>
+ * <p>
+ * Subclasses that change {@link #compare(byte[],int,int,byte[],int,int)}
+ * must also override {@link #getPrefix(byte[],int,int)}.
+ * </p>
+ * @param <T>
+ */
+public interface PrefixComparator<T> extends RawComparator<T> {
+
+  /**
+   * Returns the prefix of a serialized key. For any two keys a and b,
+   * if compare(a, b) &lt; 0 then getPrefix(a) &lt;= getPrefix(b), as
+   * signed ints. Called from several threads at once, so it should not
+   * keep any state.
+   */
+  public int getPrefix(byte[] b, int s, int l);
+
+}
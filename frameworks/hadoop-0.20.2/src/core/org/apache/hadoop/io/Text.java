@@ -294,7 +294,8 @@ public class Text extends BinaryComparable
   }
 
   /** A WritableComparator optimized for Text keys. */
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+      implements PrefixComparator, ByteBufferComparator {
     public Comparator() {
       super(Text.class);
     }
@@ -305,6 +306,18 @@ public class Text extends BinaryComparable
       int n2 = WritableUtils.decodeVIntSize(b2[s2]);
       return compareBytes(b1, s1+n1, l1-n1, b2, s2+n2, l2-n2);
     }
+
+    public int getPrefix(byte[] b, int s, int l) {
+      int n = WritableUtils.decodeVIntSize(b[s]);
+      return prefixBytes(b, s+n, l-n);
+    }
+
+    public int compare(ByteBuffer b1, int s1, int l1,
+                       ByteBuffer b2, int s2, int l2) {
+      int n1 = WritableUtils.decodeVIntSize(b1.get(s1));
+      int n2 = WritableUtils.decodeVIntSize(b2.get(s2));
+      return compareBytes(b1, s1+n1, l1-n1, b2, s2+n2, l2-n2);
+    }
   }
 
   static {
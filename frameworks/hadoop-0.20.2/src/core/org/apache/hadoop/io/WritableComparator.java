@@ -19,6 +19,8 @@
 package org.apache.hadoop.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 
 import org.apache.hadoop.util.ReflectionUtils;
@@ -119,6 +121,19 @@ public class WritableComparator implements RawComparator {
     return compare((WritableComparable)a, (WritableComparable)b);
   }
 
+  /**
+   * A prefix of binary data for {@link PrefixComparator}: its first four
+   * bytes, padded with zeroes, with the sign bit flipped so that signed
+   * order matches {@link #compareBytes(byte[],int,int,byte[],int,int)}.
+   */
+  public static int prefixBytes(byte[] b, int s, int l) {
+    int prefix = 0;
+    for (int i = 0; i < 4; i++) {
+      prefix = (prefix << 8) | (i < l ? (b[s + i] & 0xff) : 0);
+    }
+    return prefix ^ Integer.MIN_VALUE;
+  }
+
   /** Lexicographic order of binary data. */
   public static int compareBytes(byte[] b1, int s1, int l1,
                                  byte[] b2, int s2, int l2) {
@@ -134,6 +149,33 @@ public class WritableComparator implements RawComparator {
     return l1 - l2;
   }
 
+  /**
+   * Lexicographic order of binary data in buffers, as
+   * {@link #compareBytes(byte[],int,int,byte[],int,int)}. Reads the buffers
+   * with absolute gets, eight bytes at a time where it can.
+   */
+  public static int compareBytes(ByteBuffer b1, int s1, int l1,
+                                 ByteBuffer b2, int s2, int l2) {
+    int length = Math.min(l1, l2);
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      long a = readLong(b1, s1 + i);
+      long b = readLong(b2, s2 + i);
+      if (a != b) {
+        // unsigned comparison
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE) ? -1 : 1;
+      }
+    }
+    for (; i < length; i++) {
+      int a = (b1.get(s1 + i) & 0xff);
+      int b = (b2.get(s2 + i) & 0xff);
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return l1 - l2;
+  }
+
   /** Compute hash for binary data. */
   public static int hashBytes(byte[] bytes, int length) {
     int hash = 1;
@@ -162,6 +204,22 @@ public class WritableComparator implements RawComparator {
     return Float.intBitsToFloat(readInt(bytes, start));
   }
 
+  /** Parse an integer from a buffer, whatever its byte order. */
+  public static int readInt(ByteBuffer b, int start) {
+    int value = b.getInt(start);
+    return b.order() == ByteOrder.BIG_ENDIAN
+      ? value
+      : Integer.reverseBytes(value);
+  }
+
+  /** Parse a long from a buffer, whatever its byte order. */
+  public static long readLong(ByteBuffer b, int start) {
+    long value = b.getLong(start);
+    return b.order() == ByteOrder.BIG_ENDIAN
+      ? value
+      : Long.reverseBytes(value);
+  }
+
   /** Parse a long from a byte array. */
   public static long readLong(byte[] bytes, int start) {
     return ((long)(readInt(bytes, start)) << 32) +
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A pool of fixed-size pages of direct memory, cut from larger slabs as it
+ * grows. Pages go back to the pool rather than to the garbage collector,
+ * so data held in them neither churns the heap nor waits on a collection
+ * for its memory to be freed. The pool does not limit its size; callers
+ * account for the memory they take, in units of {@link #getFootprint}.
+ */
+class DirectPagePool {
+  private static final int PAGES_PER_SLAB = 128;
+
+  private final int pageSize;
+  private final int slabSize;
+  private final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+  private long capacity = 0;
+
+  /**
+   * @param pageSize the size of each page
+   * @param maxSize the most memory the callers will take at once, to keep
+   *                the slabs of a small pool from overshooting it
+   */
+  DirectPagePool(int pageSize, long maxSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Invalid page size: " + pageSize);
+    }
+    this.pageSize = pageSize;
+    long maxPages = Math.max(1, (maxSize + pageSize - 1) / pageSize);
+    this.slabSize = (int)Math.min(PAGES_PER_SLAB, maxPages) * pageSize;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  /** The memory taken by the pages holding the given number of bytes. */
+  long getFootprint(long length) {
+    return ((length + pageSize - 1) / pageSize) * pageSize;
+  }
+
+  /** The direct memory allocated for the pool so far. */
+  synchronized long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Take enough pages to hold the given number of bytes. Each page is
+   * cleared, ready to be filled, and the last is limited to the bytes left
+   * over.
+   */
+  synchronized ByteBuffer[] allocate(int length) {
+    ByteBuffer[] pages = new ByteBuffer[(length + pageSize - 1) / pageSize];
+    for (int i = 0; i < pages.length; ++i) {
+      if (free.isEmpty()) {
+        addSlab();
+      }
+      pages[i] = free.removeFirst();
+      pages[i].clear();
+    }
+    if (pages.length > 0) {
+      pages[pages.length - 1].limit(length - (pages.length - 1) * pageSize);
+    }
+    return pages;
+  }
+
+  /** Return pages taken with {@link #allocate}. */
+  synchronized void release(ByteBuffer[] pages) {
+    for (ByteBuffer page : pages) {
+      free.addFirst(page);
+    }
+  }
+
+  private void addSlab() {
+    ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+    for (int off = 0; off < slabSize; off += pageSize) {
+      slab.limit(off + pageSize);
+      slab.position(off);
+      free.add(slab.slice());
+    }
+    capacity += slabSize;
+  }
+
+  /**
+   * Reads the data in a run of pages, each filled up to its limit.
+   */
+  static class PageInputStream extends InputStream {
+    private final ByteBuffer[] pages;
+    private int current = 0;
+    private ByteBuffer page;
+
+    PageInputStream(ByteBuffer[] pages) {
+      this.pages = pages;
+      page = pages.length > 0 ? pages[0].duplicate() : null;
+    }
+
+    /** Move to the next page with data, returning false at the end. */
+    private boolean nextPage() {
+      while (page != null && !page.hasRemaining()) {
+        page = ++current < pages.length ? pages[current].duplicate() : null;
+      }
+      return page != null;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextPage()) {
+        return -1;
+      }
+      return page.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = 0;
+      while (n < len && nextPage()) {
+        int chunk = Math.min(len - n, page.remaining());
+        page.get(b, off + n, chunk);
+        n += chunk;
+      }
+      return n == 0 ? -1 : n;
+    }
+  }
+
+  /**
+   * Write the data in a run of pages, each filled up to its limit.
+   */
+  static void writePages(ByteBuffer[] pages, OutputStream out)
+  throws IOException {
+    byte[] buf = new byte[4096];
+    for (ByteBuffer page : pages) {
+      ByteBuffer data = page.duplicate();
+      while (data.hasRemaining()) {
+        int n = Math.min(buf.length, data.remaining());
+        data.get(buf, 0, n);
+        out.write(buf, 0, n);
+      }
+    }
+  }
+}
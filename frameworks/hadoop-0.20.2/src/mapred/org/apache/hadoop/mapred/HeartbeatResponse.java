@@ -42,6 +42,21 @@ class HeartbeatResponse implements Writable, Configurable {
   int heartbeatInterval;
   TaskTrackerAction[] actions;
   Set<JobID> recoveredJobs = new HashSet<JobID>();
+  Map<JobID, JobEvents> jobEvents = new HashMap<JobID, JobEvents>();
+
+  /**
+   * The task completion events of a job from the event id that the
+   * {@link TaskTracker} asked for in its heartbeat.
+   */
+  static class JobEvents {
+    int fromEventId;
+    TaskCompletionEvent[] events;
+
+    JobEvents(int fromEventId, TaskCompletionEvent[] events) {
+      this.fromEventId = fromEventId;
+      this.events = events;
+    }
+  }
 
   HeartbeatResponse() {}
   
@@ -67,6 +82,15 @@ class HeartbeatResponse implements Writable, Configurable {
     return recoveredJobs;
   }
   
+  void setTaskCompletionEvents(JobID jobId, int fromEventId,
+                               TaskCompletionEvent[] events) {
+    jobEvents.put(jobId, new JobEvents(fromEventId, events));
+  }
+
+  Map<JobID, JobEvents> getTaskCompletionEvents() {
+    return jobEvents;
+  }
+
   public void setActions(TaskTrackerAction[] actions) {
     this.actions = actions;
   }
@@ -108,6 +132,17 @@ class HeartbeatResponse implements Writable, Configurable {
     for (JobID id : recoveredJobs) {
       id.write(out);
     }
+    // Write the new task completion events of the jobs in shuffle
+    WritableUtils.writeVInt(out, jobEvents.size());
+    for (Map.Entry<JobID, JobEvents> entry : jobEvents.entrySet()) {
+      entry.getKey().write(out);
+      JobEvents update = entry.getValue();
+      WritableUtils.writeVInt(out, update.fromEventId);
+      WritableUtils.writeVInt(out, update.events.length);
+      for (TaskCompletionEvent event : update.events) {
+        event.write(out);
+      }
+    }
   }
   
   public void readFields(DataInput in) throws IOException {
@@ -132,5 +167,20 @@ class HeartbeatResponse implements Writable, Configurable {
       id.readFields(in);
       recoveredJobs.add(id);
     }
+    // Read the new task completion events of the jobs in shuffle
+    jobEvents.clear();
+    size = WritableUtils.readVInt(in);
+    for (int i = 0; i < size; ++i) {
+      JobID id = new JobID();
+      id.readFields(in);
+      int fromEventId = WritableUtils.readVInt(in);
+      TaskCompletionEvent[] events =
+        new TaskCompletionEvent[WritableUtils.readVInt(in)];
+      for (int j = 0; j < events.length; ++j) {
+        events[j] = new TaskCompletionEvent();
+        events[j].readFields(in);
+      }
+      jobEvents.put(id, new JobEvents(fromEventId, events));
+    }
   }
 }
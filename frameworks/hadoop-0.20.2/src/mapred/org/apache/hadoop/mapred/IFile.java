@@ -17,11 +17,13 @@
  */
 package org.apache.hadoop.mapred;
 
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -453,11 +455,16 @@ class IFile {
   }    
   
   /**
-   * <code>IFile.InMemoryReader</code> to read map-outputs present in-memory.
+   * <code>IFile.InMemoryReader</code> to read map-outputs present in-memory,
+   * either in a byte array or in pages of a {@link DirectPagePool}.
    */
   public static class InMemoryReader<K, V> extends Reader<K, V> {
     RamManager ramManager;
     TaskAttemptID taskAttemptId;
+
+    DirectPagePool pagePool;
+    ByteBuffer[] pages;
+    DataInputStream pageIn;
     
     public InMemoryReader(RamManager ramManager, TaskAttemptID taskAttemptId,
                           byte[] data, int start, int length)
@@ -470,6 +477,24 @@ class IFile {
       bufferSize = (int)fileLength;
       dataIn.reset(buffer, start, length);
     }
+
+    /**
+     * Read a map-output held in pages, each filled up to its limit. The pages
+     * go back to the pool when the reader is closed.
+     */
+    public InMemoryReader(RamManager ramManager, TaskAttemptID taskAttemptId,
+                          DirectPagePool pagePool, ByteBuffer[] pages,
+                          int length)
+                          throws IOException {
+      super(null, null, length, null, null);
+      this.ramManager = ramManager;
+      this.taskAttemptId = taskAttemptId;
+      this.pagePool = pagePool;
+      this.pages = pages;
+
+      bufferSize = (int)fileLength;
+      pageIn = new DataInputStream(new DirectPagePool.PageInputStream(pages));
+    }
     
     @Override
     public long getPosition() throws IOException {
@@ -490,7 +515,11 @@ class IFile {
                          " to " + dumpFile.getAbsolutePath());
       try {
         FileOutputStream fos = new FileOutputStream(dumpFile);
-        fos.write(buffer, 0, bufferSize);
+        if (pages != null) {
+          DirectPagePool.writePages(pages, fos);
+        } else {
+          fos.write(buffer, 0, bufferSize);
+        }
         fos.close();
       } catch (IOException ioe) {
         System.err.println("Failed to dump map-output of " + taskAttemptId);
@@ -504,6 +533,9 @@ class IFile {
       if (eof) {
         throw new EOFException("Completed reading " + bytesRead);
       }
+      if (pages != null) {
+        return nextFromPages(key, value);
+      }
       
       // Read key and value lengths
       int oldPos = dataIn.getPosition();
@@ -519,14 +551,7 @@ class IFile {
       }
       
       // Sanity check
-      if (keyLength < 0) {
-        throw new IOException("Rec# " + recNo + ": Negative key-length: " + 
-                              keyLength);
-      }
-      if (valueLength < 0) {
-        throw new IOException("Rec# " + recNo + ": Negative value-length: " + 
-                              valueLength);
-      }
+      checkLengths(keyLength, valueLength);
 
       final int recordLength = keyLength + valueLength;
       
@@ -555,10 +580,65 @@ class IFile {
       }
     }
       
+    /**
+     * Copy the next record out of the pages, as it may span two of them.
+     */
+    private boolean nextFromPages(DataInputBuffer key, DataInputBuffer value)
+    throws IOException {
+      // Read key and value lengths
+      int keyLength = WritableUtils.readVInt(pageIn);
+      int valueLength = WritableUtils.readVInt(pageIn);
+      bytesRead += WritableUtils.getVIntSize(keyLength) +
+                   WritableUtils.getVIntSize(valueLength);
+
+      // Check for EOF
+      if (keyLength == EOF_MARKER && valueLength == EOF_MARKER) {
+        eof = true;
+        return false;
+      }
+
+      // Sanity check
+      checkLengths(keyLength, valueLength);
+
+      final int recordLength = keyLength + valueLength;
+      if (buffer == null || buffer.length < recordLength) {
+        buffer = new byte[recordLength << 1];
+      }
+      pageIn.readFully(buffer, 0, recordLength);
+
+      // Setup the key and value
+      key.reset(buffer, 0, keyLength);
+      value.reset(buffer, keyLength, valueLength);
+
+      // Record the bytes
+      bytesRead += recordLength;
+
+      ++recNo;
+
+      return true;
+    }
+
+    private void checkLengths(int keyLength, int valueLength)
+    throws IOException {
+      if (keyLength < 0) {
+        throw new IOException("Rec# " + recNo + ": Negative key-length: " + 
+                              keyLength);
+      }
+      if (valueLength < 0) {
+        throw new IOException("Rec# " + recNo + ": Negative value-length: " + 
+                              valueLength);
+      }
+    }
+      
     public void close() {
       // Release
       dataIn = null;
       buffer = null;
+      pageIn = null;
+      if (pages != null) {
+        pagePool.release(pages);
+        pages = null;
+      }
       
       // Inform the RamManager
       ramManager.unreserve(bufferSize);
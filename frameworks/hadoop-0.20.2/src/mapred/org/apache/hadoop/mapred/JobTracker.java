@@ -2613,6 +2613,18 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     if (addRestartInfo) {
       response.setRecoveredJobs(recoveryManager.getJobsToRecover());
     }
+
+    // Send the task completion events of the jobs the tracker is shuffling
+    // for, so that it need not poll for them
+    for (Map.Entry<JobID, Integer> cursor :
+           status.getMapEventCursors().entrySet()) {
+      JobInProgress job = jobs.get(cursor.getKey());
+      if (job != null && job.inited()) {
+        response.setTaskCompletionEvents(cursor.getKey(), cursor.getValue(),
+            job.getTaskCompletionEvents(cursor.getValue(),
+                                        HEARTBEAT_EVENTS_MAX));
+      }
+    }
         
     // Update the trackerToHeartbeatResponseMap
     trackerToHeartbeatResponseMap.put(trackerName, response);
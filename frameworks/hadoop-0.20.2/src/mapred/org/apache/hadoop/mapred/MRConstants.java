@@ -31,6 +31,12 @@ interface MRConstants {
 
   public static final long COUNTER_UPDATE_INTERVAL = 60 * 1000;
 
+  /**
+   * The maximum number of task completion events of a job sent in a
+   * heartbeat response.
+   */
+  public static final int HEARTBEAT_EVENTS_MAX = 500;
+
   //
   // Result codes
   //
@@ -110,6 +110,17 @@ class MapOutputFile {
                        spillNumber + ".out", size, conf);
   }
 
+  /** Create a local file name for a memory-mapped map output buffer.
+   * @param mapTaskId a map task id
+   * @param size the size of the file
+   */
+  public Path getSortBufferFileForWrite(TaskAttemptID mapTaskId, long size)
+    throws IOException {
+    return lDirAlloc.getLocalPathForWrite(TaskTracker.getIntermediateOutputDir(
+                       jobId.toString(), mapTaskId.toString())
+                       + "/sort.buffer", size, conf);
+  }
+
   /** Return a local map spill index file created earlier
    * @param mapTaskId a map task id
    * @param spillNumber the number
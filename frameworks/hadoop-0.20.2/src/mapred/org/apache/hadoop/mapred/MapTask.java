@@ -30,10 +30,22 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,8 +56,11 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ByteBufferComparator;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.PrefixComparator;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
@@ -691,6 +706,10 @@ class MapTask extends Task {
     private final Class<K> keyClass;
     private final Class<V> valClass;
     private final RawComparator<K> comparator;
+    private final PrefixComparator<K> prefixComparator; // null if disabled
+    private final ByteBufferComparator<K> directComparator; // compares keys
+                                       // in kvsegments; null if on the heap
+                                       // or the comparator can't
     private final SerializationFactory serializationFactory;
     private final Serializer<K> keySerializer;
     private final Serializer<V> valSerializer;
@@ -704,35 +723,79 @@ class MapTask extends Task {
     private volatile int kvstart = 0;  // marks beginning of spill
     private volatile int kvend = 0;    // marks beginning of collectable
     private int kvindex = 0;           // marks end of collected
-    private final int[] kvoffsets;     // indices into kvindices
+    private final int kvcapacity;      // number of records accounted for
+    private final int[] kvoffsets;     // records, in sort order; indices
+                                       // into kvindices / ACCTSIZE
     private final int[] kvindices;     // partition, k/v offsets into kvbuffer
-    private volatile int bufstart = 0; // marks beginning of spill
-    private volatile int bufend = 0;   // marks beginning of collectable
-    private volatile int bufvoid = 0;  // marks the point where we should stop
+    private final long[] kvprefixes;   // partition and key prefix, moved
+                                       // with kvoffsets; null if disabled
+    private ByteBuffer[] kvrecords;    // kvoffsets, kvindices and kvprefixes
+                                       // if off the heap, which are then null
+    private final int kvrecsize;       // bytes per record in kvrecords
+    private final int recordsPerSegment; // records in each of kvrecords
+    private volatile long bufstart = 0; // marks beginning of spill
+    private volatile long bufend = 0;  // marks beginning of collectable
+    private volatile long bufvoid = 0; // marks the point where we should stop
                                        // reading at the end of the buffer
-    private int bufindex = 0;          // marks end of collected
-    private int bufmark = 0;           // marks end of record
-    private byte[] kvbuffer;           // main output buffer
+    private long bufindex = 0;         // marks end of collected
+    private long bufmark = 0;          // marks end of record
+    private byte[] kvbuffer;           // main output buffer, on the heap
+    private ByteBuffer[] kvsegments;   // main output buffer, if off the heap;
+                                       // only the collector may use their
+                                       // positions
+    private final int segmentSize;     // bytes in each of kvsegments
+    private final long bufcapacity;    // length of the main output buffer
+    private Path mappedFile;           // backs kvsegments and kvrecords if
+                                       // they are memory-mapped
     private static final int PARTITION = 0; // partition offset in acct
     private static final int KEYSTART = 1;  // key offset in acct
     private static final int VALSTART = 2;  // val offset in acct
     private static final int ACCTSIZE = 3;  // total #fields in acct
     private static final int RECSIZE =
                        (ACCTSIZE + 1) * 4;  // acct bytes per record
+    private static final int PREFIXSIZE = 8; // kvprefixes bytes per record
+    // layout of a record in kvrecords: the kvoffsets and kvprefixes entries
+    // of that sort position, and the accounting of that record
+    private static final int REC_OFFSET = 0;     // int
+    private static final int REC_PARTITION = 4;  // int
+    private static final int REC_KEYSTART = 8;   // long
+    private static final int REC_VALSTART = 16;  // long
+    private static final int REC_PREFIX = 24;    // long, if enabled
+    private static final int OFFHEAP_RECSIZE = 24; // without the prefix
 
     // spill accounting
     private volatile int numSpills = 0;
     private volatile Throwable sortSpillException = null;
     private final int softRecordLimit;
-    private final int softBufferLimit;
+    private final long softBufferLimit;
     private final int minSpillsForCombine;
     private final IndexedSorter sorter;
     private final ReentrantLock spillLock = new ReentrantLock();
     private final Condition spillDone = spillLock.newCondition();
     private final Condition spillReady = spillLock.newCondition();
     private final BlockingBuffer bb = new BlockingBuffer();
-    private volatile boolean spillThreadRunning = false;
-    private final SpillThread spillThread = new SpillThread();
+    // for keys copied out of an off-heap buffer by compare() and collect()
+    private final InMemValBytes compareKey1 = new InMemValBytes();
+    private final InMemValBytes compareKey2 = new InMemValBytes();
+    private final InMemValBytes collectKey = new InMemValBytes();
+    private volatile int spillThreadsRunning = 0;
+    private final List<SpillThread> spillThreads =
+      new ArrayList<SpillThread>();
+    // unfinished spills, in buffer order; the first starts at kvstart and
+    // the last ends at kvend
+    private final LinkedList<SpillSpan> spills = new LinkedList<SpillSpan>();
+    private final int maxConcurrentSpills;
+    private final int concurrentRecordLimit;
+    private final long concurrentBufferLimit;
+    // sorts and writes the partitions of a spill; null if single-threaded
+    private final ExecutorService partitionPool;
+    private final int partitionThreads;
+    private final ThreadLocal<PartitionSorter> partitionSorters =
+      new ThreadLocal<PartitionSorter>() {
+        protected PartitionSorter initialValue() {
+          return new PartitionSorter();
+        }
+      };
 
     private final FileSystem localFs;
     private final FileSystem rfs;
@@ -768,27 +831,126 @@ class MapTask extends Task {
       if (recper > (float)1.0 || recper < (float)0.01) {
         throw new IOException("Invalid \"io.sort.record.percent\": " + recper);
       }
-      if ((sortmb & 0x7FF) != sortmb) {
+      final boolean mapped = job.getBoolean("io.sort.buffer.mmap", false);
+      final boolean offHeap =
+        mapped || job.getBoolean("io.sort.buffer.direct", false);
+      // off the heap, positions in the buffer are longs and the buffer is
+      // split into segments, so io.sort.mb is not limited to 2047
+      if (offHeap ? sortmb < 0 : (sortmb & 0x7FF) != sortmb) {
         throw new IOException("Invalid \"io.sort.mb\": " + sortmb);
       }
+      segmentSize = job.getInt("io.sort.buffer.segment.size", 1 << 30);
       sorter = ReflectionUtils.newInstance(
             job.getClass("map.sort.class", QuickSort.class, IndexedSorter.class), job);
       LOG.info("io.sort.mb = " + sortmb);
+      comparator = job.getOutputKeyComparator();
+      prefixComparator = job.getBoolean("map.sort.key.prefix", false)
+        ? getPrefixComparator()
+        : null;
       // buffers and accounting
-      int maxMemUsage = sortmb << 20;
-      int recordCapacity = (int)(maxMemUsage * recper);
-      recordCapacity -= recordCapacity % RECSIZE;
-      kvbuffer = new byte[maxMemUsage - recordCapacity];
-      bufvoid = kvbuffer.length;
-      recordCapacity /= RECSIZE;
-      kvoffsets = new int[recordCapacity];
-      kvindices = new int[recordCapacity * ACCTSIZE];
-      softBufferLimit = (int)(kvbuffer.length * spillper);
-      softRecordLimit = (int)(kvoffsets.length * spillper);
-      LOG.info("data buffer = " + softBufferLimit + "/" + kvbuffer.length);
-      LOG.info("record buffer = " + softRecordLimit + "/" + kvoffsets.length);
+      final int recordSize;
+      if (offHeap) {
+        recordSize = (prefixComparator != null)
+          ? OFFHEAP_RECSIZE + PREFIXSIZE
+          : OFFHEAP_RECSIZE;
+        if (segmentSize < recordSize) {
+          throw new IOException("Invalid \"io.sort.buffer.segment.size\": " +
+                                segmentSize);
+        }
+      } else {
+        recordSize = (prefixComparator != null)
+          ? RECSIZE + PREFIXSIZE
+          : RECSIZE;
+      }
+      final long maxMemUsage = (long)sortmb << 20;
+      // sort positions run up to twice the number of records
+      final int recordCapacity = (int)Math.min(
+          (long)(maxMemUsage * recper) / recordSize, Integer.MAX_VALUE / 2);
+      bufcapacity = maxMemUsage - (long)recordCapacity * recordSize;
+      kvcapacity = recordCapacity;
+      if (offHeap) {
+        // outside the heap, so the garbage collector never scans or copies
+        // them
+        kvrecsize = recordSize;
+        recordsPerSegment = segmentSize / recordSize;
+        FileChannel channel = null;
+        if (mapped) {
+          final long recordBytes = (long)recordCapacity * recordSize;
+          mappedFile = mapOutputFile.getSortBufferFileForWrite(getTaskID(),
+              bufcapacity + recordBytes);
+          channel = new RandomAccessFile(
+              ((LocalFileSystem)localFs).pathToFile(mappedFile), "rw"
+              ).getChannel();
+        }
+        try {
+          kvsegments = allocateSegments(channel, 0, bufcapacity, segmentSize);
+          kvrecords = allocateSegments(channel, bufcapacity,
+              (long)recordCapacity * recordSize,
+              recordsPerSegment * recordSize);
+        } finally {
+          // the mappings stay valid once the file is closed
+          if (channel != null) channel.close();
+        }
+        for (ByteBuffer segment : kvrecords) {
+          segment.order(ByteOrder.nativeOrder());
+        }
+        kvoffsets = null;
+        kvindices = null;
+        kvprefixes = null;
+        directComparator = getDirectComparator(comparator);
+        if (directComparator == null) {
+          LOG.info("Copying keys out of the off-heap buffer to compare them: "
+                   + comparator.getClass().getName() +
+                   " cannot compare ByteBuffers");
+        }
+      } else {
+        kvbuffer = new byte[(int)bufcapacity];
+        kvrecsize = 0;
+        recordsPerSegment = 0;
+        kvoffsets = new int[recordCapacity];
+        kvindices = new int[recordCapacity * ACCTSIZE];
+        kvprefixes = (prefixComparator != null)
+          ? new long[recordCapacity]
+          : null;
+        directComparator = null;
+      }
+      bufvoid = bufcapacity;
+      softBufferLimit = (long)(bufcapacity * spillper);
+      softRecordLimit = (int)(kvcapacity * spillper);
+      LOG.info("data buffer = " + softBufferLimit + "/" + bufcapacity +
+               (kvsegments == null ? ""
+                : mapped ? " (mapped)" : " (direct)"));
+      LOG.info("record buffer = " + softRecordLimit + "/" + kvcapacity);
+      // spill parallelism
+      maxConcurrentSpills = job.getInt("io.sort.spill.concurrent", 1);
+      partitionThreads = job.getInt("io.sort.spill.threads", 1);
+      if (maxConcurrentSpills < 1) {
+        throw new IOException("Invalid \"io.sort.spill.concurrent\": " +
+                              maxConcurrentSpills);
+      }
+      if (partitionThreads < 1) {
+        throw new IOException("Invalid \"io.sort.spill.threads\": " +
+                              partitionThreads);
+      }
+      concurrentBufferLimit = softBufferLimit / maxConcurrentSpills;
+      concurrentRecordLimit = softRecordLimit / maxConcurrentSpills;
+      if (partitionThreads > 1 && partitions > 1) {
+        LOG.info("spill threads = " + maxConcurrentSpills +
+                 "; partition threads = " + partitionThreads);
+        partitionPool = Executors.newFixedThreadPool(partitionThreads,
+            new ThreadFactory() {
+              private int count = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SpillPartitionThread #" +
+                                           count++);
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+      } else {
+        partitionPool = null;
+      }
       // k/v serialization
-      comparator = job.getOutputKeyComparator();
       keyClass = (Class<K>)job.getMapOutputKeyClass();
       valClass = (Class<V>)job.getMapOutputValueClass();
       serializationFactory = new SerializationFactory(job);
@@ -818,12 +980,17 @@ class MapTask extends Task {
         combineCollector = null;
       }
       minSpillsForCombine = job.getInt("min.num.spills.for.combine", 3);
-      spillThread.setDaemon(true);
-      spillThread.setName("SpillThread");
       spillLock.lock();
       try {
-        spillThread.start();
-        while (!spillThreadRunning) {
+        for (int i = 0; i < maxConcurrentSpills; ++i) {
+          SpillThread spillThread = new SpillThread();
+          spillThread.setDaemon(true);
+          spillThread.setName(maxConcurrentSpills == 1
+                              ? "SpillThread" : "SpillThread #" + i);
+          spillThreads.add(spillThread);
+          spillThread.start();
+        }
+        while (spillThreadsRunning < maxConcurrentSpills) {
           spillDone.await();
         }
       } catch (InterruptedException e) {
@@ -851,7 +1018,7 @@ class MapTask extends Task {
                               + valClass.getName() + ", recieved "
                               + value.getClass().getName());
       }
-      final int kvnext = (kvindex + 1) % kvoffsets.length;
+      final int kvnext = (kvindex + 1) % kvcapacity;
       spillLock.lock();
       try {
         boolean kvfull;
@@ -862,16 +1029,25 @@ class MapTask extends Task {
           }
           // sufficient acct space
           kvfull = kvnext == kvstart;
-          final boolean kvsoftlimit = ((kvnext > kvend)
-              ? kvnext - kvend > softRecordLimit
-              : kvend - kvnext <= kvoffsets.length - softRecordLimit);
-          if (kvstart == kvend && kvsoftlimit) {
-            LOG.info("Spilling map output: record full = " + kvsoftlimit);
-            startSpill();
+          if (spills.size() < maxConcurrentSpills && kvend != kvindex) {
+            // while other spills are running, spill smaller chunks so the
+            // next spill starts before the buffer fills up
+            final int recordLimit = (kvstart == kvend)
+              ? softRecordLimit
+              : concurrentRecordLimit;
+            final boolean kvsoftlimit = ((kvnext > kvend)
+                ? kvnext - kvend > recordLimit
+                : kvend - kvnext <= kvcapacity - recordLimit);
+            if (kvsoftlimit || kvfull) {
+              LOG.info("Spilling map output: record full = " + kvsoftlimit);
+              startSpill();
+            }
           }
           if (kvfull) {
             try {
-              while (kvstart != kvend) {
+              // wait for the oldest spill to free its records
+              final int oldstart = kvstart;
+              while (kvstart != kvend && kvstart == oldstart) {
                 reporter.progress();
                 spillDone.await();
               }
@@ -888,7 +1064,7 @@ class MapTask extends Task {
 
       try {
         // serialize key bytes into buffer
-        int keystart = bufindex;
+        long keystart = bufindex;
         keySerializer.serialize(key);
         if (bufindex < keystart) {
           // wrapped the key; reset required
@@ -896,9 +1072,9 @@ class MapTask extends Task {
           keystart = 0;
         }
         // serialize value bytes into buffer
-        final int valstart = bufindex;
+        final long valstart = bufindex;
         valSerializer.serialize(value);
-        int valend = bb.markRecord();
+        long valend = bb.markRecord();
 
         if (partition < 0 || partition >= partitions) {
           throw new IOException("Illegal partition for " + key + " (" +
@@ -911,11 +1087,12 @@ class MapTask extends Task {
             : (bufvoid - keystart) + valend);
 
         // update accounting info
-        int ind = kvindex * ACCTSIZE;
-        kvoffsets[kvindex] = ind;
-        kvindices[ind + PARTITION] = partition;
-        kvindices[ind + KEYSTART] = keystart;
-        kvindices[ind + VALSTART] = valstart;
+        putRecord(kvindex, partition, keystart, valstart);
+        if (prefixComparator != null) {
+          final int prefix = getKeyPrefix(keystart, (int)(valstart - keystart));
+          putPrefix(kvindex, ((long)partition << 32) |
+                             ((prefix ^ Integer.MIN_VALUE) & 0xFFFFFFFFL));
+        }
         kvindex = kvnext;
       } catch (MapBufferTooSmallException e) {
         LOG.info("Record too large for in-memory buffer: " + e.getMessage());
@@ -932,19 +1109,229 @@ class MapTask extends Task {
      * @see IndexedSortable#compare
      */
     public int compare(int i, int j) {
-      final int ii = kvoffsets[i % kvoffsets.length];
-      final int ij = kvoffsets[j % kvoffsets.length];
+      if (prefixComparator != null) {
+        final int prefixOrder = comparePrefixes(i, j);
+        if (prefixOrder != 0) {
+          return prefixOrder;
+        }
+      }
+      final int ii = getOffset(i);
+      final int ij = getOffset(j);
       // sort by partition
-      if (kvindices[ii + PARTITION] != kvindices[ij + PARTITION]) {
-        return kvindices[ii + PARTITION] - kvindices[ij + PARTITION];
+      final int pi = getPartition(ii);
+      final int pj = getPartition(ij);
+      if (pi != pj) {
+        return pi - pj;
       }
       // sort by key
-      return comparator.compare(kvbuffer,
-          kvindices[ii + KEYSTART],
-          kvindices[ii + VALSTART] - kvindices[ii + KEYSTART],
-          kvbuffer,
-          kvindices[ij + KEYSTART],
-          kvindices[ij + VALSTART] - kvindices[ij + KEYSTART]);
+      return compareKeys(comparator, directComparator, ii, ij,
+                         compareKey1, compareKey2);
+    }
+
+    /**
+     * Compares the keys of the given records. The keys of an off-heap
+     * buffer are compared in place if there is a ByteBufferComparator and
+     * neither key spans two segments, and are otherwise first copied into
+     * the given InMemValBytes, which belong to the calling thread.
+     */
+    private int compareKeys(RawComparator<K> keyComparator,
+                            ByteBufferComparator<K> directKeyComparator,
+                            int ii, int ij,
+                            InMemValBytes key1, InMemValBytes key2) {
+      final long istart = getKeyStart(ii);
+      final int ilen = (int)(getValStart(ii) - istart);
+      final long jstart = getKeyStart(ij);
+      final int jlen = (int)(getValStart(ij) - jstart);
+      if (kvsegments == null) {
+        return keyComparator.compare(kvbuffer, (int)istart, ilen,
+                                     kvbuffer, (int)jstart, jlen);
+      }
+      if (directKeyComparator != null) {
+        // keys never wrap around the end of the buffer
+        final int iseg = (int)(istart / segmentSize);
+        final int ipos = (int)(istart % segmentSize);
+        final int jseg = (int)(jstart / segmentSize);
+        final int jpos = (int)(jstart % segmentSize);
+        if (ipos + ilen <= segmentSize && iseg < kvsegments.length &&
+            jpos + jlen <= segmentSize && jseg < kvsegments.length) {
+          return directKeyComparator.compare(kvsegments[iseg], ipos, ilen,
+                                             kvsegments[jseg], jpos, jlen);
+        }
+      }
+      key1.reset(istart, ilen);
+      key2.reset(jstart, jlen);
+      return keyComparator.compare(key1.getData(), key1.getPosition(), ilen,
+                                   key2.getData(), key2.getPosition(), jlen);
+    }
+
+    /**
+     * Returns the prefix of a key just collected. Called by the collector.
+     */
+    private int getKeyPrefix(long keystart, int keylen) {
+      if (kvsegments == null) {
+        return prefixComparator.getPrefix(kvbuffer, (int)keystart, keylen);
+      }
+      collectKey.reset(keystart, keylen);
+      return prefixComparator.getPrefix(collectKey.getData(),
+                                        collectKey.getPosition(), keylen);
+    }
+
+    /**
+     * Copies bytes into the main output buffer. Called by the collector.
+     */
+    private void putBytes(byte[] b, int off, long pos, int len) {
+      if (kvsegments == null) {
+        System.arraycopy(b, off, kvbuffer, (int)pos, len);
+        return;
+      }
+      while (len > 0) {
+        final ByteBuffer segment = kvsegments[(int)(pos / segmentSize)];
+        final int segpos = (int)(pos % segmentSize);
+        final int n = Math.min(len, segmentSize - segpos);
+        segment.position(segpos);
+        segment.put(b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Copies bytes out of the main output buffer. Called by the collector.
+     */
+    private void getBytes(long pos, byte[] b, int off, int len) {
+      if (kvsegments == null) {
+        System.arraycopy(kvbuffer, (int)pos, b, off, len);
+      } else {
+        getBytes(kvsegments, pos, b, off, len);
+      }
+    }
+
+    /**
+     * Copies bytes out of the given segments of an off-heap buffer, which
+     * are kvsegments or duplicates of them, moving their positions.
+     */
+    private void getBytes(ByteBuffer[] segments, long pos, byte[] b, int off,
+                          int len) {
+      while (len > 0) {
+        final ByteBuffer segment = segments[(int)(pos / segmentSize)];
+        final int segpos = (int)(pos % segmentSize);
+        final int n = Math.min(len, segmentSize - segpos);
+        segment.position(segpos);
+        segment.get(b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Allocates size bytes outside the heap, in segments of at most
+     * segmentBytes each: mapped from the given channel starting at
+     * position, or in direct memory if the channel is null.
+     */
+    private ByteBuffer[] allocateSegments(FileChannel channel, long position,
+                                          long size, int segmentBytes)
+        throws IOException {
+      final ByteBuffer[] segments =
+        new ByteBuffer[(int)((size + segmentBytes - 1) / segmentBytes)];
+      for (int i = 0; i < segments.length; ++i) {
+        final int length =
+          (int)Math.min(segmentBytes, size - (long)i * segmentBytes);
+        segments[i] = (channel != null)
+          ? channel.map(FileChannel.MapMode.READ_WRITE,
+                        position + (long)i * segmentBytes, length)
+          : ByteBuffer.allocateDirect(length);
+      }
+      return segments;
+    }
+
+    /**
+     * Returns the segment of kvrecords holding the given record.
+     */
+    private ByteBuffer recordSegment(int rec) {
+      return kvrecords[rec / recordsPerSegment];
+    }
+
+    /**
+     * Returns the position of the given record in its segment of kvrecords.
+     */
+    private int recordPosition(int rec) {
+      return (rec % recordsPerSegment) * kvrecsize;
+    }
+
+    /**
+     * Returns the record at logical position i MOD offset capacity.
+     */
+    private int getOffset(int i) {
+      i %= kvcapacity;
+      if (kvrecords == null) {
+        return kvoffsets[i];
+      }
+      return recordSegment(i).getInt(recordPosition(i) + REC_OFFSET);
+    }
+
+    /**
+     * Records a record just collected, at logical position kvindex.
+     * Called by the collector.
+     */
+    private void putRecord(int kvindex, int partition, long keystart,
+                           long valstart) {
+      if (kvrecords == null) {
+        final int ind = kvindex * ACCTSIZE;
+        kvoffsets[kvindex] = kvindex;
+        kvindices[ind + PARTITION] = partition;
+        kvindices[ind + KEYSTART] = (int)keystart;
+        kvindices[ind + VALSTART] = (int)valstart;
+      } else {
+        final ByteBuffer segment = recordSegment(kvindex);
+        final int pos = recordPosition(kvindex);
+        segment.putInt(pos + REC_OFFSET, kvindex);
+        segment.putInt(pos + REC_PARTITION, partition);
+        segment.putLong(pos + REC_KEYSTART, keystart);
+        segment.putLong(pos + REC_VALSTART, valstart);
+      }
+    }
+
+    private int getPartition(int rec) {
+      if (kvrecords == null) {
+        return kvindices[rec * ACCTSIZE + PARTITION];
+      }
+      return recordSegment(rec).getInt(recordPosition(rec) + REC_PARTITION);
+    }
+
+    private long getKeyStart(int rec) {
+      if (kvrecords == null) {
+        return kvindices[rec * ACCTSIZE + KEYSTART];
+      }
+      return recordSegment(rec).getLong(recordPosition(rec) + REC_KEYSTART);
+    }
+
+    private long getValStart(int rec) {
+      if (kvrecords == null) {
+        return kvindices[rec * ACCTSIZE + VALSTART];
+      }
+      return recordSegment(rec).getLong(recordPosition(rec) + REC_VALSTART);
+    }
+
+    /**
+     * Returns the partition and key prefix at logical position i MOD
+     * offset capacity. Requires prefixes.
+     */
+    private long getPrefix(int i) {
+      i %= kvcapacity;
+      if (kvrecords == null) {
+        return kvprefixes[i];
+      }
+      return recordSegment(i).getLong(recordPosition(i) + REC_PREFIX);
+    }
+
+    private void putPrefix(int i, long prefix) {
+      if (kvrecords == null) {
+        kvprefixes[i] = prefix;
+      } else {
+        recordSegment(i).putLong(recordPosition(i) + REC_PREFIX, prefix);
+      }
     }
 
     /**
@@ -952,11 +1339,98 @@ class MapTask extends Task {
      * @see IndexedSortable#swap
      */
     public void swap(int i, int j) {
-      i %= kvoffsets.length;
-      j %= kvoffsets.length;
-      int tmp = kvoffsets[i];
-      kvoffsets[i] = kvoffsets[j];
-      kvoffsets[j] = tmp;
+      i %= kvcapacity;
+      j %= kvcapacity;
+      if (kvrecords == null) {
+        int tmp = kvoffsets[i];
+        kvoffsets[i] = kvoffsets[j];
+        kvoffsets[j] = tmp;
+        if (kvprefixes != null) {
+          long prefix = kvprefixes[i];
+          kvprefixes[i] = kvprefixes[j];
+          kvprefixes[j] = prefix;
+        }
+        return;
+      }
+      final ByteBuffer iseg = recordSegment(i);
+      final int ipos = recordPosition(i);
+      final ByteBuffer jseg = recordSegment(j);
+      final int jpos = recordPosition(j);
+      final int tmp = iseg.getInt(ipos + REC_OFFSET);
+      iseg.putInt(ipos + REC_OFFSET, jseg.getInt(jpos + REC_OFFSET));
+      jseg.putInt(jpos + REC_OFFSET, tmp);
+      if (prefixComparator != null) {
+        final long prefix = iseg.getLong(ipos + REC_PREFIX);
+        iseg.putLong(ipos + REC_PREFIX, jseg.getLong(jpos + REC_PREFIX));
+        jseg.putLong(jpos + REC_PREFIX, prefix);
+      }
+    }
+
+    /**
+     * Compare logical range, st i, j MOD offset capacity, by partition
+     * and key prefix. Records that are equal here must be compared with
+     * the key comparator. Requires prefixes.
+     */
+    private int comparePrefixes(int i, int j) {
+      final long pi = getPrefix(i);
+      final long pj = getPrefix(j);
+      return (pi < pj) ? -1 : ((pi == pj) ? 0 : 1);
+    }
+
+    /**
+     * Returns the key comparator as a PrefixComparator if it is one, and
+     * if its getPrefix is defined by the same class as its raw compare,
+     * so that a subclass that changes the order but not the prefix isn't
+     * used. Returns null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private PrefixComparator<K> getPrefixComparator() {
+      if (comparator instanceof PrefixComparator) {
+        try {
+          Class<?> c = comparator.getClass();
+          Method getPrefix = c.getMethod("getPrefix",
+              byte[].class, int.class, int.class);
+          Method compare = c.getMethod("compare",
+              byte[].class, int.class, int.class,
+              byte[].class, int.class, int.class);
+          if (getPrefix.getDeclaringClass() == compare.getDeclaringClass()) {
+            LOG.info("Sorting with key prefixes from " + c.getName());
+            return (PrefixComparator<K>) comparator;
+          }
+        } catch (NoSuchMethodException e) {
+          // not expected of a PrefixComparator; fall through
+        }
+      }
+      LOG.info("Not sorting with key prefixes: " +
+               comparator.getClass().getName() + " does not provide them");
+      return null;
+    }
+
+    /**
+     * Returns a key comparator as a ByteBufferComparator if it is one, and
+     * if its ByteBuffer compare is defined by the same class as its raw
+     * compare (as for getPrefixComparator). Returns null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private ByteBufferComparator<K> getDirectComparator(
+        RawComparator<K> keyComparator) {
+      if (keyComparator instanceof ByteBufferComparator) {
+        try {
+          Class<?> c = keyComparator.getClass();
+          Method direct = c.getMethod("compare",
+              ByteBuffer.class, int.class, int.class,
+              ByteBuffer.class, int.class, int.class);
+          Method compare = c.getMethod("compare",
+              byte[].class, int.class, int.class,
+              byte[].class, int.class, int.class);
+          if (direct.getDeclaringClass() == compare.getDeclaringClass()) {
+            return (ByteBufferComparator<K>) keyComparator;
+          }
+        } catch (NoSuchMethodException e) {
+          // not expected of a ByteBufferComparator; fall through
+        }
+      }
+      return null;
     }
 
     /**
@@ -976,7 +1450,7 @@ class MapTask extends Task {
        * Mark end of record. Note that this is required if the buffer is to
        * cut the spill in the proper place.
        */
-      public int markRecord() {
+      public long markRecord() {
         bufmark = bufindex;
         return bufindex;
       }
@@ -999,17 +1473,29 @@ class MapTask extends Task {
         // a stale value for bufstart does not affect correctness, since
         // we can only get false negatives that force the more
         // conservative path
-        int headbytelen = bufvoid - bufmark;
+        // the key began headbytelen bytes before the end of the buffer, and
+        // its remaining bytes are at its beginning, up to bufindex
+        int headbytelen = (int)(bufvoid - bufmark);
+        final int taillen = (int)bufindex;
         bufvoid = bufmark;
         if (bufindex + headbytelen < bufstart) {
-          System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, bufindex);
-          System.arraycopy(kvbuffer, bufvoid, kvbuffer, 0, headbytelen);
+          if (kvsegments == null) {
+            System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, taillen);
+            System.arraycopy(kvbuffer, (int)bufvoid, kvbuffer, 0, headbytelen);
+          } else {
+            byte[] keytmp = new byte[headbytelen + taillen];
+            getBytes(bufvoid, keytmp, 0, headbytelen);
+            getBytes(0, keytmp, headbytelen, taillen);
+            putBytes(keytmp, 0, 0, keytmp.length);
+          }
           bufindex += headbytelen;
         } else {
-          byte[] keytmp = new byte[bufindex];
-          System.arraycopy(kvbuffer, 0, keytmp, 0, bufindex);
+          byte[] keytmp = new byte[taillen];
+          getBytes(0, keytmp, 0, taillen);
+          byte[] headtmp = new byte[headbytelen];
+          getBytes(bufmark, headtmp, 0, headbytelen);
           bufindex = 0;
-          out.write(kvbuffer, bufmark, headbytelen);
+          out.write(headtmp);
           out.write(keytmp);
         }
       }
@@ -1056,34 +1542,38 @@ class MapTask extends Task {
               buffull = bufindex + len > bufstart;
             }
 
-            if (kvstart == kvend) {
-              // spill thread not running
-              if (kvend != kvindex) {
-                // we have records we can spill
-                final boolean bufsoftlimit = (bufindex > bufend)
-                  ? bufindex - bufend > softBufferLimit
-                  : bufend - bufindex < bufvoid - softBufferLimit;
-                if (bufsoftlimit || (buffull && !wrap)) {
-                  LOG.info("Spilling map output: buffer full= " + bufsoftlimit);
-                  startSpill();
-                }
-              } else if (buffull && !wrap) {
-                // We have no buffered records, and this record is too large
-                // to write into kvbuffer. We must spill it directly from
-                // collect
-                final int size = ((bufend <= bufindex)
-                  ? bufindex - bufend
-                  : (bufvoid - bufend) + bufindex) + len;
-                bufstart = bufend = bufindex = bufmark = 0;
-                kvstart = kvend = kvindex = 0;
-                bufvoid = kvbuffer.length;
-                throw new MapBufferTooSmallException(size + " bytes");
+            if (kvend != kvindex &&
+                spills.size() < maxConcurrentSpills) {
+              // we have records we can spill, and a spill thread to do it
+              final long bufferLimit = (kvstart == kvend)
+                ? softBufferLimit
+                : concurrentBufferLimit;
+              final boolean bufsoftlimit = (bufindex > bufend)
+                ? bufindex - bufend > bufferLimit
+                : bufend - bufindex < bufvoid - bufferLimit;
+              if (bufsoftlimit || (buffull && !wrap)) {
+                LOG.info("Spilling map output: buffer full= " + bufsoftlimit);
+                startSpill();
               }
+            } else if (kvstart == kvend && kvend == kvindex &&
+                       buffull && !wrap) {
+              // We have no buffered records, and this record is too large
+              // to write into kvbuffer. We must spill it directly from
+              // collect
+              final long size = ((bufend <= bufindex)
+                ? bufindex - bufend
+                : (bufvoid - bufend) + bufindex) + len;
+              bufstart = bufend = bufindex = bufmark = 0;
+              kvstart = kvend = kvindex = 0;
+              bufvoid = bufcapacity;
+              throw new MapBufferTooSmallException(size + " bytes");
             }
 
             if (buffull && !wrap) {
               try {
-                while (kvstart != kvend) {
+                // wait for the oldest spill to free its part of the buffer
+                final int oldstart = kvstart;
+                while (kvstart != kvend && kvstart == oldstart) {
                   reporter.progress();
                   spillDone.await();
                 }
@@ -1099,13 +1589,13 @@ class MapTask extends Task {
         }
         // here, we know that we have sufficient space to write
         if (buffull) {
-          final int gaplen = bufvoid - bufindex;
-          System.arraycopy(b, off, kvbuffer, bufindex, gaplen);
+          final int gaplen = (int)(bufvoid - bufindex);
+          putBytes(b, off, bufindex, gaplen);
           len -= gaplen;
           off += gaplen;
           bufindex = 0;
         }
-        System.arraycopy(b, off, kvbuffer, bufindex, len);
+        putBytes(b, off, bufindex, len);
         bufindex += len;
       }
     }
@@ -1124,9 +1614,11 @@ class MapTask extends Task {
               ).initCause(sortSpillException);
         }
         if (kvend != kvindex) {
+          final SpillSpan span =
+            new SpillSpan(numSpills++, kvend, kvindex, bufend, bufmark);
           kvend = kvindex;
           bufend = bufmark;
-          sortAndSpill();
+          sortAndSpill(span);
         }
       } catch (InterruptedException e) {
         throw (IOException)new IOException(
@@ -1136,21 +1628,32 @@ class MapTask extends Task {
         spillLock.unlock();
       }
       assert !spillLock.isHeldByCurrentThread();
-      // shut down spill thread and wait for it to exit. Since the preceding
-      // ensures that it is finished with its work (and sortAndSpill did not
-      // throw), we elect to use an interrupt instead of setting a flag.
-      // Spilling simultaneously from this thread while the spill thread
-      // finishes its work might be both a useful way to extend this and also
-      // sufficient motivation for the latter approach.
+      // shut down spill threads and wait for them to exit. Since the
+      // preceding ensures that they are finished with their work (and
+      // sortAndSpill did not throw), we elect to use an interrupt instead
+      // of setting a flag.
       try {
-        spillThread.interrupt();
-        spillThread.join();
+        for (SpillThread spillThread : spillThreads) {
+          spillThread.interrupt();
+        }
+        for (SpillThread spillThread : spillThreads) {
+          spillThread.join();
+        }
       } catch (InterruptedException e) {
         throw (IOException)new IOException("Spill failed"
             ).initCause(e);
+      } finally {
+        if (partitionPool != null) {
+          partitionPool.shutdown();
+        }
       }
       // release sort buffer before the merge
       kvbuffer = null;
+      kvsegments = null;
+      kvrecords = null;
+      if (mappedFile != null) {
+        rfs.delete(mappedFile, false);
+      }
       mergeParts();
     }
 
@@ -1161,16 +1664,18 @@ class MapTask extends Task {
       @Override
       public void run() {
         spillLock.lock();
-        spillThreadRunning = true;
+        ++spillThreadsRunning;
         try {
           while (true) {
-            spillDone.signal();
-            while (kvstart == kvend) {
+            spillDone.signalAll();
+            SpillSpan span;
+            while ((span = nextSpill()) == null) {
               spillReady.await();
             }
+            span.started = true;
             try {
               spillLock.unlock();
-              sortAndSpill();
+              sortAndSpill(span);
             } catch (Exception e) {
               sortSpillException = e;
             } catch (Throwable t) {
@@ -1180,122 +1685,435 @@ class MapTask extends Task {
               reportFatalError(getTaskID(), t, logMsg);
             } finally {
               spillLock.lock();
-              if (bufend < bufindex && bufindex < bufstart) {
-                bufvoid = kvbuffer.length;
-              }
-              kvstart = kvend;
-              bufstart = bufend;
+              span.done = true;
+              releaseSpills();
             }
           }
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt();
         } finally {
+          --spillThreadsRunning;
           spillLock.unlock();
-          spillThreadRunning = false;
         }
       }
     }
 
+    /**
+     * A range of records, and their serialized bytes, to be spilled
+     * together into one spill file.
+     */
+    private class SpillSpan {
+      final int spillNumber;
+      final int kvstart;
+      final int kvend;
+      final long bufstart;
+      final long bufend;
+      boolean started = false;
+      boolean done = false;
+
+      SpillSpan(int spillNumber, int kvstart, int kvend,
+                long bufstart, long bufend) {
+        this.spillNumber = spillNumber;
+        this.kvstart = kvstart;
+        this.kvend = kvend;
+        this.bufstart = bufstart;
+        this.bufend = bufend;
+      }
+    }
+
+    /**
+     * Returns the oldest spill no spill thread has started on, if any.
+     * Assumes spillLock is held.
+     */
+    private SpillSpan nextSpill() {
+      for (SpillSpan span : spills) {
+        if (!span.started) {
+          return span;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Frees the records and buffer space of the spills at the head of
+     * the queue that have finished. Spills may finish out of order, but
+     * the space is released in buffer order. Assumes spillLock is held.
+     */
+    private void releaseSpills() {
+      while (!spills.isEmpty() && spills.getFirst().done) {
+        final SpillSpan span = spills.removeFirst();
+        if (span.bufend < bufindex && bufindex < bufstart) {
+          bufvoid = bufcapacity;
+        }
+        kvstart = span.kvend;
+        bufstart = span.bufend;
+      }
+    }
+
     private synchronized void startSpill() {
-      LOG.info("bufstart = " + bufstart + "; bufend = " + bufmark +
+      LOG.info("bufstart = " + bufend + "; bufend = " + bufmark +
                "; bufvoid = " + bufvoid);
-      LOG.info("kvstart = " + kvstart + "; kvend = " + kvindex +
-               "; length = " + kvoffsets.length);
+      LOG.info("kvstart = " + kvend + "; kvend = " + kvindex +
+               "; length = " + kvcapacity);
+      spills.add(new SpillSpan(numSpills++, kvend, kvindex, bufend, bufmark));
       kvend = kvindex;
       bufend = bufmark;
       spillReady.signal();
     }
 
-    private void sortAndSpill() throws IOException, ClassNotFoundException,
-                                       InterruptedException {
+    private void sortAndSpill(SpillSpan span) throws IOException,
+                                                     ClassNotFoundException,
+                                                     InterruptedException {
       //approximate the length of the output file to be the length of the
       //buffer + header lengths for the partitions
-      long size = (bufend >= bufstart
-          ? bufend - bufstart
-          : (bufvoid - bufend) + bufstart) +
+      long size = (span.bufend >= span.bufstart
+          ? span.bufend - span.bufstart
+          : (bufvoid - span.bufend) + span.bufstart) +
                   partitions * APPROX_HEADER_LENGTH;
       FSDataOutputStream out = null;
       try {
         // create spill file
         final SpillRecord spillRec = new SpillRecord(partitions);
         final Path filename = mapOutputFile.getSpillFileForWrite(getTaskID(),
-            numSpills, size);
+            span.spillNumber, size);
         out = rfs.create(filename);
 
-        final int endPosition = (kvend > kvstart)
-          ? kvend
-          : kvoffsets.length + kvend;
-        sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
-        int spindex = kvstart;
-        IndexRecord rec = new IndexRecord();
-        InMemValBytes value = new InMemValBytes();
-        for (int i = 0; i < partitions; ++i) {
-          IFile.Writer<K, V> writer = null;
-          try {
-            long segmentStart = out.getPos();
-            writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
-                                      spilledRecordsCounter);
-            if (combinerRunner == null) {
-              // spill directly
-              DataInputBuffer key = new DataInputBuffer();
-              while (spindex < endPosition &&
-                  kvindices[kvoffsets[spindex % kvoffsets.length]
-                            + PARTITION] == i) {
-                final int kvoff = kvoffsets[spindex % kvoffsets.length];
-                getVBytesForOffset(kvoff, value);
-                key.reset(kvbuffer, kvindices[kvoff + KEYSTART],
-                          (kvindices[kvoff + VALSTART] - 
-                           kvindices[kvoff + KEYSTART]));
-                writer.append(key, value);
-                ++spindex;
-              }
-            } else {
-              int spstart = spindex;
-              while (spindex < endPosition &&
-                  kvindices[kvoffsets[spindex % kvoffsets.length]
-                            + PARTITION] == i) {
-                ++spindex;
-              }
-              // Note: we would like to avoid the combiner if we've fewer
-              // than some threshold of records for a partition
-              if (spstart != spindex) {
-                combineCollector.setWriter(writer);
-                RawKeyValueIterator kvIter =
-                  new MRResultIterator(spstart, spindex);
-                combinerRunner.combine(kvIter, combineCollector);
+        final int endPosition = (span.kvend > span.kvstart)
+          ? span.kvend
+          : kvcapacity + span.kvend;
+        if (partitionPool != null && combinerRunner == null) {
+          writePartitions(span, endPosition, out, spillRec);
+        } else {
+          if (partitionPool == null && maxConcurrentSpills == 1) {
+            sorter.sort(MapOutputBuffer.this, span.kvstart, endPosition,
+                        reporter);
+          } else {
+            sortPartitions(span.kvstart, endPosition);
+          }
+          int spindex = span.kvstart;
+          IndexRecord rec = new IndexRecord();
+          InMemValBytes value = new InMemValBytes();
+          for (int i = 0; i < partitions; ++i) {
+            IFile.Writer<K, V> writer = null;
+            try {
+              long segmentStart = out.getPos();
+              writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
+                                        spilledRecordsCounter);
+              if (combinerRunner == null) {
+                // spill directly
+                InMemValBytes key = new InMemValBytes();
+                while (spindex < endPosition &&
+                    getPartition(getOffset(spindex)) == i) {
+                  final int kvoff = getOffset(spindex);
+                  getVBytesForOffset(span, kvoff, value);
+                  key.reset(getKeyStart(kvoff),
+                            (int)(getValStart(kvoff) - getKeyStart(kvoff)));
+                  writer.append(key, value);
+                  ++spindex;
+                }
+              } else {
+                int spstart = spindex;
+                while (spindex < endPosition &&
+                    getPartition(getOffset(spindex)) == i) {
+                  ++spindex;
+                }
+                // Note: we would like to avoid the combiner if we've fewer
+                // than some threshold of records for a partition
+                if (spstart != spindex) {
+                  RawKeyValueIterator kvIter =
+                    new MRResultIterator(span, spstart, spindex);
+                  // the combiner is shared by all the spill threads
+                  synchronized (combinerRunner) {
+                    combineCollector.setWriter(writer);
+                    combinerRunner.combine(kvIter, combineCollector);
+                  }
+                }
               }
+
+              // close the writer
+              writer.close();
+
+              // record offsets
+              rec.startOffset = segmentStart;
+              rec.rawLength = writer.getRawLength();
+              rec.partLength = writer.getCompressedLength();
+              spillRec.putIndex(rec, i);
+
+              writer = null;
+            } finally {
+              if (null != writer) writer.close();
             }
+          }
+        }
 
-            // close the writer
-            writer.close();
+        cacheSpillIndex(span.spillNumber, spillRec);
+        LOG.info("Finished spill " + span.spillNumber);
+      } finally {
+        if (out != null) out.close();
+      }
+    }
 
-            // record offsets
-            rec.startOffset = segmentStart;
-            rec.rawLength = writer.getRawLength();
-            rec.partLength = writer.getCompressedLength();
-            spillRec.putIndex(rec, i);
+    /**
+     * Reorders the records in [start, end) in place so that the records of
+     * each partition are contiguous and in partition order. Returns the
+     * bounds of the partitions: the records of partition p are
+     * [bounds[p], bounds[p + 1]).
+     */
+    private int[] groupByPartition(int start, int end) {
+      final int[] bounds = new int[partitions + 1];
+      for (int i = start; i < end; ++i) {
+        ++bounds[getPartition(getOffset(i)) + 1];
+      }
+      bounds[0] = start;
+      for (int p = 0; p < partitions; ++p) {
+        bounds[p + 1] += bounds[p];
+      }
+      // swap each record into the next free place of its partition
+      final int[] next = bounds.clone();
+      for (int p = 0; p < partitions; ++p) {
+        while (next[p] < bounds[p + 1]) {
+          final int q = getPartition(getOffset(next[p]));
+          if (q == p) {
+            ++next[p];
+          } else {
+            swap(next[p], next[q]++);
+          }
+        }
+      }
+      return bounds;
+    }
 
-            writer = null;
-          } finally {
-            if (null != writer) writer.close();
+    /**
+     * Sorts the records in [start, end) by partition and then by key,
+     * sorting the partitions in parallel if there is a partitionPool.
+     * Unlike sorting with compare(), this may be called from several
+     * spill threads at once.
+     */
+    private void sortPartitions(int start, int end)
+        throws IOException, InterruptedException {
+      final int[] bounds = groupByPartition(start, end);
+      final List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i = 0; i < partitions; ++i) {
+        final int pstart = bounds[i];
+        final int pend = bounds[i + 1];
+        if (pend - pstart < 2) {
+          continue;
+        } else if (partitionPool == null) {
+          partitionSorters.get().sort(pstart, pend);
+        } else {
+          results.add(partitionPool.submit(new Callable<Object>() {
+            public Object call() {
+              partitionSorters.get().sort(pstart, pend);
+              return null;
+            }
+          }));
+        }
+      }
+      waitFor(results);
+    }
+
+    /**
+     * Sorts each partition of a spill and serializes (and compresses) it
+     * into memory in the partitionPool, while this thread appends the
+     * finished partitions to the spill file in order. Only a few
+     * partitions more than there are threads are kept in memory at once.
+     * Used only when there is no combiner, which can't be run from
+     * several threads at once.
+     */
+    private void writePartitions(final SpillSpan span, int endPosition,
+                                 FSDataOutputStream out, SpillRecord spillRec)
+        throws IOException, InterruptedException {
+      final int[] bounds = groupByPartition(span.kvstart, endPosition);
+      final LinkedList<Future<PartitionSegment>> pending =
+        new LinkedList<Future<PartitionSegment>>();
+      IndexRecord rec = new IndexRecord();
+      int submitted = 0;
+      try {
+        for (int i = 0; i < partitions; ++i) {
+          while (submitted < partitions &&
+                 submitted - i < 2 * partitionThreads) {
+            final int pstart = bounds[submitted];
+            final int pend = bounds[submitted + 1];
+            pending.add(partitionPool.submit(
+                new Callable<PartitionSegment>() {
+                  public PartitionSegment call() throws IOException {
+                    return writePartition(span, pstart, pend);
+                  }
+                }));
+            ++submitted;
           }
+          final PartitionSegment segment = getResult(pending.removeFirst());
+          rec.startOffset = out.getPos();
+          out.write(segment.data.getData(), 0, segment.data.getLength());
+          rec.rawLength = segment.rawLength;
+          rec.partLength = segment.partLength;
+          spillRec.putIndex(rec, i);
         }
+      } catch (IOException e) {
+        // the records can't be released while other tasks still use them
+        try {
+          waitFor(pending);
+        } catch (IOException ignored) {
+          // reported by e
+        }
+        throw e;
+      }
+    }
 
+    /**
+     * Sorts the records of one partition, in [start, end), and writes
+     * them to an IFile segment in memory.
+     */
+    private PartitionSegment writePartition(SpillSpan span, int start,
+                                            int end) throws IOException {
+      if (end - start > 1) {
+        partitionSorters.get().sort(start, end);
+      }
+      final DataOutputBuffer data = new DataOutputBuffer();
+      IFile.Writer<K, V> writer = null;
+      try {
+        writer = new Writer<K, V>(job, new FSDataOutputStream(data, null),
+                                  keyClass, valClass, codec,
+                                  spilledRecordsCounter);
+        final InMemValBytes key = new InMemValBytes();
+        final InMemValBytes value = new InMemValBytes();
+        for (int i = start; i < end; ++i) {
+          final int kvoff = getOffset(i);
+          getVBytesForOffset(span, kvoff, value);
+          key.reset(getKeyStart(kvoff),
+                    (int)(getValStart(kvoff) - getKeyStart(kvoff)));
+          writer.append(key, value);
+        }
+        writer.close();
+        final PartitionSegment segment = new PartitionSegment(
+            data, writer.getRawLength(), writer.getCompressedLength());
+        writer = null;
+        return segment;
+      } finally {
+        if (null != writer) writer.close();
+      }
+    }
+
+    /**
+     * Returns the result of a partition task, rethrowing its exception
+     * as an IOException.
+     */
+    private <T> T getResult(Future<T> result)
+        throws IOException, InterruptedException {
+      try {
+        return result.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException)e.getCause();
+        }
+        throw (IOException)new IOException("Spill failed"
+            ).initCause(e.getCause());
+      }
+    }
+
+    /**
+     * Waits for all the given partition tasks to finish, then throws the
+     * first exception any of them threw.
+     */
+    private void waitFor(List<? extends Future<?>> results)
+        throws IOException, InterruptedException {
+      IOException failure = null;
+      for (Future<?> result : results) {
+        try {
+          getResult(result);
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * Caches the index of a spill, or writes it to a file once the cache
+     * is full. Spills may finish out of order, so the cache is indexed
+     * by spill number, with nulls for indices that were written out.
+     */
+    private void cacheSpillIndex(int spillNumber, SpillRecord spillRec)
+        throws IOException {
+      synchronized (indexCacheList) {
         if (totalIndexCacheMemory >= INDEX_CACHE_MEMORY_LIMIT) {
           // create spill index file
           Path indexFilename = mapOutputFile.getSpillIndexFileForWrite(
-              getTaskID(), numSpills,
+              getTaskID(), spillNumber,
               partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH);
           spillRec.writeToFile(indexFilename, job);
         } else {
-          indexCacheList.add(spillRec);
+          while (indexCacheList.size() <= spillNumber) {
+            indexCacheList.add(null);
+          }
+          indexCacheList.set(spillNumber, spillRec);
           totalIndexCacheMemory +=
             spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
         }
-        LOG.info("Finished spill " + numSpills);
-        ++numSpills;
-      } finally {
-        if (out != null) out.close();
+      }
+    }
+
+    /**
+     * A partition of a spill serialized into memory by writePartition.
+     */
+    private class PartitionSegment {
+      final DataOutputBuffer data;
+      final long rawLength;
+      final long partLength;
+
+      PartitionSegment(DataOutputBuffer data, long rawLength,
+                       long partLength) {
+        this.data = data;
+        this.rawLength = rawLength;
+        this.partLength = partLength;
+      }
+    }
+
+    /**
+     * Sorts the records of a single partition by key. Comparators and
+     * sorters need not be thread-safe, so each thread sorting
+     * partitions has its own (see partitionSorters).
+     */
+    private class PartitionSorter implements IndexedSortable {
+      private final RawComparator<K> keyComparator;
+      private final ByteBufferComparator<K> directKeyComparator;
+      private final InMemValBytes key1 = new InMemValBytes();
+      private final InMemValBytes key2 = new InMemValBytes();
+      private final IndexedSorter partitionSorter =
+        ReflectionUtils.newInstance(job.getClass("map.sort.class",
+              QuickSort.class, IndexedSorter.class), job);
+
+      @SuppressWarnings("unchecked")
+      PartitionSorter() {
+        keyComparator = job.getOutputKeyComparator();
+        directKeyComparator = (kvsegments != null)
+          ? getDirectComparator(keyComparator)
+          : null;
+      }
+
+      public void sort(int start, int end) {
+        partitionSorter.sort(this, start, end, reporter);
+      }
+
+      public int compare(int i, int j) {
+        if (prefixComparator != null) {
+          final int prefixOrder = comparePrefixes(i, j);
+          if (prefixOrder != 0) {
+            return prefixOrder;
+          }
+        }
+        final int ii = getOffset(i);
+        final int ij = getOffset(j);
+        return compareKeys(keyComparator, directKeyComparator, ii, ij,
+                           key1, key2);
+      }
+
+      public void swap(int i, int j) {
+        MapOutputBuffer.this.swap(i, j);
       }
     }
 
@@ -1306,7 +2124,7 @@ class MapTask extends Task {
      */
     private void spillSingleRecord(final K key, final V value,
                                    int partition) throws IOException {
-      long size = kvbuffer.length + partitions * APPROX_HEADER_LENGTH;
+      long size = bufcapacity + partitions * APPROX_HEADER_LENGTH;
       FSDataOutputStream out = null;
       try {
         // create spill file
@@ -1346,17 +2164,7 @@ class MapTask extends Task {
             throw e;
           }
         }
-        if (totalIndexCacheMemory >= INDEX_CACHE_MEMORY_LIMIT) {
-          // create spill index file
-          Path indexFilename = mapOutputFile.getSpillIndexFileForWrite(
-              getTaskID(), numSpills,
-              partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH);
-          spillRec.writeToFile(indexFilename, job);
-        } else {
-          indexCacheList.add(spillRec);
-          totalIndexCacheMemory +=
-            spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
-        }
+        cacheSpillIndex(numSpills, spillRec);
         ++numSpills;
       } finally {
         if (out != null) out.close();
@@ -1367,24 +2175,55 @@ class MapTask extends Task {
      * Given an offset, populate vbytes with the associated set of
      * deserialized value bytes. Should only be called during a spill.
      */
-    private void getVBytesForOffset(int kvoff, InMemValBytes vbytes) {
-      final int nextindex = (kvoff / ACCTSIZE ==
-                            (kvend - 1 + kvoffsets.length) % kvoffsets.length)
-        ? bufend
-        : kvindices[(kvoff + ACCTSIZE + KEYSTART) % kvindices.length];
-      int vallen = (nextindex >= kvindices[kvoff + VALSTART])
-        ? nextindex - kvindices[kvoff + VALSTART]
-        : (bufvoid - kvindices[kvoff + VALSTART]) + nextindex;
-      vbytes.reset(kvbuffer, kvindices[kvoff + VALSTART], vallen);
+    private void getVBytesForOffset(SpillSpan span, int kvoff,
+                                    InMemValBytes vbytes) {
+      final long nextindex = (kvoff ==
+                             (span.kvend - 1 + kvcapacity) % kvcapacity)
+        ? span.bufend
+        : getKeyStart((kvoff + 1) % kvcapacity);
+      final long valstart = getValStart(kvoff);
+      int vallen = (int)((nextindex >= valstart)
+        ? nextindex - valstart
+        : (bufvoid - valstart) + nextindex);
+      vbytes.reset(valstart, vallen);
     }
 
     /**
-     * Inner class wrapping valuebytes, used for appendRaw.
+     * Inner class wrapping valuebytes, used for appendRaw. Also used for
+     * keys, to read them out of an off-heap buffer. Each thread reading the
+     * buffer needs its own.
      */
     protected class InMemValBytes extends DataInputBuffer {
       private byte[] buffer;
       private int start;
       private int length;
+      private ByteBuffer[] segments; // views of kvsegments, with their own
+                                     // positions
+      private byte[] scratch;        // bytes copied out of kvsegments
+
+      /**
+       * Points at bytes of the main output buffer, which may wrap around
+       * its end.
+       */
+      public void reset(long start, int length) {
+        if (kvsegments == null) {
+          reset(kvbuffer, (int)start, length);
+          return;
+        }
+        if (segments == null) {
+          segments = new ByteBuffer[kvsegments.length];
+          for (int i = 0; i < segments.length; ++i) {
+            segments[i] = kvsegments[i].duplicate();
+          }
+        }
+        if (scratch == null || scratch.length < length) {
+          scratch = new byte[Math.max(length, 64)];
+        }
+        final int taillen = (int)Math.min(length, bufvoid - start);
+        getBytes(segments, start, scratch, 0, taillen);
+        getBytes(segments, 0, scratch, taillen, length - taillen);
+        super.reset(scratch, 0, length);
+      }
             
       public void reset(byte[] buffer, int start, int length) {
         this.buffer = buffer;
@@ -1393,7 +2232,7 @@ class MapTask extends Task {
         
         if (start + length > bufvoid) {
           this.buffer = new byte[this.length];
-          final int taillen = bufvoid - start;
+          final int taillen = (int)(bufvoid - start);
           System.arraycopy(buffer, start, this.buffer, 0, taillen);
           System.arraycopy(buffer, 0, this.buffer, taillen, length-taillen);
           this.start = 0;
@@ -1404,11 +2243,13 @@ class MapTask extends Task {
     }
 
     protected class MRResultIterator implements RawKeyValueIterator {
-      private final DataInputBuffer keybuf = new DataInputBuffer();
+      private final InMemValBytes keybuf = new InMemValBytes();
       private final InMemValBytes vbytes = new InMemValBytes();
+      private final SpillSpan span;
       private final int end;
       private int current;
-      public MRResultIterator(int start, int end) {
+      public MRResultIterator(SpillSpan span, int start, int end) {
+        this.span = span;
         this.end = end;
         current = start - 1;
       }
@@ -1416,13 +2257,13 @@ class MapTask extends Task {
         return ++current < end;
       }
       public DataInputBuffer getKey() throws IOException {
-        final int kvoff = kvoffsets[current % kvoffsets.length];
-        keybuf.reset(kvbuffer, kvindices[kvoff + KEYSTART],
-                     kvindices[kvoff + VALSTART] - kvindices[kvoff + KEYSTART]);
+        final int kvoff = getOffset(current);
+        keybuf.reset(getKeyStart(kvoff),
+                     (int)(getValStart(kvoff) - getKeyStart(kvoff)));
         return keybuf;
       }
       public DataInputBuffer getValue() throws IOException {
-        getVBytesForOffset(kvoffsets[current % kvoffsets.length], vbytes);
+        getVBytesForOffset(span, getOffset(current), vbytes);
         return vbytes;
       }
       public Progress getProgress() {
@@ -1446,7 +2287,7 @@ class MapTask extends Task {
       if (numSpills == 1) { //the spill is the final output
         rfs.rename(filename[0],
             new Path(filename[0].getParent(), "file.out"));
-        if (indexCacheList.size() == 0) {
+        if (indexCacheList.isEmpty()) {
           rfs.rename(mapOutputFile.getSpillIndexFile(mapId, 0),
               new Path(filename[0].getParent(),"file.out.index"));
         } else {
@@ -1457,9 +2298,14 @@ class MapTask extends Task {
       }
 
       // read in paged indices
-      for (int i = indexCacheList.size(); i < numSpills; ++i) {
-        Path indexFileName = mapOutputFile.getSpillIndexFile(mapId, i);
-        indexCacheList.add(new SpillRecord(indexFileName, job));
+      for (int i = 0; i < numSpills; ++i) {
+        if (i == indexCacheList.size()) {
+          indexCacheList.add(null);
+        }
+        if (indexCacheList.get(i) == null) {
+          Path indexFileName = mapOutputFile.getSpillIndexFile(mapId, i);
+          indexCacheList.set(i, new SpillRecord(indexFileName, job));
+        }
       }
 
       //make correction in the length to include the sequence file header
@@ -19,9 +19,18 @@ package org.apache.hadoop.mapred;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,11 +41,12 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.mapred.IFile.Reader;
 import org.apache.hadoop.mapred.IFile.Writer;
-import org.apache.hadoop.util.PriorityQueue;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 
@@ -162,10 +172,29 @@ class Merger {
     }
 }
 
+  /**
+   * Records read ahead from a segment: their key and value lengths and
+   * bytes, and the position of the reader after them.
+   */
+  private static class RecordBlock {
+    final DataOutputBuffer records = new DataOutputBuffer();
+    final DataInputBuffer in = new DataInputBuffer();
+    boolean eof = false;
+    long position = 0;
+  }
+
   public static class Segment<K extends Object, V extends Object> {
     Reader<K, V> reader = null;
     DataInputBuffer key = new DataInputBuffer();
     DataInputBuffer value = new DataInputBuffer();
+
+    // Records read ahead on another thread, if the segment is prefetched
+    private ExecutorService prefetcher = null;
+    private int blockSize;
+    private RecordBlock block = null;
+    private Future<RecordBlock> pending = null;
+    private DataInputBuffer readKey = null;
+    private DataInputBuffer readValue = null;
     
     Configuration conf = null;
     FileSystem fs = null;
@@ -216,11 +245,93 @@ class Merger {
         segmentLength : reader.getLength();
     }
     
+    /**
+     * Read records ahead of the merge, and so decompress them, on the given
+     * threads about a block of the given size at a time.
+     */
+    void prefetch(ExecutorService pool, int blockSize) {
+      this.prefetcher = pool;
+      this.blockSize = blockSize;
+      readKey = new DataInputBuffer();
+      readValue = new DataInputBuffer();
+      block = new RecordBlock();
+      pending = pool.submit(fill(new RecordBlock()));
+    }
+
+    private Callable<RecordBlock> fill(final RecordBlock b) {
+      return new Callable<RecordBlock>() {
+        public RecordBlock call() throws IOException {
+          DataOutputBuffer records = b.records;
+          records.reset();
+          while (records.getLength() < blockSize) {
+            if (!reader.next(readKey, readValue)) {
+              b.eof = true;
+              break;
+            }
+            int keyLength = readKey.getLength() - readKey.getPosition();
+            int valueLength = readValue.getLength() - readValue.getPosition();
+            WritableUtils.writeVInt(records, keyLength);
+            WritableUtils.writeVInt(records, valueLength);
+            records.write(readKey.getData(), readKey.getPosition(), keyLength);
+            records.write(readValue.getData(), readValue.getPosition(),
+                          valueLength);
+          }
+          b.position = reader.getPosition();
+          b.in.reset(records.getData(), 0, records.getLength());
+          return b;
+        }
+      };
+    }
+
+    private RecordBlock waitForBlock() throws IOException {
+      try {
+        return pending.get();
+      } catch (InterruptedException ie) {
+        throw (IOException)new IOException("Interrupted reading ahead from " +
+                                           file).initCause(ie);
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+          throw (IOException)ee.getCause();
+        }
+        throw (IOException)new IOException("Failed reading ahead from " +
+                                           file).initCause(ee.getCause());
+      }
+    }
+
     boolean next() throws IOException {
-      return reader.next(key, value);
+      if (prefetcher == null) {
+        return reader.next(key, value);
+      }
+      DataInputBuffer in = block.in;
+      while (in.getPosition() >= in.getLength()) {
+        if (block.eof) {
+          return false;
+        }
+        // the block with the last record handed out is only refilled now
+        RecordBlock next = waitForBlock();
+        pending = next.eof ? null : prefetcher.submit(fill(block));
+        block = next;
+        in = block.in;
+      }
+      int keyLength = WritableUtils.readVInt(in);
+      int valueLength = WritableUtils.readVInt(in);
+      int pos = in.getPosition();
+      byte[] data = in.getData();
+      key.reset(data, pos, keyLength);
+      value.reset(data, pos + keyLength, valueLength);
+      in.skip(keyLength + valueLength);
+      return true;
     }
     
     void close() throws IOException {
+      if (pending != null) {
+        // let the read ahead finish with the reader
+        try {
+          waitForBlock();
+        } catch (IOException ignored) {
+        }
+        pending = null;
+      }
       reader.close();
       
       if (!preserve && fs != null) {
@@ -229,12 +340,18 @@ class Merger {
     }
 
     public long getPosition() throws IOException {
+      if (prefetcher != null) {
+        return block.position;
+      }
       return reader.getPosition();
     }
   }
   
   private static class MergeQueue<K extends Object, V extends Object> 
-  extends PriorityQueue<Segment<K, V>> implements RawKeyValueIterator {
+  implements RawKeyValueIterator {
+    /** The amount of records of a segment to read ahead at a time. */
+    private static final int PREFETCH_BYTES = 64 * 1024;
+
     Configuration conf;
     FileSystem fs;
     CompressionCodec codec;
@@ -253,6 +370,18 @@ class Merger {
     DataInputBuffer value;
     
     Segment<K, V> minSegment;
+
+    // The segments being merged, as the leaves of a tournament tree; a leaf
+    // is null once its segment is exhausted
+    private Segment<K, V>[] leaves;
+    // loserTree[0] is the leaf with the smallest key, loserTree[i] for i > 0
+    // the leaf that lost the match at node i
+    private int[] loserTree;
+    private int numLive = 0;
+
+    // Threads reading ahead from segments on disk, if any
+    private ExecutorService prefetcher = null;
+
     Comparator<Segment<K, V>> segmentComparator =   
       new Comparator<Segment<K, V>>() {
       public int compare(Segment<K, V> o1, Segment<K, V> o2) {
@@ -311,10 +440,16 @@ class Merger {
     }
 
     public void close() throws IOException {
-      Segment<K, V> segment;
-      while((segment = pop()) != null) {
-        segment.close();
+      if (leaves != null) {
+        for (int i = 0; i < leaves.length; ++i) {
+          Segment<K, V> segment = leaves[i];
+          if (segment != null) {
+            leaves[i] = null;
+            segment.close();
+          }
+        }
       }
+      numLive = 0;
     }
 
     public DataInputBuffer getKey() throws IOException {
@@ -331,16 +466,19 @@ class Merger {
       long endPos = reader.getPosition();
       totalBytesProcessed += endPos - startPos;
       mergeProgress.set(totalBytesProcessed * progPerByte);
+      int leaf = loserTree[0];
       if (hasNext) {
-        adjustTop();
+        replay(leaf);
       } else {
-        pop();
+        leaves[leaf] = null;
+        --numLive;
+        replay(leaf);
         reader.close();
       }
     }
 
     public boolean next() throws IOException {
-      if (size() == 0)
+      if (numLive == 0)
         return false;
 
       if (minSegment != null) {
@@ -348,12 +486,12 @@ class Merger {
         //one. For the first invocation, the priority queue is ready for use
         //but for the subsequent invocations, first adjust the queue 
         adjustPriorityQueue(minSegment);
-        if (size() == 0) {
+        if (numLive == 0) {
           minSegment = null;
           return false;
         }
       }
-      minSegment = top();
+      minSegment = leaves[loserTree[0]];
       
       key = minSegment.getKey();
       value = minSegment.getValue();
@@ -361,16 +499,84 @@ class Merger {
       return true;
     }
 
+    /**
+     * Build the tournament tree over the segments to merge, each of which
+     * holds its first record.
+     */
     @SuppressWarnings("unchecked")
-    protected boolean lessThan(Object a, Object b) {
-      DataInputBuffer key1 = ((Segment<K, V>)a).getKey();
-      DataInputBuffer key2 = ((Segment<K, V>)b).getKey();
+    private void initTree(List<Segment<K, V>> segmentsToMerge) {
+      int k = segmentsToMerge.size();
+      leaves = segmentsToMerge.toArray(new Segment[k]);
+      loserTree = new int[Math.max(k, 1)];
+      // start with every match held by a phantom leaf, k, that beats all
+      Arrays.fill(loserTree, k);
+      for (int i = k - 1; i >= 0; --i) {
+        replay(i);
+      }
+      numLive = k;
+    }
+
+    /**
+     * Replay the matches on the path from a leaf to the root after the key of
+     * the leaf changed; a match takes a single comparison.
+     */
+    private void replay(int leaf) {
+      int winner = leaf;
+      for (int node = (leaf + leaves.length) >> 1; node > 0; node >>= 1) {
+        if (beats(loserTree[node], winner)) {
+          int loser = winner;
+          winner = loserTree[node];
+          loserTree[node] = loser;
+        }
+      }
+      loserTree[0] = winner;
+    }
+
+    /**
+     * Whether leaf a wins a match against leaf b. Exhausted leaves lose; ties
+     * go to the earlier segment.
+     */
+    private boolean beats(int a, int b) {
+      if (a == leaves.length) {
+        return true;
+      } else if (b == leaves.length) {
+        return false;
+      }
+      Segment<K, V> sa = leaves[a];
+      Segment<K, V> sb = leaves[b];
+      if (sa == null || sb == null) {
+        return sb == null && sa != null;
+      }
+      DataInputBuffer key1 = sa.getKey();
+      DataInputBuffer key2 = sb.getKey();
       int s1 = key1.getPosition();
       int l1 = key1.getLength() - s1;
       int s2 = key2.getPosition();
       int l2 = key2.getLength() - s2;
 
-      return comparator.compare(key1.getData(), s1, l1, key2.getData(), s2, l2) < 0;
+      int c = comparator.compare(key1.getData(), s1, l1,
+                                 key2.getData(), s2, l2);
+      return c < 0 || (c == 0 && a < b);
+    }
+
+    private ExecutorService getPrefetcher(int threads) {
+      if (prefetcher == null) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              private int count = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MergePrefetchThread #" +
+                                           count++);
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+        // idle threads go away, as the queue is not always closed
+        pool.allowCoreThreadTimeOut(true);
+        prefetcher = pool;
+      }
+      return prefetcher;
     }
     
     public RawKeyValueIterator merge(Class<K> keyClass, Class<V> valueClass,
@@ -388,6 +594,7 @@ class Merger {
                                      Counters.Counter writesCounter)
         throws IOException {
       LOG.info("Merging " + segments.size() + " sorted segments");
+      int prefetchThreads = conf.getInt("io.sort.merge.threads", 0);
       
       //create the MergeStreams from the sorted map created in the constructor
       //and dump the final output to a file
@@ -416,6 +623,9 @@ class Merger {
             // Initialize the segment at the last possible moment;
             // this helps in ensuring we don't use buffers until we need them
             segment.init(readsCounter);
+            if (prefetchThreads > 0 && segment.file != null) {
+              segment.prefetch(getPrefetcher(prefetchThreads), PREFETCH_BYTES);
+            }
             long startPos = segment.getPosition();
             boolean hasNext = segment.next();
             long endPos = segment.getPosition();
@@ -440,12 +650,8 @@ class Merger {
           numSegmentsToConsider = factor - segmentsConsidered;
         }
         
-        //feed the streams to the priority queue
-        initialize(segmentsToMerge.size());
-        clear();
-        for (Segment<K, V> segment : segmentsToMerge) {
-          put(segment);
-        }
+        //feed the streams to the tournament tree
+        initTree(segmentsToMerge);
         
         //if we have lesser number of segments remaining, then just return the
         //iterator, else do another single level merge
@@ -18,9 +18,13 @@
 
 package org.apache.hadoop.mapred;
 
+import java.io.BufferedInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,12 +35,12 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -567,6 +571,72 @@ class ReduceTask extends Task {
     output.close(reducerContext);
   }
 
+  /**
+   * Reads one map output out of a response carrying several. Closing it
+   * skips to the end of the map output rather than closing the response.
+   */
+  private static class SegmentInputStream extends FilterInputStream {
+    private long remaining;
+
+    SegmentInputStream(InputStream in, long length) {
+      super(in);
+      remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        --remaining;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int)Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      while (remaining > 0) {
+        if (skip(remaining) <= 0) {
+          if (read() < 0) {
+            throw new EOFException("Map output ended " + remaining +
+                                   " bytes early");
+          }
+        }
+      }
+    }
+  }
+
   class ReduceCopier<K, V> implements MRConstants {
 
     /** Reference to the umbilical object */
@@ -587,9 +657,10 @@ class ReduceTask extends Task {
     private ReduceTask reduceTask;
     
     /**
-     * the list of map outputs currently being copied
+     * the list of map outputs currently being copied, in batches of
+     * outputs on the same host
      */
-    private List<MapOutputLocation> scheduledCopies;
+    private List<List<MapOutputLocation>> scheduledCopies;
     
     /**
      *  the results of dispatched copy attempts
@@ -600,6 +671,11 @@ class ReduceTask extends Task {
      *  the number of outputs to copy in parallel
      */
     private int numCopiers;
+
+    /**
+     *  the most outputs to fetch from one host in a single request
+     */
+    private int maxFetchBatch;
     
     /**
      *  a number that is set to the max #fetches we'd schedule and then
@@ -620,9 +696,10 @@ class ReduceTask extends Task {
     private Map<String, Long> penaltyBox;
     
     /**
-     * the set of unique hosts from which we are copying
+     * the unique hosts from which we are copying, with the number of
+     * outputs in flight from each
      */
-    private Set<String> uniqueHosts;
+    private Map<String, Integer> uniqueHosts;
     
     /**
      * A reference to the RamManager for writing the map outputs to.
@@ -640,6 +717,11 @@ class ReduceTask extends Task {
      * Number of files to merge at a time
      */
     private int ioSortFactor;
+
+    /**
+     * Number of merges of on-disk files that may run at once
+     */
+    private int numLocalFSMergers;
     
     /**
      * A reference to the throwable object (if merge throws an exception)
@@ -788,6 +870,14 @@ class ReduceTask extends Task {
      */
     private final Map<String, List<MapOutputLocation>> mapLocations = 
       new ConcurrentHashMap<String, List<MapOutputLocation>>();
+
+    /**
+     * The map from TaskTracker http addresses to the addresses of their
+     * shuffle servers, learned from the redirects of trackers that serve
+     * map outputs from a separate port.
+     */
+    private final Map<String, String> shuffleAddresses =
+      new ConcurrentHashMap<String, String>();
     
     /**
      * This class contains the methods that should be used for metrics-reporting
@@ -919,6 +1009,8 @@ class ReduceTask extends Task {
       final Configuration conf;
       
       byte[] data;
+      ByteBuffer[] pages;
+      int dataLength;
       final boolean inMemory;
       long compressedSize;
       
@@ -944,14 +1036,45 @@ class ReduceTask extends Task {
         this.conf = null;
         
         this.data = data;
+        this.dataLength = data.length;
         this.compressedSize = compressedLength;
         
         this.inMemory = true;
       }
+
+      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId,
+                       ByteBuffer[] pages, int length, int compressedLength) {
+        this.mapId = mapId;
+        this.mapAttemptId = mapAttemptId;
+
+        this.file = null;
+        this.conf = null;
+
+        this.pages = pages;
+        this.dataLength = length;
+        this.compressedSize = compressedLength;
+
+        this.inMemory = true;
+      }
+
+      /** Read the map output from memory. */
+      public Reader<K, V> getInMemoryReader() throws IOException {
+        if (pages != null) {
+          return new InMemoryReader<K, V>(ramManager, mapAttemptId,
+                                          ramManager.getPagePool(), pages,
+                                          dataLength);
+        }
+        return new InMemoryReader<K, V>(ramManager, mapAttemptId,
+                                        data, 0, dataLength);
+      }
       
       public void discard() throws IOException {
         if (inMemory) {
           data = null;
+          if (pages != null) {
+            ramManager.getPagePool().release(pages);
+            pages = null;
+          }
         } else {
           FileSystem fs = file.getFileSystem(conf);
           fs.delete(file, true);
@@ -970,6 +1093,7 @@ class ReduceTask extends Task {
       
       private final long maxSize;
       private final long maxSingleShuffleLimit;
+      private final DirectPagePool pagePool;
       
       private long size = 0;
       
@@ -992,14 +1116,41 @@ class ReduceTask extends Task {
             (int)Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE))
           * maxInMemCopyUse);
         maxSingleShuffleLimit = (long)(maxSize * MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION);
+        if (conf.getBoolean("mapred.job.shuffle.direct", false)) {
+          pagePool = new DirectPagePool(
+              conf.getInt("mapred.job.shuffle.direct.page.size", 32 * 1024),
+              maxSize);
+        } else {
+          pagePool = null;
+        }
         LOG.info("ShuffleRamManager: MemoryLimit=" + maxSize + 
-                 ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit);
+                 ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit +
+                 (pagePool == null ? "" :
+                  ", DirectPageSize=" + pagePool.getPageSize()));
+      }
+
+      /**
+       * The pool of direct memory pages that map outputs are copied into, or
+       * null if they are copied into byte arrays.
+       */
+      DirectPagePool getPagePool() {
+        return pagePool;
+      }
+
+      /**
+       * The memory a map output of the given size takes; a map output held
+       * in pages takes whole pages.
+       */
+      private long footprint(int requestedSize) {
+        return pagePool == null
+          ? requestedSize : pagePool.getFootprint(requestedSize);
       }
       
       public synchronized boolean reserve(int requestedSize, InputStream in) 
       throws InterruptedException {
+        long requested = footprint(requestedSize);
         // Wait till the request can be fulfilled...
-        while ((size + requestedSize) > maxSize) {
+        while ((size + requested) > maxSize) {
           
           // Close the input...
           if (in != null) {
@@ -1027,16 +1178,30 @@ class ReduceTask extends Task {
           }
         }
         
-        size += requestedSize;
+        size += requested;
         
         return (in != null);
       }
+
+      /**
+       * Reserves memory for a map output only if there is room for it now.
+       * @return whether the memory was reserved
+       */
+      public synchronized boolean tryReserve(int requestedSize) {
+        long requested = footprint(requestedSize);
+        if (size + requested > maxSize) {
+          return false;
+        }
+        size += requested;
+        return true;
+      }
       
       public synchronized void unreserve(int requestedSize) {
-        size -= requestedSize;
+        long requested = footprint(requestedSize);
+        size -= requested;
         
         synchronized (dataAvailable) {
-          fullSize -= requestedSize;
+          fullSize -= requested;
           --numClosed;
         }
         
@@ -1078,7 +1243,7 @@ class ReduceTask extends Task {
       
       public void closeInMemoryFile(int requestedSize) {
         synchronized (dataAvailable) {
-          fullSize += requestedSize;
+          fullSize += footprint(requestedSize);
           ++numClosed;
           dataAvailable.notify();
         }
@@ -1123,6 +1288,9 @@ class ReduceTask extends Task {
       // Decompression of map-outputs
       private CompressionCodec codec = null;
       private Decompressor decompressor = null;
+
+      // Staging for map-outputs copied into direct memory pages
+      private byte[] pageBuffer = null;
       
       public MapOutputCopier(JobConf job, Reporter reporter) {
         setName("MapOutputCopier " + reduceTask.getTaskID() + "." + id);
@@ -1179,15 +1347,21 @@ class ReduceTask extends Task {
       public void run() {
         while (true) {        
           try {
-            MapOutputLocation loc = null;
+            List<MapOutputLocation> locs = null;
             long size = -1;
             
             synchronized (scheduledCopies) {
               while (scheduledCopies.isEmpty()) {
                 scheduledCopies.wait();
               }
-              loc = scheduledCopies.remove(0);
+              locs = scheduledCopies.remove(0);
             }
+
+            if (locs.size() > 1) {
+              copyOutputs(locs);
+              continue;
+            }
+            MapOutputLocation loc = locs.get(0);
             
             try {
               shuffleClientMetrics.threadBusy();
@@ -1266,6 +1440,20 @@ class ReduceTask extends Task {
                                 loc.getHost());
         }
         
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+
+      /**
+       * Keeps a map output just copied, unless another copy of it got there
+       * first.
+       * @param loc the map output location it was copied from
+       * @param mapOutput the copied map output
+       * @param filename its final name, if on disk
+       * @return its size, or {@link CopyResult#OBSOLETE}
+       * @throws IOException if it could not be kept
+       */
+      private long commitMapOutput(MapOutputLocation loc, MapOutput mapOutput,
+                                   Path filename) throws IOException {
         // The size of the map-output
         long bytes = mapOutput.compressedSize;
         
@@ -1297,7 +1485,7 @@ class ReduceTask extends Task {
           } else {
             // Rename the temporary file to the final file; 
             // ensure it is on the same partition
-            tmpMapOutput = mapOutput.file;
+            Path tmpMapOutput = mapOutput.file;
             filename = new Path(tmpMapOutput.getParent(), filename.getName());
             if (!localFileSys.rename(tmpMapOutput, filename)) {
               localFileSys.delete(tmpMapOutput, true);
@@ -1318,6 +1506,156 @@ class ReduceTask extends Task {
         return bytes;
       }
       
+      /**
+       * Copies the outputs of several maps from the same host with a single
+       * request, and reports a result for each of them.
+       * @param locs the map output locations to be copied
+       * @throws InterruptedException if the copier should give up
+       */
+      private void copyOutputs(List<MapOutputLocation> locs)
+      throws InterruptedException {
+        // check if we still need to copy the outputs from these locations
+        List<MapOutputLocation> needed = new ArrayList<MapOutputLocation>();
+        for (MapOutputLocation loc : locs) {
+          if (copiedMapOutputs.contains(loc.getTaskId()) || 
+              obsoleteMapIds.contains(loc.getTaskAttemptId())) {
+            start(loc);
+            finish(CopyResult.OBSOLETE);
+          } else {
+            needed.add(loc);
+          }
+        }
+        if (needed.isEmpty()) {
+          return;
+        }
+
+        int next = 0;
+        DataInputStream input = null;
+        try {
+          shuffleClientMetrics.threadBusy();
+          URL url = getOutputLocation(needed);
+          URLConnection connection = openConnection(url);
+          input = new DataInputStream(new BufferedInputStream(
+              getInputStream(connection, STALLED_COPY_TIMEOUT,
+                             DEFAULT_READ_TIMEOUT), 64 * 1024));
+          noteShuffleAddress(url, connection.getURL());
+          while (next < needed.size()) {
+            MapOutputLocation loc = needed.get(next);
+            start(loc);
+            long size = copyOutput(loc, input);
+            ++next;
+            if (size == -1) {
+              shuffleClientMetrics.failedFetch();
+            } else {
+              shuffleClientMetrics.successFetch();
+            }
+            finish(size);
+          }
+        } catch (IOException e) {
+          LOG.warn(reduceTask.getTaskID() + " copy failed: " +
+                   (needed.size() - next) + " map outputs from " +
+                   needed.get(0).getHost());
+          LOG.warn(StringUtils.stringifyException(e));
+          // the rest of the response is lost
+          for (; next < needed.size(); ++next) {
+            start(needed.get(next));
+            shuffleClientMetrics.failedFetch();
+            finish(-1);
+          }
+        } finally {
+          IOUtils.cleanup(LOG, input);
+          shuffleClientMetrics.threadFree();
+        }
+      }
+
+      /**
+       * Copies the next map output out of a response to a request for
+       * several.
+       * @param loc the map output location expected next
+       * @param input the response
+       * @return the size of the map output, -1 if the TaskTracker could not
+       *         serve it, or {@link CopyResult#OBSOLETE}
+       * @throws IOException if the response could not be read
+       */
+      private long copyOutput(MapOutputLocation loc, DataInputStream input)
+      throws IOException, InterruptedException {
+        ShuffleHeader header = new ShuffleHeader();
+        header.readFields(input);
+        if (!loc.getTaskAttemptId().toString().equals(header.mapId)) {
+          throw new IOException("data from wrong map:" + header.mapId +
+              " arrived to reduce task " + getPartition() +
+              ", where as expected map output should be from " +
+              loc.getTaskAttemptId());
+        }
+        if (header.forReduce != getPartition()) {
+          throw new IOException("data for the wrong reduce: " +
+              header.forReduce + " arrived to reduce task " + getPartition());
+        }
+        if (header.isLost()) {
+          LOG.warn(loc.getHost() + " could not serve the output of " +
+                   loc.getTaskAttemptId());
+          return -1;
+        }
+        if (header.uncompressedLength < 0) {
+          throw new IOException(getName() + " invalid lengths in map " +
+              "output header: id: " + header.mapId + " compressed len: " +
+              header.compressedLength + ", decompressed len: " +
+              header.uncompressedLength);
+        }
+        LOG.info("header: " + header.mapId + ", compressed len: " +
+                 header.compressedLength + ", decompressed len: " +
+                 header.uncompressedLength);
+
+        TaskAttemptID reduceId = reduceTask.getTaskID();
+        Path filename = new Path("/" + TaskTracker.getIntermediateOutputDir(
+                                 reduceId.getJobID().toString(),
+                                 reduceId.toString()) 
+                                 + "/map_" +
+                                 loc.getTaskId().getId() + ".out");
+        Path tmpMapOutput = new Path(filename+"-"+id);
+
+        // Only shuffle into memory if there is room now; waiting for it
+        // would hold up the rest of the response
+        InputStream segment =
+          new SegmentInputStream(input, header.compressedLength);
+        MapOutput mapOutput;
+        if (ramManager.canFitInMemory(header.uncompressedLength) &&
+            ramManager.tryReserve((int)header.uncompressedLength)) {
+          LOG.info("Shuffling " + header.uncompressedLength + " bytes (" + 
+              header.compressedLength + " raw bytes) " + 
+              "into RAM from " + loc.getTaskAttemptId());
+          mapOutput = shuffleInMemory(loc, segment,
+                                      (int)header.uncompressedLength,
+                                      (int)header.compressedLength);
+        } else {
+          LOG.info("Shuffling " + header.uncompressedLength + " bytes (" + 
+              header.compressedLength + " raw bytes) " + 
+              "into Local-FS from " + loc.getTaskAttemptId());
+          mapOutput = shuffleToDisk(loc, segment, tmpMapOutput,
+                                    header.compressedLength);
+        }
+
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+
+      /**
+       * Returns the URL of the outputs of several maps on the same host.
+       */
+      private URL getOutputLocation(List<MapOutputLocation> locs)
+      throws IOException {
+        StringBuilder maps = new StringBuilder();
+        for (MapOutputLocation loc : locs) {
+          if (maps.length() > 0) {
+            maps.append(',');
+          }
+          maps.append(loc.getTaskAttemptId());
+        }
+        MapOutputLocation first = locs.get(0);
+        return new URL(first.getOutputLocation(),
+                       "/mapOutput?job=" + first.getTaskAttemptId().getJobID() +
+                       "&map=" + maps + "&reduce=" + getPartition());
+      }
+
       /**
        * Save the map taskid whose output we just copied.
        * This function assumes that it has been synchronized on ReduceTask.this.
@@ -1344,10 +1682,12 @@ class ReduceTask extends Task {
                                      Path filename, int reduce)
       throws IOException, InterruptedException {
         // Connect
-        URLConnection connection = 
-          mapOutputLoc.getOutputLocation().openConnection();
+        URLConnection connection =
+          openConnection(mapOutputLoc.getOutputLocation());
         InputStream input = getInputStream(connection, STALLED_COPY_TIMEOUT,
                                            DEFAULT_READ_TIMEOUT); 
+        noteShuffleAddress(mapOutputLoc.getOutputLocation(),
+                           connection.getURL());
         
         // Validate header from map output
         TaskAttemptID mapId = null;
@@ -1420,6 +1760,29 @@ class ReduceTask extends Task {
         return mapOutput;
       }
 
+      /**
+       * Opens a connection to map outputs, skipping the redirect if the
+       * TaskTracker is known to have a separate shuffle server.
+       */
+      private URLConnection openConnection(URL url) throws IOException {
+        String shuffleAddress = shuffleAddresses.get(url.getAuthority());
+        if (shuffleAddress != null) {
+          url = new URL(url.getProtocol() + "://" + shuffleAddress +
+                        url.getFile());
+        }
+        return url.openConnection();
+      }
+
+      /**
+       * Remembers where a TaskTracker redirected us to.
+       */
+      private void noteShuffleAddress(URL from, URL to) {
+        if (!from.getAuthority().equals(to.getAuthority())) {
+          // go straight to the tracker's shuffle server from now on
+          shuffleAddresses.put(from.getAuthority(), to.getAuthority());
+        }
+      }
+
       /** 
        * The connection establishment is attempted multiple times and is given up 
        * only on the last failure. Instead of connecting with a timeout of 
@@ -1478,7 +1841,7 @@ class ReduceTask extends Task {
         if (!createdNow) {
           // Reconnect
           try {
-            connection = mapOutputLoc.getOutputLocation().openConnection();
+            connection = openConnection(mapOutputLoc.getOutputLocation());
             input = getInputStream(connection, STALLED_COPY_TIMEOUT, 
                                    DEFAULT_READ_TIMEOUT);
           } catch (IOException ioe) {
@@ -1493,6 +1856,18 @@ class ReduceTask extends Task {
           }
         }
 
+        return shuffleInMemory(mapOutputLoc, input, mapOutputLength,
+                               compressedLength);
+      }
+
+      /**
+       * Reads a map output into memory already reserved for it.
+       */
+      private MapOutput shuffleInMemory(MapOutputLocation mapOutputLoc,
+                                        InputStream input,
+                                        int mapOutputLength,
+                                        int compressedLength)
+      throws IOException {
         IFileInputStream checksumIn = 
           new IFileInputStream(input,compressedLength);
 
@@ -1505,22 +1880,36 @@ class ReduceTask extends Task {
         }
       
         // Copy map-output into an in-memory buffer
-        byte[] shuffleData = new byte[mapOutputLength];
-        MapOutput mapOutput = 
-          new MapOutput(mapOutputLoc.getTaskId(), 
-                        mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+        DirectPagePool pagePool = ramManager.getPagePool();
+        byte[] shuffleData = null;
+        MapOutput mapOutput;
+        if (pagePool != null) {
+          mapOutput = new MapOutput(mapOutputLoc.getTaskId(),
+                                    mapOutputLoc.getTaskAttemptId(),
+                                    pagePool.allocate(mapOutputLength),
+                                    mapOutputLength, compressedLength);
+        } else {
+          shuffleData = new byte[mapOutputLength];
+          mapOutput = 
+            new MapOutput(mapOutputLoc.getTaskId(), 
+                          mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+        }
         
         int bytesRead = 0;
         try {
-          int n = input.read(shuffleData, 0, shuffleData.length);
-          while (n > 0) {
-            bytesRead += n;
-            shuffleClientMetrics.inputBytes(n);
+          if (shuffleData != null) {
+            int n = input.read(shuffleData, 0, shuffleData.length);
+            while (n > 0) {
+              bytesRead += n;
+              shuffleClientMetrics.inputBytes(n);
 
-            // indicate we're making progress
-            reporter.progress();
-            n = input.read(shuffleData, bytesRead, 
-                           (shuffleData.length-bytesRead));
+              // indicate we're making progress
+              reporter.progress();
+              n = input.read(shuffleData, bytesRead, 
+                             (shuffleData.length-bytesRead));
+            }
+          } else {
+            bytesRead = readIntoPages(input, mapOutput.pages);
           }
 
           LOG.info("Read " + bytesRead + " bytes from map-output for " +
@@ -1579,8 +1968,15 @@ class ReduceTask extends Task {
 
         // TODO: Remove this after a 'fix' for HADOOP-3647
         if (mapOutputLength > 0) {
-          DataInputBuffer dib = new DataInputBuffer();
-          dib.reset(shuffleData, 0, shuffleData.length);
+          DataInput dib;
+          if (shuffleData != null) {
+            DataInputBuffer buf = new DataInputBuffer();
+            buf.reset(shuffleData, 0, shuffleData.length);
+            dib = buf;
+          } else {
+            dib = new DataInputStream(
+                new DirectPagePool.PageInputStream(mapOutput.pages));
+          }
           LOG.info("Rec #1 from " + mapOutputLoc.getTaskAttemptId() + " -> (" + 
                    WritableUtils.readVInt(dib) + ", " + 
                    WritableUtils.readVInt(dib) + ") from " + 
@@ -1589,6 +1985,37 @@ class ReduceTask extends Task {
         
         return mapOutput;
       }
+
+      /**
+       * Copy a map output into direct memory pages through a buffer on the
+       * heap, leaving each page ready to be read up to its limit.
+       * @return the number of bytes read
+       */
+      private int readIntoPages(InputStream input, ByteBuffer[] pages)
+      throws IOException {
+        if (pageBuffer == null) {
+          pageBuffer = new byte[ramManager.getPagePool().getPageSize()];
+        }
+        int bytesRead = 0;
+        for (ByteBuffer page : pages) {
+          while (page.hasRemaining()) {
+            int n = input.read(pageBuffer, 0,
+                               Math.min(pageBuffer.length, page.remaining()));
+            if (n <= 0) {
+              page.flip();
+              return bytesRead;
+            }
+            page.put(pageBuffer, 0, n);
+            bytesRead += n;
+            shuffleClientMetrics.inputBytes(n);
+
+            // indicate we're making progress
+            reporter.progress();
+          }
+          page.flip();
+        }
+        return bytesRead;
+      }
       
       private MapOutput shuffleToDisk(MapOutputLocation mapOutputLoc,
                                       InputStream input,
@@ -1724,9 +2151,11 @@ class ReduceTask extends Task {
       this.umbilical = umbilical;      
       this.reduceTask = ReduceTask.this;
 
-      this.scheduledCopies = new ArrayList<MapOutputLocation>(100);
+      this.scheduledCopies = new ArrayList<List<MapOutputLocation>>(100);
       this.copyResults = new ArrayList<CopyResult>(100);    
       this.numCopiers = conf.getInt("mapred.reduce.parallel.copies", 5);
+      this.maxFetchBatch =
+        Math.max(1, conf.getInt("mapred.reduce.copy.batch.size", 1));
       this.maxInFlight = 4 * numCopiers;
       this.maxBackoff = conf.getInt("mapred.reduce.copy.backoff", 300);
       Counters.Counter combineInputCounter = 
@@ -1740,6 +2169,11 @@ class ReduceTask extends Task {
       }
       
       this.ioSortFactor = conf.getInt("io.sort.factor", 10);
+      this.numLocalFSMergers = conf.getInt("mapred.reduce.merge.concurrent", 1);
+      if (numLocalFSMergers < 1) {
+        throw new IOException("Invalid \"mapred.reduce.merge.concurrent\": " +
+                              numLocalFSMergers);
+      }
       // the exponential backoff formula
       //    backoff (t) = init * base^(t-1)
       // so for max retries we get
@@ -1777,7 +2211,7 @@ class ReduceTask extends Task {
       this.penaltyBox = new LinkedHashMap<String, Long>();
       
       // hostnames
-      this.uniqueHosts = new HashSet<String>();
+      this.uniqueHosts = new HashMap<String, Integer>();
       
       // Seed the random number generator with a reasonably globally unique seed
       long randomSeed = System.nanoTime() + 
@@ -1799,7 +2233,8 @@ class ReduceTask extends Task {
       DecimalFormat  mbpsFormat = new DecimalFormat("0.00");
       final Progress copyPhase = 
         reduceTask.getProgress().phase();
-      LocalFSMerger localFSMergerThread = null;
+      List<LocalFSMerger> localFSMergerThreads =
+        new ArrayList<LocalFSMerger>(numLocalFSMergers);
       InMemFSMergeThread inMemFSMergeThread = null;
       GetMapEventsThread getMapEventsThread = null;
       
@@ -1816,11 +2251,15 @@ class ReduceTask extends Task {
         copier.start();
       }
       
-      //start the on-disk-merge thread
-      localFSMergerThread = new LocalFSMerger((LocalFileSystem)localFileSys);
+      //start the on-disk-merge threads
+      for (int i = 0; i < numLocalFSMergers; i++) {
+        LocalFSMerger merger =
+          new LocalFSMerger((LocalFileSystem)localFileSys, i);
+        localFSMergerThreads.add(merger);
+        merger.start();
+      }
       //start the in memory merger thread
       inMemFSMergeThread = new InMemFSMergeThread();
-      localFSMergerThread.start();
       inMemFSMergeThread.start();
       
       // start the map events thread
@@ -1910,7 +2349,7 @@ class ReduceTask extends Task {
               }
               
               //Identify duplicate hosts here
-              if (uniqueHosts.contains(host)) {
+              if (uniqueHosts.containsKey(host)) {
                  numDups += knownOutputsByLoc.size(); 
                  continue;
               }
@@ -1932,8 +2371,10 @@ class ReduceTask extends Task {
               synchronized (knownOutputsByLoc) {
               
                 locItr = knownOutputsByLoc.iterator();
+                List<MapOutputLocation> batch =
+                  new ArrayList<MapOutputLocation>();
             
-                while (locItr.hasNext()) {
+                while (locItr.hasNext() && batch.size() < maxFetchBatch) {
               
                   MapOutputLocation loc = locItr.next();
               
@@ -1943,12 +2384,16 @@ class ReduceTask extends Task {
                     continue;
                   }
 
-                  uniqueHosts.add(host);
-                  scheduledCopies.add(loc);
+                  batch.add(loc);
                   locItr.remove();  // remove from knownOutputs
-                  numInFlight++; numScheduled++;
+                }
 
-                  break; //we have a map from this host
+                // fetch the maps from this host together
+                if (!batch.isEmpty()) {
+                  uniqueHosts.put(host, batch.size());
+                  scheduledCopies.add(batch);
+                  numInFlight += batch.size();
+                  numScheduled += batch.size();
                 }
               }
             }
@@ -2112,7 +2557,13 @@ class ReduceTask extends Task {
                        cr.getHost() + " to penalty box, next contact in " +
                        (currentBackOff/1000) + " seconds");
             }
-            uniqueHosts.remove(cr.getHost());
+            // the host is free once all of its batch is done
+            int hostInFlight = uniqueHosts.get(cr.getHost()) - 1;
+            if (hostInFlight == 0) {
+              uniqueHosts.remove(cr.getHost());
+            } else {
+              uniqueHosts.put(cr.getHost(), hostInFlight);
+            }
             numInFlight--;
           }
         }
@@ -2139,7 +2590,7 @@ class ReduceTask extends Task {
         // copiers are done, exit and notify the waiting merge threads
         synchronized (mapOutputFilesOnDisk) {
           exitLocalFSMerge = true;
-          mapOutputFilesOnDisk.notify();
+          mapOutputFilesOnDisk.notifyAll();
         }
         
         ramManager.close();
@@ -2147,8 +2598,10 @@ class ReduceTask extends Task {
         //Do a merge of in-memory files (if there are any)
         if (mergeThrowable == null) {
           try {
-            // Wait for the on-disk merge to complete
-            localFSMergerThread.join();
+            // Wait for the on-disk merges to complete
+            for (LocalFSMerger merger : localFSMergerThreads) {
+              merger.join();
+            }
             LOG.info("Interleaved on-disk merge complete: " + 
                      mapOutputFilesOnDisk.size() + " files left.");
             
@@ -2179,15 +2632,13 @@ class ReduceTask extends Task {
         // closed but not yet present in mapOutputsFilesInMemory
         long fullSize = 0L;
         for (MapOutput mo : mapOutputsFilesInMemory) {
-          fullSize += mo.data.length;
+          fullSize += mo.dataLength;
         }
         while(fullSize > leaveBytes) {
           MapOutput mo = mapOutputsFilesInMemory.remove(0);
-          totalSize += mo.data.length;
-          fullSize -= mo.data.length;
-          Reader<K, V> reader = 
-            new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
-                                     mo.data, 0, mo.data.length);
+          totalSize += mo.dataLength;
+          fullSize -= mo.dataLength;
+          Reader<K, V> reader = mo.getInMemoryReader();
           Segment<K, V> segment = 
             new Segment<K, V>(reader, true);
           inMemorySegments.add(segment);
@@ -2367,7 +2818,7 @@ class ReduceTask extends Task {
     private void addToMapOutputFilesOnDisk(FileStatus status) {
       synchronized (mapOutputFilesOnDisk) {
         mapOutputFilesOnDisk.add(status);
-        mapOutputFilesOnDisk.notify();
+        mapOutputFilesOnDisk.notifyAll();
       }
     }
     
@@ -2380,9 +2831,10 @@ class ReduceTask extends Task {
     private class LocalFSMerger extends Thread {
       private LocalFileSystem localFileSys;
 
-      public LocalFSMerger(LocalFileSystem fs) {
+      public LocalFSMerger(LocalFileSystem fs, int id) {
         this.localFileSys = fs;
-        setName("Thread for merging on-disk files");
+        setName("Thread for merging on-disk files" +
+                (numLocalFSMergers > 1 ? " #" + id : ""));
         setDaemon(true);
       }
 
@@ -2391,27 +2843,27 @@ class ReduceTask extends Task {
         try {
           LOG.info(reduceTask.getTaskID() + " Thread started: " + getName());
           while(!exitLocalFSMerge){
+            List<Path> mapFiles = new ArrayList<Path>();
+            long approxOutputSize = 0;
+            int bytesPerSum = 
+              reduceTask.getConf().getInt("io.bytes.per.checksum", 512);
+            // Wait and pick the files under the same lock, as other on-disk
+            // merges may be picking files too
             synchronized (mapOutputFilesOnDisk) {
               while (!exitLocalFSMerge &&
                   mapOutputFilesOnDisk.size() < (2 * ioSortFactor - 1)) {
                 LOG.info(reduceTask.getTaskID() + " Thread waiting: " + getName());
                 mapOutputFilesOnDisk.wait();
               }
-            }
-            if(exitLocalFSMerge) {//to avoid running one extra time in the end
-              break;
-            }
-            List<Path> mapFiles = new ArrayList<Path>();
-            long approxOutputSize = 0;
-            int bytesPerSum = 
-              reduceTask.getConf().getInt("io.bytes.per.checksum", 512);
-            LOG.info(reduceTask.getTaskID() + "We have  " + 
-                mapOutputFilesOnDisk.size() + " map outputs on disk. " +
-                "Triggering merge of " + ioSortFactor + " files");
-            // 1. Prepare the list of files to be merged. This list is prepared
-            // using a list of map output files on disk. Currently we merge
-            // io.sort.factor files into 1.
-            synchronized (mapOutputFilesOnDisk) {
+              if(exitLocalFSMerge) {//to avoid running one extra time in the end
+                break;
+              }
+              LOG.info(reduceTask.getTaskID() + "We have  " + 
+                  mapOutputFilesOnDisk.size() + " map outputs on disk. " +
+                  "Triggering merge of " + ioSortFactor + " files");
+              // 1. Prepare the list of files to be merged. This list is
+              // prepared using a list of map output files on disk. Currently
+              // we merge io.sort.factor files into 1.
               for (int i = 0; i < ioSortFactor; ++i) {
                 FileStatus filestatus = mapOutputFilesOnDisk.first();
                 mapOutputFilesOnDisk.remove(filestatus);
@@ -2602,12 +3054,22 @@ class ReduceTask extends Task {
         
         do {
           try {
+            long start = System.currentTimeMillis();
+            int numNewEvents = fromEventId.get();
             int numNewMaps = getMapCompletionEvents();
+            numNewEvents = fromEventId.get() - numNewEvents;
             if (numNewMaps > 0) {
               LOG.info(reduceTask.getTaskID() + ": " +  
                   "Got " + numNewMaps + " new map-outputs"); 
             }
-            Thread.sleep(SLEEP_TIME);
+            // The tasktracker holds the call until there are new events, so
+            // only sleep when it came back early with none
+            if (numNewEvents <= 0) {
+              long elapsed = System.currentTimeMillis() - start;
+              if (elapsed < SLEEP_TIME) {
+                Thread.sleep(SLEEP_TIME - elapsed);
+              }
+            }
           } 
           catch (InterruptedException e) {
             LOG.warn(reduceTask.getTaskID() +
@@ -0,0 +1,667 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Serves map outputs to reduce tasks without copying them through the heap.
+ *
+ * The server speaks just enough HTTP for the requests reducers make of
+ * {@link TaskTracker.MapOutputServlet}: a GET of
+ * <code>/mapOutput?job=...&map=...&reduce=...</code>, answered with the same
+ * headers ({@link MRConstants#FROM_MAP_TASK},
+ * {@link MRConstants#RAW_MAP_OUTPUT_LENGTH} and so on) and then the
+ * segment of the map output file for that reduce. A single thread accepts
+ * connections and services them all over non-blocking sockets, sending the
+ * segments with {@link FileChannel#transferTo}, which the operating system
+ * can implement without copying the data into user space. Connections from
+ * HTTP/1.1 clients are kept open for further requests.
+ *
+ * A request may name several maps, separated by commas, to fetch all of
+ * their outputs for the reduce at once. Each is then preceded in the
+ * response by a {@link ShuffleHeader} in place of the http headers.
+ *
+ * Finding and opening the map outputs, which reads their index files, and
+ * reporting lost outputs to the tracker happen on a small pool of worker
+ * threads (<code>tasktracker.shuffle.nio.threads</code>). The workers hand
+ * the opened outputs back to the server thread, so a slow disk or a busy
+ * tracker holds up only the requests waiting on it.
+ */
+class ShuffleServer implements Runnable {
+  private static final Log LOG = LogFactory.getLog(ShuffleServer.class);
+
+  private static final int MAX_REQUEST_LENGTH = 8 * 1024;
+  private static final String CRLF = "\r\n";
+
+  private final TaskTracker tracker;
+  private final JobConf conf;
+  private final LocalDirAllocator lDirAlloc;
+  private final TaskTracker.ShuffleServerMetrics shuffleMetrics;
+
+  private final Selector selector;
+  private final ServerSocketChannel acceptor;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  // opens map outputs and reports lost ones, off the server thread
+  private final ExecutorService openers;
+  // requests whose map outputs are open, to be answered by the server thread
+  private final ConcurrentLinkedQueue<OpenedRequest> opened =
+    new ConcurrentLinkedQueue<OpenedRequest>();
+
+  ShuffleServer(TaskTracker tracker, JobConf conf,
+                LocalDirAllocator lDirAlloc,
+                TaskTracker.ShuffleServerMetrics shuffleMetrics,
+                InetSocketAddress address) throws IOException {
+    this.tracker = tracker;
+    this.conf = conf;
+    this.lDirAlloc = lDirAlloc;
+    this.shuffleMetrics = shuffleMetrics;
+    selector = Selector.open();
+    acceptor = ServerSocketChannel.open();
+    acceptor.socket().setReuseAddress(true);
+    acceptor.socket().bind(address, 128);
+    acceptor.configureBlocking(false);
+    acceptor.register(selector, SelectionKey.OP_ACCEPT);
+    thread = new Thread(this, "Shuffle server on port " + getPort());
+    thread.setDaemon(true);
+    int threads = conf.getInt("tasktracker.shuffle.nio.threads", 4);
+    if (threads < 1) {
+      throw new IOException("Invalid tasktracker.shuffle.nio.threads: " +
+                            threads);
+    }
+    final int port = getPort();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private int count = 0;
+          public synchronized Thread newThread(Runnable r) {
+            Thread worker = new Thread(r, "Shuffle server on port " + port +
+                                       " worker #" + count++);
+            worker.setDaemon(true);
+            return worker;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    openers = pool;
+  }
+
+  void start() {
+    thread.start();
+    LOG.info("Shuffle server listening on port " + getPort());
+  }
+
+  int getPort() {
+    return acceptor.socket().getLocalPort();
+  }
+
+  void stop() {
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        OpenedRequest request;
+        while ((request = opened.poll()) != null) {
+          try {
+            request.connection.opened(request);
+          } catch (IOException ie) {
+            request.connection.fail(ie);
+          } catch (RuntimeException re) {
+            request.connection.fail(re);
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read();
+            } else if (key.isWritable()) {
+              connection.write();
+            }
+          } catch (IOException ie) {
+            connection.fail(ie);
+          } catch (RuntimeException re) {
+            connection.fail(re);
+          }
+        }
+      }
+    } catch (IOException ie) {
+      LOG.error("Shuffle server failed: " + StringUtils.stringifyException(ie));
+    } finally {
+      openers.shutdownNow();
+      OpenedRequest request;
+      while ((request = opened.poll()) != null) {
+        request.close();
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      try {
+        acceptor.close();
+        selector.close();
+      } catch (IOException ie) {
+        LOG.warn("Error closing shuffle server", ie);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = acceptor.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(channel, key));
+    }
+  }
+
+  /**
+   * The state of one client connection: the request being read, then the
+   * response headers and the map outputs being sent.
+   */
+  private class Connection {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+    private ByteBuffer response;
+    private boolean keepAlive;
+
+    // the map outputs still to be sent, in order
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    // whether the request being answered names several maps
+    private boolean batch;
+    // whether a request is counted as busy in the shuffle metrics
+    private boolean busy = false;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+
+    void read() throws IOException {
+      if (channel.read(request) < 0) {
+        close();
+        return;
+      }
+      handleRequest();
+    }
+
+    /**
+     * Starts responding to the buffered request, if it is complete.
+     */
+    private void handleRequest() throws IOException {
+      int end = findEndOfHeaders();
+      if (end < 0) {
+        if (!request.hasRemaining()) {
+          sendError(400, "Request too long");
+        }
+        return;
+      }
+      String header = new String(request.array(), 0, end, "ISO-8859-1");
+      // keep anything the client has already sent after this request
+      request.flip();
+      request.position(end + 4);
+      request.compact();
+
+      String[] lines = header.split(CRLF);
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+        sendError(400, "Bad request: " + lines[0]);
+        return;
+      }
+      keepAlive = "HTTP/1.1".equals(requestLine[2]);
+      for (int i = 1; i < lines.length; ++i) {
+        int colon = lines[i].indexOf(':');
+        if (colon > 0 &&
+            "connection".equalsIgnoreCase(lines[i].substring(0, colon)) &&
+            "close".equalsIgnoreCase(lines[i].substring(colon + 1).trim())) {
+          keepAlive = false;
+        }
+      }
+
+      String uri = requestLine[1];
+      int query = uri.indexOf('?');
+      String path = query < 0 ? uri : uri.substring(0, query);
+      if (!"/mapOutput".equals(path)) {
+        sendError(404, "Not found: " + path);
+        return;
+      }
+      Map<String, String> params =
+        parseQuery(query < 0 ? "" : uri.substring(query + 1));
+      String jobId = params.get("job");
+      String mapIds = params.get("map");
+      String reduceId = params.get("reduce");
+      if (jobId == null) {
+        sendError(400, "job parameter is required");
+        return;
+      }
+      if (mapIds == null || reduceId == null) {
+        sendError(400, "map and reduce parameters are required");
+        return;
+      }
+      int reduce;
+      try {
+        reduce = Integer.parseInt(reduceId);
+      } catch (NumberFormatException e) {
+        sendError(400, "Bad reduce parameter: " + reduceId);
+        return;
+      }
+
+      // several maps are sent as a batch, each preceded by a ShuffleHeader
+      final String[] maps = mapIds.split(",");
+      batch = maps.length > 1;
+      shuffleMetrics.serverHandlerBusy();
+      busy = true;
+      // read no further requests until this one is answered
+      key.interestOps(0);
+      final String job = jobId;
+      final int forReduce = reduce;
+      openers.execute(new Runnable() {
+        public void run() {
+          open(job, maps, forReduce);
+        }
+      });
+    }
+
+    /**
+     * Opens the requested map outputs, on a worker thread, and hands them
+     * to the server thread to send. Outputs that cannot be read are then
+     * reported to the tracker as lost.
+     */
+    private void open(String jobId, String[] maps, int reduce) {
+      OpenedRequest request = new OpenedRequest(this);
+      Map<String, String> lost = new LinkedHashMap<String, String>();
+      try {
+        for (String mapId : maps) {
+          try {
+            request.segments.add(new Segment(jobId, mapId, reduce));
+          } catch (IOException ie) {
+            String errorMsg = ("getMapOutput(" + mapId + "," + reduce +
+                               ") failed :\n" +
+                               StringUtils.stringifyException(ie));
+            LOG.warn(errorMsg);
+            shuffleMetrics.failedOutput();
+            lost.put(mapId, errorMsg);
+            if (!batch) {
+              request.errorCode = 410;
+              request.error = errorMsg;
+              break;
+            }
+            request.segments.add(new Segment(mapId, reduce));
+          }
+        }
+      } catch (RuntimeException re) {
+        String errorMsg = StringUtils.stringifyException(re);
+        LOG.warn("Error opening map outputs for reduce " + reduce + ": " +
+                 errorMsg);
+        request.errorCode = 500;
+        request.error = errorMsg;
+      }
+      opened.add(request);
+      selector.wakeup();
+      for (Map.Entry<String, String> e : lost.entrySet()) {
+        try {
+          tracker.mapOutputLost(TaskAttemptID.forName(e.getKey()),
+                                e.getValue());
+        } catch (IOException ie) {
+          LOG.warn("Error reporting lost map output " + e.getKey() + ": " +
+                   StringUtils.stringifyException(ie));
+        }
+      }
+    }
+
+    /**
+     * Answers a request whose map outputs a worker has opened.
+     */
+    void opened(OpenedRequest request) throws IOException {
+      if (!channel.isOpen()) {
+        request.close();
+        return;
+      }
+      if (request.error != null) {
+        request.close();
+        requestDone();
+        sendError(request.errorCode, request.error);
+        return;
+      }
+      long contentLength = 0;
+      for (Segment segment : request.segments) {
+        if (batch) {
+          segment.writeHeader();
+          contentLength += segment.header.remaining();
+        }
+        contentLength += segment.remaining;
+        segments.add(segment);
+      }
+
+      StringBuilder headers = new StringBuilder();
+      headers.append("HTTP/1.1 200 OK").append(CRLF);
+      headers.append("Content-Type: application/octet-stream").append(CRLF);
+      headers.append("Content-Length: ").append(contentLength).append(CRLF);
+      if (!batch) {
+        Segment segment = segments.getFirst();
+        headers.append(MRConstants.FROM_MAP_TASK).append(": ")
+               .append(segment.mapId).append(CRLF);
+        headers.append(MRConstants.RAW_MAP_OUTPUT_LENGTH).append(": ")
+               .append(segment.rawLength).append(CRLF);
+        headers.append(MRConstants.MAP_OUTPUT_LENGTH).append(": ")
+               .append(segment.remaining).append(CRLF);
+        headers.append(MRConstants.FOR_REDUCE_TASK).append(": ")
+               .append(segment.reduce).append(CRLF);
+      }
+      if (!keepAlive) {
+        headers.append("Connection: close").append(CRLF);
+      }
+      headers.append(CRLF);
+      respond(headers.toString());
+    }
+
+    /**
+     * Returns the offset of the blank line ending the request headers, or
+     * -1 if it has not been read yet.
+     */
+    private int findEndOfHeaders() {
+      byte[] b = request.array();
+      for (int i = 0; i + 3 < request.position(); ++i) {
+        if (b[i] == '\r' && b[i + 1] == '\n' &&
+            b[i + 2] == '\r' && b[i + 3] == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void sendError(int code, String message) throws IOException {
+      keepAlive = false;
+      byte[] body = message.getBytes("UTF-8");
+      respond("HTTP/1.1 " + code + " " + reason(code) + CRLF +
+              "Content-Type: text/plain; charset=utf-8" + CRLF +
+              "Content-Length: " + body.length + CRLF +
+              "Connection: close" + CRLF + CRLF + message);
+    }
+
+    private void respond(String headers) throws IOException {
+      response = ByteBuffer.wrap(headers.getBytes("UTF-8"));
+      key.interestOps(SelectionKey.OP_WRITE);
+      write();
+    }
+
+    void write() throws IOException {
+      if (response.hasRemaining()) {
+        channel.write(response);
+        if (response.hasRemaining()) {
+          return;
+        }
+      }
+      while (!segments.isEmpty()) {
+        Segment segment = segments.getFirst();
+        if (!segment.write()) {
+          // the socket buffer is full
+          return;
+        }
+        segments.removeFirst();
+        segment.close(true);
+      }
+      requestDone();
+      if (!keepAlive) {
+        close();
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (request.position() > 0) {
+        handleRequest();
+      }
+    }
+
+    private void requestDone() {
+      if (busy) {
+        shuffleMetrics.serverHandlerFree();
+        busy = false;
+      }
+    }
+
+    /**
+     * Gives up on a connection whose socket failed.
+     */
+    void fail(Exception e) {
+      if (!(e instanceof ClosedChannelException)) {
+        LOG.warn("Shuffle to " + channel.socket().getRemoteSocketAddress() +
+                 " failed: " + StringUtils.stringifyException(e));
+      }
+      close();
+    }
+
+    void close() {
+      for (Segment segment : segments) {
+        segment.close(false);
+      }
+      segments.clear();
+      requestDone();
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ie) {
+        LOG.warn("Error closing shuffle connection", ie);
+      }
+    }
+
+    /**
+     * The part of a map output file for the requested reduce.
+     */
+    private class Segment {
+      final String mapId;
+      final int reduce;
+      final long rawLength;
+      ByteBuffer header;          // the ShuffleHeader, in a batch
+      FileChannel mapOutput;      // null if the map output was lost
+      long position;
+      long remaining;
+      long sent = 0;
+
+      Segment(String jobId, String mapId, int reduce) throws IOException {
+        this.mapId = mapId;
+        this.reduce = reduce;
+        // Index file
+        Path indexFileName = lDirAlloc.getLocalPathToRead(
+            TaskTracker.getIntermediateOutputDir(jobId, mapId)
+            + "/file.out.index", conf);
+        // Map-output file
+        Path mapOutputFileName = lDirAlloc.getLocalPathToRead(
+            TaskTracker.getIntermediateOutputDir(jobId, mapId)
+            + "/file.out", conf);
+        IndexRecord info = tracker.getIndexCache().getIndexInformation(
+            mapId, reduce, indexFileName);
+        mapOutput = new RandomAccessFile(
+            new File(mapOutputFileName.toUri().getPath()), "r").getChannel();
+        if (mapOutput.size() < info.startOffset + info.partLength) {
+          long size = mapOutput.size();
+          mapOutput.close();
+          throw new IOException("Map output " + mapOutputFileName +
+              " is only " + size + " bytes, expected " +
+              (info.startOffset + info.partLength));
+        }
+        rawLength = info.rawLength;
+        position = info.startOffset;
+        remaining = info.partLength;
+      }
+
+      /** A map output that could not be read. */
+      Segment(String mapId, int reduce) {
+        this.mapId = mapId;
+        this.reduce = reduce;
+        rawLength = -1;
+        remaining = 0;
+      }
+
+      void writeHeader() throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new ShuffleHeader(mapId, mapOutput == null ? -1 : remaining,
+                          rawLength, reduce).write(out);
+        header = ByteBuffer.wrap(out.getData(), 0, out.getLength());
+      }
+
+      /**
+       * Sends as much of the segment as the socket takes.
+       * @return whether all of it has been sent
+       */
+      boolean write() throws IOException {
+        if (header != null && header.hasRemaining()) {
+          channel.write(header);
+          if (header.hasRemaining()) {
+            return false;
+          }
+        }
+        while (remaining > 0) {
+          long n = mapOutput.transferTo(position, remaining, channel);
+          if (n == 0) {
+            return false;
+          }
+          shuffleMetrics.outputBytes(n);
+          position += n;
+          remaining -= n;
+          sent += n;
+        }
+        return true;
+      }
+
+      void close(boolean success) {
+        if (mapOutput == null) {
+          return;
+        }
+        try {
+          mapOutput.close();
+        } catch (IOException ie) {
+          LOG.warn("Error closing map output of " + mapId, ie);
+        }
+        mapOutput = null;
+        if (success) {
+          LOG.info("Sent out " + sent + " bytes for reduce: " + reduce +
+                   " from map: " + mapId);
+          shuffleMetrics.successOutput();
+        } else {
+          shuffleMetrics.failedOutput();
+        }
+        if (TaskTracker.ClientTraceLog.isInfoEnabled()) {
+          TaskTracker.ClientTraceLog.info(String.format(
+              TaskTracker.MR_CLIENTTRACE_FORMAT,
+              channel.socket().getLocalSocketAddress(),
+              channel.socket().getRemoteSocketAddress(),
+              sent, "MAPRED_SHUFFLE", mapId));
+        }
+      }
+    }
+  }
+
+  /**
+   * The map outputs a worker opened for a request, or the error to answer
+   * it with.
+   */
+  private static class OpenedRequest {
+    final Connection connection;
+    final LinkedList<Connection.Segment> segments =
+      new LinkedList<Connection.Segment>();
+    int errorCode;
+    String error;
+
+    OpenedRequest(Connection connection) {
+      this.connection = connection;
+    }
+
+    /** Closes the outputs of a request that will not be answered. */
+    void close() {
+      for (Connection.Segment segment : segments) {
+        segment.close(false);
+      }
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query)
+  throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) {
+        params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                   URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static String reason(int code) {
+    switch (code) {
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 410: return "Gone";
+      case 500: return "Internal Server Error";
+      default: return "Error";
+    }
+  }
+}
@@ -17,6 +17,7 @@
  */
  package org.apache.hadoop.mapred;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -61,6 +62,7 @@ import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.http.HttpServer;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.ipc.RemoteException;
@@ -236,11 +238,12 @@ public class TaskTracker
             Collections.synchronizedList(new ArrayList<TaskAttemptID>());
 
   private ShuffleServerMetrics shuffleServerMetrics;
+  private ShuffleServer shuffleServer;
   /** This class contains the methods that should be used for metrics-reporting
    * the specific metrics for shuffle. The TaskTracker is actually a server for
    * the shuffle and hence the name ShuffleServerMetrics.
    */
-  private class ShuffleServerMetrics implements Updater {
+  class ShuffleServerMetrics implements Updater {
     private MetricsRecord shuffleMetricsRecord = null;
     private int serverHandlerBusy = 0;
     private long outputBytes = 0;
@@ -560,12 +563,19 @@ public class TaskTracker
     this.fConf.deleteLocalFiles();
   }
 
+  /** How long a reduce waits at the tracker for new map events. */
+  private static final long MAP_EVENTS_WAIT_TIME = 1000;
+
   // Object on wait which MapEventsFetcherThread is going to wait.
   private Object waitingOn = new Object();
 
   private class MapEventsFetcherThread extends Thread {
 
-    private List <FetchStatus> reducesInShuffle() {
+    /**
+     * The fetch status of each running job with a reduce in shuffle.
+     * Callers must hold the lock on runningJobs.
+     */
+    List <FetchStatus> reducesInShuffle() {
       List <FetchStatus> fList = new ArrayList<FetchStatus>();
       for (Map.Entry <JobID, RunningJob> item : runningJobs.entrySet()) {
         RunningJob rjob = item.getValue();
@@ -679,6 +689,7 @@ public class TaskTracker
         synchronized (allMapEvents) {
           fromEventId.set(0); // set the new index for TCE
           allMapEvents.clear();
+          allMapEvents.notifyAll();
         }
       }
     }
@@ -716,9 +727,7 @@ public class TaskTracker
         currFromEventId = fromEventId.get();
         List <TaskCompletionEvent> recentMapEvents = 
           queryJobTracker(fromEventId, jobId, jobClient);
-        synchronized (allMapEvents) {
-          allMapEvents.addAll(recentMapEvents);
-        }
+        addMapEvents(recentMapEvents);
         lastFetchTime = currTime;
         if (fromEventId.get() - currFromEventId >= probe_sample_size) {
           //return true when we have fetched the full payload, indicating
@@ -731,6 +740,74 @@ public class TaskTracker
       fetchAgain = false;
       return false;
     }
+
+    /**
+     * The id of the next event to ask the JobTracker for.
+     */
+    public int getFromEventId() {
+      synchronized (fromEventId) {
+        return fromEventId.get();
+      }
+    }
+
+    /**
+     * Take the task completion events that the JobTracker sent in a
+     * heartbeat response. They are dropped unless they start at the event
+     * we now want, as after a reset or from a resent response.
+     */
+    public void addTaskCompletionEvents(int fromId, TaskCompletionEvent[] t,
+                                        long currTime) {
+      boolean more;
+      synchronized (fromEventId) {
+        if (fromEventId.get() != fromId) {
+          return;
+        }
+        List <TaskCompletionEvent> recentMapEvents = 
+          new ArrayList<TaskCompletionEvent>();
+        for (int i = 0; i < t.length; i++) {
+          if (t[i].isMap) {
+            recentMapEvents.add(t[i]);
+          }
+        }
+        fromEventId.set(fromId + t.length);
+        addMapEvents(recentMapEvents);
+        lastFetchTime = currTime;
+        // the fetcher picks up the rest if the response was full
+        fetchAgain = t.length >= HEARTBEAT_EVENTS_MAX;
+        more = fetchAgain;
+      }
+      if (more) {
+        synchronized (waitingOn) {
+          waitingOn.notify();
+        }
+      }
+    }
+
+    /**
+     * Wait a while for events after the given one, then return them.
+     */
+    public TaskCompletionEvent[] waitForMapEvents(int fromId, int max,
+                                                  long timeout)
+    throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      synchronized (allMapEvents) {
+        long remaining = timeout;
+        while (allMapEvents.size() <= fromId && remaining > 0) {
+          allMapEvents.wait(remaining);
+          remaining = end - System.currentTimeMillis();
+        }
+      }
+      return getMapEvents(fromId, max);
+    }
+
+    private void addMapEvents(List<TaskCompletionEvent> recentMapEvents) {
+      synchronized (allMapEvents) {
+        allMapEvents.addAll(recentMapEvents);
+        if (!recentMapEvents.isEmpty()) {
+          allMapEvents.notifyAll();
+        }
+      }
+    }
   }
 
   private LocalDirAllocator lDirAlloc = 
@@ -847,6 +924,10 @@ public class TaskTracker
         LOG.warn("Exception shutting down TaskTracker", e);
       }
     }
+    if (shuffleServer != null) {
+      LOG.info("Shutting down shuffle server");
+      shuffleServer.stop();
+    }
   }
   /**
    * Close down the TaskTracker and all its components.  We must also shutdown
@@ -936,9 +1017,28 @@ public class TaskTracker
     server.start();
     this.httpPort = server.getPort();
     checkJettyPort(httpPort);
+    if (conf.getBoolean("tasktracker.shuffle.nio", false)) {
+      InetSocketAddress shuffleAddr = new InetSocketAddress(httpBindAddress,
+          conf.getInt("tasktracker.shuffle.port", 0));
+      shuffleServer = new ShuffleServer(this, conf, localDirAllocator,
+          shuffleServerMetrics, shuffleAddr);
+      shuffleServer.start();
+    }
     initialize();
   }
 
+  IndexCache getIndexCache() {
+    return indexCache;
+  }
+
+  /**
+   * The port of the non-blocking shuffle server, or -1 if map outputs are
+   * served by the {@link MapOutputServlet} itself.
+   */
+  int getShufflePort() {
+    return shuffleServer == null ? -1 : shuffleServer.getPort();
+  }
+
   private void checkJettyPort(int port) throws IOException { 
     //See HADOOP-4744
     if (port < 0) {
@@ -1078,6 +1178,25 @@ public class TaskTracker
           }
         }
         
+        // Hand the new map events over to the reduces in shuffle
+        for (Map.Entry<JobID, HeartbeatResponse.JobEvents> entry :
+               heartbeatResponse.getTaskCompletionEvents().entrySet()) {
+          FetchStatus f = null;
+          synchronized (runningJobs) {
+            RunningJob rjob = runningJobs.get(entry.getKey());
+            if (rjob != null) {
+              synchronized (rjob) {
+                f = rjob.getFetchStatus();
+              }
+            }
+          }
+          if (f != null) {
+            f.addTaskCompletionEvents(entry.getValue().fromEventId,
+                                      entry.getValue().events,
+                                      lastHeartbeat);
+          }
+        }
+
         TaskTrackerAction[] actions = heartbeatResponse.getActions();
         if(LOG.isDebugEnabled()) {
           LOG.debug("Got heartbeatResponse from JobTracker with responseId: " + 
@@ -1214,6 +1333,16 @@ public class TaskTracker
           reduceSlotSizeMemoryOnTT);
     }
       
+    // Ask for the events of the jobs being shuffled; these may have moved on
+    // since a resent 'status' was built
+    Map<JobID, Integer> cursors = new HashMap<JobID, Integer>();
+    synchronized (runningJobs) {
+      for (FetchStatus f : mapEventsFetcher.reducesInShuffle()) {
+        cursors.put(f.jobId, f.getFromEventId());
+      }
+    }
+    status.setMapEventCursors(cursors);
+
     //
     // Xmit the heartbeat
     //
@@ -2637,7 +2766,7 @@ public class TaskTracker
     purgeTask(tip, true);
   }
 
-  public synchronized MapTaskCompletionEventsUpdate getMapCompletionEvents(
+  public MapTaskCompletionEventsUpdate getMapCompletionEvents(
       JobID jobId, int fromEventId, int maxLocs, TaskAttemptID id) 
   throws IOException {
     TaskCompletionEvent[]mapEvents = TaskCompletionEvent.EMPTY_ARRAY;
@@ -2647,17 +2776,25 @@ public class TaskTracker
       }
     }
     RunningJob rjob;
+    FetchStatus f = null;
     synchronized (runningJobs) {
       rjob = runningJobs.get(jobId);          
       if (rjob != null) {
         synchronized (rjob) {
-          FetchStatus f = rjob.getFetchStatus();
-          if (f != null) {
-            mapEvents = f.getMapEvents(fromEventId, maxLocs);
-          }
+          f = rjob.getFetchStatus();
         }
       }
     }
+    if (f != null) {
+      // Rather than have the reduce poll, wait here for the events to
+      // arrive; there is a handler for each task, so this holds none up.
+      try {
+        mapEvents = f.waitForMapEvents(fromEventId, maxLocs,
+                                       MAP_EVENTS_WAIT_TIME);
+      } catch (InterruptedException ie) {
+        mapEvents = f.getMapEvents(fromEventId, maxLocs);
+      }
+    }
     return new MapTaskCompletionEventsUpdate(mapEvents, false);
   }
     
@@ -2881,6 +3018,24 @@ public class TaskTracker
         throw new IOException("map and reduce parameters are required");
       }
       ServletContext context = getServletContext();
+      TaskTracker tracker = 
+        (TaskTracker) context.getAttribute("task.tracker");
+
+      // send reducers to the non-blocking shuffle server, if there is one
+      int shufflePort = tracker.getShufflePort();
+      if (shufflePort >= 0) {
+        response.sendRedirect("http://" + request.getServerName() + ":" +
+            shufflePort + request.getRequestURI() + "?" +
+            request.getQueryString());
+        return;
+      }
+
+      if (mapId.indexOf(',') >= 0) {
+        sendMapOutputs(request, response, jobId, mapId.split(","),
+                       Integer.parseInt(reduceId));
+        return;
+      }
+
       int reduce = Integer.parseInt(reduceId);
       byte[] buffer = new byte[MAX_BYTES_TO_READ];
       // true iff IOException was caused by attempt to access input
@@ -2891,8 +3046,6 @@ public class TaskTracker
       long totalRead = 0;
       ShuffleServerMetrics shuffleMetrics =
         (ShuffleServerMetrics) context.getAttribute("shuffleServerMetrics");
-      TaskTracker tracker = 
-        (TaskTracker) context.getAttribute("task.tracker");
 
       try {
         shuffleMetrics.serverHandlerBusy();
@@ -2998,6 +3151,105 @@ public class TaskTracker
       outStream.close();
       shuffleMetrics.successOutput();
     }
+
+    /**
+     * Sends the outputs of several maps for a reduce, each preceded by a
+     * {@link ShuffleHeader} in place of the http headers of a single map
+     * output. Map outputs that cannot be found are reported lost and sent
+     * as headers without data.
+     */
+    private void sendMapOutputs(HttpServletRequest request,
+                                HttpServletResponse response,
+                                String jobId, String[] mapIds, int reduce
+                                ) throws IOException {
+      ServletContext context = getServletContext();
+      TaskTracker tracker = 
+        (TaskTracker) context.getAttribute("task.tracker");
+      ShuffleServerMetrics shuffleMetrics =
+        (ShuffleServerMetrics) context.getAttribute("shuffleServerMetrics");
+      JobConf conf = (JobConf) context.getAttribute("conf");
+      LocalDirAllocator lDirAlloc = 
+        (LocalDirAllocator)context.getAttribute("localDirAllocator");
+      FileSystem rfs = ((LocalFileSystem)
+          context.getAttribute("local.file.system")).getRaw();
+      Log log = (Log) context.getAttribute("log");
+      byte[] buffer = new byte[MAX_BYTES_TO_READ];
+
+      try {
+        shuffleMetrics.serverHandlerBusy();
+        response.setBufferSize(MAX_BYTES_TO_READ);
+        DataOutputStream outStream =
+          new DataOutputStream(response.getOutputStream());
+        for (String mapId : mapIds) {
+          IndexRecord info = null;
+          FSDataInputStream mapOutputIn = null;
+          long totalRead = 0;
+          try {
+            Path indexFileName = lDirAlloc.getLocalPathToRead(
+                TaskTracker.getIntermediateOutputDir(jobId, mapId)
+                + "/file.out.index", conf);
+            Path mapOutputFileName = lDirAlloc.getLocalPathToRead(
+                TaskTracker.getIntermediateOutputDir(jobId, mapId)
+                + "/file.out", conf);
+            info = tracker.indexCache.getIndexInformation(mapId, reduce,
+                                                          indexFileName);
+            mapOutputIn = rfs.open(mapOutputFileName);
+            mapOutputIn.seek(info.startOffset);
+          } catch (IOException ie) {
+            IOUtils.closeStream(mapOutputIn);
+            String errorMsg = ("getMapOutput(" + mapId + "," + reduce + 
+                               ") failed :\n"+
+                               StringUtils.stringifyException(ie));
+            log.warn(errorMsg);
+            tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+            shuffleMetrics.failedOutput();
+            new ShuffleHeader(mapId, -1, -1, reduce).write(outStream);
+            continue;
+          }
+
+          try {
+            new ShuffleHeader(mapId, info.partLength, info.rawLength,
+                              reduce).write(outStream);
+            long rem = info.partLength;
+            while (rem > 0) {
+              int len = mapOutputIn.read(buffer, 0,
+                                         (int)Math.min(rem, MAX_BYTES_TO_READ));
+              if (len < 0) {
+                // the reducer notices the truncated response
+                String errorMsg = "Map output of " + mapId + " ended " +
+                  rem + " bytes early";
+                log.warn(errorMsg);
+                tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+                throw new IOException(errorMsg);
+              }
+              rem -= len;
+              shuffleMetrics.outputBytes(len);
+              outStream.write(buffer, 0, len);
+              totalRead += len;
+            }
+            outStream.flush();
+            shuffleMetrics.successOutput();
+            LOG.info("Sent out " + totalRead + " bytes for reduce: " + reduce +
+                     " from map: " + mapId + " given " + info.partLength +
+                     "/" + info.rawLength);
+          } catch (IOException ie) {
+            shuffleMetrics.failedOutput();
+            throw ie;
+          } finally {
+            mapOutputIn.close();
+            if (ClientTraceLog.isInfoEnabled()) {
+              ClientTraceLog.info(String.format(MR_CLIENTTRACE_FORMAT,
+                    request.getLocalAddr() + ":" + request.getLocalPort(),
+                    request.getRemoteAddr() + ":" + request.getRemotePort(),
+                    totalRead, "MAPRED_SHUFFLE", mapId));
+            }
+          }
+        }
+        outStream.close();
+      } finally {
+        shuffleMetrics.serverHandlerFree();
+      }
+    }
   }
 
   // get the full paths of the directory in all the local disks.
@@ -185,6 +185,7 @@ class TaskTrackerStatus implements Writable {
   }
   
   private ResourceStatus resStatus;
+  private Map<JobID, Integer> mapEventCursors = new HashMap<JobID, Integer>();
   
   /**
    */
@@ -318,6 +319,19 @@ class TaskTrackerStatus implements Writable {
     return resStatus;
   }
   
+  /**
+   * Set the ids of the next task completion events that this tracker wants
+   * for the jobs whose reduces it is shuffling for. The {@link JobTracker}
+   * sends these events back in its heartbeat response.
+   */
+  void setMapEventCursors(Map<JobID, Integer> cursors) {
+    mapEventCursors = cursors;
+  }
+
+  Map<JobID, Integer> getMapEventCursors() {
+    return mapEventCursors;
+  }
+
   ///////////////////////////////////////////
   // Writable
   ///////////////////////////////////////////
@@ -334,6 +348,11 @@ class TaskTrackerStatus implements Writable {
     for (TaskStatus taskStatus : taskReports) {
       TaskStatus.writeTaskStatus(out, taskStatus);
     }
+    WritableUtils.writeVInt(out, mapEventCursors.size());
+    for (Map.Entry<JobID, Integer> cursor : mapEventCursors.entrySet()) {
+      cursor.getKey().write(out);
+      WritableUtils.writeVInt(out, cursor.getValue());
+    }
   }
 
   public void readFields(DataInput in) throws IOException {
@@ -350,5 +369,12 @@ class TaskTrackerStatus implements Writable {
     for (int i = 0; i < numTasks; i++) {
       taskReports.add(TaskStatus.readTaskStatus(in));
     }
+    mapEventCursors = new HashMap<JobID, Integer>();
+    int numCursors = WritableUtils.readVInt(in);
+    for (int i = 0; i < numCursors; i++) {
+      JobID jobId = new JobID();
+      jobId.readFields(in);
+      mapEventCursors.put(jobId, WritableUtils.readVInt(in));
+    }
   }
 }
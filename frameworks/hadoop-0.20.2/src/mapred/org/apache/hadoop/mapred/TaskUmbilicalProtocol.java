@@ -136,7 +136,8 @@ interface TaskUmbilicalProtocol extends VersionedProtocol {
    * Returns an update centered around the map-task-completion-events. 
    * The update also piggybacks the information whether the events copy at the 
    * task-tracker has changed or not. This will trigger some action at the 
-   * child-process.
+   * child-process. If there are no events after <code>fromIndex</code> yet,
+   * the call may wait a short while for some to arrive.
    *
    * @param taskId the reduce task id
    * @param fromIndex the index starting from which the locations should be 
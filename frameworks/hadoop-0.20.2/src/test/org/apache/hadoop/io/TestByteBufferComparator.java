@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the ByteBufferComparators order keys in buffers the same way
+ * as their raw comparisons order them in byte arrays.
+ */
+public class TestByteBufferComparator extends TestCase {
+
+  private static final int KEYS = 300;
+
+  private final Random random = new Random(0xDEADBEEFL);
+
+  private static byte[] serialize(Writable w) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    w.write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+    return bytes;
+  }
+
+  private byte[] randomBytes() {
+    // small alphabet, including 0 and 0xff, for many shared prefixes; long
+    // enough to compare several bytes at a time
+    byte[] bytes = new byte[random.nextInt(24)];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte)(random.nextInt(3) - 1);
+    }
+    return bytes;
+  }
+
+  private static int signum(int order) {
+    return order < 0 ? -1 : (order > 0 ? 1 : 0);
+  }
+
+  /**
+   * Copy the keys into a direct buffer, one after another from an odd
+   * offset, and check every pair of them.
+   */
+  private static void checkOrder(ByteBufferComparator<?> comparator,
+                                 byte[][] keys, ByteOrder order) {
+    int[] offsets = new int[keys.length];
+    int length = 1;
+    for (int i = 0; i < keys.length; ++i) {
+      offsets[i] = length;
+      length += keys[i].length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(order);
+    for (int i = 0; i < keys.length; ++i) {
+      buffer.position(offsets[i]);
+      buffer.put(keys[i]);
+    }
+    buffer.position(0);
+    for (int i = 0; i < keys.length; ++i) {
+      for (int j = 0; j < keys.length; ++j) {
+        byte[] a = keys[i];
+        byte[] b = keys[j];
+        int expected = comparator.compare(a, 0, a.length, b, 0, b.length);
+        int actual = comparator.compare(buffer, offsets[i], a.length,
+                                        buffer, offsets[j], b.length);
+        assertEquals("keys " + i + " and " + j, signum(expected),
+                     signum(actual));
+      }
+    }
+    assertEquals("position changed", 0, buffer.position());
+  }
+
+  private void checkOrder(ByteBufferComparator<?> comparator,
+                          byte[][] keys) {
+    checkOrder(comparator, keys, ByteOrder.BIG_ENDIAN);
+    checkOrder(comparator, keys, ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public void testText() throws Exception {
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      Text text = new Text();
+      text.set(randomBytes());
+      keys[i] = serialize(text);
+    }
+    checkOrder(new Text.Comparator(), keys);
+  }
+
+  public void testBytesWritable() throws Exception {
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = serialize(new BytesWritable(randomBytes()));
+    }
+    checkOrder(new BytesWritable.Comparator(), keys);
+  }
+
+  public void testLongWritable() throws Exception {
+    long[] special = { Long.MIN_VALUE, -1L << 32, -1, 0, 1, 1L << 32,
+                       Long.MAX_VALUE };
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      long value = (i < special.length)
+        ? special[i]
+        : random.nextLong() >> random.nextInt(64);
+      keys[i] = serialize(new LongWritable(value));
+    }
+    checkOrder(new LongWritable.Comparator(), keys);
+    checkOrder(new LongWritable.DecreasingComparator(), keys);
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the prefixes of the PrefixComparators are consistent with
+ * their raw comparisons.
+ */
+public class TestPrefixComparator extends TestCase {
+
+  private static final int KEYS = 1000;
+
+  private final Random random = new Random(0xDEADBEEFL);
+
+  private static byte[] serialize(Writable w) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    w.write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+    return bytes;
+  }
+
+  private byte[] randomBytes() {
+    // small alphabet, including 0 and 0xff, for many shared prefixes
+    byte[] bytes = new byte[random.nextInt(8)];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte)(random.nextInt(3) - 1);
+    }
+    return bytes;
+  }
+
+  private static void checkPrefixes(PrefixComparator<?> comparator,
+                                    byte[][] keys) {
+    for (int i = 0; i < keys.length; ++i) {
+      for (int j = 0; j < keys.length; ++j) {
+        byte[] a = keys[i];
+        byte[] b = keys[j];
+        int order = comparator.compare(a, 0, a.length, b, 0, b.length);
+        int prefixA = comparator.getPrefix(a, 0, a.length);
+        int prefixB = comparator.getPrefix(b, 0, b.length);
+        if (order < 0) {
+          assertTrue("prefixes out of order", prefixA <= prefixB);
+        } else if (order == 0) {
+          assertEquals("prefixes of equal keys differ", prefixA, prefixB);
+        }
+      }
+    }
+  }
+
+  public void testText() throws Exception {
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      Text text = new Text();
+      text.set(randomBytes());
+      keys[i] = serialize(text);
+    }
+    checkPrefixes(new Text.Comparator(), keys);
+  }
+
+  public void testBytesWritable() throws Exception {
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = serialize(new BytesWritable(randomBytes()));
+    }
+    checkPrefixes(new BytesWritable.Comparator(), keys);
+  }
+
+  public void testLongWritable() throws Exception {
+    long[] special = { Long.MIN_VALUE, -1L << 32, -1, 0, 1, 1L << 32,
+                       Long.MAX_VALUE };
+    byte[][] keys = new byte[KEYS][];
+    for (int i = 0; i < keys.length; ++i) {
+      long value = (i < special.length)
+        ? special[i]
+        : random.nextLong() >> random.nextInt(64);
+      keys[i] = serialize(new LongWritable(value));
+    }
+    checkPrefixes(new LongWritable.Comparator(), keys);
+    checkPrefixes(new LongWritable.DecreasingComparator(), keys);
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapred.IFile.Reader;
+import org.apache.hadoop.mapred.IFile.Writer;
+import org.apache.hadoop.util.PriorityQueue;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Benchmarks merging sorted segments from the local disk. It compares a
+ * merge over a binary heap, as {@link Merger} used to do it, with
+ * {@link Merger} and its tournament tree, both reading the segments itself
+ * and reading them ahead on other threads. For each merge factor it writes
+ * that many segments holding the records between them, then times each
+ * merge and counts the key comparisons it makes.
+ * <p>
+ * Usage: mergebench [-factors 10,100] [-records n] [-keysize n]
+ * [-valuesize n] [-threads n] [-runs n] [-codec class] [-dir path]
+ */
+public class MergeBench extends Configured implements Tool {
+
+  /** Counts the comparisons a merge makes. */
+  static class CountingComparator implements RawComparator<Text> {
+    private final RawComparator<Text> comparator;
+    long count = 0;
+
+    @SuppressWarnings("unchecked")
+    CountingComparator() {
+      comparator = WritableComparator.get(Text.class);
+    }
+
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      ++count;
+      return comparator.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    public int compare(Text a, Text b) {
+      ++count;
+      return comparator.compare(a, b);
+    }
+  }
+
+  /** A segment being merged over the heap. */
+  private static class HeapSegment {
+    final Reader<Text, Text> reader;
+    final DataInputBuffer key = new DataInputBuffer();
+    final DataInputBuffer value = new DataInputBuffer();
+
+    HeapSegment(Reader<Text, Text> reader) {
+      this.reader = reader;
+    }
+  }
+
+  /** The binary heap merge that Merger.MergeQueue was built on. */
+  private static class HeapMerge extends PriorityQueue<HeapSegment> {
+    private final RawComparator<Text> comparator;
+
+    HeapMerge(int size, RawComparator<Text> comparator) {
+      initialize(size);
+      this.comparator = comparator;
+    }
+
+    protected boolean lessThan(Object a, Object b) {
+      DataInputBuffer key1 = ((HeapSegment)a).key;
+      DataInputBuffer key2 = ((HeapSegment)b).key;
+      int s1 = key1.getPosition();
+      int l1 = key1.getLength() - s1;
+      int s2 = key2.getPosition();
+      int l2 = key2.getLength() - s2;
+      return comparator.compare(key1.getData(), s1, l1,
+                                key2.getData(), s2, l2) < 0;
+    }
+  }
+
+  private JobConf conf;
+  private FileSystem fs;
+  private CompressionCodec codec = null;
+  private Path dir;
+
+  private static void usage() {
+    System.err.println("Usage: mergebench [-factors 10,100] [-records n] " +
+                       "[-keysize n] [-valuesize n] [-threads n] [-runs n] " +
+                       "[-codec class] [-dir path]");
+  }
+
+  public int run(String[] args) throws Exception {
+    String factors = "10,100";
+    int records = 1000000;
+    int keySize = 10;
+    int valueSize = 90;
+    int threads = 2;
+    int runs = 3;
+    conf = new JobConf(getConf(), MergeBench.class);
+    dir = new Path(System.getProperty("test.build.data", "/tmp"),
+                   "MergeBench");
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        if ("-factors".equals(args[i])) {
+          factors = args[++i];
+        } else if ("-records".equals(args[i])) {
+          records = Integer.parseInt(args[++i]);
+        } else if ("-keysize".equals(args[i])) {
+          keySize = Integer.parseInt(args[++i]);
+        } else if ("-valuesize".equals(args[i])) {
+          valueSize = Integer.parseInt(args[++i]);
+        } else if ("-threads".equals(args[i])) {
+          threads = Integer.parseInt(args[++i]);
+        } else if ("-runs".equals(args[i])) {
+          runs = Integer.parseInt(args[++i]);
+        } else if ("-codec".equals(args[i])) {
+          codec = (CompressionCodec)ReflectionUtils.newInstance(
+              conf.getClassByName(args[++i]), conf);
+        } else if ("-dir".equals(args[i])) {
+          dir = new Path(args[++i]);
+        } else {
+          usage();
+          return -1;
+        }
+      }
+    } catch (Exception e) {
+      usage();
+      return -1;
+    }
+    fs = FileSystem.getLocal(conf).getRaw();
+    conf.set("mapred.local.dir", new Path(dir, "local").toString());
+
+    for (String f : factors.split(",")) {
+      int factor = Integer.parseInt(f.trim());
+      Path[] segments = writeSegments(factor, records, keySize, valueSize);
+      System.out.println("factor " + factor + ": " + records + " records");
+      long best = Long.MAX_VALUE;
+      CountingComparator comparator = null;
+      for (int i = 0; i < runs; ++i) {
+        comparator = new CountingComparator();
+        long start = System.currentTimeMillis();
+        check(records, heapMerge(segments, comparator));
+        best = Math.min(best, System.currentTimeMillis() - start);
+      }
+      report("heap", best, comparator, records);
+      for (int t : new int[] { 0, threads }) {
+        best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; ++i) {
+          comparator = new CountingComparator();
+          long start = System.currentTimeMillis();
+          check(records, merge(segments, factor, t, comparator));
+          best = Math.min(best, System.currentTimeMillis() - start);
+        }
+        report("tree, " + t + " read ahead threads", best, comparator,
+               records);
+      }
+    }
+    fs.delete(dir, true);
+    return 0;
+  }
+
+  private static void check(int expected, long records) throws IOException {
+    if (expected != records) {
+      throw new IOException("Merged " + records + " records instead of " +
+                            expected);
+    }
+  }
+
+  private static void report(String name, long millis,
+                             CountingComparator comparator, int records) {
+    System.out.println(String.format("  %-28s %8d ms %8.2f compares/record",
+        name, millis, (double)comparator.count / records));
+  }
+
+  /**
+   * Write records of random keys, spread over sorted segments.
+   */
+  private Path[] writeSegments(int factor, int records, int keySize,
+                               int valueSize) throws IOException {
+    fs.delete(dir, true);
+    Random r = new Random();
+    byte[] value = new byte[valueSize];
+    Arrays.fill(value, (byte)'v');
+    Text val = new Text(value);
+    Text key = new Text();
+    Path[] segments = new Path[factor];
+    for (int i = 0; i < factor; ++i) {
+      int n = records / factor + (i < records % factor ? 1 : 0);
+      String[] keys = new String[n];
+      char[] chars = new char[keySize];
+      for (int j = 0; j < n; ++j) {
+        for (int c = 0; c < keySize; ++c) {
+          chars[c] = (char)('a' + r.nextInt(26));
+        }
+        keys[j] = new String(chars);
+      }
+      Arrays.sort(keys);
+      segments[i] = new Path(dir, "segment" + i);
+      Writer<Text, Text> writer = new Writer<Text, Text>(conf, fs,
+          segments[i], Text.class, Text.class, codec, null);
+      for (String k : keys) {
+        key.set(k);
+        writer.append(key, val);
+      }
+      writer.close();
+    }
+    return segments;
+  }
+
+  private long heapMerge(Path[] segments, RawComparator<Text> comparator)
+  throws IOException {
+    HeapMerge queue = new HeapMerge(segments.length, comparator);
+    for (Path file : segments) {
+      HeapSegment segment = new HeapSegment(
+          new Reader<Text, Text>(conf, fs, file, codec, null));
+      if (segment.reader.next(segment.key, segment.value)) {
+        queue.put(segment);
+      } else {
+        segment.reader.close();
+      }
+    }
+    long records = 0;
+    while (queue.size() > 0) {
+      HeapSegment top = queue.top();
+      ++records;
+      if (top.reader.next(top.key, top.value)) {
+        queue.adjustTop();
+      } else {
+        queue.pop();
+        top.reader.close();
+      }
+    }
+    return records;
+  }
+
+  private long merge(Path[] segments, int factor, int threads,
+                     RawComparator<Text> comparator) throws IOException {
+    JobConf job = new JobConf(conf);
+    job.setInt("io.sort.merge.threads", threads);
+    RawKeyValueIterator iter = Merger.merge(job, fs, Text.class, Text.class,
+        codec, segments, false, factor, new Path(dir, "tmp"), comparator,
+        Reporter.NULL, null, null);
+    long records = 0;
+    while (iter.next()) {
+      ++records;
+    }
+    iter.close();
+    return records;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new MergeBench(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Checks that the map event cursors in a {@link TaskTrackerStatus} and the
+ * task completion events in a {@link HeartbeatResponse} survive the wire.
+ */
+public class TestHeartbeatMapEvents extends TestCase {
+
+  private static void copy(Writable from, Writable to) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    from.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    to.readFields(in);
+  }
+
+  public void testCursors() throws Exception {
+    TaskTrackerStatus status = new TaskTrackerStatus("tracker_a", "a", 50060,
+        new ArrayList<TaskStatus>(), 0, 2, 2);
+    Map<JobID, Integer> cursors = new HashMap<JobID, Integer>();
+    cursors.put(JobID.forName("job_200707121733_0003"), 0);
+    cursors.put(JobID.forName("job_200707121733_0004"), 1234);
+    status.setMapEventCursors(cursors);
+
+    TaskTrackerStatus copy = new TaskTrackerStatus();
+    copy(status, copy);
+    assertEquals(cursors, copy.getMapEventCursors());
+  }
+
+  public void testEvents() throws Exception {
+    JobID first = JobID.forName("job_200707121733_0003");
+    JobID second = JobID.forName("job_200707121733_0004");
+    TaskCompletionEvent[] events = new TaskCompletionEvent[] {
+      new TaskCompletionEvent(7, TaskAttemptID.forName(
+            "attempt_200707121733_0003_m_000005_0"), 5, true,
+          TaskCompletionEvent.Status.SUCCEEDED, "http://a:50060"),
+      new TaskCompletionEvent(8, TaskAttemptID.forName(
+            "attempt_200707121733_0003_r_000000_0"), 0, false,
+          TaskCompletionEvent.Status.FAILED, "http://b:50060")
+    };
+    HeartbeatResponse response = new HeartbeatResponse((short)1, null);
+    response.setTaskCompletionEvents(first, 7, events);
+    response.setTaskCompletionEvents(second, 0,
+                                     TaskCompletionEvent.EMPTY_ARRAY);
+
+    HeartbeatResponse copy = new HeartbeatResponse();
+    copy(response, copy);
+    Map<JobID, HeartbeatResponse.JobEvents> jobEvents =
+      copy.getTaskCompletionEvents();
+    assertEquals(2, jobEvents.size());
+    assertEquals(7, jobEvents.get(first).fromEventId);
+    assertEquals(events.length, jobEvents.get(first).events.length);
+    for (int i = 0; i < events.length; ++i) {
+      assertEquals(events[i], jobEvents.get(first).events[i]);
+    }
+    assertEquals(0, jobEvents.get(second).fromEventId);
+    assertEquals(0, jobEvents.get(second).events.length);
+  }
+}
@@ -25,6 +25,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
 
 import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
@@ -201,6 +202,66 @@ public class TestMapCollection extends TestCase {
 
   }
 
+  /**
+   * Emits Text keys of varying lengths with long common prefixes, which
+   * Text.Comparator compares in place in a direct buffer.
+   */
+  public static class TextSpillMapper
+      implements Mapper<NullWritable,NullWritable,Text,Text> {
+
+    private int numrecs = 100;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.spillmap.records", 100);
+    }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,Text> out, Reporter reporter)
+        throws IOException {
+      Random r = new Random();
+      Text k = new Text();
+      Text v = new Text("v");
+      for (int i = 0; i < numrecs; ++i) {
+        k.set(String.format("%0" + (1 + r.nextInt(20)) + "d",
+                            r.nextInt(numrecs)));
+        out.collect(k, v);
+      }
+    }
+
+    public void close() { }
+
+  }
+
+  public static class TextOrderReducer
+      implements Reducer<Text,Text,NullWritable,NullWritable> {
+
+    private int numrecs = 100;
+    private int count = 0;
+    private Text last = null;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.spillmap.records", 100);
+    }
+
+    public void reduce(Text k, Iterator<Text> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      if (last != null) {
+        assertTrue("Out of order: " + last + " before " + k,
+                   last.compareTo(k) < 0);
+      }
+      last = new Text(k);
+      while (values.hasNext()) {
+        values.next();
+        ++count;
+      }
+    }
+
+    public void close() {
+      assertEquals("Unexpected record count", numrecs, count);
+    }
+
+  }
+
   public static class FakeSplit implements InputSplit {
     public void write(DataOutput out) throws IOException { }
     public void readFields(DataInput in) throws IOException { }
@@ -244,9 +305,37 @@ public class TestMapCollection extends TestCase {
   private static void runTest(String name, int keylen, int vallen,
       int records, int ioSortMB, float recPer, float spillPer,
       boolean pedantic) throws Exception {
-    JobConf conf = new JobConf(new Configuration(), SpillMapper.class);
+    runTest(name, keylen, vallen, records, ioSortMB, recPer, spillPer, 1, 1,
+            pedantic);
+  }
+
+  private static void runTest(String name, int keylen, int vallen,
+      int records, int ioSortMB, float recPer, float spillPer,
+      int concurrentSpills, int spillThreads, boolean pedantic)
+      throws Exception {
+    runTest(name, keylen, vallen, records, ioSortMB, recPer, spillPer,
+            concurrentSpills, spillThreads, false, pedantic);
+  }
+
+  private static void runTest(String name, int keylen, int vallen,
+      int records, int ioSortMB, float recPer, float spillPer,
+      int concurrentSpills, int spillThreads, boolean direct,
+      boolean pedantic) throws Exception {
+    Configuration base = new Configuration();
+    base.setBoolean("io.sort.buffer.direct", direct);
+    runTest(name, keylen, vallen, records, ioSortMB, recPer, spillPer,
+            concurrentSpills, spillThreads, base, pedantic);
+  }
+
+  private static void runTest(String name, int keylen, int vallen,
+      int records, int ioSortMB, float recPer, float spillPer,
+      int concurrentSpills, int spillThreads, Configuration base,
+      boolean pedantic) throws Exception {
+    JobConf conf = new JobConf(base, SpillMapper.class);
 
     conf.setInt("io.sort.mb", ioSortMB);
+    conf.setInt("io.sort.spill.concurrent", concurrentSpills);
+    conf.setInt("io.sort.spill.threads", spillThreads);
     conf.set("io.sort.record.percent", Float.toString(recPer));
     conf.set("io.sort.spill.percent", Float.toString(spillPer));
 
@@ -293,6 +382,84 @@ public class TestMapCollection extends TestCase {
     runTest("lt50perspill", 100, 100, 10000, 1, 0.05f, 0.3f, true);
   }
 
+  public void testConcurrentSpills() throws Exception {
+    // several spills in progress at once, which free the buffer in order
+    runTest("concurrent2B", 1, 1, 10000, 1, 0.05f, 0.8f, 3, 4, true);
+    runTest("concurrent200B", 100, 100, 10000, 1, 0.05f, 0.8f, 3, 4, true);
+    runTest("concurrentbuf", 10 * 1024, 20 * 1024, 256, 1, 0.3f, 1.0f, 2, 4,
+            true);
+    runTest("concurrentlastbyte", 128, 896, 1344, 1, 0.125f, 0.5f, 2, 1,
+            true);
+    runTest("concurrentlargerec", 100, 1024*1024, 5, 1, 0.05f, 0.8f, 2, 1,
+            false);
+  }
+
+  public void testDirectBuffer() throws Exception {
+    // the same records, collected into a buffer outside the heap
+    runTest("direct200B", 100, 100, 10000, 1, 0.05f, 0.8f, 1, 1, true, true);
+    runTest("directlastbyte", 128, 896, 1344, 1, 0.125f, 0.5f, 1, 1, true,
+            true);
+    runTest("directbuf", 10 * 1024, 20 * 1024, 256, 1, 0.3f, 1.0f, 2, 4, true,
+            true);
+    runTest("directlargerec", 100, 1024*1024, 5, 1, 0.05f, 0.8f, 1, 1, true,
+            false);
+  }
+
+  public void testSegmentedBuffer() throws Exception {
+    // off-heap buffers split into segments smaller than a record, so that
+    // keys, values and the wrap-around span segments
+    Configuration base = new Configuration();
+    base.setBoolean("io.sort.buffer.direct", true);
+    base.setInt("io.sort.buffer.segment.size", 4099);
+    runTest("segmented200B", 100, 100, 10000, 1, 0.05f, 0.8f, 1, 1, base,
+            true);
+    runTest("segmentedlastbyte", 128, 896, 1344, 1, 0.125f, 0.5f, 1, 1, base,
+            true);
+    runTest("segmentedbuf", 10 * 1024, 20 * 1024, 256, 1, 0.3f, 1.0f, 2, 4,
+            base, true);
+    runTest("segmentedlargerec", 100, 1024*1024, 5, 1, 0.05f, 0.8f, 1, 1,
+            base, false);
+  }
+
+  public void testMappedBuffer() throws Exception {
+    // the same records, collected into a memory-mapped local file
+    Configuration base = new Configuration();
+    base.setBoolean("io.sort.buffer.mmap", true);
+    runTest("mapped200B", 100, 100, 10000, 1, 0.05f, 0.8f, 1, 1, base, true);
+    runTest("mappedbuf", 10 * 1024, 20 * 1024, 256, 1, 0.3f, 1.0f, 2, 4,
+            base, true);
+    base.setInt("io.sort.buffer.segment.size", 4099);
+    runTest("mappedsegmented", 128, 896, 1344, 1, 0.125f, 0.5f, 1, 1, base,
+            true);
+  }
+
+  public void testDirectBufferInPlace() throws Exception {
+    // keys compared in place in the direct buffer, by one or several
+    // threads, and copied out where they span two segments; key prefixes
+    // are kept with the records outside the heap
+    for (int spillThreads : new int[] { 1, 4 }) {
+      JobConf conf = new JobConf(new Configuration(), TextSpillMapper.class);
+      conf.setInt("io.sort.mb", 1);
+      conf.setBoolean("io.sort.buffer.direct", true);
+      conf.setInt("io.sort.spill.threads", spillThreads);
+      if (spillThreads > 1) {
+        conf.setInt("io.sort.buffer.segment.size", 1000);
+        conf.setBoolean("map.sort.key.prefix", true);
+      }
+      conf.setInt("test.spillmap.records", 50000);
+      conf.setNumMapTasks(1);
+      conf.setNumReduceTasks(2);
+      conf.setInputFormat(FakeIF.class);
+      conf.setOutputFormat(NullOutputFormat.class);
+      conf.setMapperClass(TextSpillMapper.class);
+      conf.setReducerClass(TextOrderReducer.class);
+      conf.setMapOutputKeyClass(Text.class);
+      conf.setMapOutputValueClass(Text.class);
+      LOG.info("Running directinplace with " + spillThreads + " threads");
+      JobClient.runJob(conf);
+    }
+  }
+
   public void testZeroLength() throws Exception {
     // test key/value at zero-length
     runTest("zeroval", 1, 0, 10000, true);
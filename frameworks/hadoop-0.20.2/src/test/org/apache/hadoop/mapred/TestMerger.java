@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.IFile.InMemoryReader;
+import org.apache.hadoop.mapred.IFile.Writer;
+import org.apache.hadoop.mapred.Merger.Segment;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Merges sorted segments of random keys on disk and in memory, and checks
+ * that every record comes out in order.
+ */
+public class TestMerger extends TestCase {
+  private static final Path TEST_DIR =
+    new Path(System.getProperty("test.build.data", "/tmp"), "TestMerger");
+
+  private static final RamManager NULL_RAM_MANAGER = new RamManager() {
+    public boolean reserve(int requestedSize, InputStream in) {
+      return true;
+    }
+    public void unreserve(int requestedSize) { }
+  };
+
+  private final Random r = new Random();
+
+  public void testMerge() throws Exception {
+    for (int segments : new int[] { 1, 2, 3, 7, 16, 33 }) {
+      runMerge(segments, 0, 100, 0, null);
+    }
+  }
+
+  public void testMultiPassMerge() throws Exception {
+    runMerge(37, 0, 5, 0, null);
+    runMerge(37, 4, 5, 0, null);
+  }
+
+  public void testPrefetchMerge() throws Exception {
+    CompressionCodec codec = ReflectionUtils.newInstance(DefaultCodec.class,
+                                                         new JobConf());
+    runMerge(10, 0, 100, 2, null);
+    runMerge(10, 3, 100, 2, codec);
+    runMerge(37, 3, 5, 4, codec);
+  }
+
+  /**
+   * Merge segments of random lengths, the first few of them in memory.
+   */
+  private void runMerge(int numSegments, int inMem, int factor, int threads,
+                        CompressionCodec codec) throws Exception {
+    JobConf conf = new JobConf();
+    conf.setInt("io.sort.merge.threads", threads);
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    fs.delete(TEST_DIR, true);
+    conf.set("mapred.local.dir", new Path(TEST_DIR, "local").toString());
+
+    List<Segment<IntWritable, IntWritable>> segments =
+      new ArrayList<Segment<IntWritable, IntWritable>>();
+    int total = 0;
+    for (int i = 0; i < numSegments; ++i) {
+      // include some empty segments
+      int[] keys = new int[r.nextInt(i % 5 == 4 ? 1 : 5000)];
+      for (int j = 0; j < keys.length; ++j) {
+        keys[j] = r.nextInt(10000);
+      }
+      Arrays.sort(keys);
+      total += keys.length;
+      if (i < inMem) {
+        segments.add(inMemorySegment(keys));
+      } else {
+        Path file = new Path(TEST_DIR, "segment" + i);
+        Writer<IntWritable, IntWritable> writer =
+          new Writer<IntWritable, IntWritable>(conf, fs, file,
+              IntWritable.class, IntWritable.class, codec, null);
+        for (int key : keys) {
+          writer.append(new IntWritable(key), new IntWritable(i));
+        }
+        writer.close();
+        segments.add(new Segment<IntWritable, IntWritable>(conf, fs, file,
+                                                           codec, false));
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    RawComparator<IntWritable> comparator =
+      WritableComparator.get(IntWritable.class);
+    RawKeyValueIterator iter = Merger.merge(conf, fs, IntWritable.class,
+        IntWritable.class, codec, segments, factor, inMem,
+        new Path(TEST_DIR, "tmp"), comparator, Reporter.NULL, false,
+        null, null);
+
+    IntWritable key = new IntWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    int count = 0;
+    int last = Integer.MIN_VALUE;
+    while (iter.next()) {
+      DataInputBuffer raw = iter.getKey();
+      in.reset(raw.getData(), raw.getPosition(),
+               raw.getLength() - raw.getPosition());
+      key.readFields(in);
+      assertTrue("Out of order: " + last + " before " + key.get(),
+                 last <= key.get());
+      last = key.get();
+      ++count;
+    }
+    iter.close();
+    assertEquals("Records merged from " + numSegments + " segments",
+                 total, count);
+  }
+
+  /**
+   * A segment in the form a reducer holds a map output in memory.
+   */
+  private Segment<IntWritable, IntWritable> inMemorySegment(int[] keys)
+  throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataOutputBuffer record = new DataOutputBuffer();
+    for (int key : keys) {
+      record.reset();
+      new IntWritable(key).write(record);
+      int keyLength = record.getLength();
+      new IntWritable(-1).write(record);
+      WritableUtils.writeVInt(out, keyLength);
+      WritableUtils.writeVInt(out, record.getLength() - keyLength);
+      out.write(record.getData(), 0, record.getLength());
+    }
+    WritableUtils.writeVInt(out, -1);
+    WritableUtils.writeVInt(out, -1);
+    return new Segment<IntWritable, IntWritable>(
+        new InMemoryReader<IntWritable, IntWritable>(NULL_RAM_MANAGER,
+            TaskAttemptID.forName("attempt_200707121733_0003_m_000005_0"),
+            out.getData(), 0, out.getLength()), true);
+  }
+}
@@ -150,4 +150,41 @@ public class TestReduceFetch extends TestCase {
     assertEquals("Spilled records: " + spill, out, spill); // no reduce spill
   }
 
+  public void testReduceFromDirectMem() throws Exception {
+    final int MAP_TASKS = 3;
+    JobConf job = mrCluster.createJobConf();
+    job.set("mapred.job.reduce.input.buffer.percent", "1.0");
+    job.set("mapred.job.shuffle.input.buffer.percent", "1.0");
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.setBoolean("mapred.job.shuffle.direct", true);
+    // records straddle pages
+    job.setInt("mapred.job.shuffle.direct.page.size", 4096);
+    job.setNumMapTasks(MAP_TASKS);
+    Counters c = runJob(job);
+    final long spill = c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter();
+    final long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    assertEquals("Spilled records: " + spill, out, spill); // no reduce spill
+    assertEquals(out, in);
+  }
+
+  public void testReduceFromDirectDisk() throws Exception {
+    final int MAP_TASKS = 8;
+    JobConf job = mrCluster.createJobConf();
+    job.set("mapred.job.reduce.input.buffer.percent", "0.0");
+    job.setNumMapTasks(MAP_TASKS);
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.set("mapred.job.shuffle.input.buffer.percent", "0.05");
+    job.setBoolean("mapred.job.shuffle.direct", true);
+    job.setInt("io.sort.factor", 2);
+    job.setInt("mapred.inmem.merge.threshold", 4);
+    Counters c = runJob(job);
+    final long spill = c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter();
+    final long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    assertTrue("Expected intermediate merges (" + spill + ")",
+        spill >= 2 * out + (out / MAP_TASKS)); // some records hit twice
+    assertEquals(out, in);
+  }
+
 }
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.TestReduceFetch.MapMB;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+/**
+ * Runs jobs whose map outputs are served by the non-blocking
+ * {@link ShuffleServer}.
+ */
+public class TestShuffleServer extends TestCase {
+  private static final String TEST_ROOT_DIR =
+    new File(System.getProperty("test.build.data", "/tmp"))
+    .toURI().toString().replace(' ', '+');
+
+  public void testShuffle() throws Exception {
+    runShuffle(true, 1);
+  }
+
+  public void testBatchedShuffle() throws Exception {
+    runShuffle(true, 3);
+  }
+
+  public void testBatchedServletShuffle() throws Exception {
+    runShuffle(false, 3);
+  }
+
+  private static void runShuffle(boolean nio, int batchSize)
+  throws Exception {
+    MiniMRCluster mr = null;
+    try {
+      JobConf conf = new JobConf();
+      conf.setBoolean("tasktracker.shuffle.nio", nio);
+      mr = new MiniMRCluster(2, "file:///", 1, null, null, conf);
+
+      for (int i = 0; i < 2; ++i) {
+        TaskTracker tt = mr.getTaskTrackerRunner(i).getTaskTracker();
+        assertEquals("Shuffle server on tracker " + i,
+                     nio, tt.getShufflePort() > 0);
+      }
+
+      JobConf job = mr.createJobConf();
+      job.setMapperClass(MapMB.class);
+      job.setReducerClass(IdentityReducer.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(Text.class);
+      job.setNumMapTasks(4);
+      job.setNumReduceTasks(2);
+      job.setInputFormat(FakeIF.class);
+      // several fetches from each tracker over the same connections
+      job.setInt("mapred.reduce.parallel.copies", 1);
+      job.setInt("mapred.reduce.copy.batch.size", batchSize);
+      FileInputFormat.setInputPaths(job, new Path(TEST_ROOT_DIR, "in"));
+      Path outp = new Path(TEST_ROOT_DIR, "out");
+      FileOutputFormat.setOutputPath(job, outp);
+      RunningJob rj = JobClient.runJob(job);
+      assertTrue(rj.isSuccessful());
+      FileSystem.getLocal(job).delete(outp, true);
+
+      Counters c = rj.getCounters();
+      long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+      long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+      assertEquals(4 * 4 * 1024, out);
+      assertEquals(out, in);
+    } finally {
+      if (mr != null) {
+        mr.shutdown();
+      }
+    }
+  }
+
+  public void testMissingOutput() throws Exception {
+    MiniMRCluster mr = null;
+    try {
+      JobConf conf = new JobConf();
+      conf.setBoolean("tasktracker.shuffle.nio", true);
+      mr = new MiniMRCluster(1, "file:///", 1, null, null, conf);
+      TaskTracker tt = mr.getTaskTrackerRunner(0).getTaskTracker();
+
+      URL url = new URL("http://localhost:" + tt.getShufflePort() +
+          "/mapOutput?job=job_200707121733_0003" +
+          "&map=attempt_200707121733_0003_m_000005_0&reduce=0");
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      assertEquals(HttpURLConnection.HTTP_GONE, connection.getResponseCode());
+
+      // a batch sends a header without data for each lost map output
+      url = new URL("http://localhost:" + tt.getShufflePort() +
+          "/mapOutput?job=job_200707121733_0003" +
+          "&map=attempt_200707121733_0003_m_000005_0," +
+          "attempt_200707121733_0003_m_000006_0&reduce=0");
+      connection = (HttpURLConnection) url.openConnection();
+      assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+      DataInputStream in = new DataInputStream(connection.getInputStream());
+      ShuffleHeader header = new ShuffleHeader();
+      header.readFields(in);
+      assertEquals("attempt_200707121733_0003_m_000005_0", header.mapId);
+      assertTrue(header.isLost());
+      header.readFields(in);
+      assertEquals("attempt_200707121733_0003_m_000006_0", header.mapId);
+      assertTrue(header.isLost());
+      assertEquals(-1, in.read());
+      in.close();
+
+      url = new URL("http://localhost:" + tt.getShufflePort() + "/tasklog");
+      connection = (HttpURLConnection) url.openConnection();
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                   connection.getResponseCode());
+    } finally {
+      if (mr != null) {
+        mr.shutdown();
+      }
+    }
+  }
+}
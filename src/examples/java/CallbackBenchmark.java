@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mesos.*;
+import org.apache.mesos.Protos.*;
+
+
+/**
+ * Measures how many scheduler callbacks per second the Java bindings
+ * can deliver. The scheduler launches as many zero-length tasks (run
+ * by the test executor) as it gets offers for, so the driver is kept
+ * busy with offers and status updates, and prints the callback rate
+ * once the given number of seconds has passed.
+ *
+ * Run it against "local" (optionally with MESOS_NUM_SLAVES set) to
+ * use an in-process master and slaves, or against "local-java" to use
+ * a LocalSchedulerDriver, which doesn't need the native library and
+ * runs a BenchmarkExecutor in-process instead of the test executor.
+ */
+public class CallbackBenchmark {
+  static class BenchmarkScheduler implements Scheduler {
+    final long duration;
+    long start;
+    int taskCount = 0;
+    int offerCallbacks = 0;
+    int offers = 0;
+    int statusUpdates = 0;
+    boolean done = false;
+
+    public BenchmarkScheduler(long duration) {
+      this.duration = duration;
+    }
+
+    @Override
+    public void registered(SchedulerDriver driver, FrameworkID frameworkId) {
+      System.out.println("Registered! ID = " + frameworkId.getValue());
+      start = System.nanoTime();
+    }
+
+    @Override
+    public void resourceOffers(SchedulerDriver driver, List<Offer> offers) {
+      offerCallbacks++;
+      this.offers += offers.size();
+      for (Offer offer : offers) {
+        List<TaskDescription> tasks = new ArrayList<TaskDescription>();
+        if (!done) {
+          TaskID taskId = TaskID.newBuilder()
+            .setValue(Integer.toString(taskCount++)).build();
+
+          tasks.add(TaskDescription.newBuilder()
+                    .setName("task " + taskId.getValue())
+                    .setTaskId(taskId)
+                    .setSlaveId(offer.getSlaveId())
+                    .addResources(Resource.newBuilder()
+                                  .setName("cpus")
+                                  .setType(Value.Type.SCALAR)
+                                  .setScalar(Value.Scalar.newBuilder()
+                                             .setValue(1)
+                                             .build())
+                                  .build())
+                    .addResources(Resource.newBuilder()
+                                  .setName("mem")
+                                  .setType(Value.Type.SCALAR)
+                                  .setScalar(Value.Scalar.newBuilder()
+                                             .setValue(32)
+                                             .build())
+                                  .build())
+                    .setData(com.google.protobuf.ByteString.copyFromUtf8("0"))
+                    .build());
+        }
+        Filters filters = Filters.newBuilder().setRefuseSeconds(0).build();
+        driver.launchTasks(offer.getId(), tasks, filters);
+      }
+      check(driver);
+    }
+
+    @Override
+    public void offerRescinded(SchedulerDriver driver, OfferID offerId) {}
+
+    @Override
+    public void statusUpdate(SchedulerDriver driver, TaskStatus status) {
+      statusUpdates++;
+      check(driver);
+    }
+
+    @Override
+    public void frameworkMessage(SchedulerDriver driver, SlaveID slaveId, ExecutorID executorId, byte[] data) {}
+
+    @Override
+    public void slaveLost(SchedulerDriver driver, SlaveID slaveId) {}
+
+    @Override
+    public void error(SchedulerDriver driver, int code, String message) {
+      System.out.println("Error: " + message);
+    }
+
+    private void check(SchedulerDriver driver) {
+      double seconds = (System.nanoTime() - start) / 1e9;
+      if (!done && seconds >= duration) {
+        done = true;
+        int callbacks = offerCallbacks + statusUpdates;
+        System.out.println("Callbacks: " + callbacks +
+                           " (" + offerCallbacks + " resourceOffers with " +
+                           offers + " offers, " + statusUpdates +
+                           " statusUpdate) in " + seconds + " seconds");
+        System.out.println("Callbacks/sec: " + (callbacks / seconds));
+        System.out.println("Offers/sec: " + (offers / seconds));
+        System.out.println("Tasks/sec: " + (taskCount / seconds));
+        driver.stop();
+      }
+    }
+  }
+
+  static class BenchmarkExecutor implements Executor {
+    @Override
+    public void init(ExecutorDriver driver, ExecutorArgs args) {}
+
+    @Override
+    public void launchTask(ExecutorDriver driver, TaskDescription task) {
+      driver.sendStatusUpdate(TaskStatus.newBuilder()
+                              .setTaskId(task.getTaskId())
+                              .setState(TaskState.TASK_RUNNING).build());
+      driver.sendStatusUpdate(TaskStatus.newBuilder()
+                              .setTaskId(task.getTaskId())
+                              .setState(TaskState.TASK_FINISHED).build());
+    }
+
+    @Override
+    public void killTask(ExecutorDriver driver, TaskID taskId) {}
+
+    @Override
+    public void frameworkMessage(ExecutorDriver driver, byte[] data) {}
+
+    @Override
+    public void shutdown(ExecutorDriver driver) {}
+
+    @Override
+    public void error(ExecutorDriver driver, int code, String message) {}
+  }
+
+  private static void usage() {
+    String name = CallbackBenchmark.class.getName();
+    System.err.println("Usage: " + name + " master|local-java <seconds>");
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2) {
+      usage();
+      System.exit(1);
+    }
+
+    ExecutorInfo executorInfo = ExecutorInfo.newBuilder()
+      .setExecutorId(ExecutorID.newBuilder().setValue("default").build())
+      .setUri(new File("./test-executor").getCanonicalPath())
+      .build();
+
+    long duration = args.length == 2 ? Long.parseLong(args[1]) : 30;
+
+    SchedulerDriver driver;
+
+    if (args[0].equals("local-java")) {
+      String numSlaves = System.getenv("MESOS_NUM_SLAVES");
+      driver = new LocalSchedulerDriver(
+          new BenchmarkScheduler(duration),
+          "Java callback benchmark",
+          executorInfo,
+          new LocalSchedulerDriver.ExecutorFactory() {
+            public Executor createExecutor(ExecutorInfo info) {
+              return new BenchmarkExecutor();
+            }
+          },
+          numSlaves != null ? Integer.parseInt(numSlaves) : 1,
+          1,
+          1024);
+    } else {
+      driver = new MesosSchedulerDriver(
+          new BenchmarkScheduler(duration),
+          "Java callback benchmark",
+          executorInfo,
+          args[0]);
+    }
+
+    System.exit(driver.run() == Status.OK ? 0 : 1);
+  }
+}
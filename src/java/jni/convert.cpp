@@ -19,15 +19,24 @@
 #include <jni.h>
 
 #include <string>
+#include <vector>
 #include <assert.h>
 
+#include <google/protobuf/io/coded_stream.h>
+
 #include <mesos/mesos.hpp>
 
 #include "convert.hpp"
 
+#include "common/foreach.hpp"
+
 using namespace mesos;
 
+using google::protobuf::uint8;
+using google::protobuf::io::CodedOutputStream;
+
 using std::string;
+using std::vector;
 
 // Facilities for loading Mesos-related classes with the correct
 // ClassLoader. Unfortunately, JNI's FindClass uses the system
@@ -362,6 +371,46 @@ jobject convert(JNIEnv* env, const Offer& offer)
 }
 
 
+template <>
+jobject convert(JNIEnv* env, const vector<Offer>& offers)
+{
+  // Serialize all of the offers into a single buffer, each one
+  // prefixed by its size as a varint (the same format as
+  // MessageLite.writeDelimitedTo in Java).
+  int size = 0;
+  foreach (const Offer& offer, offers) {
+    int length = offer.ByteSize();
+    size += CodedOutputStream::VarintSize32(length) + length;
+  }
+
+  uint8* data = new uint8[size];
+  uint8* target = data;
+
+  foreach (const Offer& offer, offers) {
+    target = CodedOutputStream::WriteVarint32ToArray(
+        offer.GetCachedSize(), target);
+    target = offer.SerializeWithCachedSizesToArray(target);
+  }
+
+  // ByteBuffer buffer = ..;
+  jobject jbuffer = env->NewDirectByteBuffer(data, size);
+
+  // List offers = LazyMessageList.offers(buffer);
+  // (This copies the buffer once and parses each offer on demand.)
+  jclass clazz = FindMesosClass(env, "org/apache/mesos/LazyMessageList");
+
+  jmethodID offersFrom =
+    env->GetStaticMethodID(clazz, "offers",
+                           "(Ljava/nio/ByteBuffer;)Ljava/util/List;");
+
+  jobject joffers = env->CallStaticObjectMethod(clazz, offersFrom, jbuffer);
+
+  delete[] data;
+
+  return joffers;
+}
+
+
 template <>
 jobject convert(JNIEnv* env, const ExecutorInfo& executor)
 {
@@ -319,6 +319,98 @@ JNIEXPORT jobject JNICALL Java_org_apache_mesos_Log_00024Writer_append
 }
 
 
+/*
+ * Class:     org_apache_mesos_Log_Writer
+ * Method:    appendBatch
+ * Signature: (Ljava/util/List;JLjava/util/concurrent/TimeUnit;)Ljava/util/List;
+ */
+JNIEXPORT jobject JNICALL Java_org_apache_mesos_Log_00024Writer_appendBatch
+  (JNIEnv* env, jobject thiz, jobject jentries, jlong jtimeout, jobject junit)
+{
+  // Read out __writer.
+  jclass clazz = env->GetObjectClass(thiz);
+
+  jfieldID __writer = env->GetFieldID(clazz, "__writer", "J");
+
+  Log::Writer* writer = (Log::Writer*) env->GetLongField(thiz, __writer);
+
+  // Copy out each byte[] in the Java list.
+  std::list<std::string> entries;
+
+  clazz = env->GetObjectClass(jentries);
+
+  // Iterator iterator = entries.iterator();
+  jmethodID iterator =
+    env->GetMethodID(clazz, "iterator", "()Ljava/util/Iterator;");
+  jobject jiterator = env->CallObjectMethod(jentries, iterator);
+
+  clazz = env->GetObjectClass(jiterator);
+
+  // while (iterator.hasNext()) {
+  jmethodID hasNext = env->GetMethodID(clazz, "hasNext", "()Z");
+
+  jmethodID next = env->GetMethodID(clazz, "next", "()Ljava/lang/Object;");
+
+  while (env->CallBooleanMethod(jiterator, hasNext)) {
+    // byte[] data = (byte[]) iterator.next();
+    jbyteArray jdata = (jbyteArray) env->CallObjectMethod(jiterator, next);
+
+    jsize length = env->GetArrayLength(jdata);
+
+    std::string data((size_t) length, '\0');
+    if (length > 0) {
+      env->GetByteArrayRegion(jdata, 0, length, (jbyte*) &data[0]);
+    }
+
+    entries.push_back(data);
+
+    env->DeleteLocalRef(jdata);
+  }
+
+  clazz = env->GetObjectClass(junit);
+
+  // long seconds = unit.toSeconds(time);
+  jmethodID toSeconds = env->GetMethodID(clazz, "toSeconds", "(J)J");
+
+  jlong jseconds = env->CallLongMethod(junit, toSeconds, jtimeout);
+
+  seconds timeout(jseconds);
+
+  Result<std::list<Log::Position> > positions =
+    writer->append(entries, timeout);
+
+  if (positions.isError()) {
+    clazz = env->FindClass("org/apache/mesos/Log$WriterFailedException");
+    env->ThrowNew(clazz, positions.error().c_str());
+    return NULL;
+  } else if (positions.isNone()) {
+    clazz = env->FindClass("java/util/concurrent/TimeoutException");
+    env->ThrowNew(clazz, "Timed out while attempting to append");
+    return NULL;
+  }
+
+  CHECK(positions.isSome());
+
+  // List positions = new ArrayList(positions.size());
+  clazz = env->FindClass("java/util/ArrayList");
+
+  jmethodID _init_ = env->GetMethodID(clazz, "<init>", "(I)V");
+  jobject jpositions =
+    env->NewObject(clazz, _init_, (jint) positions.get().size());
+
+  jmethodID add = env->GetMethodID(clazz, "add", "(Ljava/lang/Object;)Z");
+
+  // Loop through C++ list and add each position to the Java list.
+  foreach (const Log::Position& position, positions.get()) {
+    jobject jposition = convert<Log::Position>(env, position);
+    env->CallBooleanMethod(jpositions, add, jposition);
+    env->DeleteLocalRef(jposition);
+  }
+
+  return jpositions;
+}
+
+
 /*
  * Class:     org_apache_mesos_Log_Writer
  * Method:    truncate
@@ -16,6 +16,8 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
+
 #include <string>
 #include <map>
 #include <vector>
@@ -35,14 +37,54 @@ using std::map;
 using std::vector;
 
 
+namespace {
+
+// The threads that invoke the scheduler callbacks (i.e., libprocess
+// threads) get attached to the JVM the first time they make a
+// callback and then stay attached, rather than paying for an
+// AttachCurrentThread/DetachCurrentThread pair on every callback. We
+// attach them as daemon threads so they don't keep the JVM from
+// exiting, and use a thread-specific key to detach them if they ever
+// exit. Because an attached thread never returns to Java, every
+// callback must release its local references (see PushLocalFrame).
+pthread_key_t detachKey;
+pthread_once_t detachKeyOnce = PTHREAD_ONCE_INIT;
+
+
+void detach(void* jvm)
+{
+  ((JavaVM*) jvm)->DetachCurrentThread();
+}
+
+
+void createDetachKey()
+{
+  pthread_key_create(&detachKey, detach);
+}
+
+
+JNIEnv* attach(JavaVM* jvm)
+{
+  JNIEnv* env;
+  if (jvm->GetEnv((void**) &env, JNI_VERSION_1_2) == JNI_OK) {
+    return env; // Already attached (possibly a Java thread).
+  }
+
+  jvm->AttachCurrentThreadAsDaemon((void**) &env, NULL);
+
+  pthread_once(&detachKeyOnce, createDetachKey);
+  pthread_setspecific(detachKey, jvm);
+
+  return env;
+}
+
+} // namespace {
+
+
 class JNIScheduler : public Scheduler
 {
 public:
-  JNIScheduler(JNIEnv* _env, jweak _jdriver)
-    : jvm(NULL), env(_env), jdriver(_jdriver)
-  {
-    env->GetJavaVM(&jvm);
-  }
+  JNIScheduler(JNIEnv* env, jweak _jdriver);
 
   virtual ~JNIScheduler() {}
 
@@ -62,22 +104,83 @@ public:
   virtual void error(SchedulerDriver* driver, int code, const string& message);
 
   JavaVM* jvm;
-  JNIEnv* env;
   jweak jdriver;
+
+  // Looked up once when the scheduler is created rather than on
+  // every callback (IDs stay valid for as long as the class is
+  // loaded, which is at least as long as the driver is around).
+  jfieldID sched; // MesosSchedulerDriver.sched
+  jmethodID registered_;
+  jmethodID resourceOffers_;
+  jmethodID offerRescinded_;
+  jmethodID statusUpdate_;
+  jmethodID frameworkMessage_;
+  jmethodID slaveLost_;
+  jmethodID error_;
 };
 
 
-string JNIScheduler::getFrameworkName(SchedulerDriver* driver)
+JNIScheduler::JNIScheduler(JNIEnv* env, jweak _jdriver)
+  : jvm(NULL), jdriver(_jdriver)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  env->GetJavaVM(&jvm);
 
   jclass clazz = env->GetObjectClass(jdriver);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
+  sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
   clazz = env->GetObjectClass(jsched);
 
+  registered_ =
+    env->GetMethodID(clazz, "registered",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Lorg/apache/mesos/Protos$FrameworkID;)V");
+
+  resourceOffers_ =
+    env->GetMethodID(clazz, "resourceOffers",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Ljava/util/List;)V");
+
+  offerRescinded_ =
+    env->GetMethodID(clazz, "offerRescinded",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Lorg/apache/mesos/Protos$OfferID;)V");
+
+  statusUpdate_ =
+    env->GetMethodID(clazz, "statusUpdate",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Lorg/apache/mesos/Protos$TaskStatus;)V");
+
+  frameworkMessage_ =
+    env->GetMethodID(clazz, "frameworkMessage",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Lorg/apache/mesos/Protos$SlaveID;"
+		     "Lorg/apache/mesos/Protos$ExecutorID;[B)V");
+
+  slaveLost_ =
+    env->GetMethodID(clazz, "slaveLost",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "Lorg/apache/mesos/Protos$SlaveID;)V");
+
+  error_ =
+    env->GetMethodID(clazz, "error",
+		     "(Lorg/apache/mesos/SchedulerDriver;"
+		     "I"
+		     "Ljava/lang/String;)V");
+}
+
+
+string JNIScheduler::getFrameworkName(SchedulerDriver* driver)
+{
+  JNIEnv* env = attach(jvm);
+
+  env->PushLocalFrame(8);
+
+  jobject jsched = env->GetObjectField(jdriver, sched);
+
+  jclass clazz = env->GetObjectClass(jsched);
+
   // String name = sched.getFrameworkName(driver);
   jmethodID getFrameworkName =
     env->GetMethodID(clazz, "getFrameworkName",
@@ -91,14 +194,14 @@ string JNIScheduler::getFrameworkName(SchedulerDriver* driver)
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return "";
   }
 
   string name = construct<string>(env, (jstring) jname);
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 
   return name;
 }
@@ -106,14 +209,13 @@ string JNIScheduler::getFrameworkName(SchedulerDriver* driver)
 
 ExecutorInfo JNIScheduler::getExecutorInfo(SchedulerDriver* driver)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
+  jclass clazz = env->GetObjectClass(jsched);
 
   // ExecutorInfo executor = sched.getExecutorInfo(driver);
   jmethodID getExecutorInfo =
@@ -128,14 +230,14 @@ ExecutorInfo JNIScheduler::getExecutorInfo(SchedulerDriver* driver)
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return ExecutorInfo();
   }
 
   ExecutorInfo executor = construct<ExecutorInfo>(env, jexecutor);
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 
   return executor;
 }
@@ -144,156 +246,113 @@ ExecutorInfo JNIScheduler::getExecutorInfo(SchedulerDriver* driver)
 void JNIScheduler::registered(SchedulerDriver* driver,
                               const FrameworkID& frameworkId)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.registered(driver, frameworkId);
-  jmethodID registered =
-    env->GetMethodID(clazz, "registered",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Lorg/apache/mesos/Protos$FrameworkID;)V");
-
   jobject jframeworkId = convert<FrameworkID>(env, frameworkId);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, registered, jdriver, jframeworkId);
+  // sched.registered(driver, frameworkId);
+  env->CallVoidMethod(jsched, registered_, jdriver, jframeworkId);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
 void JNIScheduler::resourceOffers(SchedulerDriver* driver,
                                   const vector<Offer>& offers)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.resourceOffers(driver, offers);
-  jmethodID resourceOffers =
-    env->GetMethodID(clazz, "resourceOffers",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Ljava/util/List;)V");
-
-  // List offers = new ArrayList();
-  clazz = env->FindClass("java/util/ArrayList");
-
-  jmethodID _init_ = env->GetMethodID(clazz, "<init>", "()V");
-  jobject joffers = env->NewObject(clazz, _init_);
-
-  jmethodID add = env->GetMethodID(clazz, "add", "(Ljava/lang/Object;)Z");
-
-  // Loop through C++ vector and add each offer to the Java list.
-  foreach (const Offer& offer, offers) {
-    jobject joffer = convert<Offer>(env, offer);
-    env->CallBooleanMethod(joffers, add, joffer);
-  }
+  // List offers = ..;
+  jobject joffers = convert<vector<Offer> >(env, offers);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, resourceOffers, jdriver, joffers);
+  // sched.resourceOffers(driver, offers);
+  env->CallVoidMethod(jsched, resourceOffers_, jdriver, joffers);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
 void JNIScheduler::offerRescinded(SchedulerDriver* driver,
                                   const OfferID& offerId)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.offerRescinded(driver, offerId);
-  jmethodID offerRescinded =
-    env->GetMethodID(clazz, "offerRescinded",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Lorg/apache/mesos/Protos$OfferID;)V");
-
   jobject jofferId = convert<OfferID>(env, offerId);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, offerRescinded, jdriver, jofferId);
+  // sched.offerRescinded(driver, offerId);
+  env->CallVoidMethod(jsched, offerRescinded_, jdriver, jofferId);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
 void JNIScheduler::statusUpdate(SchedulerDriver* driver,
                                 const TaskStatus& status)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.statusUpdate(driver, status);
-  jmethodID statusUpdate =
-    env->GetMethodID(clazz, "statusUpdate",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Lorg/apache/mesos/Protos$TaskStatus;)V");
-
   jobject jstatus = convert<TaskStatus>(env, status);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, statusUpdate, jdriver, jstatus);
+  // sched.statusUpdate(driver, status);
+  env->CallVoidMethod(jsched, statusUpdate_, jdriver, jstatus);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
@@ -302,22 +361,12 @@ void JNIScheduler::frameworkMessage(SchedulerDriver* driver,
 				    const ExecutorID& executorId,
                                     const string& data)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.frameworkMessage(driver, slaveId, executorId, data);
-  jmethodID frameworkMessage =
-    env->GetMethodID(clazz, "frameworkMessage",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Lorg/apache/mesos/Protos$SlaveID;"
-		     "Lorg/apache/mesos/Protos$ExecutorID;[B)V");
-
   // byte[] data = ..;
   jbyteArray jdata = env->NewByteArray(data.size());
   env->SetByteArrayRegion(jdata, 0, data.size(), (jbyte*) data.data());
@@ -327,91 +376,75 @@ void JNIScheduler::frameworkMessage(SchedulerDriver* driver,
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, frameworkMessage,
+  // sched.frameworkMessage(driver, slaveId, executorId, data);
+  env->CallVoidMethod(jsched, frameworkMessage_,
 		      jdriver, jslaveId, jexecutorId, jdata);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
 void JNIScheduler::slaveLost(SchedulerDriver* driver, const SlaveID& slaveId)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.slaveLost(driver, slaveId);
-  jmethodID slaveLost =
-    env->GetMethodID(clazz, "slaveLost",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "Lorg/apache/mesos/Protos$SlaveID;)V");
-
   jobject jslaveId = convert<SlaveID>(env, slaveId);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, slaveLost, jdriver, jslaveId);
+  // sched.slaveLost(driver, slaveId);
+  env->CallVoidMethod(jsched, slaveLost_, jdriver, jslaveId);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
 void JNIScheduler::error(SchedulerDriver* driver, int code,
                          const string& message)
 {
-  jvm->AttachCurrentThread((void**) &env, NULL);
+  JNIEnv* env = attach(jvm);
 
-  jclass clazz = env->GetObjectClass(jdriver);
+  env->PushLocalFrame(8);
 
-  jfieldID sched = env->GetFieldID(clazz, "sched", "Lorg/apache/mesos/Scheduler;");
   jobject jsched = env->GetObjectField(jdriver, sched);
 
-  clazz = env->GetObjectClass(jsched);
-
-  // sched.error(driver, code, message);
-  jmethodID error =
-    env->GetMethodID(clazz, "error",
-		     "(Lorg/apache/mesos/SchedulerDriver;"
-		     "I"
-		     "Ljava/lang/String;)V");
-
   jint jcode = code;
   jobject jmessage = convert<string>(env, message);
 
   env->ExceptionClear();
 
-  env->CallVoidMethod(jsched, error, jdriver, jcode, jmessage);
+  // sched.error(driver, code, message);
+  env->CallVoidMethod(jsched, error_, jdriver, jcode, jmessage);
 
   if (env->ExceptionCheck()) {
     env->ExceptionDescribe();
     env->ExceptionClear();
-    jvm->DetachCurrentThread();
+    env->PopLocalFrame(NULL);
     driver->abort();
     return;
   }
 
-  jvm->DetachCurrentThread();
+  env->PopLocalFrame(NULL);
 }
 
 
@@ -686,6 +719,97 @@ JNIEXPORT jobject JNICALL Java_org_apache_mesos_MesosSchedulerDriver_launchTasks
 }
 
 
+/*
+ * Class:     org_apache_mesos_MesosSchedulerDriver
+ * Method:    launchTasksBatch
+ * Signature: (Ljava/util/Map;Lorg/apache/mesos/Protos/Filters;)Lorg/apache/mesos/Protos/Status;
+ */
+JNIEXPORT jobject JNICALL Java_org_apache_mesos_MesosSchedulerDriver_launchTasksBatch
+  (JNIEnv* env, jobject thiz, jobject jtasks, jobject jfilters)
+{
+  // Construct a C++ Filters from the Java Filters.
+  const Filters& filters = construct<Filters>(env, jfilters);
+
+  jclass clazz = env->GetObjectClass(thiz);
+
+  jfieldID __driver = env->GetFieldID(clazz, "__driver", "J");
+  MesosSchedulerDriver* driver =
+    (MesosSchedulerDriver*) env->GetLongField(thiz, __driver);
+
+  // Iterator iterator = tasks.entrySet().iterator();
+  clazz = env->GetObjectClass(jtasks);
+
+  jmethodID entrySet =
+    env->GetMethodID(clazz, "entrySet", "()Ljava/util/Set;");
+  jobject jentrySet = env->CallObjectMethod(jtasks, entrySet);
+
+  clazz = env->GetObjectClass(jentrySet);
+
+  jmethodID iterator =
+    env->GetMethodID(clazz, "iterator", "()Ljava/util/Iterator;");
+  jobject jiterator = env->CallObjectMethod(jentrySet, iterator);
+
+  // Look these up on the interfaces since they get used for both
+  // the entry set iterator and the iterators of each collection.
+  clazz = env->FindClass("java/util/Iterator");
+
+  jmethodID hasNext = env->GetMethodID(clazz, "hasNext", "()Z");
+  jmethodID next = env->GetMethodID(clazz, "next", "()Ljava/lang/Object;");
+
+  clazz = env->FindClass("java/util/Map$Entry");
+
+  jmethodID getKey =
+    env->GetMethodID(clazz, "getKey", "()Ljava/lang/Object;");
+  jmethodID getValue =
+    env->GetMethodID(clazz, "getValue", "()Ljava/lang/Object;");
+
+  clazz = env->FindClass("java/util/Collection");
+
+  jmethodID collectionIterator =
+    env->GetMethodID(clazz, "iterator", "()Ljava/util/Iterator;");
+
+  Status result = OK;
+
+  // while (iterator.hasNext()) {
+  while (env->CallBooleanMethod(jiterator, hasNext)) {
+    // Release the local references for each offer as we go since a
+    // batch may contain many offers (and even more tasks).
+    env->PushLocalFrame(8);
+
+    // Map.Entry entry = iterator.next();
+    jobject jentry = env->CallObjectMethod(jiterator, next);
+
+    // Construct a C++ OfferID from the Java OfferID.
+    jobject jofferId = env->CallObjectMethod(jentry, getKey);
+    const OfferID& offerId = construct<OfferID>(env, jofferId);
+
+    // Construct a C++ TaskDescription from each Java TaskDescription.
+    vector<TaskDescription> tasks;
+
+    jobject jcollection = env->CallObjectMethod(jentry, getValue);
+    jobject jtaskIterator =
+      env->CallObjectMethod(jcollection, collectionIterator);
+
+    while (env->CallBooleanMethod(jtaskIterator, hasNext)) {
+      // Object task = iterator.next();
+      jobject jtask = env->CallObjectMethod(jtaskIterator, next);
+      tasks.push_back(construct<TaskDescription>(env, jtask));
+      env->DeleteLocalRef(jtask);
+    }
+
+    env->PopLocalFrame(NULL);
+
+    Status status = driver->launchTasks(offerId, tasks, filters);
+
+    if (result == OK) {
+      result = status;
+    }
+  }
+
+  return convert<Status>(env, result);
+}
+
+
 /*
  * Class:     org_apache_mesos_MesosSchedulerDriver
  * Method:    reviveOffers
@@ -0,0 +1,328 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mesos;
+
+import org.apache.mesos.Protos.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Wraps a SchedulerDriver so that its commands (launching and killing
+ * tasks, sending framework messages, etc.) can be issued without
+ * waiting on the underlying driver. Each command is queued and a
+ * Future is returned that completes with the status returned by the
+ * underlying driver once the command has been handed to it (for a
+ * MesosSchedulerDriver, once it has been sent to the master; the
+ * master does not acknowledge commands).
+ *
+ * Commands are passed to the underlying driver in the order they were
+ * issued by a single thread which drains the queue. Consecutive
+ * launchTasks commands with the same filters are merged into a single
+ * {@link SchedulerDriver#launchTasks(Map, Filters)} call, so a
+ * scheduler that launches tasks on each offer of a resourceOffers
+ * callback pays for one call into the underlying driver rather than
+ * one per offer. A command whose future is cancelled before it is
+ * flushed is dropped.
+ *
+ * Lifecycle methods (start, stop, join, etc.) are not queued; use
+ * {@link #getDriver} for those. Call {@link #close} to flush any
+ * outstanding commands and stop the flushing thread.
+ */
+public class AsyncSchedulerDriver {
+  /**
+   * Creates an AsyncSchedulerDriver that issues commands to the given
+   * driver.
+   */
+  public AsyncSchedulerDriver(SchedulerDriver driver) {
+    if (driver == null) {
+      throw new NullPointerException("Not expecting a null driver");
+    }
+
+    this.driver = driver;
+
+    flusher = new Thread("AsyncSchedulerDriver flusher") {
+      public void run() {
+        flush();
+      }
+    };
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Returns the underlying driver.
+   */
+  public SchedulerDriver getDriver() {
+    return driver;
+  }
+
+  /**
+   * See SchedulerDriver#requestResources.
+   */
+  public Future<Status> requestResources(
+      final Collection<ResourceRequest> requests) {
+    return enqueue(new Command(new Callable<Status>() {
+      public Status call() {
+        return driver.requestResources(requests);
+      }
+    }));
+  }
+
+  /**
+   * See SchedulerDriver#launchTasks.
+   */
+  public Future<Status> launchTasks(OfferID offerId,
+                                    Collection<TaskDescription> tasks,
+                                    Filters filters) {
+    return launchTasks(Collections.singletonMap(offerId, tasks), filters);
+  }
+
+  /**
+   * See SchedulerDriver#launchTasks.
+   */
+  public Future<Status> launchTasks(OfferID offerId,
+                                    Collection<TaskDescription> tasks) {
+    return launchTasks(offerId, tasks, Filters.newBuilder().build());
+  }
+
+  /**
+   * See SchedulerDriver#launchTasks.
+   */
+  public Future<Status> launchTasks(
+      Map<OfferID, Collection<TaskDescription>> tasks,
+      Filters filters) {
+    if (filters == null) {
+      throw new NullPointerException("Not expecting null filters");
+    }
+    return enqueue(new Launch(tasks, filters));
+  }
+
+  /**
+   * See SchedulerDriver#killTask.
+   */
+  public Future<Status> killTask(final TaskID taskId) {
+    return enqueue(new Command(new Callable<Status>() {
+      public Status call() {
+        return driver.killTask(taskId);
+      }
+    }));
+  }
+
+  /**
+   * See SchedulerDriver#reviveOffers.
+   */
+  public Future<Status> reviveOffers() {
+    return enqueue(new Command(new Callable<Status>() {
+      public Status call() {
+        return driver.reviveOffers();
+      }
+    }));
+  }
+
+  /**
+   * See SchedulerDriver#sendFrameworkMessage.
+   */
+  public Future<Status> sendFrameworkMessage(final SlaveID slaveId,
+                                             final ExecutorID executorId,
+                                             final byte[] data) {
+    return enqueue(new Command(new Callable<Status>() {
+      public Status call() {
+        return driver.sendFrameworkMessage(slaveId, executorId, data);
+      }
+    }));
+  }
+
+  /**
+   * Flushes all commands issued so far and stops the flushing
+   * thread. Commands issued after close are rejected.
+   */
+  public void close() throws InterruptedException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      queue.add(CLOSE);
+    }
+    flusher.join();
+  }
+
+  private synchronized Future<Status> enqueue(Command command) {
+    if (closed) {
+      throw new IllegalStateException("AsyncSchedulerDriver is closed");
+    }
+    queue.add(command);
+    return command;
+  }
+
+  // Runs in the flushing thread.
+  private void flush() {
+    List<Command> commands = new ArrayList<Command>();
+    while (true) {
+      try {
+        commands.add(queue.take());
+      } catch (InterruptedException e) {
+        continue; // Only close stops the flusher.
+      }
+      queue.drainTo(commands);
+
+      boolean close = false;
+
+      int i = 0;
+      while (i < commands.size()) {
+        Command command = commands.get(i);
+        try {
+          if (command == CLOSE) {
+            close = true;
+            i++;
+          } else if (command instanceof Launch) {
+            i = launch(commands, i);
+          } else {
+            command.run(); // Does nothing if cancelled.
+            i++;
+          }
+        } catch (Throwable t) {
+          // Fail the command rather than the flusher, which would leave
+          // every pending and future command waiting forever.
+          command.fail(t);
+          i++;
+        }
+      }
+
+      commands.clear();
+
+      if (close) {
+        return;
+      }
+    }
+  }
+
+  // Merges the run of launches starting at 'start' that have the same
+  // filters (and distinct offers) into a single launchTasks call, and
+  // returns the index of the first command after that run. A launch
+  // that is not merged with any other is simply run.
+  private int launch(List<Command> commands, int start) {
+    Filters filters = ((Launch) commands.get(start)).filters;
+    Map<OfferID, Collection<TaskDescription>> tasks =
+      new LinkedHashMap<OfferID, Collection<TaskDescription>>();
+    List<Launch> launches = new ArrayList<Launch>();
+
+    int i = start;
+    for (; i < commands.size(); i++) {
+      if (!(commands.get(i) instanceof Launch)) {
+        break;
+      }
+      Launch launch = (Launch) commands.get(i);
+      if (!launch.filters.equals(filters) || overlaps(tasks, launch.tasks)) {
+        break;
+      }
+      if (launch.isCancelled()) {
+        continue;
+      }
+      tasks.putAll(launch.tasks);
+      launches.add(launch);
+    }
+
+    if (launches.size() == 1) {
+      launches.get(0).run();
+    } else if (!launches.isEmpty()) {
+      try {
+        Status status = driver.launchTasks(tasks, filters);
+        for (Launch launch : launches) {
+          launch.complete(status);
+        }
+      } catch (Throwable t) {
+        for (Launch launch : launches) {
+          launch.fail(t);
+        }
+      }
+    }
+
+    return i;
+  }
+
+  private static boolean overlaps(
+      Map<OfferID, Collection<TaskDescription>> tasks,
+      Map<OfferID, Collection<TaskDescription>> more) {
+    for (OfferID offerId : more.keySet()) {
+      if (tasks.containsKey(offerId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class Command extends FutureTask<Status> {
+    Command(Callable<Status> callable) {
+      super(callable);
+    }
+
+    void complete(Status status) {
+      set(status);
+    }
+
+    void fail(Throwable t) {
+      setException(t);
+    }
+  }
+
+  // A launchTasks command. Run on its own it launches just its tasks;
+  // the flusher completes launches that it merges with the status of the
+  // merged call instead.
+  private class Launch extends Command {
+    final Map<OfferID, Collection<TaskDescription>> tasks;
+    final Filters filters;
+
+    Launch(final Map<OfferID, Collection<TaskDescription>> tasks,
+           final Filters filters) {
+      super(new Callable<Status>() {
+        public Status call() {
+          return driver.launchTasks(tasks, filters);
+        }
+      });
+      this.tasks = tasks;
+      this.filters = filters;
+    }
+  }
+
+  // Queued by close to stop the flushing thread.
+  private static final Command CLOSE = new Command(new Callable<Status>() {
+    public Status call() {
+      return null;
+    }
+  });
+
+  private final SchedulerDriver driver;
+  private final BlockingQueue<Command> queue =
+    new LinkedBlockingQueue<Command>();
+  private final Thread flusher;
+  private boolean closed = false;
+}
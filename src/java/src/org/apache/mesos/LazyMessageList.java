@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mesos;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.mesos.Protos.*;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * An immutable list of protocol buffers that are only parsed when
+ * they are first accessed. The JNI bindings use this to pass a batch
+ * of messages (e.g., all of the offers of a single resourceOffers
+ * callback) to Java with a single copy: the C++ side serializes the
+ * messages into one buffer, each one prefixed by its size as a varint
+ * (i.e., the format of {@link
+ * com.google.protobuf.MessageLite#writeDelimitedTo}), and hands that
+ * buffer over as a direct ByteBuffer.
+ *
+ * The contents of the ByteBuffer are copied when the list is created,
+ * so the native memory only needs to stay valid for the duration of
+ * that call. Messages that a scheduler never looks at are never
+ * parsed.
+ *
+ * Like the messages themselves, a LazyMessageList may be shared
+ * between threads (at worst a message gets parsed more than once).
+ */
+abstract class LazyMessageList<T> extends AbstractList<T> {
+  private final byte[] data;
+  private final int[] offsets;
+  private final int[] lengths;
+  private final Object[] messages;
+
+  LazyMessageList(ByteBuffer buffer) {
+    data = new byte[buffer.remaining()];
+    buffer.get(data);
+
+    int[] offsets = new int[8];
+    int[] lengths = new int[8];
+    int size = 0;
+
+    try {
+      CodedInputStream input = CodedInputStream.newInstance(data);
+      while (!input.isAtEnd()) {
+        if (size == offsets.length) {
+          offsets = Arrays.copyOf(offsets, size * 2);
+          lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        lengths[size] = input.readRawVarint32();
+        offsets[size] = input.getTotalBytesRead();
+        input.skipRawBytes(lengths[size]);
+        size++;
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed message buffer", e);
+    }
+
+    this.offsets = Arrays.copyOf(offsets, size);
+    this.lengths = Arrays.copyOf(lengths, size);
+    this.messages = new Object[size];
+  }
+
+  /**
+   * Parses the message stored in the specified range of data.
+   */
+  protected abstract T parse(byte[] data, int offset, int length)
+    throws InvalidProtocolBufferException;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    Object message = messages[index];
+    if (message == null) {
+      try {
+        message = parse(data, offsets[index], lengths[index]);
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException("Failed to parse message", e);
+      }
+      messages[index] = message;
+    }
+    return (T) message;
+  }
+
+  @Override
+  public int size() {
+    return messages.length;
+  }
+
+  /**
+   * Invoked from the JNI bindings to wrap a buffer of serialized
+   * offers.
+   */
+  static List<Offer> offers(ByteBuffer buffer) {
+    return new LazyMessageList<Offer>(buffer) {
+      protected Offer parse(byte[] data, int offset, int length)
+        throws InvalidProtocolBufferException {
+        return Offer.newBuilder().mergeFrom(data, offset, length).build();
+      }
+    };
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mesos;
+
+import org.apache.mesos.Protos.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * The ExecutorDriver given to executors launched by a {@link
+ * LocalSchedulerDriver}. Executor callbacks are delivered one at a
+ * time from a thread per executor; status updates and framework
+ * messages are passed directly to the LocalSchedulerDriver.
+ */
+public class LocalExecutorDriver implements ExecutorDriver {
+  LocalExecutorDriver(LocalSchedulerDriver master,
+                      Executor executor,
+                      ExecutorArgs args) {
+    this.master = master;
+    this.executor = executor;
+    this.args = args;
+  }
+
+  public synchronized Status start() {
+    if (state == State.RUNNING) {
+      return Status.DRIVER_ALREADY_RUNNING;
+    } else if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state == State.ABORTED) {
+      return Status.DRIVER_ABORTED;
+    }
+
+    state = State.RUNNING;
+
+    callbacks = Executors.newSingleThreadExecutor(
+        LocalSchedulerDriver.threadFactory(
+            "LocalExecutorDriver " + args.getExecutorId().getValue() +
+            " on " + args.getSlaveId().getValue()));
+
+    deliver(new Runnable() {
+      public void run() {
+        executor.init(LocalExecutorDriver.this, args);
+      }
+    });
+
+    return Status.OK;
+  }
+
+  public Status stop() {
+    synchronized (this) {
+      if (state == State.STOPPED) {
+        return Status.DRIVER_STOPPED;
+      } else if (state != State.RUNNING && state != State.ABORTED) {
+        return Status.DRIVER_NOT_RUNNING;
+      }
+
+      state = State.STOPPED;
+      callbacks.shutdown();
+      notifyAll();
+    }
+
+    master.executorExited(this);
+
+    return Status.OK;
+  }
+
+  public Status abort() {
+    synchronized (this) {
+      if (state == State.ABORTED) {
+        return Status.DRIVER_ABORTED;
+      } else if (state == State.STOPPED) {
+        return Status.DRIVER_STOPPED;
+      } else if (state != State.RUNNING) {
+        return Status.DRIVER_NOT_RUNNING;
+      }
+
+      state = State.ABORTED;
+      callbacks.shutdown();
+      notifyAll();
+    }
+
+    master.executorExited(this);
+
+    return Status.OK;
+  }
+
+  public synchronized Status join() {
+    if (state == State.ABORTED) {
+      return Status.DRIVER_ABORTED;
+    } else if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state != State.RUNNING) {
+      return Status.DRIVER_NOT_RUNNING;
+    }
+
+    while (state == State.RUNNING) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    return state == State.ABORTED ? Status.DRIVER_ABORTED : Status.OK;
+  }
+
+  public Status run() {
+    Status status = start();
+    return status != Status.OK ? status : join();
+  }
+
+  public Status sendStatusUpdate(TaskStatus status) {
+    synchronized (this) {
+      if (state != State.RUNNING) {
+        return notRunning();
+      }
+    }
+
+    master.statusUpdate(this, status);
+
+    return Status.OK;
+  }
+
+  public Status sendFrameworkMessage(byte[] data) {
+    synchronized (this) {
+      if (state != State.RUNNING) {
+        return notRunning();
+      }
+    }
+
+    master.frameworkMessage(this, data);
+
+    return Status.OK;
+  }
+
+  ExecutorArgs getArgs() {
+    return args;
+  }
+
+  void launchTask(final TaskDescription task) {
+    deliver(new Runnable() {
+      public void run() {
+        executor.launchTask(LocalExecutorDriver.this, task);
+      }
+    });
+  }
+
+  void killTask(final TaskID taskId) {
+    deliver(new Runnable() {
+      public void run() {
+        executor.killTask(LocalExecutorDriver.this, taskId);
+      }
+    });
+  }
+
+  void frameworkMessage(final byte[] data) {
+    deliver(new Runnable() {
+      public void run() {
+        executor.frameworkMessage(LocalExecutorDriver.this, data);
+      }
+    });
+  }
+
+  /**
+   * Asks the executor to shut down, as the slave does when the
+   * framework exits. Called by the LocalSchedulerDriver, which has
+   * already forgotten about this executor.
+   */
+  synchronized void shutdown() {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    callbacks.execute(new Runnable() {
+      public void run() {
+        try {
+          executor.shutdown(LocalExecutorDriver.this);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+
+    state = State.STOPPED;
+    callbacks.shutdown();
+    notifyAll();
+  }
+
+  /**
+   * Runs an executor callback on the callback thread, unless the
+   * driver has been stopped or aborted by then.
+   */
+  private synchronized void deliver(final Runnable callback) {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    callbacks.execute(new Runnable() {
+      public void run() {
+        synchronized (LocalExecutorDriver.this) {
+          if (state != State.RUNNING) {
+            return;
+          }
+        }
+
+        try {
+          callback.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          abort();
+        }
+      }
+    });
+  }
+
+  private Status notRunning() {
+    return state == State.ABORTED
+      ? Status.DRIVER_ABORTED
+      : Status.DRIVER_NOT_RUNNING;
+  }
+
+  private enum State { NOT_STARTED, RUNNING, STOPPED, ABORTED }
+
+  private final LocalSchedulerDriver master;
+  private final Executor executor;
+  private final ExecutorArgs args;
+
+  private State state = State.NOT_STARTED;
+  private ExecutorService callbacks;
+}
@@ -0,0 +1,656 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mesos;
+
+import org.apache.mesos.Protos.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A pure Java implementation of SchedulerDriver that runs a simulated
+ * master and slaves in-process, without the native library. Offers,
+ * allocation, executor launch, status updates and framework messages
+ * follow the semantics of a MesosSchedulerDriver connected to a
+ * "local" cluster, but executors are created in-process by an {@link
+ * ExecutorFactory} and talk to the driver through a {@link
+ * LocalExecutorDriver}. This makes it possible to test and benchmark
+ * Java frameworks at high task rates, or on machines where the native
+ * build is not available.
+ *
+ * As with the native driver, scheduler callbacks are delivered one at
+ * a time from a single thread, and each executor gets its own
+ * callback thread. If a callback throws an exception, the driver is
+ * aborted.
+ *
+ * Resources are allocated like the master's simple allocator: all the
+ * unused resources of each slave are offered (if at least MIN_CPUS
+ * and more than MIN_MEM are free), and a slave whose offer was
+ * declined outright is filtered for the refuse_seconds of the filters
+ * given to launchTasks.
+ */
+public class LocalSchedulerDriver implements SchedulerDriver {
+  /**
+   * Creates the executors that the local cluster launches.
+   */
+  public interface ExecutorFactory {
+    Executor createExecutor(ExecutorInfo executorInfo);
+  }
+
+  // Same as the master's constants.
+  public static final double MIN_CPUS = 1;
+  public static final double MIN_MEM = 32;
+  public static final double UNUSED_RESOURCES_TIMEOUT = 5.0;
+
+  /**
+   * Creates a local cluster with the given number of slaves, each
+   * with the given CPUs and memory (in MB).
+   */
+  public LocalSchedulerDriver(Scheduler scheduler,
+                              String frameworkName,
+                              ExecutorInfo executorInfo,
+                              ExecutorFactory executorFactory,
+                              int numSlaves,
+                              double cpusPerSlave,
+                              double memPerSlave) {
+    if (scheduler == null) {
+      throw new NullPointerException("Not expecting a null scheduler");
+    }
+
+    if (executorFactory == null) {
+      throw new NullPointerException("Not expecting a null factory");
+    }
+
+    this.scheduler = scheduler;
+    this.frameworkName = frameworkName;
+    this.executorInfo = executorInfo;
+    this.executorFactory = executorFactory;
+
+    for (int i = 0; i < numSlaves; i++) {
+      Slave slave = new Slave(
+          SlaveID.newBuilder().setValue("local-slave-" + i).build(),
+          "slave" + i, cpusPerSlave, memPerSlave);
+      slaves.put(slave.id.getValue(), slave);
+    }
+  }
+
+  /**
+   * Creates a local cluster with a single slave with 1 CPU and 1024
+   * MB of memory, like the native "local" cluster's defaults.
+   */
+  public LocalSchedulerDriver(Scheduler scheduler,
+                              String frameworkName,
+                              ExecutorInfo executorInfo,
+                              ExecutorFactory executorFactory) {
+    this(scheduler, frameworkName, executorInfo, executorFactory, 1, 1, 1024);
+  }
+
+  public synchronized Status start() {
+    if (state == State.RUNNING) {
+      return Status.DRIVER_ALREADY_RUNNING;
+    } else if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state == State.ABORTED) {
+      return Status.DRIVER_ABORTED;
+    }
+
+    state = State.RUNNING;
+
+    callbacks = Executors.newSingleThreadExecutor(
+        threadFactory("LocalSchedulerDriver callbacks"));
+    timer = Executors.newSingleThreadScheduledExecutor(
+        threadFactory("LocalSchedulerDriver allocator"));
+
+    deliver(new Runnable() {
+      public void run() {
+        scheduler.registered(LocalSchedulerDriver.this, frameworkId);
+      }
+    });
+
+    allocate();
+
+    return Status.OK;
+  }
+
+  public synchronized Status stop(boolean failover) {
+    if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state != State.RUNNING && state != State.ABORTED) {
+      return Status.DRIVER_NOT_RUNNING;
+    }
+
+    // There is no master to fail over to, so the executors are always
+    // shut down.
+    for (Slave slave : slaves.values()) {
+      for (LocalExecutorDriver executor : slave.executors.values()) {
+        executor.shutdown();
+      }
+      slave.executors.clear();
+    }
+
+    state = State.STOPPED;
+    shutdownThreads();
+    notifyAll();
+
+    return Status.OK;
+  }
+
+  public Status stop() {
+    return stop(false);
+  }
+
+  public synchronized Status abort() {
+    if (state == State.ABORTED) {
+      return Status.DRIVER_ABORTED;
+    } else if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state != State.RUNNING) {
+      return Status.DRIVER_NOT_RUNNING;
+    }
+
+    state = State.ABORTED;
+    shutdownThreads();
+    notifyAll();
+
+    return Status.OK;
+  }
+
+  public synchronized Status join() {
+    if (state == State.ABORTED) {
+      return Status.DRIVER_ABORTED;
+    } else if (state == State.STOPPED) {
+      return Status.DRIVER_STOPPED;
+    } else if (state != State.RUNNING) {
+      return Status.DRIVER_NOT_RUNNING;
+    }
+
+    while (state == State.RUNNING) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    return state == State.ABORTED ? Status.DRIVER_ABORTED : Status.OK;
+  }
+
+  public Status run() {
+    Status status = start();
+    return status != Status.OK ? status : join();
+  }
+
+  public synchronized Status requestResources(
+      Collection<ResourceRequest> requests) {
+    if (state != State.RUNNING) {
+      return notRunning();
+    }
+
+    // All resources are offered anyway.
+    allocate();
+
+    return Status.OK;
+  }
+
+  public synchronized Status launchTasks(OfferID offerId,
+                                         Collection<TaskDescription> tasks,
+                                         Filters filters) {
+    if (state != State.RUNNING) {
+      return notRunning();
+    }
+
+    Slave slave = offers.remove(offerId.getValue());
+
+    if (slave == null) {
+      // Like the master, report tasks on an unknown (e.g., rescinded)
+      // offer as lost.
+      for (TaskDescription task : tasks) {
+        lost(task.getTaskId(), "Task launched with invalid offer");
+      }
+      return Status.OK;
+    }
+
+    slave.offered = false;
+
+    int launched = 0;
+
+    for (TaskDescription task : tasks) {
+      double cpus = getScalar(task.getResourcesList(), "cpus");
+      double mem = getScalar(task.getResourcesList(), "mem");
+
+      if (!task.getSlaveId().equals(slave.id)) {
+        lost(task.getTaskId(), "Task uses invalid slave");
+      } else if (this.tasks.containsKey(task.getTaskId().getValue())) {
+        lost(task.getTaskId(), "Task has duplicate ID");
+      } else if (cpus > slave.cpus || mem > slave.mem) {
+        lost(task.getTaskId(), "Task uses more resources than offered");
+      } else {
+        slave.cpus -= cpus;
+        slave.mem -= mem;
+        launch(slave, task, cpus, mem);
+        launched++;
+      }
+    }
+
+    if (launched == 0) {
+      double refuseSeconds = filters.hasRefuseSeconds()
+        ? filters.getRefuseSeconds()
+        : UNUSED_RESOURCES_TIMEOUT;
+      slave.refusedUntil = refuseSeconds < 0
+        ? Long.MAX_VALUE
+        : System.currentTimeMillis() + (long) (refuseSeconds * 1000);
+    }
+
+    allocate();
+
+    return Status.OK;
+  }
+
+  public Status launchTasks(OfferID offerId,
+                            Collection<TaskDescription> tasks) {
+    return launchTasks(offerId, tasks, Filters.getDefaultInstance());
+  }
+
+  public synchronized Status launchTasks(
+      Map<OfferID, Collection<TaskDescription>> tasks,
+      Filters filters) {
+    Status result = Status.OK;
+    for (Map.Entry<OfferID, Collection<TaskDescription>> entry :
+           tasks.entrySet()) {
+      Status status = launchTasks(entry.getKey(), entry.getValue(), filters);
+      if (status != Status.OK && result == Status.OK) {
+        result = status;
+      }
+    }
+    return result;
+  }
+
+  public synchronized Status killTask(TaskID taskId) {
+    if (state != State.RUNNING) {
+      return notRunning();
+    }
+
+    Task task = this.tasks.get(taskId.getValue());
+
+    if (task == null) {
+      lost(taskId, "Attempted to kill an unknown task");
+    } else {
+      task.executor.killTask(taskId);
+    }
+
+    return Status.OK;
+  }
+
+  public synchronized Status reviveOffers() {
+    if (state != State.RUNNING) {
+      return notRunning();
+    }
+
+    for (Slave slave : slaves.values()) {
+      slave.refusedUntil = 0;
+    }
+
+    allocate();
+
+    return Status.OK;
+  }
+
+  public synchronized Status sendFrameworkMessage(SlaveID slaveId,
+                                                  ExecutorID executorId,
+                                                  byte[] data) {
+    if (state != State.RUNNING) {
+      return notRunning();
+    }
+
+    Slave slave = slaves.get(slaveId.getValue());
+
+    if (slave != null) {
+      LocalExecutorDriver executor =
+        slave.executors.get(executorId.getValue());
+      if (executor != null) {
+        executor.frameworkMessage(data);
+      }
+    }
+
+    return Status.OK;
+  }
+
+  /**
+   * Handles a status update from an executor.
+   */
+  synchronized void statusUpdate(LocalExecutorDriver executor,
+                                 final TaskStatus status) {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    if (isTerminal(status.getState())) {
+      Task task = tasks.get(status.getTaskId().getValue());
+      if (task != null && task.executor == executor) {
+        remove(task);
+        allocate();
+      }
+    }
+
+    deliver(new Runnable() {
+      public void run() {
+        scheduler.statusUpdate(LocalSchedulerDriver.this, status);
+      }
+    });
+  }
+
+  /**
+   * Handles a framework message from an executor.
+   */
+  synchronized void frameworkMessage(final LocalExecutorDriver executor,
+                                     final byte[] data) {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    deliver(new Runnable() {
+      public void run() {
+        scheduler.frameworkMessage(LocalSchedulerDriver.this,
+                                   executor.getArgs().getSlaveId(),
+                                   executor.getArgs().getExecutorId(),
+                                   data);
+      }
+    });
+  }
+
+  /**
+   * Handles an executor that stopped or aborted: its tasks are lost.
+   */
+  synchronized void executorExited(LocalExecutorDriver executor) {
+    Slave slave = slaves.get(executor.getArgs().getSlaveId().getValue());
+
+    if (slave == null ||
+        slave.executors.remove(
+            executor.getArgs().getExecutorId().getValue()) == null) {
+      return;
+    }
+
+    for (Task task : new ArrayList<Task>(tasks.values())) {
+      if (task.executor == executor) {
+        remove(task);
+        lost(task.id, "Executor exited");
+      }
+    }
+
+    allocate();
+  }
+
+  private void launch(Slave slave, TaskDescription task,
+                      double cpus, double mem) {
+    ExecutorInfo info = task.hasExecutor() ? task.getExecutor() : executorInfo;
+
+    LocalExecutorDriver executor =
+      slave.executors.get(info.getExecutorId().getValue());
+
+    if (executor == null) {
+      ExecutorArgs.Builder args = ExecutorArgs.newBuilder()
+        .setFrameworkId(frameworkId)
+        .setExecutorId(info.getExecutorId())
+        .setSlaveId(slave.id)
+        .setHostname(slave.hostname);
+      if (info.hasData()) {
+        args.setData(info.getData());
+      }
+
+      executor = new LocalExecutorDriver(
+          this, executorFactory.createExecutor(info), args.build());
+      slave.executors.put(info.getExecutorId().getValue(), executor);
+      executor.start();
+    }
+
+    Task t = new Task(task.getTaskId(), slave, executor, cpus, mem);
+    tasks.put(task.getTaskId().getValue(), t);
+    executor.launchTask(task);
+  }
+
+  private void remove(Task task) {
+    tasks.remove(task.id.getValue());
+    task.slave.cpus += task.cpus;
+    task.slave.mem += task.mem;
+  }
+
+  private void lost(TaskID taskId, String message) {
+    final TaskStatus status = TaskStatus.newBuilder()
+      .setTaskId(taskId)
+      .setState(TaskState.TASK_LOST)
+      .setMessage(message)
+      .build();
+
+    deliver(new Runnable() {
+      public void run() {
+        scheduler.statusUpdate(LocalSchedulerDriver.this, status);
+      }
+    });
+  }
+
+  /**
+   * Offers the unused resources of every slave that doesn't have an
+   * outstanding offer and isn't filtered. If some slaves are
+   * filtered, allocates again when the first filter expires.
+   */
+  private void allocate() {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    long nextRefusalEnd = Long.MAX_VALUE;
+
+    final List<Offer> offered = new ArrayList<Offer>();
+
+    for (Slave slave : slaves.values()) {
+      if (slave.offered) {
+        continue;
+      } else if (slave.refusedUntil > now) {
+        nextRefusalEnd = Math.min(nextRefusalEnd, slave.refusedUntil);
+        continue;
+      } else if (slave.cpus < MIN_CPUS || slave.mem <= MIN_MEM) {
+        continue;
+      }
+
+      Offer.Builder offer = Offer.newBuilder()
+        .setId(OfferID.newBuilder().setValue("local-offer-" + nextOfferId++))
+        .setFrameworkId(frameworkId)
+        .setSlaveId(slave.id)
+        .setHostname(slave.hostname)
+        .addResources(scalar("cpus", slave.cpus))
+        .addResources(scalar("mem", slave.mem));
+
+      for (String executorId : slave.executors.keySet()) {
+        offer.addExecutorIds(ExecutorID.newBuilder().setValue(executorId));
+      }
+
+      Offer built = offer.build();
+      offered.add(built);
+      offers.put(built.getId().getValue(), slave);
+      slave.offered = true;
+    }
+
+    if (!offered.isEmpty()) {
+      deliver(new Runnable() {
+        public void run() {
+          scheduler.resourceOffers(LocalSchedulerDriver.this, offered);
+        }
+      });
+    }
+
+    if (nextRefusalEnd != Long.MAX_VALUE &&
+        nextRefusalEnd < nextAllocation) {
+      nextAllocation = nextRefusalEnd;
+      timer.schedule(new Runnable() {
+        public void run() {
+          synchronized (LocalSchedulerDriver.this) {
+            nextAllocation = Long.MAX_VALUE;
+            allocate();
+          }
+        }
+      }, nextRefusalEnd - now, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Runs a scheduler callback on the callback thread, unless the
+   * driver has been stopped or aborted by then.
+   */
+  private void deliver(final Runnable callback) {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    callbacks.execute(new Runnable() {
+      public void run() {
+        synchronized (LocalSchedulerDriver.this) {
+          if (state != State.RUNNING) {
+            return;
+          }
+        }
+
+        try {
+          callback.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          abort();
+        }
+      }
+    });
+  }
+
+  private void shutdownThreads() {
+    if (callbacks != null) {
+      callbacks.shutdown();
+    }
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+  }
+
+  private Status notRunning() {
+    return state == State.ABORTED
+      ? Status.DRIVER_ABORTED
+      : Status.DRIVER_NOT_RUNNING;
+  }
+
+  static boolean isTerminal(TaskState state) {
+    return state == TaskState.TASK_FINISHED ||
+      state == TaskState.TASK_FAILED ||
+      state == TaskState.TASK_KILLED ||
+      state == TaskState.TASK_LOST;
+  }
+
+  static ThreadFactory threadFactory(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static double getScalar(List<Resource> resources, String name) {
+    double value = 0;
+    for (Resource resource : resources) {
+      if (resource.getName().equals(name) &&
+          resource.getType() == Value.Type.SCALAR) {
+        value += resource.getScalar().getValue();
+      }
+    }
+    return value;
+  }
+
+  private static Resource scalar(String name, double value) {
+    return Resource.newBuilder()
+      .setName(name)
+      .setType(Value.Type.SCALAR)
+      .setScalar(Value.Scalar.newBuilder().setValue(value).build())
+      .build();
+  }
+
+  private enum State { NOT_STARTED, RUNNING, STOPPED, ABORTED }
+
+  private static class Slave {
+    Slave(SlaveID id, String hostname, double cpus, double mem) {
+      this.id = id;
+      this.hostname = hostname;
+      this.cpus = cpus;
+      this.mem = mem;
+    }
+
+    final SlaveID id;
+    final String hostname;
+    double cpus; // Unused CPUs.
+    double mem; // Unused memory.
+    boolean offered = false; // Whether an offer is outstanding.
+    long refusedUntil = 0; // Not offered before this time (filters).
+    final Map<String, LocalExecutorDriver> executors =
+      new HashMap<String, LocalExecutorDriver>();
+  }
+
+  private static class Task {
+    Task(TaskID id, Slave slave, LocalExecutorDriver executor,
+         double cpus, double mem) {
+      this.id = id;
+      this.slave = slave;
+      this.executor = executor;
+      this.cpus = cpus;
+      this.mem = mem;
+    }
+
+    final TaskID id;
+    final Slave slave;
+    final LocalExecutorDriver executor;
+    final double cpus;
+    final double mem;
+  }
+
+  private final Scheduler scheduler;
+  private final String frameworkName;
+  private final ExecutorInfo executorInfo;
+  private final ExecutorFactory executorFactory;
+  private final FrameworkID frameworkId =
+    FrameworkID.newBuilder().setValue("local-framework").build();
+
+  private State state = State.NOT_STARTED;
+  private ExecutorService callbacks;
+  private ScheduledExecutorService timer;
+  private long nextAllocation = Long.MAX_VALUE;
+  private int nextOfferId = 0;
+
+  private final Map<String, Slave> slaves =
+    new LinkedHashMap<String, Slave>();
+  private final Map<String, Slave> offers = new HashMap<String, Slave>();
+  private final Map<String, Task> tasks = new HashMap<String, Task>();
+}
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 
@@ -173,6 +175,145 @@ public class Log {
     private long __reader;
   }
 
+  /**
+   * Follows the {@link Log}, starting at some position, and hands out
+   * its entries as they get appended. A background thread watches the
+   * ending position of the log and reads newly appended entries into
+   * a bounded buffer (it stops reading when the buffer is full), so
+   * entries are usually available as soon as they are asked for.
+   *
+   * <p>Like a {@link Reader}, a Tailer only sees entries once they
+   * have been learned by the local replica. A Tailer is safe for use
+   * from multiple threads, but each entry is only handed out once.
+   * Close it when done to stop the background thread.
+   */
+  public static class Tailer implements Closeable {
+    /**
+     * Creates a Tailer that starts at the specified position,
+     * buffers at most 'capacity' entries, and checks the ending
+     * position of the log every 'interval' while it is caught up.
+     */
+    public Tailer(Log log,
+                  Position from,
+                  int capacity,
+                  long interval,
+                  TimeUnit unit) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("Expecting a positive capacity");
+      }
+
+      this.reader = new Reader(log);
+      this.next = from.value;
+      this.capacity = capacity;
+      this.interval = unit.toMillis(interval);
+      this.entries = new ArrayBlockingQueue<Entry>(capacity);
+
+      thread = new Thread("Log.Tailer") {
+        public void run() {
+          follow();
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Returns the next entry, waiting for it to get appended if
+     * necessary. Throws an OperationFailedException once all the
+     * entries read before reading the log failed (e.g., because it
+     * was truncated past the next position) have been taken.
+     */
+    public Entry take()
+      throws InterruptedException, OperationFailedException {
+      return check(entries.take());
+    }
+
+    /**
+     * Returns the next entry, waiting up to the specified time for it
+     * to get appended, or null if it was not appended in time. See
+     * {@link #take} for when an OperationFailedException gets thrown.
+     */
+    public Entry poll(long timeout, TimeUnit unit)
+      throws InterruptedException, OperationFailedException {
+      return check(entries.poll(timeout, unit));
+    }
+
+    /**
+     * Stops following the log. Entries that have already been
+     * buffered can still be taken.
+     */
+    public void close() {
+      closed = true;
+      thread.interrupt();
+    }
+
+    private Entry check(Entry entry) throws OperationFailedException {
+      if (entry == FAILED) {
+        entries.offer(FAILED); // Make sure other callers fail too.
+        throw failure;
+      }
+      return entry;
+    }
+
+    // Runs in the background thread.
+    private void follow() {
+      try {
+        while (!closed) {
+          long ending = reader.ending().value;
+
+          if (ending < next) {
+            Thread.sleep(interval);
+            continue;
+          }
+
+          // Read no more than will fit in the buffer (some positions
+          // might not be appends, so it might be less).
+          long to = Math.min(ending, next + capacity - 1);
+
+          List<Entry> read;
+          try {
+            read = reader.read(new Position(next),
+                               new Position(to),
+                               READ_TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS);
+          } catch (TimeoutException e) {
+            continue; // Just try again.
+          }
+
+          for (Entry entry : read) {
+            entries.put(entry);
+          }
+
+          next = to + 1;
+        }
+      } catch (InterruptedException e) {
+        // Closed.
+      } catch (OperationFailedException e) {
+        failure = e;
+        closed = true;
+        try {
+          entries.put(FAILED);
+        } catch (InterruptedException ie) {
+          // Closed.
+        }
+      }
+    }
+
+    private static final long READ_TIMEOUT_SECONDS = 10;
+
+    // Handed out in place of an entry after a failure.
+    private static final Entry FAILED = new Entry(null, null);
+
+    private final Reader reader;
+    private final int capacity;
+    private final long interval;
+    private final BlockingQueue<Entry> entries;
+    private final Thread thread;
+    private long next; // Next position to read, only used by thread.
+    private volatile boolean closed = false;
+    private volatile OperationFailedException failure;
+  }
+
   /**
    * Provides write access to the {@link Log}. This class is not safe
    * for use from multiple threads and instances should be thrown out
@@ -199,6 +340,20 @@ public class Log {
     public native Position append(byte[] data, long timeout, TimeUnit unit)
       throws TimeoutException, WriterFailedException;
 
+    /**
+     * Attempts to append each of the specified entries to the log, in
+     * order, as a single batch. All of the entries are written to the
+     * replicas at once, so appending a batch takes about as long as
+     * appending a single entry. Returns the positions of the new
+     * entries. On a timeout some prefix of the entries may have been
+     * appended. See {@link #append} for when a WriterFailedException
+     * gets thrown.
+     */
+    public native List<Position> appendBatch(List<byte[]> data,
+                                             long timeout,
+                                             TimeUnit unit)
+      throws TimeoutException, WriterFailedException;
+
     /**
      * Attepts to truncate the log (from the beginning to the
      * specified position exclusive) If the position is invalid, an
@@ -122,6 +122,11 @@ public class MesosSchedulerDriver implements SchedulerDriver {
                                    Collection<TaskDescription> tasks,
                                    Filters filters);
 
+  public Status launchTasks(Map<OfferID, Collection<TaskDescription>> tasks,
+                            Filters filters) {
+    return launchTasksBatch(tasks, filters);
+  }
+
   public native Status killTask(TaskID taskId);
 
   public native Status reviveOffers();
@@ -130,6 +135,12 @@ public class MesosSchedulerDriver implements SchedulerDriver {
                                             ExecutorID executorId,
                                             byte[] data);
 
+  // Not an overload of the native launchTasks so that the JVM can
+  // still find both implementations by their short JNI names.
+  private native Status launchTasksBatch(
+      Map<OfferID, Collection<TaskDescription>> tasks,
+      Filters filters);
+
   protected native void initialize();
   protected native void finalize();
 
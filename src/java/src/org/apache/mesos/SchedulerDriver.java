@@ -104,6 +104,17 @@ public interface SchedulerDriver {
   Status launchTasks(OfferID offerId,
                      Collection<TaskDescription> tasks);
 
+  /**
+   * Launches tasks on several offers at once (e.g., everything a
+   * scheduler decided to do in response to one {@link
+   * Scheduler#resourceOffers} callback). This is equivalent to
+   * invoking {@link #launchTasks} for each offer with the same
+   * filters, but lets the driver handle the whole batch in a single
+   * call. Returns the first status that was not OK, if any.
+   */
+  Status launchTasks(Map<OfferID, Collection<TaskDescription>> tasks,
+                     Filters filters);
+
   /**
    * Kills the specified task. Note that attempting to kill a task is
    * currently not reliable. If, for example, a scheduler fails over
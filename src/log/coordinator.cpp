@@ -17,6 +17,7 @@
  */
 
 #include <algorithm>
+#include <map>
 
 #include <process/dispatch.hpp>
 #include <process/future.hpp>
@@ -27,6 +28,7 @@
 #include "log/replica.hpp"
 
 using std::list;
+using std::map;
 using std::pair;
 using std::set;
 using std::string;
@@ -186,6 +188,39 @@ Result<uint64_t> Coordinator::append(
 }
 
 
+Result<uint64_t> Coordinator::append(
+    const list<string>& entries,
+    const Timeout& timeout)
+{
+  if (!elected) {
+    return Result<uint64_t>::error("Coordinator not elected");
+  }
+
+  if (entries.empty()) {
+    return Result<uint64_t>::error("No entries to append");
+  }
+
+  list<Action> actions;
+
+  uint64_t position = index;
+
+  foreach (const string& bytes, entries) {
+    Action action;
+    action.set_position(position++);
+    action.set_promised(id);
+    action.set_performed(id);
+    action.set_type(Action::APPEND);
+    Action::Append* append = action.mutable_append();
+    append->set_bytes(bytes);
+    actions.push_back(action);
+  }
+
+  // N.B. The batch write updates 'index' as it commits actions since
+  // it might only commit some of them.
+  return write(actions, timeout);
+}
+
+
 Result<uint64_t> Coordinator::truncate(
     uint64_t to,
     const Timeout& timeout)
@@ -303,6 +338,90 @@ Result<uint64_t> Coordinator::write(
 }
 
 
+Result<uint64_t> Coordinator::write(
+    const list<Action>& actions,
+    const Timeout& timeout)
+{
+  CHECK(!actions.empty());
+
+  LOG(INFO) << "Coordinator attempting to write " << actions.size()
+            << " actions at positions " << actions.front().position()
+            << " through " << actions.back().position()
+            << " within " << timeout.remaining() << " seconds";
+
+  CHECK(elected);
+
+  // TODO(benh): Eliminate this special case hack?
+  if (quorum > 1) {
+    // Send all the write requests at once (to the network *excluding*
+    // the local replica) and then wait for each position to be
+    // accepted by a quorum.
+    set<Future<WriteResponse> > futures;
+
+    foreach (const Action& action, actions) {
+      CHECK(action.has_performed());
+      CHECK(action.has_type());
+      CHECK(action.type() == Action::APPEND);
+
+      WriteRequest request;
+      request.set_id(id);
+      request.set_position(action.position());
+      request.set_type(action.type());
+      request.mutable_append()->MergeFrom(action.append());
+
+      set<Future<WriteResponse> > temp = remotecast(protocol::write, request);
+      futures.insert(temp.begin(), temp.end());
+    }
+
+    map<uint64_t, int> okays;
+    size_t accepted = 0;
+
+    do {
+      Future<Future<WriteResponse> > future = select(futures);
+      if (future.await(timeout.remaining())) {
+        CHECK(future.get().isReady());
+        const WriteResponse& response = future.get().get();
+        CHECK(response.id() == id);
+        if (!response.okay()) {
+          discard(futures);
+          elected = false;
+          return Result<uint64_t>::error("Coordinator demoted");
+        } else if (response.okay()) {
+          // N.B. Using (quorum - 1) here, see write above.
+          if (++okays[response.position()] == (quorum - 1)) {
+            accepted++;
+          }
+        }
+        futures.erase(future.get());
+      }
+    } while (accepted < actions.size() && timeout.remaining() > 0);
+
+    discard(futures);
+
+    if (accepted < actions.size()) {
+      return Result<uint64_t>::none(); // Timed out.
+    }
+  }
+
+  // Got a quorum for every action, commit them in order (advancing
+  // the index as we go so that a failure part way through doesn't
+  // cause committed positions to get written again).
+  foreach (const Action& action, actions) {
+    Result<uint64_t> result = commit(action);
+    if (result.isError()) {
+      return Result<uint64_t>::error(result.error());
+    } else if (result.isNone()) {
+      return Result<uint64_t>::none();
+    }
+    CHECK(result.isSome());
+    CHECK(result.get() == index);
+    index++;
+  }
+
+  return index - 1;
+}
+
+
 Result<uint64_t> Coordinator::commit(const Action& action)
 {
   LOG(INFO) << "Coordinator attempting to commit "
@@ -19,6 +19,7 @@
 #ifndef __LOG_COORDINATOR_HPP__
 #define __LOG_COORDINATOR_HPP__
 
+#include <list>
 #include <string>
 #include <vector>
 
@@ -61,6 +62,16 @@ public:
   // but can be retried.
   Result<uint64_t> append(const std::string& bytes, const Timeout& timeout);
 
+  // Returns the result of trying to append each of the specified
+  // entries, in order, at consecutive positions. The write requests
+  // for all of the entries are sent out at once so a batch costs
+  // roughly one round trip to a quorum rather than one per entry. A
+  // some result returns the position of the last entry. A result of
+  // none means the append failed (e.g., due to timeout), but can be
+  // retried.
+  Result<uint64_t> append(const std::list<std::string>& entries,
+                          const Timeout& timeout);
+
   // Returns the result of trying to truncate the log (from the
   // beginning to the specified position exclusive). A result of
   // none means the truncate failed (e.g., due to timeout), but can be
@@ -73,6 +84,14 @@ private:
   // can be retried.
   Result<uint64_t> write(const Action& action, const Timeout& timeout);
 
+  // Helper like write, but for many actions (at distinct positions)
+  // at once. A result of none means the write failed (e.g., due to
+  // timeout), but can be retried, otherwise the position of the last
+  // action is returned. Note that on error or none some of the
+  // actions might have been committed (see 'index').
+  Result<uint64_t> write(const std::list<Action>& actions,
+                         const Timeout& timeout);
+
   // Helper that handles commiting an action (i.e., writing to the
   // local replica and then sending out learned messages).
   Result<uint64_t> commit(const Action& action);
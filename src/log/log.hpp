@@ -156,6 +156,14 @@ public:
     // Writer must be created.
     Result<Position> append(const std::string& data, const seconds& timeout);
 
+    // Attempts to append each of the specified entries to the log as
+    // a single batch (see Coordinator::append). A none result means
+    // the operation timed out, otherwise the positions of the new
+    // entries are returned or an error. Upon error a new Writer must
+    // be created.
+    Result<std::list<Position> > append(const std::list<std::string>& entries,
+                                         const seconds& timeout);
+
     // Attempts to truncate the log up to but not including the
     // specificed position. A none result means the operation timed
     // out, otherwise the new ending position of the log is returned
@@ -386,6 +394,41 @@ Result<Log::Position> Log::Writer::append(
 }
 
 
+Result<std::list<Log::Position> > Log::Writer::append(
+    const std::list<std::string>& entries,
+    const seconds& timeout)
+{
+  if (error.isSome()) {
+    return Result<std::list<Log::Position> >::error(error.get());
+  }
+
+  LOG(INFO) << "Attempting to append " << entries.size()
+            << " entries to the log";
+
+  Result<uint64_t> result =
+    coordinator.append(entries, Timeout(timeout.value));
+
+  if (result.isError()) {
+    error = result.error();
+    return Result<std::list<Log::Position> >::error(error.get());
+  } else if (result.isNone()) {
+    return Result<std::list<Log::Position> >::none();
+  }
+
+  CHECK(result.isSome());
+
+  // The entries were appended at consecutive positions ending with
+  // the returned position.
+  std::list<Log::Position> positions;
+  uint64_t position = result.get() - entries.size() + 1;
+  for (size_t i = 0; i < entries.size(); i++) {
+    positions.push_back(Log::Position(position++));
+  }
+
+  return positions;
+}
+
+
 Result<Log::Position> Log::Writer::truncate(
     const Log::Position& to,
     const seconds& timeout)
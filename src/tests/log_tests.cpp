@@ -802,6 +802,65 @@ TEST(CoordinatorTest, MultipleAppends)
 }
 
 
+TEST(CoordinatorTest, BatchAppend)
+{
+  const std::string path1 = utils::os::getcwd() + "/.log1";
+  const std::string path2 = utils::os::getcwd() + "/.log2";
+
+  utils::os::rmdir(path1);
+  utils::os::rmdir(path2);
+
+  Replica replica1(path1);
+  Replica replica2(path2);
+
+  Network network;
+
+  network.add(replica1.pid());
+  network.add(replica2.pid());
+
+  Coordinator coord(2, &replica1, &network);
+
+  {
+    Result<uint64_t> result = coord.elect(Timeout(1.0));
+    ASSERT_TRUE(result.isSome());
+    EXPECT_EQ(0, result.get());
+  }
+
+  {
+    std::list<std::string> entries;
+    for (uint64_t position = 1; position <= 10; position++) {
+      entries.push_back(utils::stringify(position));
+    }
+
+    Result<uint64_t> result = coord.append(entries, Timeout(1.0));
+    ASSERT_TRUE(result.isSome());
+    EXPECT_EQ(10, result.get());
+  }
+
+  {
+    Result<uint64_t> result = coord.append("11", Timeout(1.0));
+    ASSERT_TRUE(result.isSome());
+    EXPECT_EQ(11, result.get());
+  }
+
+  {
+    Future<std::list<Action> > actions = replica1.read(1, 11);
+    ASSERT_TRUE(actions.await(2.0));
+    ASSERT_TRUE(actions.isReady());
+    EXPECT_EQ(11, actions.get().size());
+    foreach (const Action& action, actions.get()) {
+      ASSERT_TRUE(action.has_type());
+      ASSERT_EQ(Action::APPEND, action.type());
+      EXPECT_TRUE(action.has_learned() && action.learned());
+      EXPECT_EQ(utils::stringify(action.position()), action.append().bytes());
+    }
+  }
+
+  utils::os::rmdir(path1);
+  utils::os::rmdir(path2);
+}
+
+
 TEST(CoordinatorTest, MultipleAppendsNotLearnedFill)
 {
   MockFilter filter;